@@ -4,12 +4,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.EventBus;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import fi.thl.termed.domain.event.NodeEvent;
+import fi.thl.termed.util.eventbus.SubscriberExecutingEventBus;
 import fi.thl.termed.util.json.FastUUIDTypeAdapter;
 import fi.thl.termed.util.json.ImmutableListDeserializer;
 import fi.thl.termed.util.json.ImmutableMultimapTypeAdapterFactory;
 import fi.thl.termed.util.json.LocalDateTimeAsZonedTypeAdapter;
 import fi.thl.termed.util.json.MultimapTypeAdapterFactory;
 import fi.thl.termed.util.json.StreamTypeAdapterFactory;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,9 +42,26 @@ public class Application extends SpringBootServletInitializer {
         .create();
   }
 
+  /**
+   * Event bus that runs subscribers off the posting thread. Node events are ordered per graph, and
+   * posting a node event of a synchronous write waits until the event has been handled.
+   */
   @Bean
-  public EventBus eventBus() {
-    return new EventBus();
+  public EventBus eventBus(MeterRegistry meterRegistry) {
+    return new SubscriberExecutingEventBus(1000,
+        Application::graphIdOfNodeEvent,
+        Application::isSyncNodeEvent,
+        meterRegistry);
+  }
+
+  private static Object graphIdOfNodeEvent(Object event) {
+    return event instanceof NodeEvent && !((NodeEvent) event).getNodes().isEmpty()
+        ? ((NodeEvent) event).getNodes().get(0).getTypeGraphId()
+        : null;
+  }
+
+  private static boolean isSyncNodeEvent(Object event) {
+    return event instanceof NodeEvent && ((NodeEvent) event).isSync();
   }
 
   @Bean
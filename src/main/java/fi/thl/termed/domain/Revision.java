@@ -12,15 +12,21 @@ public final class Revision implements Identifiable<Long> {
   private final Long number;
   private final String author;
   private final LocalDateTime date;
+  private final boolean checkpoint;
 
-  private Revision(Long number, String author, LocalDateTime date) {
+  private Revision(Long number, String author, LocalDateTime date, boolean checkpoint) {
     this.number = requireNonNull(number);
     this.author = requireNonNull(author);
     this.date = requireNonNull(date);
+    this.checkpoint = checkpoint;
   }
 
   public static Revision of(Long number, String author, LocalDateTime date) {
-    return new Revision(number, author, date);
+    return new Revision(number, author, date, false);
+  }
+
+  public static Revision of(Long number, String author, LocalDateTime date, boolean checkpoint) {
+    return new Revision(number, author, date, checkpoint);
   }
 
   @Override
@@ -40,6 +46,13 @@ public final class Revision implements Identifiable<Long> {
     return date;
   }
 
+  /**
+   * Checkpoint revisions contain a full snapshot of nodes instead of changes.
+   */
+  public boolean isCheckpoint() {
+    return checkpoint;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -51,12 +64,13 @@ public final class Revision implements Identifiable<Long> {
     Revision revision = (Revision) o;
     return Objects.equals(number, revision.number) &&
         Objects.equals(author, revision.author) &&
-        Objects.equals(date, revision.date);
+        Objects.equals(date, revision.date) &&
+        checkpoint == revision.checkpoint;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(number, author, date);
+    return Objects.hash(number, author, date, checkpoint);
   }
 
   @Override
@@ -65,6 +79,7 @@ public final class Revision implements Identifiable<Long> {
         .add("number", number)
         .add("author", author)
         .add("date", date)
+        .add("checkpoint", checkpoint)
         .toString();
   }
 
@@ -21,6 +21,7 @@ import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.service.SaveMode;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -101,6 +102,11 @@ class DelegatingDumpService implements Service<DumpId, Dump> {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<DumpId, Dump> spec, String field, User user) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public boolean exists(DumpId key, User user) {
     throw new UnsupportedOperationException();
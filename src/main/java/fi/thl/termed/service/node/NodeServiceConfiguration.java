@@ -29,6 +29,7 @@ import fi.thl.termed.service.node.internal.DocumentToNode;
 import fi.thl.termed.service.node.internal.IdInitializingNodeService;
 import fi.thl.termed.service.node.internal.IndexedNodeService;
 import fi.thl.termed.service.node.internal.JdbcNodeDao;
+import fi.thl.termed.service.node.internal.JdbcNodeEventOutboxDao;
 import fi.thl.termed.service.node.internal.JdbcNodeIndexingQueueDao;
 import fi.thl.termed.service.node.internal.JdbcNodeIndexingQueueItemDao;
 import fi.thl.termed.service.node.internal.JdbcNodeNamespaceSequenceDao;
@@ -44,9 +45,14 @@ import fi.thl.termed.service.node.internal.JdbcPostgresNodeReferenceAttributeVal
 import fi.thl.termed.service.node.internal.JdbcPostgresNodeRevisionDao;
 import fi.thl.termed.service.node.internal.JdbcPostgresNodeTextAttributeValueDao;
 import fi.thl.termed.service.node.internal.JdbcPostgresNodeTextAttributeValueRevisionDao;
+import fi.thl.termed.service.node.internal.NodeChangeCollector;
+import fi.thl.termed.service.node.internal.NodeEventOutboxWritingService;
 import fi.thl.termed.service.node.internal.NodeMetadataInitializingService;
 import fi.thl.termed.service.node.internal.NodeRepository;
+import fi.thl.termed.service.node.internal.NodeRevisionCheckpointer;
+import fi.thl.termed.service.node.internal.NodeRevisionPurger;
 import fi.thl.termed.service.node.internal.NodeRevisionRepository;
+import fi.thl.termed.service.node.internal.NodeRevisionsInProgress;
 import fi.thl.termed.service.node.internal.NodeToDocument;
 import fi.thl.termed.service.node.internal.NodeWriteEventPostingService;
 import fi.thl.termed.service.node.internal.ReadAuthorizedNodeService;
@@ -57,6 +63,7 @@ import fi.thl.termed.util.dao.JdbcSystemSequenceDao;
 import fi.thl.termed.util.dao.SystemDao;
 import fi.thl.termed.util.dao.SystemSequenceDao;
 import fi.thl.termed.util.dao.TransactionalSystemDao;
+import fi.thl.termed.util.eventbus.Synchronous;
 import fi.thl.termed.util.index.Index;
 import fi.thl.termed.util.index.lucene.LuceneIndex;
 import fi.thl.termed.util.permission.DisjunctionPermissionEvaluator;
@@ -68,10 +75,10 @@ import fi.thl.termed.util.service.NamedSequenceService;
 import fi.thl.termed.util.service.ProfilingService;
 import fi.thl.termed.util.service.SequenceService;
 import fi.thl.termed.util.service.Service;
-import fi.thl.termed.util.service.SynchronizedNamedSequenceService;
 import fi.thl.termed.util.service.TransactionalNamedSequenceService;
 import fi.thl.termed.util.service.TransactionalService;
 import fi.thl.termed.util.service.WriteLoggingService;
+import io.micrometer.core.instrument.MeterRegistry;
 import javax.sql.DataSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -109,33 +116,47 @@ public class NodeServiceConfiguration {
 
   @Value("${fi.thl.termed.index:}")
   private String indexPath;
+  @Value("${fi.thl.termed.index.async:true}")
+  private boolean indexAsync;
+  @Value("${fi.thl.termed.revision.checkpointInterval:10000}")
+  private long revisionCheckpointInterval;
+  @Value("${fi.thl.termed.revision.retentionDays:0}")
+  private int revisionRetentionDays;
 
   @Autowired
   private EventBus eventBus;
 
   private String packageName = getClass().getPackage().getName();
 
+  private NodeChangeCollector nodeChangeCollector = new NodeChangeCollector();
+  private NodeRevisionsInProgress nodeRevisionsInProgress = new NodeRevisionsInProgress();
+
   @Bean
   public Service<NodeId, Node> nodeService() {
     Service<NodeId, Node> service = nodeRepository();
+    service = new NodeEventOutboxWritingService(service, nodeEventOutboxDao());
     service = new TransactionalService<>(service, transactionManager);
 
     service = new IndexedNodeService(service,
         nodeIndex(),
         nodeIndexingQueueSequenceDao(),
         nodeIndexingQueueDao(),
-        nodeIndexingQueueItemDao());
+        nodeIndexingQueueItemDao(),
+        indexAsync);
     eventBus.register(service);
 
     service = new ReadAuthorizedNodeService(service,
         typeEvaluator, textAttributeEvaluator, referenceAttributeEvaluator);
 
     service = new WriteLoggingService<>(service, packageName + ".WriteLoggingService");
-    service = new NodeWriteEventPostingService(service, nodeRevisionService(), eventBus);
-    service = new RevisionInitializingNodeService(service, revisionSeqService, revisionService);
 
+    // metadata is initialized in a revision to collect code and uri changes for events
     service = new NodeMetadataInitializingService(service, nodeSequenceService(),
-        nodeNamespaceSequenceService(), typeService::get, graphService::get, ns);
+        nodeNamespaceSequenceService(), typeService::get, graphService::get, ns,
+        nodeChangeCollector);
+    service = new NodeWriteEventPostingService(service, nodeChangeCollector, eventBus);
+    service = new RevisionInitializingNodeService(service, revisionSeqService, revisionService,
+        nodeRevisionsInProgress);
     service = new AttributeValueInitializingNodeService(service, typeService::get);
     service = new ProfilingService<>(service, packageName + ".ProfilingService", 500);
 
@@ -151,6 +172,28 @@ public class NodeServiceConfiguration {
     return service;
   }
 
+  @Bean
+  public NodeRevisionCheckpointer nodeRevisionCheckpointer() {
+    NodeRevisionCheckpointer checkpointer = new NodeRevisionCheckpointer(dataSource,
+        revisionService, revisionSeqService, nodeRevisionsInProgress, transactionManager,
+        revisionCheckpointInterval);
+    eventBus.register(checkpointer);
+    return checkpointer;
+  }
+
+  @Bean
+  public NodeRevisionPurger nodeRevisionPurger(MeterRegistry meterRegistry) {
+    NodeRevisionPurger purger = new NodeRevisionPurger(dataSource, transactionManager,
+        meterRegistry, revisionRetentionDays);
+    eventBus.register(purger);
+    return purger;
+  }
+
+  @Bean
+  public SystemDao<Long, Empty> nodeEventOutboxDao() {
+    return new TransactionalSystemDao<>(new JdbcNodeEventOutboxDao(dataSource), transactionManager);
+  }
+
   private Index<NodeId, Node> nodeIndex() {
     return new LuceneIndex<>(
         indexPath,
@@ -167,6 +210,7 @@ public class NodeServiceConfiguration {
         new AuthorizedDao<>(nodeRevSysDao(), nodeRevEvaluator()),
         new AuthorizedDao<>(textAttributeValueRevSysDao(), textAttributeValueRevEvaluator()),
         new AuthorizedDao<>(referenceAttributeValueRevSysDao(), refAttributeValueRevEvaluator()),
+        nodeChangeCollector,
         getDatabaseProductName(dataSource).equalsIgnoreCase("postgresql") ? 5000 : -1);
   }
 
@@ -174,17 +218,17 @@ public class NodeServiceConfiguration {
     NamedSequenceService<TypeId> sequenceService =
         new DaoNamedSequenceService<>(
             new AuthorizedDao<>(nodeSequenceSystemDao(), nodeSequenceEvaluator()));
+    sequenceService = new TransactionalNamedSequenceService<>(sequenceService, transactionManager);
 
     sequenceService = new CachedNamedSequenceService<>(sequenceService);
     sequenceService = new ForwardingNamedSequenceService<TypeId>(sequenceService) {
       @Subscribe
+      @Synchronous
       public void discardCachesOn(ApplicationShutdownEvent e) {
         close();
       }
     };
     eventBus.register(sequenceService);
-    sequenceService = new TransactionalNamedSequenceService<>(sequenceService, transactionManager);
-    sequenceService = new SynchronizedNamedSequenceService<>(sequenceService);
 
     return sequenceService;
   }
@@ -195,17 +239,17 @@ public class NodeServiceConfiguration {
             new AuthorizedDao<>(
                 nodeNamespaceSequenceSystemDao(),
                 nodeNamespaceSequenceEvaluator()));
+    sequenceService = new TransactionalNamedSequenceService<>(sequenceService, transactionManager);
 
     sequenceService = new CachedNamedSequenceService<>(sequenceService);
     sequenceService = new ForwardingNamedSequenceService<Tuple2<GraphId, String>>(sequenceService) {
       @Subscribe
+      @Synchronous
       public void discardCachesOn(ApplicationShutdownEvent e) {
         close();
       }
     };
     eventBus.register(sequenceService);
-    sequenceService = new TransactionalNamedSequenceService<>(sequenceService, transactionManager);
-    sequenceService = new SynchronizedNamedSequenceService<>(sequenceService);
 
     return sequenceService;
   }
@@ -215,7 +259,8 @@ public class NodeServiceConfiguration {
         new AuthorizedDao<>(nodeRevSysDao(), nodeRevEvaluator()),
         new AuthorizedDao<>(textAttributeValueRevSysDao(), textAttributeValueRevEvaluator()),
         new AuthorizedDao<>(referenceAttributeValueRevSysDao(), refAttributeValueRevEvaluator()),
-        revisionService, revisionSeqService);
+        revisionService, revisionSeqService, nodeRevisionsInProgress,
+        nodeRevisionCheckpointer()::checkpointAtOrBefore);
   }
 
   private PermissionEvaluator<TypeId> nodeSequenceEvaluator() {
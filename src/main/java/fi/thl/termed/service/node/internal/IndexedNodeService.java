@@ -1,9 +1,10 @@
 package fi.thl.termed.service.node.internal;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.stream.Collectors.toMap;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Streams;
 import com.google.common.eventbus.Subscribe;
@@ -17,16 +18,14 @@ import fi.thl.termed.domain.event.ApplicationReadyEvent;
 import fi.thl.termed.domain.event.ApplicationShutdownEvent;
 import fi.thl.termed.domain.event.ReindexEvent;
 import fi.thl.termed.service.node.specification.NodeIndexingQueueItemsByQueueId;
-import fi.thl.termed.service.node.specification.NodesByGraphId;
-import fi.thl.termed.service.node.specification.NodesById;
-import fi.thl.termed.service.node.specification.NodesByTypeId;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
 import fi.thl.termed.util.collect.StreamUtils;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.dao.SystemDao;
 import fi.thl.termed.util.dao.SystemSequenceDao;
+import fi.thl.termed.util.eventbus.Synchronous;
 import fi.thl.termed.util.index.Index;
 import fi.thl.termed.util.index.lucene.LuceneIndex;
-import fi.thl.termed.util.query.AndSpecification;
 import fi.thl.termed.util.query.CompositeSpecification;
 import fi.thl.termed.util.query.DependentSpecification;
 import fi.thl.termed.util.query.LuceneSelectField;
@@ -43,18 +42,32 @@ import fi.thl.termed.util.service.ForwardingService;
 import fi.thl.termed.util.service.SaveMode;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class IndexedNodeService extends ForwardingService<NodeId, Node> {
 
+  private static final int BATCH_SIZE = 500;
+
+  // times a failed queue is indexed again before it is left for the next start up
+  private static final int MAX_RETRIES = 3;
+
   private Logger log = LoggerFactory.getLogger(getClass());
 
   private Index<NodeId, Node> index;
@@ -63,6 +76,22 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
   private SystemDao<Long, Empty> nodeIndexingQueueDao;
   private SystemDao<IndexingQueueItemId<NodeId>, Empty> nodeIndexingQueueItemDao;
 
+  // if false, all writes wait for indexing regardless of sync option
+  private boolean async;
+
+  // processes indexing queues one at a time in the order they are submitted
+  private ExecutorService queueExecutor = Executors.newSingleThreadExecutor();
+  private volatile boolean closed = false;
+
+  // latest indexing task of each user's writes, searches of a user wait for these so that users
+  // see their own writes, e.g. when resolving references to nodes they have just imported. Writes
+  // are visible only per username, other users see them once indexed (or use sync writes).
+  private Map<String, CompletableFuture<Void>> pendingByUser = new ConcurrentHashMap<>();
+
+  // queues that failed to index with number of retries done, retried before indexing each new
+  // queue. Failed queues stay in the database so they are also indexed on next start up.
+  private Map<Long, Integer> failedQueues = new ConcurrentHashMap<>();
+
   private User indexer = new User("indexer", "", AppRole.ADMIN);
 
   public IndexedNodeService(
@@ -71,18 +100,37 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
       SystemSequenceDao nodeIndexingQueueSequenceDao,
       SystemDao<Long, Empty> nodeIndexingQueueDao,
       SystemDao<IndexingQueueItemId<NodeId>, Empty> nodeIndexingQueueItemDao) {
+    this(delegate, index, nodeIndexingQueueSequenceDao, nodeIndexingQueueDao,
+        nodeIndexingQueueItemDao, true);
+  }
+
+  public IndexedNodeService(
+      Service<NodeId, Node> delegate,
+      Index<NodeId, Node> index,
+      SystemSequenceDao nodeIndexingQueueSequenceDao,
+      SystemDao<Long, Empty> nodeIndexingQueueDao,
+      SystemDao<IndexingQueueItemId<NodeId>, Empty> nodeIndexingQueueItemDao,
+      boolean async) {
     super(delegate);
     this.index = index;
     this.nodeIndexingQueueSequenceDao = nodeIndexingQueueSequenceDao;
     this.nodeIndexingQueueDao = nodeIndexingQueueDao;
     this.nodeIndexingQueueItemDao = nodeIndexingQueueItemDao;
+    this.async = async;
   }
 
   @Subscribe
+  @Synchronous
   public void initIndexOn(ApplicationReadyEvent e) {
     if (index.isEmpty()) {
       log.info("No index found, adding all keys to indexing queue");
       enqueueAll();
+    } else if (index.isMissingDocValues(NodeToDocument.TYPE_ID_DOC_VALUES_FIELD) ||
+        index.isMissingDocValues(NodeToDocument.TYPE_GRAPH_ID_DOC_VALUES_FIELD)) {
+      // counts by type or graph would silently miss nodes indexed before doc values were added
+      log.info("Index has no doc values for counting by type or graph, "
+          + "adding all keys to indexing queue");
+      enqueueAll();
     }
 
     // there can be queues if index was empty or app was shut down mid indexing
@@ -93,8 +141,6 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
     Long queueId = initQueue();
     try (Stream<NodeId> ids = super.keys(Queries.matchAll(), indexer)) {
       enqueue(queueId, ids);
-    } finally {
-      index(queueId);
     }
   }
 
@@ -103,20 +149,31 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
         nodeIndexingQueueDao.keys(Specifications.matchAll()));
 
     if (!queues.isEmpty()) {
-      log.info("Found {} indexing queues, indexing", queues.size());
-      queues.forEach(this::index);
+      log.info("Found {} indexing queues, indexing", queues.size());
+      queues.forEach(queueId -> waitFor(submit(queueId)));
     }
   }
 
   @Subscribe
+  @Synchronous
   public void closeIndexOn(ApplicationShutdownEvent e) {
+    // queues not yet processed are left in the database and indexed on next start up
+    closed = true;
+    queueExecutor.shutdown();
+    try {
+      queueExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
     index.close();
   }
 
   @Subscribe
+  @Synchronous
   public void reindexOn(ReindexEvent<NodeId> e) {
     log.info("Indexing");
-    index(e.getKeyStreamSupplier().get());
+    waitFor(CompletableFuture.runAsync(
+        () -> index(e.getKeyStreamSupplier().get()), queueExecutor));
     log.info("Done");
   }
 
@@ -127,7 +184,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
     try {
       super.save(nodes.peek(node -> enqueue(queueId, node.identifier())), mode, opts, user);
     } finally {
-      index(queueId);
+      index(queueId, opts, user);
     }
   }
 
@@ -139,7 +196,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
     try {
       return super.save(node, mode, opts, user);
     } finally {
-      index(queueId);
+      index(queueId, opts, user);
     }
   }
 
@@ -150,7 +207,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
     try {
       super.delete(idStream.peek(id -> enqueue(queueId, id)), opts, user);
     } finally {
-      index(queueId);
+      index(queueId, opts, user);
     }
   }
 
@@ -162,7 +219,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
     try {
       super.delete(id, opts, user);
     } finally {
-      index(queueId);
+      index(queueId, opts, user);
     }
   }
 
@@ -177,7 +234,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
           deletes.peek(id -> enqueue(queueId, id)),
           mode, opts, user);
     } finally {
-      index(queueId);
+      index(queueId, opts, user);
     }
   }
 
@@ -196,10 +253,98 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
         .insert(nodeIds.map(id -> Tuple.of(IndexingQueueItemId.of(id, queueId), Empty.INSTANCE)));
   }
 
+  // Called after delegate has completed the write. If the write joined an outer transaction,
+  // indexing is deferred until the outer transaction commits as the queue is not visible to
+  // indexing workers before that. Waits for indexing only if requested.
+  private void index(Long queueId, WriteOptions opts, User user) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+              indexCommitted(queueId, opts, user);
+            }
+          });
+    } else {
+      indexCommitted(queueId, opts, user);
+    }
+  }
+
+  private void indexCommitted(Long queueId, WriteOptions opts, User user) {
+    CompletableFuture<Void> indexed = submit(queueId);
+
+    if (opts.isSync() || !async) {
+      waitFor(indexed);
+    } else {
+      String username = user.getUsername();
+      pendingByUser.put(username, indexed);
+      indexed.whenComplete((r, e) -> pendingByUser.remove(username, indexed));
+    }
+  }
+
+  // queues are indexed in submission order, so waiting for the latest is enough
+  private void awaitIndexedWritesOf(User user) {
+    CompletableFuture<Void> pending = pendingByUser.get(user.getUsername());
+    if (pending != null) {
+      // failures are logged by the indexing task
+      pending.exceptionally(e -> null).join();
+    }
+  }
+
+  private CompletableFuture<Void> submit(Long queueId) {
+    try {
+      return CompletableFuture.runAsync(() -> {
+        retryFailedQueues();
+        indexOrRetryLater(queueId);
+      }, queueExecutor);
+    } catch (RejectedExecutionException e) {
+      // index is closed, queue is left in the database and indexed on next start up
+      log.debug("Index is closed, queue {} not indexed", queueId);
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  private void indexOrRetryLater(Long queueId) {
+    try {
+      index(queueId);
+    } catch (RuntimeException e) {
+      failedQueues.put(queueId, 0);
+      log.error("Failed to index queue " + queueId + ", retrying with next queue", e);
+      throw e;
+    }
+  }
+
+  private void retryFailedQueues() {
+    if (closed) {
+      return;
+    }
+    for (Long queueId : ImmutableList.copyOf(failedQueues.keySet())) {
+      try {
+        index(queueId);
+        failedQueues.remove(queueId);
+        log.info("Indexed previously failed queue {}", queueId);
+      } catch (RuntimeException e) {
+        int retries = failedQueues.merge(queueId, 1, Integer::sum);
+        if (retries >= MAX_RETRIES) {
+          failedQueues.remove(queueId);
+          log.error("Failed to index queue " + queueId + ", leaving it for next start up", e);
+        } else {
+          log.warn("Failed to index queue {} again", queueId, e);
+        }
+      }
+    }
+  }
+
   private void index(Long queueId) {
+    if (closed) {
+      // queue is left in the database and indexed on next start up
+      log.debug("Index is closed, queue {} not indexed", queueId);
+      return;
+    }
+
     log.trace("Indexing queue {}", queueId);
 
-    index(() -> nodeIndexingQueueItemDao
+    index(nodeIndexingQueueItemDao
         .keys(NodeIndexingQueueItemsByQueueId.of(queueId))
         .map(IndexingQueueItemId::getId));
 
@@ -207,117 +352,73 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
     nodeIndexingQueueDao.delete(queueId);
   }
 
-  // index nodes and its references and referrers
-  private void index(Supplier<Stream<NodeId>> idsSupplier) {
-    long nodeCount = StreamUtils.countAndClose(idsSupplier.get());
+  // Index nodes and their references and referrers, closes the stream. First pass indexes given
+  // nodes in batches and collects their references and referrers both from the database and from
+  // the index (to catch removed ones). Second pass indexes collected nodes not yet indexed.
+  private void index(Stream<NodeId> ids) {
+    Set<NodeId> indexed = new HashSet<>();
+    Set<NodeId> related = ConcurrentHashMap.newKeySet();
+    List<CompletableFuture<?>> tasks = new ArrayList<>();
 
-    if (nodeCount > 1) {
-      log.debug("Indexing {} nodes", nodeCount);
+    try (Stream<NodeId> closeable = ids) {
+      Iterators.partition(closeable.filter(indexed::add).iterator(), BATCH_SIZE)
+          .forEachRemaining(batch -> {
+            related.addAll(indexedReferencesAndReferrers(batch));
+            tasks.add(index.index(batch, this::load).thenAccept(nodes -> nodes.values()
+                .forEach(node -> {
+                  related.addAll(node.getReferences().values());
+                  related.addAll(node.getReferrers().values());
+                })));
+          });
     }
 
-    Cache<NodeId, Boolean> indexed = CacheBuilder.newBuilder().softValues().build();
-
-    AtomicInteger checkCounter = new AtomicInteger();
-    AtomicInteger indexCounter = new AtomicInteger();
-
-    // first pass: index nodes
-    index(idsSupplier.get()
-        .peek(id -> checkCounter.incrementAndGet())
-        .filter(refId -> indexed.getIfPresent(refId) == null)
-        .peek(id -> indexCounter.incrementAndGet())
-        .peek(id -> indexed.put(id, true)));
-
-    log.trace("Checked {} values", checkCounter.get());
-    log.trace("Indexed {} values", indexCounter.get());
-
-    indexCounter.set(0);
-    checkCounter.set(0);
-
-    // second pass: index each reference and referrer of a db node
-    try (Stream<NodeId> idStream = idsSupplier.get()) {
-      // in batches for better performance
-      Iterators.partition(idStream.iterator(), 200).forEachRemaining(idBatch -> {
-        OrSpecification<NodeId, Node> nodeSpecs =
-            OrSpecification.or(idBatch.stream().map(id -> AndSpecification.and(
-                NodesByGraphId.of(id.getTypeGraphId()),
-                NodesByTypeId.of(id.getTypeId()),
-                NodesById.of(id.getId())))
-                .collect(toImmutableList()));
-
-        try (Stream<Node> nodes = values(Queries.sqlQuery(nodeSpecs), indexer)) {
-          index(nodes.flatMap(node ->
-              Stream.concat(
-                  node.getReferences().values().stream(),
-                  node.getReferrers().values().stream()))
-              .distinct()
-              .peek(id -> checkCounter.incrementAndGet())
-              .filter(refId -> indexed.getIfPresent(refId) == null)
-              .peek(id -> indexCounter.incrementAndGet())
-              .peek(id -> indexed.put(id, true)));
-        }
-      });
-    }
+    waitFor(tasks);
 
-    log.trace("Checked {} db refs", checkCounter.get());
-    log.trace("Indexed {} db refs", indexCounter.get());
-
-    indexCounter.set(0);
-    checkCounter.set(0);
-
-    // final pass: index each reference and referrer of an index node
-    try (Stream<NodeId> idStream = idsSupplier.get()) {
-      // in batches for better performance
-      Iterators.partition(idStream.iterator(), 200).forEachRemaining(idBatch -> {
-        OrSpecification<NodeId, Node> refSpecs =
-            OrSpecification.or(Streams.concat(
-                idBatch.stream().map(NodeAllReferences::of),
-                idBatch.stream().map(NodeAllReferrers::of))
-                .collect(toImmutableList()));
-
-        index(keys(Queries.query(refSpecs), indexer)
-            .peek(id -> checkCounter.incrementAndGet())
-            .filter(refId -> indexed.getIfPresent(refId) == null)
-            .peek(id -> indexCounter.incrementAndGet())
-            .peek(id -> indexed.put(id, true)));
-      });
+    if (indexed.size() > 1) {
+      log.debug("Indexed {} nodes", indexed.size());
     }
 
-    log.trace("Checked {} index refs", checkCounter.get());
-    log.trace("Indexed {} index refs", indexCounter.get());
+    related.removeAll(indexed);
+    tasks.clear();
 
-    waitLuceneIndexRefresh();
+    Iterators.partition(related.iterator(), BATCH_SIZE)
+        .forEachRemaining(batch -> tasks.add(index.index(batch, this::load)));
 
-    if (nodeCount > 1) {
-      log.debug("Done");
-    }
-  }
+    waitFor(tasks);
 
-  // index all nodes identified by given ids, closes the stream
-  private void index(Stream<NodeId> ids) {
-    try (Stream<NodeId> closeable = ids) {
-      StreamUtils.zipIndex(closeable, 1, Tuple::of).forEach(t -> {
-        NodeId id = t._1;
-        int i = t._2;
+    log.trace("Indexed {} references and referrers", related.size());
 
-        Optional<Node> node = super.get(id, indexer);
+    // wait for searcher to reflect updates to make sure that all updates are done and visible
+    index.refreshBlocking();
+  }
 
-        if (node.isPresent()) {
-          index.index(id, node.get());
-        } else {
-          index.delete(id);
-        }
+  private List<NodeId> indexedReferencesAndReferrers(List<NodeId> ids) {
+    OrSpecification<NodeId, Node> refSpecs =
+        OrSpecification.or(Streams.concat(
+            ids.stream().map(NodeAllReferences::of),
+            ids.stream().map(NodeAllReferrers::of))
+            .collect(toImmutableList()));
 
-        if (i % 1000 == 0) {
-          log.debug("Indexed {} nodes", i);
-        }
-      });
+    return StreamUtils.toListAndClose(keys(Queries.query(refSpecs), indexer));
+  }
+
+  // loads a batch of nodes from the database with one query per table
+  private Map<NodeId, Node> load(List<NodeId> ids) {
+    try (Stream<Node> nodes = super.values(Queries.sqlQuery(NodesByNodeIds.of(ids)), indexer)) {
+      return nodes.collect(toMap(Node::identifier, n -> n, (n1, n2) -> n1));
     }
   }
 
-  // wait for searcher to reflect updates to make sure that all updates are done and visible
-  private void waitLuceneIndexRefresh() {
-    if (index instanceof LuceneIndex) {
-      ((LuceneIndex) index).refreshBlocking();
+  private void waitFor(List<CompletableFuture<?>> futures) {
+    waitFor(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])));
+  }
+
+  private void waitFor(CompletableFuture<?> future) {
+    try {
+      future.join();
+    } catch (CompletionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
     }
   }
 
@@ -327,6 +428,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
       return super.values(query, user);
     }
 
+    awaitIndexedWritesOf(user);
     resolve(query.getWhere(), user);
 
     return ((LuceneIndex<NodeId, Node>) index).get(
@@ -362,6 +464,7 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
       return super.keys(query, user);
     }
 
+    awaitIndexedWritesOf(user);
     resolve(query.getWhere(), user);
 
     return index.getKeys(
@@ -376,11 +479,24 @@ public class IndexedNodeService extends ForwardingService<NodeId, Node> {
       return super.count(spec, user);
     }
 
+    awaitIndexedWritesOf(user);
     resolve(spec, user);
 
     return index.count(spec);
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<NodeId, Node> spec, String field, User user) {
+    if (!(spec instanceof LuceneSpecification) || !(index instanceof LuceneIndex)) {
+      return super.countBy(spec, field, user);
+    }
+
+    awaitIndexedWritesOf(user);
+    resolve(spec, user);
+
+    return index.countBy(spec, field);
+  }
+
   private void resolve(Specification<NodeId, Node> spec, User user) {
     if (spec instanceof DependentSpecification) {
       ((DependentSpecification<NodeId, Node>) spec).resolve(s -> keys(new Query<>(s), user));
@@ -6,6 +6,7 @@ import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.dao.AbstractJdbcDao;
 import fi.thl.termed.util.query.SqlSpecification;
 import java.util.Optional;
@@ -15,6 +16,11 @@ import org.springframework.jdbc.core.RowMapper;
 
 public class JdbcNodeDao extends AbstractJdbcDao<NodeId, Node> {
 
+  private static final String UPDATE =
+      "update node set code = ?, uri = ?, number = ?, created_by = ?, created_date = ?, last_modified_by = ?, last_modified_date = ? where graph_id = ? and type_id = ? and id = ?";
+  private static final String DELETE =
+      "delete from node where graph_id = ? and type_id = ? and id = ?";
+
   public JdbcNodeDao(DataSource dataSource) {
     super(dataSource);
   }
@@ -35,10 +41,18 @@ public class JdbcNodeDao extends AbstractJdbcDao<NodeId, Node> {
         node.getLastModifiedDate());
   }
 
+  @Override
+  public void update(Stream<Tuple2<NodeId, Node>> entries) {
+    batchUpdate(UPDATE, entries, e -> updateArgs(e._1, e._2));
+  }
+
   @Override
   public void update(NodeId nodeId, Node node) {
-    jdbcTemplate.update(
-        "update node set code = ?, uri = ?, number = ?, created_by = ?, created_date = ?, last_modified_by = ?, last_modified_date = ? where graph_id = ? and type_id = ? and id = ?",
+    jdbcTemplate.update(UPDATE, updateArgs(nodeId, node));
+  }
+
+  private Object[] updateArgs(NodeId nodeId, Node node) {
+    return new Object[]{
         node.getCode().map(Strings::emptyToNull).orElse(null),
         node.getUri().map(Strings::emptyToNull).orElse(null),
         node.getNumber(),
@@ -48,16 +62,24 @@ public class JdbcNodeDao extends AbstractJdbcDao<NodeId, Node> {
         node.getLastModifiedDate(),
         nodeId.getTypeGraphId(),
         nodeId.getTypeId(),
-        nodeId.getId());
+        nodeId.getId()};
+  }
+
+  @Override
+  public void delete(Stream<NodeId> nodeIds) {
+    batchUpdate(DELETE, nodeIds, this::deleteArgs);
   }
 
   @Override
   public void delete(NodeId nodeId) {
-    jdbcTemplate.update(
-        "delete from node where graph_id = ? and type_id = ? and id = ?",
+    jdbcTemplate.update(DELETE, deleteArgs(nodeId));
+  }
+
+  private Object[] deleteArgs(NodeId nodeId) {
+    return new Object[]{
         nodeId.getTypeGraphId(),
         nodeId.getTypeId(),
-        nodeId.getId());
+        nodeId.getId()};
   }
 
   @Override
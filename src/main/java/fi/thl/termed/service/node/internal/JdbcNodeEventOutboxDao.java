@@ -0,0 +1,67 @@
+package fi.thl.termed.service.node.internal;
+
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.util.dao.AbstractJdbcDao;
+import fi.thl.termed.util.query.SqlSpecification;
+import java.util.Optional;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.RowMapper;
+
+public class JdbcNodeEventOutboxDao extends AbstractJdbcDao<Long, Empty> {
+
+  public JdbcNodeEventOutboxDao(DataSource dataSource) {
+    super(dataSource);
+  }
+
+  @Override
+  public void insert(Long revision, Empty empty) {
+    jdbcTemplate.update("insert into node_event_outbox (revision) values (?)", revision);
+  }
+
+  @Override
+  public void update(Long revision, Empty empty) {
+    // NOP
+  }
+
+  @Override
+  public void delete(Long revision) {
+    jdbcTemplate.update("delete from node_event_outbox where revision = ?", revision);
+  }
+
+  @Override
+  protected <E> Stream<E> get(SqlSpecification<Long, Empty> specification, RowMapper<E> mapper) {
+    return jdbcTemplate.queryForStream(
+        String.format("select * from node_event_outbox where %s order by revision",
+            specification.sqlQueryTemplate()),
+        specification.sqlQueryParameters(), mapper);
+  }
+
+  @Override
+  public boolean exists(Long revision) {
+    return jdbcTemplate.queryForOptional(
+        "select count(*) from node_event_outbox where revision = ?",
+        Long.class,
+        revision)
+        .orElseThrow(IllegalStateException::new) > 0;
+  }
+
+  @Override
+  protected <E> Optional<E> get(Long revision, RowMapper<E> mapper) {
+    return jdbcTemplate.queryForFirst(
+        "select * from node_event_outbox where revision = ?",
+        mapper,
+        revision);
+  }
+
+  @Override
+  protected RowMapper<Long> buildKeyMapper() {
+    return (rs, rowNum) -> rs.getLong("revision");
+  }
+
+  @Override
+  protected RowMapper<Empty> buildValueMapper() {
+    return (rs, rowNum) -> Empty.INSTANCE;
+  }
+
+}
@@ -3,6 +3,7 @@ package fi.thl.termed.service.node.internal;
 import fi.thl.termed.domain.NodeAttributeValueId;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.dao.AbstractJdbcDao;
 import fi.thl.termed.util.query.SqlSpecification;
 import java.util.Optional;
@@ -13,6 +14,11 @@ import org.springframework.jdbc.core.RowMapper;
 public class JdbcNodeReferenceAttributeValueDao
     extends AbstractJdbcDao<NodeAttributeValueId, NodeId> {
 
+  private static final String UPDATE =
+      "update node_reference_attribute_value set value_graph_id = ?, value_type_id = ?, value_id = ? where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?";
+  private static final String DELETE =
+      "delete from node_reference_attribute_value where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?";
+
   public JdbcNodeReferenceAttributeValueDao(DataSource dataSource) {
     super(dataSource);
   }
@@ -33,12 +39,20 @@ public class JdbcNodeReferenceAttributeValueDao
         value.getId());
   }
 
+  @Override
+  public void update(Stream<Tuple2<NodeAttributeValueId, NodeId>> entries) {
+    batchUpdate(UPDATE, entries, e -> updateArgs(e._1, e._2));
+  }
+
   @Override
   public void update(NodeAttributeValueId id, NodeId value) {
+    jdbcTemplate.update(UPDATE, updateArgs(id, value));
+  }
+
+  private Object[] updateArgs(NodeAttributeValueId id, NodeId value) {
     NodeId nodeId = id.getNodeId();
 
-    jdbcTemplate.update(
-        "update node_reference_attribute_value set value_graph_id = ?, value_type_id = ?, value_id = ? where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?",
+    return new Object[]{
         value.getTypeGraphId(),
         value.getTypeId(),
         value.getId(),
@@ -46,20 +60,28 @@ public class JdbcNodeReferenceAttributeValueDao
         nodeId.getTypeId(),
         nodeId.getId(),
         id.getAttributeId(),
-        id.getIndex());
+        id.getIndex()};
+  }
+
+  @Override
+  public void delete(Stream<NodeAttributeValueId> ids) {
+    batchUpdate(DELETE, ids, this::deleteArgs);
   }
 
   @Override
   public void delete(NodeAttributeValueId id) {
+    jdbcTemplate.update(DELETE, deleteArgs(id));
+  }
+
+  private Object[] deleteArgs(NodeAttributeValueId id) {
     NodeId nodeId = id.getNodeId();
 
-    jdbcTemplate.update(
-        "delete from node_reference_attribute_value where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?",
+    return new Object[]{
         nodeId.getTypeGraphId(),
         nodeId.getTypeId(),
         nodeId.getId(),
         id.getAttributeId(),
-        id.getIndex());
+        id.getIndex()};
   }
 
   @Override
@@ -4,6 +4,7 @@ import fi.thl.termed.domain.NodeAttributeValueId;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.StrictLangValue;
 import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.dao.AbstractJdbcDao;
 import fi.thl.termed.util.query.SqlSpecification;
 import java.util.Optional;
@@ -14,6 +15,11 @@ import org.springframework.jdbc.core.RowMapper;
 public class JdbcNodeTextAttributeValueDao
     extends AbstractJdbcDao<NodeAttributeValueId, StrictLangValue> {
 
+  private static final String UPDATE =
+      "update node_text_attribute_value set lang = ?, value = ?, regex = ? where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?";
+  private static final String DELETE =
+      "delete from node_text_attribute_value where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?";
+
   public JdbcNodeTextAttributeValueDao(DataSource dataSource) {
     super(dataSource);
   }
@@ -34,12 +40,20 @@ public class JdbcNodeTextAttributeValueDao
         langValue.getRegex());
   }
 
+  @Override
+  public void update(Stream<Tuple2<NodeAttributeValueId, StrictLangValue>> entries) {
+    batchUpdate(UPDATE, entries, e -> updateArgs(e._1, e._2));
+  }
+
   @Override
   public void update(NodeAttributeValueId id, StrictLangValue langValue) {
+    jdbcTemplate.update(UPDATE, updateArgs(id, langValue));
+  }
+
+  private Object[] updateArgs(NodeAttributeValueId id, StrictLangValue langValue) {
     NodeId nodeId = id.getNodeId();
 
-    jdbcTemplate.update(
-        "update node_text_attribute_value set lang = ?, value = ?, regex = ? where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?",
+    return new Object[]{
         langValue.getLang(),
         langValue.getValue(),
         langValue.getRegex(),
@@ -47,20 +61,28 @@ public class JdbcNodeTextAttributeValueDao
         nodeId.getTypeId(),
         nodeId.getId(),
         id.getAttributeId(),
-        id.getIndex());
+        id.getIndex()};
+  }
+
+  @Override
+  public void delete(Stream<NodeAttributeValueId> ids) {
+    batchUpdate(DELETE, ids, this::deleteArgs);
   }
 
   @Override
   public void delete(NodeAttributeValueId id) {
+    jdbcTemplate.update(DELETE, deleteArgs(id));
+  }
+
+  private Object[] deleteArgs(NodeAttributeValueId id) {
     NodeId nodeId = id.getNodeId();
 
-    jdbcTemplate.update(
-        "delete from node_text_attribute_value where node_graph_id = ? and node_type_id = ? and node_id = ? and attribute_id = ? and index = ?",
+    return new Object[]{
         nodeId.getTypeGraphId(),
         nodeId.getTypeId(),
         nodeId.getId(),
         id.getAttributeId(),
-        id.getIndex());
+        id.getIndex()};
   }
 
   @Override
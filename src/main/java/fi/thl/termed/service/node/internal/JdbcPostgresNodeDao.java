@@ -1,5 +1,7 @@
 package fi.thl.termed.service.node.internal;
 
+import static java.util.Arrays.asList;
+
 import com.google.common.base.Strings;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
@@ -10,7 +12,11 @@ import javax.sql.DataSource;
 public class JdbcPostgresNodeDao extends AbstractJdbcPostgresDao<NodeId, Node> {
 
   public JdbcPostgresNodeDao(SystemDao<NodeId, Node> delegate, DataSource dataSource) {
-    super(delegate, dataSource, "node", true);
+    super(delegate, dataSource, "node",
+        asList("graph_id", "type_id", "id"),
+        asList("code", "uri", "number", "created_by", "created_date", "last_modified_by",
+            "last_modified_date"),
+        true);
   }
 
   @Override
@@ -29,4 +35,13 @@ public class JdbcPostgresNodeDao extends AbstractJdbcPostgresDao<NodeId, Node> {
     };
   }
 
+  @Override
+  protected String[] toKeyRow(NodeId k) {
+    return new String[]{
+        k.getTypeGraphId().toString(),
+        k.getTypeId(),
+        k.getId().toString()
+    };
+  }
+
 }
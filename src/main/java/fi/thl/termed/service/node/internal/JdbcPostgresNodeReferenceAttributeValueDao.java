@@ -1,5 +1,7 @@
 package fi.thl.termed.service.node.internal;
 
+import static java.util.Arrays.asList;
+
 import fi.thl.termed.domain.NodeAttributeValueId;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.util.dao.AbstractJdbcPostgresDao;
@@ -11,7 +13,10 @@ public class JdbcPostgresNodeReferenceAttributeValueDao extends
 
   public JdbcPostgresNodeReferenceAttributeValueDao(
       SystemDao<NodeAttributeValueId, NodeId> delegate, DataSource dataSource) {
-    super(delegate, dataSource, "node_reference_attribute_value");
+    super(delegate, dataSource, "node_reference_attribute_value",
+        asList("node_graph_id", "node_type_id", "node_id", "attribute_id", "index"),
+        asList("value_graph_id", "value_type_id", "value_id"),
+        false);
   }
 
   @Override
@@ -30,4 +35,17 @@ public class JdbcPostgresNodeReferenceAttributeValueDao extends
     };
   }
 
+  @Override
+  protected String[] toKeyRow(NodeAttributeValueId k) {
+    NodeId nodeId = k.getNodeId();
+
+    return new String[]{
+        nodeId.getTypeGraphId().toString(),
+        nodeId.getTypeId(),
+        nodeId.getId().toString(),
+        k.getAttributeId(),
+        k.getIndex().toString()
+    };
+  }
+
 }
@@ -43,4 +43,19 @@ public class JdbcPostgresNodeReferenceAttributeValueRevisionDao extends
     };
   }
 
+  @Override
+  protected String[] toKeyRow(RevisionId<NodeAttributeValueId> k) {
+    NodeAttributeValueId nodeAttributeValueId = k.getId();
+    NodeId nodeId = nodeAttributeValueId.getNodeId();
+
+    return new String[]{
+        nodeId.getTypeGraphId().toString(),
+        nodeId.getTypeId(),
+        nodeId.getId().toString(),
+        nodeAttributeValueId.getAttributeId(),
+        nodeAttributeValueId.getIndex().toString(),
+        k.getRevision().toString()
+    };
+  }
+
 }
@@ -42,4 +42,16 @@ public class JdbcPostgresNodeRevisionDao extends
     };
   }
 
+  @Override
+  protected String[] toKeyRow(RevisionId<NodeId> k) {
+    NodeId nodeId = k.getId();
+
+    return new String[]{
+        nodeId.getTypeGraphId().toString(),
+        nodeId.getTypeId(),
+        nodeId.getId().toString(),
+        k.getRevision().toString()
+    };
+  }
+
 }
@@ -1,5 +1,7 @@
 package fi.thl.termed.service.node.internal;
 
+import static java.util.Arrays.asList;
+
 import fi.thl.termed.domain.NodeAttributeValueId;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.StrictLangValue;
@@ -12,7 +14,10 @@ public class JdbcPostgresNodeTextAttributeValueDao extends
 
   public JdbcPostgresNodeTextAttributeValueDao(
       SystemDao<NodeAttributeValueId, StrictLangValue> delegate, DataSource dataSource) {
-    super(delegate, dataSource, "node_text_attribute_value");
+    super(delegate, dataSource, "node_text_attribute_value",
+        asList("node_graph_id", "node_type_id", "node_id", "attribute_id", "index"),
+        asList("lang", "value", "regex"),
+        false);
   }
 
   @Override
@@ -31,4 +36,17 @@ public class JdbcPostgresNodeTextAttributeValueDao extends
     };
   }
 
+  @Override
+  protected String[] toKeyRow(NodeAttributeValueId k) {
+    NodeId nodeId = k.getNodeId();
+
+    return new String[]{
+        nodeId.getTypeGraphId().toString(),
+        nodeId.getTypeId(),
+        nodeId.getId().toString(),
+        k.getAttributeId(),
+        k.getIndex().toString()
+    };
+  }
+
 }
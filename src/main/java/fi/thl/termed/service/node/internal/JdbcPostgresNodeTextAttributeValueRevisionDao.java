@@ -44,4 +44,19 @@ public class JdbcPostgresNodeTextAttributeValueRevisionDao extends
     };
   }
 
+  @Override
+  protected String[] toKeyRow(RevisionId<NodeAttributeValueId> k) {
+    NodeAttributeValueId nodeAttributeValueId = k.getId();
+    NodeId nodeId = nodeAttributeValueId.getNodeId();
+
+    return new String[]{
+        nodeId.getTypeGraphId().toString(),
+        nodeId.getTypeId(),
+        nodeId.getId().toString(),
+        nodeAttributeValueId.getAttributeId(),
+        nodeAttributeValueId.getIndex().toString(),
+        k.getRevision().toString()
+    };
+  }
+
 }
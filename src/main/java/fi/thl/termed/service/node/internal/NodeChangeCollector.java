@@ -0,0 +1,64 @@
+package fi.thl.termed.service.node.internal;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import fi.thl.termed.domain.NodeId;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects ids of nodes changed in each revision as the changes are written. Used to post events
+ * for a write request without reading the changes back from revision tables.
+ *
+ * <p>Changes are reported by layers that see them without extra reads, e.g. code and uri changes
+ * by metadata initialization and attribute value changes by the repository. An id is collected
+ * once per change type even if reported more than once.
+ */
+public class NodeChangeCollector {
+
+  public enum ChangeType {
+    INSERT, UPDATE, DELETE, NO_CHANGE
+  }
+
+  private final Map<Long, SetMultimap<ChangeType, NodeId>> changesByRevision =
+      new ConcurrentHashMap<>();
+
+  public void add(Long revision, ChangeType type, Collection<NodeId> ids) {
+    SetMultimap<ChangeType, NodeId> changes = changesByRevision.computeIfAbsent(revision,
+        r -> MultimapBuilder.enumKeys(ChangeType.class).linkedHashSetValues().build());
+
+    synchronized (changes) {
+      changes.putAll(type, ids);
+    }
+  }
+
+  public boolean contains(Long revision, ChangeType type, NodeId id) {
+    SetMultimap<ChangeType, NodeId> changes = changesByRevision.get(revision);
+
+    if (changes == null) {
+      return false;
+    }
+
+    synchronized (changes) {
+      return changes.containsEntry(type, id);
+    }
+  }
+
+  /**
+   * Returns and forgets ids changed in given revision, ids are in the order they were written.
+   */
+  public ImmutableListMultimap<ChangeType, NodeId> remove(Long revision) {
+    SetMultimap<ChangeType, NodeId> changes = changesByRevision.remove(revision);
+
+    if (changes == null) {
+      return ImmutableListMultimap.of();
+    }
+
+    synchronized (changes) {
+      return ImmutableListMultimap.copyOf(changes);
+    }
+  }
+
+}
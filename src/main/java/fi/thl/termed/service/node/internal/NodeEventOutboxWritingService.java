@@ -0,0 +1,68 @@
+package fi.thl.termed.service.node.internal;
+
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.util.dao.SystemDao;
+import fi.thl.termed.util.service.ForwardingService;
+import fi.thl.termed.util.service.SaveMode;
+import fi.thl.termed.util.service.Service;
+import fi.thl.termed.util.service.WriteOptions;
+import java.util.stream.Stream;
+
+/**
+ * Records revision of each write to node event outbox. Expected to be run in the same transaction
+ * as the write so that the outbox is durable exactly when the changes are. Events for recorded
+ * revisions are delivered later e.g. to webhooks.
+ */
+public class NodeEventOutboxWritingService extends ForwardingService<NodeId, Node> {
+
+  private SystemDao<Long, Empty> nodeEventOutboxDao;
+
+  public NodeEventOutboxWritingService(Service<NodeId, Node> delegate,
+      SystemDao<Long, Empty> nodeEventOutboxDao) {
+    super(delegate);
+    this.nodeEventOutboxDao = nodeEventOutboxDao;
+  }
+
+  @Override
+  public void save(Stream<Node> values, SaveMode mode, WriteOptions opts, User user) {
+    super.save(values, mode, opts, user);
+    addToOutbox(opts);
+  }
+
+  @Override
+  public NodeId save(Node value, SaveMode mode, WriteOptions opts, User user) {
+    NodeId id = super.save(value, mode, opts, user);
+    addToOutbox(opts);
+    return id;
+  }
+
+  @Override
+  public void delete(Stream<NodeId> ids, WriteOptions opts, User user) {
+    super.delete(ids, opts, user);
+    addToOutbox(opts);
+  }
+
+  @Override
+  public void delete(NodeId id, WriteOptions opts, User user) {
+    super.delete(id, opts, user);
+    addToOutbox(opts);
+  }
+
+  @Override
+  public void saveAndDelete(Stream<Node> saves, Stream<NodeId> deletes, SaveMode mode,
+      WriteOptions opts, User user) {
+    super.saveAndDelete(saves, deletes, mode, opts, user);
+    addToOutbox(opts);
+  }
+
+  // one write request may reach here more than once with the same revision
+  private void addToOutbox(WriteOptions opts) {
+    opts.getRevision()
+        .filter(revision -> !nodeEventOutboxDao.exists(revision))
+        .ifPresent(revision -> nodeEventOutboxDao.insert(revision, Empty.INSTANCE));
+  }
+
+}
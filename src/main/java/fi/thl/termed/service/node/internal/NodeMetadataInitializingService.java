@@ -1,8 +1,19 @@
 package fi.thl.termed.service.node.internal;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static fi.thl.termed.util.collect.FunctionUtils.memoize;
+import static fi.thl.termed.util.collect.StreamUtils.zip;
 import static fi.thl.termed.util.query.AndSpecification.and;
+import static fi.thl.termed.util.query.OrSpecification.or;
+import static fi.thl.termed.util.query.Specifications.asSql;
 import static java.util.Optional.ofNullable;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.mapping;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+import com.google.common.collect.ImmutableList;
 
 import fi.thl.termed.domain.Graph;
 import fi.thl.termed.domain.GraphId;
@@ -11,29 +22,42 @@ import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.internal.NodeChangeCollector.ChangeType;
 import fi.thl.termed.service.node.specification.NodesByCode;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
 import fi.thl.termed.service.node.specification.NodesByUri;
+import fi.thl.termed.util.collect.StreamUtils;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Selects;
+import fi.thl.termed.util.query.SqlSpecification;
 import fi.thl.termed.util.service.NamedSequenceService;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 public class NodeMetadataInitializingService extends PreSaveNodeInitializingService {
 
+  private static final int BATCH_SIZE = 500;
+
   private NamedSequenceService<TypeId> nodeSequenceService;
   private NamedSequenceService<Tuple2<GraphId, String>> nodeNsSeqService;
   private BiFunction<TypeId, User, Type> types;
   private BiFunction<GraphId, User, Graph> graphs;
   private String defaultNs;
+  private NodeChangeCollector changeCollector;
 
   public NodeMetadataInitializingService(
       Service<NodeId, Node> delegate,
@@ -41,7 +65,8 @@ public class NodeMetadataInitializingService extends PreSaveNodeInitializingServ
       NamedSequenceService<Tuple2<GraphId, String>> nodeNamespaceSequenceService,
       BiFunction<TypeId, User, Optional<Type>> typeSource,
       BiFunction<GraphId, User, Optional<Graph>> graphSource,
-      String defaultNs) {
+      String defaultNs,
+      NodeChangeCollector changeCollector) {
     super(delegate);
     this.nodeSequenceService = nodeSequenceService;
     this.nodeNsSeqService = nodeNamespaceSequenceService;
@@ -50,45 +75,102 @@ public class NodeMetadataInitializingService extends PreSaveNodeInitializingServ
     this.graphs = (graphId, user) -> graphSource.apply(graphId, user)
         .orElseThrow(IllegalStateException::new);
     this.defaultNs = defaultNs;
+    this.changeCollector = changeCollector;
   }
 
   @Override
   public Stream<Node> insert(Stream<Node> newNodes, WriteOptions opts, User user) {
     LocalDateTime now = LocalDateTime.now();
 
-    BiFunction<TypeId, Long, String> codeGenerator = codeGenerator(user);
-    BiFunction<GraphId, String, String> uriGenerator = uriGenerator(opts.getUriNamespace(), user);
-
-    return newNodes.map(node -> {
-      Long number = nodeSequenceService.getAndAdvance(node.getType(), user);
-
-      // generate code once (and only once) if needed
-      Supplier<String> codeGen = memoize(() -> codeGenerator.apply(node.getType(), number));
-      String code = node.getCode().orElseGet(() -> opts.isGenerateCodes() ? codeGen.get() : null);
-      String uri = node.getUri().orElseGet(() -> {
-        if (!opts.isGenerateUris()) {
-          return null;
-        } else if (opts.getUriNamespace().isPresent() && !node.getCode().isPresent()) {
-          // generate URI, not based on generated code, but with namespace specific counter
-          String localNamePrefix = types.apply(node.getType(), user).getNodeCodePrefixOrDefault();
-          Long localNameNumber = nodeNsSeqService.getAndAdvance(
-              Tuple.of(node.getTypeGraph(), opts.getUriNamespace().get()), user);
-          return uriGenerator.apply(node.getTypeGraph(), localNamePrefix + localNameNumber);
-        } else {
-          return uriGenerator.apply(node.getTypeGraph(), ofNullable(code).orElseGet(codeGen));
-        }
-      });
+    Function<TypeId, String> codePrefixes = codePrefixes(user);
+    Function<GraphId, String> uriNamespaces = uriNamespaces(opts.getUriNamespace(), user);
+
+    return StreamUtils.partitionedMap(newNodes, BATCH_SIZE,
+        batch -> initNewNodes(batch, codePrefixes, uriNamespaces, now, opts, user).stream());
+  }
 
-      return Node.builderFromCopyOf(node)
-          .number(number)
-          .code(code)
+  // initializes metadata for a batch of new nodes, generated codes and URIs are checked for
+  // conflicts with existing nodes with one query per batch
+  private List<Node> initNewNodes(List<Node> nodes,
+      Function<TypeId, String> codePrefixes,
+      Function<GraphId, String> uriNamespaces,
+      LocalDateTime now, WriteOptions opts, User user) {
+
+    List<Long> numbers = nodes.stream()
+        .map(node -> nodeSequenceService.getAndAdvance(node.getType(), user))
+        .collect(toList());
+
+    // generated code candidates, used for codes and for URIs based on codes
+    List<String> codeCandidates = zip(nodes.stream(), numbers.stream(), (node, number) ->
+        opts.isGenerateCodes() || (opts.isGenerateUris() && !node.getUri().isPresent())
+            ? codePrefixes.apply(node.getType()) + number : null)
+        .collect(toList());
+    Set<Tuple2<TypeId, String>> reservedCodes = existingCodes(
+        zip(nodes.stream(), codeCandidates.stream(), (node, code) -> Tuple.of(node.getType(), code))
+            .filter(t -> t._2 != null)
+            .collect(toSet()), user);
+    nodes.forEach(node -> node.getCode()
+        .ifPresent(code -> reservedCodes.add(Tuple.of(node.getType(), code))));
+    List<String> generatedCodes = zip(nodes.stream(), codeCandidates.stream(),
+        (node, code) -> code != null && reservedCodes.add(Tuple.of(node.getType(), code))
+            ? code : null)
+        .collect(toList());
+
+    List<String> codes = zip(nodes.stream(), generatedCodes.stream(), (node, generatedCode) ->
+        node.getCode().orElseGet(() -> opts.isGenerateCodes() ? generatedCode : null))
+        .collect(toList());
+
+    List<String> uriCandidates = new ArrayList<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      String code = codes.get(i);
+      String generatedCode = generatedCodes.get(i);
+
+      if (node.getUri().isPresent() || !opts.isGenerateUris()) {
+        uriCandidates.add(null);
+      } else if (opts.getUriNamespace().isPresent() && !node.getCode().isPresent()) {
+        // generate URI, not based on generated code, but with namespace specific counter
+        String localNamePrefix = types.apply(node.getType(), user).getNodeCodePrefixOrDefault();
+        Long localNameNumber = nodeNsSeqService.getAndAdvance(
+            Tuple.of(node.getTypeGraph(), opts.getUriNamespace().get()), user);
+        uriCandidates.add(uriNamespaces.apply(node.getTypeGraph()) + localNamePrefix
+            + localNameNumber);
+      } else {
+        String localName = ofNullable(code).orElse(generatedCode);
+        uriCandidates.add(localName != null
+            ? uriNamespaces.apply(node.getTypeGraph()) + localName : null);
+      }
+    }
+
+    Set<Tuple2<GraphId, String>> reservedUris = existingUris(
+        zip(nodes.stream(), uriCandidates.stream(),
+            (node, uri) -> Tuple.of(node.getTypeGraph(), uri))
+            .filter(t -> t._2 != null)
+            .collect(toSet()), user);
+    nodes.forEach(node -> node.getUri()
+        .ifPresent(uri -> reservedUris.add(Tuple.of(node.getTypeGraph(), uri))));
+
+    List<Node> initializedNodes = new ArrayList<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      String uriCandidate = uriCandidates.get(i);
+
+      String uri = node.getUri().orElseGet(() ->
+          uriCandidate != null && reservedUris.add(Tuple.of(node.getTypeGraph(), uriCandidate))
+              ? uriCandidate : null);
+
+      initializedNodes.add(Node.builderFromCopyOf(node)
+          .number(numbers.get(i))
+          .code(codes.get(i))
           .uri(uri)
           .createdBy(user.getUsername())
           .createdDate(now)
           .lastModifiedBy(user.getUsername())
           .lastModifiedDate(now)
-          .build();
-    });
+          .build());
+    }
+
+    return initializedNodes;
   }
 
   @Override
@@ -100,6 +182,8 @@ public class NodeMetadataInitializingService extends PreSaveNodeInitializingServ
       Node oldNode = oldAndNewNode._1;
       Node newNode = oldAndNewNode._2;
 
+      collectCodeOrUriChange(oldNode, newNode, opts);
+
       return Node.builderFromCopyOf(newNode)
           .number(oldNode.getNumber())
           .createdBy(oldNode.getCreatedBy())
@@ -116,103 +200,117 @@ public class NodeMetadataInitializingService extends PreSaveNodeInitializingServ
 
     LocalDateTime now = LocalDateTime.now();
 
-    BiFunction<TypeId, Long, String> codeGenerator = codeGenerator(user);
-    BiFunction<GraphId, String, String> uriGenerator = uriGenerator(opts.getUriNamespace(), user);
+    Function<TypeId, String> codePrefixes = codePrefixes(user);
+    Function<GraphId, String> uriNamespaces = uriNamespaces(opts.getUriNamespace(), user);
 
-    return oldAndNewNodes.map(oldAndNewNode -> {
-      Optional<Node> optionalOldNode = oldAndNewNode._1;
-      Node node = oldAndNewNode._2;
-
-      if (optionalOldNode.isPresent()) {
-        Node oldNode = optionalOldNode.get();
-
-        return Node.builderFromCopyOf(node)
-            .number(oldNode.getNumber())
-            .createdBy(oldNode.getCreatedBy())
-            .createdDate(oldNode.getCreatedDate())
-            .lastModifiedBy(user.getUsername())
-            .lastModifiedDate(now)
-            .build();
-      } else {
-        Long number = nodeSequenceService.getAndAdvance(node.getType(), user);
-
-        Supplier<String> codeGen = memoize(() -> codeGenerator.apply(node.getType(), number));
-        String code = node.getCode().orElseGet(() -> opts.isGenerateCodes() ? codeGen.get() : null);
-        String uri = node.getUri().orElseGet(() -> {
-          if (!opts.isGenerateUris()) {
-            return null;
-          } else if (opts.getUriNamespace().isPresent() && !node.getCode().isPresent()) {
-            // generate URI, not based on generated code, but with namespace specific counter
-            String localNamePrefix = types.apply(node.getType(), user).getNodeCodePrefixOrDefault();
-            Long localNameNumber = nodeNsSeqService.getAndAdvance(
-                Tuple.of(node.getTypeGraph(), opts.getUriNamespace().get()), user);
-            return uriGenerator.apply(node.getTypeGraph(), localNamePrefix + localNameNumber);
-          } else {
-            return uriGenerator.apply(node.getTypeGraph(), ofNullable(code).orElseGet(codeGen));
-          }
-        });
-
-        return Node.builderFromCopyOf(node)
-            .number(number)
-            .code(code)
-            .uri(uri)
-            .createdBy(user.getUsername())
-            .createdDate(now)
-            .lastModifiedBy(user.getUsername())
-            .lastModifiedDate(now)
-            .build();
-      }
-    });
-  }
+    return StreamUtils.partitionedMap(oldAndNewNodes, BATCH_SIZE, batch -> {
+      Iterator<Node> initializedNewNodes = initNewNodes(batch.stream()
+          .filter(t -> !t._1.isPresent())
+          .map(t -> t._2)
+          .collect(toList()), codePrefixes, uriNamespaces, now, opts, user).iterator();
 
-  private BiFunction<TypeId, Long, String> codeGenerator(User user) {
-    Function<TypeId, String> nodeCodePrefixes = memoize(
-        typeId ->
-            types.apply(typeId, user).getNodeCodePrefixOrDefault());
+      return batch.stream().map(oldAndNewNode -> {
+        Optional<Node> optionalOldNode = oldAndNewNode._1;
+        Node node = oldAndNewNode._2;
 
-    return (typeId, number) -> {
-      String code = nodeCodePrefixes.apply(typeId) + number;
+        if (optionalOldNode.isPresent()) {
+          Node oldNode = optionalOldNode.get();
 
-      if (!existsNodeWithCode(typeId, code, user)) {
-        return code;
-      }
+          collectCodeOrUriChange(oldNode, node, opts);
 
-      return null;
-    };
+          return Node.builderFromCopyOf(node)
+              .number(oldNode.getNumber())
+              .createdBy(oldNode.getCreatedBy())
+              .createdDate(oldNode.getCreatedDate())
+              .lastModifiedBy(user.getUsername())
+              .lastModifiedDate(now)
+              .build();
+        } else {
+          return initializedNewNodes.next();
+        }
+      });
+    });
   }
 
-  private BiFunction<GraphId, String, String> uriGenerator(Optional<String> requestNamespace,
-      User user) {
-    Function<GraphId, String> uriNamespaces = memoize(
-        graphId -> requestNamespace.orElseGet(() ->
-            graphs.apply(graphId, user).getUri().orElse(defaultNs)));
-
-    return (graphId, code) -> {
-      if (code == null) {
-        return null;
-      }
-
-      String uri = uriNamespaces.apply(graphId) + code;
+  // old node is read here anyway, so repository needs to compare only attribute values
+  private void collectCodeOrUriChange(Node oldNode, Node newNode, WriteOptions opts) {
+    if (!Objects.equals(oldNode.getCode(), newNode.getCode())
+        || !Objects.equals(oldNode.getUri(), newNode.getUri())) {
+      opts.getRevision().ifPresent(revision -> changeCollector.add(
+          revision, ChangeType.UPDATE, ImmutableList.of(newNode.identifier())));
+    }
+  }
 
-      if (!existsNodeWithUri(graphId, uri, user)) {
-        return uri;
-      }
+  private Function<TypeId, String> codePrefixes(User user) {
+    return memoize(typeId -> types.apply(typeId, user).getNodeCodePrefixOrDefault());
+  }
 
-      return null;
-    };
+  private Function<GraphId, String> uriNamespaces(Optional<String> requestNamespace, User user) {
+    return memoize(graphId -> requestNamespace.orElseGet(() ->
+        graphs.apply(graphId, user).getUri().orElse(defaultNs)));
   }
 
-  private boolean existsNodeWithCode(TypeId typeId, String code, User user) {
-    return count(and(
-        new NodesByGraphId(typeId.getGraphId()),
-        new NodesByTypeId(typeId.getId()),
-        new NodesByCode(code)), user) > 0;
+  // returns a mutable set of given codes that are already used in the type
+  private Set<Tuple2<TypeId, String>> existingCodes(Set<Tuple2<TypeId, String>> codes,
+      User user) {
+    if (codes.isEmpty()) {
+      return new HashSet<>();
+    }
+
+    // read from the database as the index may not yet reflect recent writes
+    SqlSpecification<NodeId, Node> spec = or(codes.stream()
+        .collect(groupingBy(t -> t._1, mapping(t -> t._2, toList())))
+        .entrySet().stream()
+        .map(typeCodes -> and(
+            new NodesByGraphId(typeCodes.getKey().getGraphId()),
+            new NodesByTypeId(typeCodes.getKey().getId()),
+            or(typeCodes.getValue().stream()
+                .map(NodesByCode::new)
+                .collect(toImmutableList()))))
+        .collect(toImmutableList()));
+
+    try (Stream<Node> nodes = values(new Query<>(ImmutableList.of(
+        Selects.field("id"),
+        Selects.field("type.id"),
+        Selects.field("type.graph.id"),
+        Selects.field("code")), asSql(spec)), user)) {
+      return nodes
+          .filter(node -> node.getCode().isPresent())
+          .map(node -> Tuple.of(node.getType(), node.getCode().get()))
+          .filter(codes::contains)
+          .collect(toCollection(HashSet::new));
+    }
   }
 
-  private boolean existsNodeWithUri(GraphId graphId, String uri, User user) {
-    return count(and(
-        new NodesByGraphId(graphId.getId()),
-        new NodesByUri(uri)), user) > 0;
+  // returns a mutable set of given URIs that are already used in the graph
+  private Set<Tuple2<GraphId, String>> existingUris(Set<Tuple2<GraphId, String>> uris,
+      User user) {
+    if (uris.isEmpty()) {
+      return new HashSet<>();
+    }
+
+    // read from the database as the index may not yet reflect recent writes
+    SqlSpecification<NodeId, Node> spec = or(uris.stream()
+        .collect(groupingBy(t -> t._1, mapping(t -> t._2, toList())))
+        .entrySet().stream()
+        .map(graphUris -> and(
+            new NodesByGraphId(graphUris.getKey().getId()),
+            or(graphUris.getValue().stream()
+                .map(NodesByUri::new)
+                .collect(toImmutableList()))))
+        .collect(toImmutableList()));
+
+    try (Stream<Node> nodes = values(new Query<>(ImmutableList.of(
+        Selects.field("id"),
+        Selects.field("type.id"),
+        Selects.field("type.graph.id"),
+        Selects.field("uri")), asSql(spec)), user)) {
+      return nodes
+          .filter(node -> node.getUri().isPresent())
+          .map(node -> Tuple.of(node.getTypeGraph(), node.getUri().get()))
+          .filter(uris::contains)
+          .collect(toCollection(HashSet::new));
+    }
   }
 
 }
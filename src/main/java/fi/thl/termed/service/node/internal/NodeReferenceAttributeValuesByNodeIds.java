@@ -0,0 +1,31 @@
+package fi.thl.termed.service.node.internal;
+
+import static fi.thl.termed.service.node.specification.NodesByNodeIds.sqlNodeIdsIn;
+
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.domain.NodeAttributeValueId;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+import java.util.Collection;
+
+public class NodeReferenceAttributeValuesByNodeIds
+    extends AbstractSqlSpecification<NodeAttributeValueId, NodeId> {
+
+  private ImmutableSet<NodeId> nodeIds;
+
+  public NodeReferenceAttributeValuesByNodeIds(Collection<NodeId> nodeIds) {
+    this.nodeIds = ImmutableSet.copyOf(nodeIds);
+  }
+
+  @Override
+  public boolean test(NodeAttributeValueId attributeValueId, NodeId value) {
+    return nodeIds.contains(attributeValueId.getNodeId());
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return sqlNodeIdsIn("node_graph_id", "node_type_id", "node_id", nodeIds);
+  }
+
+}
@@ -1,6 +1,7 @@
 package fi.thl.termed.service.node.internal;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.collect.Maps.difference;
 import static fi.thl.termed.service.node.util.NodeTransformations.nodePropertiesToRows;
 import static fi.thl.termed.service.node.util.NodeTransformations.nodeReferencesToRows;
@@ -9,10 +10,18 @@ import static fi.thl.termed.domain.RevisionType.INSERT;
 import static fi.thl.termed.domain.RevisionType.UPDATE;
 import static fi.thl.termed.util.collect.MapUtils.leftValues;
 import static fi.thl.termed.util.collect.MultimapUtils.toImmutableMultimap;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
+import static fi.thl.termed.util.collect.StreamUtils.toListAndClose;
 import static fi.thl.termed.util.collect.Tuple.entriesAsTuples;
 import static fi.thl.termed.util.collect.Tuple.tuplesToMap;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapDifference;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeAttributeValueId;
@@ -21,24 +30,52 @@ import fi.thl.termed.domain.RevisionId;
 import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.StrictLangValue;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.internal.NodeChangeCollector.ChangeType;
+import fi.thl.termed.util.UUIDs;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.dao.Dao;
 import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.query.Selects;
+import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.service.AbstractRepository;
 import fi.thl.termed.util.service.WriteOptions;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
- * Coordinates CRUD-operations on Nodes to simpler DAOs.
+ * Coordinates CRUD-operations on Nodes to simpler DAOs. Ids of nodes written in a revision are
+ * passed to given {@link NodeChangeCollector}.
  */
 public class NodeRepository extends AbstractRepository<NodeId, Node> {
 
+  private static final int LOAD_BATCH_SIZE = 500;
+
+  // fields stored in node table, attribute values are not loaded if only these are selected
+  private static final ImmutableSet<Select> NODE_FIELD_SELECTS = Stream.of(
+      "id", "type.id", "type.graph.id", "code", "uri", "number",
+      "createdBy", "createdDate", "lastModifiedBy", "lastModifiedDate")
+      .map(Selects::field)
+      .collect(toImmutableSet());
+
+  // node table fields that nodes can be grouped by when counting
+  private static final ImmutableMap<String, Function<Node, Optional<String>>> GROUP_BY_FIELDS =
+      ImmutableMap.of(
+          "id", n -> Optional.of(UUIDs.toString(n.getId())),
+          "type.id", n -> Optional.of(n.getTypeId()),
+          "type.graph.id", n -> Optional.of(UUIDs.toString(n.getTypeGraphId())),
+          "code", Node::getCode,
+          "uri", Node::getUri);
+
   private final Dao<NodeId, Node> nodeDao;
   private final Dao<NodeAttributeValueId, StrictLangValue> textAttrValueDao;
   private final Dao<NodeAttributeValueId, NodeId> refAttrValueDao;
@@ -47,6 +84,8 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
   private final Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>> textAttrValueRevDao;
   private final Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, NodeId>> refAttrValueRevDao;
 
+  private final NodeChangeCollector changeCollector;
+
   public NodeRepository(
       Dao<NodeId, Node> nodeDao,
       Dao<NodeAttributeValueId, StrictLangValue> textAttrValueDao,
@@ -54,6 +93,7 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
       Dao<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevDao,
       Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>> textAttrValueRevDao,
       Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, NodeId>> refAttrValueRevDao,
+      NodeChangeCollector changeCollector,
       int batchSize) {
     super(batchSize);
     this.nodeDao = nodeDao;
@@ -62,6 +102,7 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
     this.nodeRevDao = nodeRevDao;
     this.textAttrValueRevDao = textAttrValueRevDao;
     this.refAttrValueRevDao = refAttrValueRevDao;
+    this.changeCollector = changeCollector;
   }
 
   @Override
@@ -82,6 +123,8 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
       nodeRevDao.insert(toRevs(nodes.stream(), r, INSERT), user);
       textAttrValueRevDao.insert(toRevs(textValues.stream(), r, INSERT), user);
       refAttrValueRevDao.insert(toRevs(refValues.stream(), r, INSERT), user);
+      changeCollector.add(r, ChangeType.INSERT,
+          nodes.stream().map(t -> t._1).collect(toImmutableList()));
     });
   }
 
@@ -100,20 +143,34 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
       nodeRevDao.insert(RevisionId.of(id, r), Tuple.of(INSERT, node), user);
       textAttrValueRevDao.insert(toRevs(textAttrValues.stream(), r, INSERT), user);
       refAttrValueRevDao.insert(toRevs(refAttrValues.stream(), r, INSERT), user);
+      changeCollector.add(r, ChangeType.INSERT, ImmutableList.of(id));
     });
   }
 
   @Override
   public void update(NodeId id, Node node, WriteOptions opts, User user) {
+    updateBatch(ImmutableList.of(Tuple.of(id, node)), opts, user);
+  }
+
+  // diffs values of all nodes in the batch, then writes changes with one call per DAO
+  @Override
+  protected void updateBatch(List<Tuple2<NodeId, Node>> nodes, WriteOptions opts, User user) {
+    ImmutableList<NodeId> ids = nodes.stream().map(t -> t._1).collect(toImmutableList());
+
     MapDifference<NodeAttributeValueId, StrictLangValue> textsDiff = difference(
-        tuplesToMap(nodePropertiesToRows(id, node.getProperties())),
-        tuplesToMap(textAttrValueDao.entries(new NodeTextAttributeValuesByNodeId(id), user)));
+        tuplesToMap(nodes.stream()
+            .flatMap(idNode -> nodePropertiesToRows(idNode._1, idNode._2.getProperties()))),
+        tuplesToMap(partitionedMap(ids.stream(), LOAD_BATCH_SIZE,
+            batch -> textAttrValueDao.entries(
+                new NodeTextAttributeValuesByNodeIds(batch), user))));
     MapDifference<NodeAttributeValueId, NodeId> refsDiff = difference(
-        tuplesToMap(nodeReferencesToRows(id, node.getReferences())),
-        tuplesToMap(
-            refAttrValueDao.entries(new NodeReferenceAttributeValuesByNodeId(id), user)));
+        tuplesToMap(nodes.stream()
+            .flatMap(idNode -> nodeReferencesToRows(idNode._1, idNode._2.getReferences()))),
+        tuplesToMap(partitionedMap(ids.stream(), LOAD_BATCH_SIZE,
+            batch -> refAttrValueDao.entries(
+                new NodeReferenceAttributeValuesByNodeIds(batch), user))));
 
-    nodeDao.update(id, node, user);
+    nodeDao.update(nodes.stream(), user);
 
     textAttrValueDao.insert(entriesAsTuples(textsDiff.entriesOnlyOnLeft()), user);
     textAttrValueDao.update(entriesAsTuples(leftValues(textsDiff.entriesDiffering())), user);
@@ -124,7 +181,7 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
     refAttrValueDao.delete(refsDiff.entriesOnlyOnRight().keySet().stream(), user);
 
     opts.getRevision().ifPresent(r -> {
-      nodeRevDao.insert(RevisionId.of(id, r), Tuple.of(UPDATE, node), user);
+      nodeRevDao.insert(toRevs(nodes.stream(), r, UPDATE), user);
 
       textAttrValueRevDao.insert(
           toRevs(entriesAsTuples(textsDiff.entriesOnlyOnLeft()), r, INSERT), user);
@@ -139,19 +196,39 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
           toRevs(entriesAsTuples(leftValues(refsDiff.entriesDiffering())), r, UPDATE), user);
       refAttrValueRevDao.insert(
           toRevs(refsDiff.entriesOnlyOnRight().keySet(), r, DELETE), user);
+
+      // code and uri changes are collected by metadata initialization that reads old nodes
+      Set<NodeId> changedIds = changedIds(textsDiff, refsDiff);
+      changeCollector.add(r, ChangeType.UPDATE, ids.stream()
+          .filter(changedIds::contains).collect(toImmutableList()));
+      changeCollector.add(r, ChangeType.NO_CHANGE, ids.stream()
+          .filter(id -> !changedIds.contains(id))
+          .filter(id -> !changeCollector.contains(r, ChangeType.UPDATE, id))
+          .collect(toImmutableList()));
     });
   }
 
+  // nodes with changed attribute values
+  private Set<NodeId> changedIds(MapDifference<NodeAttributeValueId, ?> textsDiff,
+      MapDifference<NodeAttributeValueId, ?> refsDiff) {
+    Set<NodeId> changedIds = new HashSet<>();
+
+    Stream.of(textsDiff, refsDiff).forEach(diff -> {
+      diff.entriesOnlyOnLeft().keySet().forEach(k -> changedIds.add(k.getNodeId()));
+      diff.entriesDiffering().keySet().forEach(k -> changedIds.add(k.getNodeId()));
+      diff.entriesOnlyOnRight().keySet().forEach(k -> changedIds.add(k.getNodeId()));
+    });
+
+    return changedIds;
+  }
+
   // first delete all dependant values, then all nodes
   @Override
   protected void deleteBatch(List<NodeId> ids, WriteOptions opts, User user) {
-    // note that flatMap will close streams returned by DAOs
-    ImmutableList<NodeAttributeValueId> allTextAttrValueIds = ids.stream()
-        .flatMap(id -> textAttrValueDao.keys(new NodeTextAttributeValuesByNodeId(id), user))
-        .collect(toImmutableList());
-    ImmutableList<NodeAttributeValueId> allRefAttrValueIds = ids.stream()
-        .flatMap(id -> refAttrValueDao.keys(new NodeReferenceAttributeValuesByNodeId(id), user))
-        .collect(toImmutableList());
+    List<NodeAttributeValueId> allTextAttrValueIds = toListAndClose(
+        textAttrValueDao.keys(new NodeTextAttributeValuesByNodeIds(ids), user));
+    List<NodeAttributeValueId> allRefAttrValueIds = toListAndClose(
+        refAttrValueDao.keys(new NodeReferenceAttributeValuesByNodeIds(ids), user));
 
     textAttrValueDao.delete(allTextAttrValueIds.stream(), user);
     refAttrValueDao.delete(allRefAttrValueIds.stream(), user);
@@ -161,6 +238,7 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
       textAttrValueRevDao.insert(toRevs(allTextAttrValueIds, r, DELETE), user);
       refAttrValueRevDao.insert(toRevs(allRefAttrValueIds, r, DELETE), user);
       nodeRevDao.insert(toRevs(ids, r, DELETE), user);
+      changeCollector.add(r, ChangeType.DELETE, ids);
     });
   }
 
@@ -185,6 +263,7 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
         textAttrValueRevDao.insert(toRevs(textAttrValueIdList, r, DELETE), user);
         refAttrValueRevDao.insert(toRevs(refAttrValueIdList, r, DELETE), user);
         nodeRevDao.insert(RevisionId.of(id, r), Tuple.of(DELETE, null), user);
+        changeCollector.add(r, ChangeType.DELETE, ImmutableList.of(id));
       });
     }
   }
@@ -207,7 +286,31 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
 
   @Override
   public Stream<Node> values(Query<NodeId, Node> query, User user) {
-    return nodeDao.values(query.getWhere(), user).map(node -> populateValue(node, user));
+    if (NODE_FIELD_SELECTS.containsAll(query.getSelect())) {
+      return nodeDao.values(query.getWhere(), user);
+    }
+    return partitionedMap(nodeDao.values(query.getWhere(), user), LOAD_BATCH_SIZE,
+        nodes -> populateValues(nodes, user));
+  }
+
+  /**
+   * Groups matching nodes read from node table, indexed services count without reading values.
+   */
+  @Override
+  public Map<String, Long> countBy(Specification<NodeId, Node> spec, String field, User user) {
+    Function<Node, Optional<String>> fieldValue = GROUP_BY_FIELDS.get(field);
+
+    if (fieldValue == null) {
+      throw new UnsupportedOperationException("Counting by field " + field + " is not supported");
+    }
+
+    try (Stream<Node> nodes = values(
+        new Query<>(ImmutableList.of(Selects.field(field)), spec), user)) {
+      return nodes.map(fieldValue)
+          .filter(Optional::isPresent)
+          .map(Optional::get)
+          .collect(groupingBy(identity(), counting()));
+    }
   }
 
   @Override
@@ -245,4 +348,48 @@ public class NodeRepository extends AbstractRepository<NodeId, Node> {
     }
   }
 
+  // populates a batch of nodes with one query per value table instead of three queries per node
+  private Stream<Node> populateValues(List<Node> nodes, User user) {
+    ImmutableList<NodeId> nodeIds = nodes.stream()
+        .map(Node::identifier)
+        .collect(toImmutableList());
+
+    Map<NodeId, ImmutableMultimap.Builder<String, StrictLangValue>> properties = new HashMap<>();
+    Map<NodeId, ImmutableMultimap.Builder<String, NodeId>> references = new HashMap<>();
+    Map<NodeId, ImmutableMultimap.Builder<String, NodeId>> referrers = new HashMap<>();
+
+    // values are read ordered by index, builders keep the order for each node
+    try (
+        Stream<Tuple2<NodeAttributeValueId, StrictLangValue>> texts = textAttrValueDao
+            .entries(new NodeTextAttributeValuesByNodeIds(nodeIds), user);
+        Stream<Tuple2<NodeAttributeValueId, NodeId>> refs = refAttrValueDao.entries(
+            new NodeReferenceAttributeValuesByNodeIds(nodeIds), user);
+        Stream<Tuple2<NodeAttributeValueId, NodeId>> refrs = refAttrValueDao.entries(
+            new NodeReferenceAttributeNodesByValueIds(nodeIds), user)) {
+
+      texts.forEach(e -> properties
+          .computeIfAbsent(e._1.getNodeId(), k -> ImmutableMultimap.builder())
+          .put(e._1.getAttributeId(), e._2));
+      refs.forEach(e -> references
+          .computeIfAbsent(e._1.getNodeId(), k -> ImmutableMultimap.builder())
+          .put(e._1.getAttributeId(), e._2));
+      refrs.forEach(e -> referrers
+          .computeIfAbsent(e._2, k -> ImmutableMultimap.builder())
+          .put(e._1.getAttributeId(), e._1.getNodeId()));
+    }
+
+    return nodes.stream().map(node -> {
+      NodeId nodeId = node.identifier();
+      return Node.builderFromCopyOf(node)
+          .properties(build(properties.get(nodeId)))
+          .references(build(references.get(nodeId)))
+          .referrers(build(referrers.get(nodeId)))
+          .build();
+    });
+  }
+
+  private <K, V> ImmutableMultimap<K, V> build(ImmutableMultimap.Builder<K, V> builder) {
+    return builder != null ? builder.build() : ImmutableMultimap.of();
+  }
+
 }
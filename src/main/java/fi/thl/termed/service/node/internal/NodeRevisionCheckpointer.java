@@ -0,0 +1,198 @@
+package fi.thl.termed.service.node.internal;
+
+import static fi.thl.termed.util.collect.StreamUtils.findFirstAndClose;
+import static fi.thl.termed.util.collect.StreamUtils.forEachAndClose;
+import static fi.thl.termed.util.query.Queries.query;
+import static fi.thl.termed.util.service.SaveMode.INSERT;
+import static fi.thl.termed.util.service.WriteOptions.defaultOpts;
+import static fi.thl.termed.util.spring.transaction.TransactionUtils.runInTransaction;
+
+import com.google.common.eventbus.Subscribe;
+import fi.thl.termed.domain.AppRole;
+import fi.thl.termed.domain.Revision;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.event.ApplicationReadyEvent;
+import fi.thl.termed.domain.event.ApplicationShutdownEvent;
+import fi.thl.termed.service.revision.specification.RevisionsByCheckpoint;
+import fi.thl.termed.util.eventbus.Synchronous;
+import fi.thl.termed.util.query.Queries;
+import fi.thl.termed.util.service.SequenceService;
+import fi.thl.termed.util.service.Service;
+import java.time.LocalDateTime;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Writes revision checkpoints in the background. A checkpoint is a revision with a row for each
+ * node and node value that exists as of the checkpoint, copied from the latest earlier revision
+ * rows. Reads as of a revision need only rows since the nearest checkpoint. A new checkpoint is
+ * written when given number of revisions has been made since the previous one.
+ */
+public class NodeRevisionCheckpointer {
+
+  private static final long CHECK_INTERVAL_SECONDS = 60;
+
+  private static final String NODE_SNAPSHOT_SQL =
+      "insert into node_aud (graph_id, type_id, id, code, uri, number, "
+          + "created_by, created_date, last_modified_by, last_modified_date, "
+          + "revision, revision_type) "
+          + "select a.graph_id, a.type_id, a.id, a.code, a.uri, a.number, "
+          + "a.created_by, a.created_date, a.last_modified_by, a.last_modified_date, "
+          + "?, 'UPDATE' from node_aud a "
+          + "where a.revision >= ? and a.revision_type <> 'DELETE' "
+          + "and a.revision = (select max(r.revision) from node_aud r "
+          + "where r.graph_id = a.graph_id and r.type_id = a.type_id and r.id = a.id "
+          + "and r.revision < ?)";
+
+  private static final String TEXT_ATTRIBUTE_VALUE_SNAPSHOT_SQL =
+      "insert into node_text_attribute_value_aud (node_graph_id, node_type_id, node_id, "
+          + "attribute_id, index, lang, value, regex, revision, revision_type) "
+          + "select a.node_graph_id, a.node_type_id, a.node_id, "
+          + "a.attribute_id, a.index, a.lang, a.value, a.regex, "
+          + "?, 'UPDATE' from node_text_attribute_value_aud a "
+          + "where a.revision >= ? and a.revision_type <> 'DELETE' "
+          + "and a.revision = (select max(r.revision) from node_text_attribute_value_aud r "
+          + "where r.node_graph_id = a.node_graph_id and r.node_type_id = a.node_type_id "
+          + "and r.node_id = a.node_id and r.attribute_id = a.attribute_id "
+          + "and r.index = a.index and r.revision < ?)";
+
+  private static final String REFERENCE_ATTRIBUTE_VALUE_SNAPSHOT_SQL =
+      "insert into node_reference_attribute_value_aud (node_graph_id, node_type_id, node_id, "
+          + "attribute_id, index, value_graph_id, value_type_id, value_id, "
+          + "revision, revision_type) "
+          + "select a.node_graph_id, a.node_type_id, a.node_id, "
+          + "a.attribute_id, a.index, a.value_graph_id, a.value_type_id, a.value_id, "
+          + "?, 'UPDATE' from node_reference_attribute_value_aud a "
+          + "where a.revision >= ? and a.revision_type <> 'DELETE' "
+          + "and a.revision = (select max(r.revision) from node_reference_attribute_value_aud r "
+          + "where r.node_graph_id = a.node_graph_id and r.node_type_id = a.node_type_id "
+          + "and r.node_id = a.node_id and r.attribute_id = a.attribute_id "
+          + "and r.index = a.index and r.revision < ?)";
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+
+  private User checkpointer = new User("revisionCheckpointer", "", AppRole.SUPERUSER);
+
+  private JdbcTemplate jdbcTemplate;
+  private Service<Long, Revision> revisionService;
+  private SequenceService revisionSeqService;
+  private NodeRevisionsInProgress revisionsInProgress;
+  private PlatformTransactionManager transactionManager;
+  private long checkpointInterval;
+
+  private NavigableSet<Long> checkpoints = new ConcurrentSkipListSet<>();
+  private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * @param checkpointInterval number of revisions between checkpoints, zero or less disables
+   * writing checkpoints in the background
+   */
+  public NodeRevisionCheckpointer(
+      DataSource dataSource,
+      Service<Long, Revision> revisionService,
+      SequenceService revisionSeqService,
+      NodeRevisionsInProgress revisionsInProgress,
+      PlatformTransactionManager transactionManager,
+      long checkpointInterval) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.revisionService = revisionService;
+    this.revisionSeqService = revisionSeqService;
+    this.revisionsInProgress = revisionsInProgress;
+    this.transactionManager = transactionManager;
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  @Subscribe
+  @Synchronous
+  public void startOn(ApplicationReadyEvent e) {
+    forEachAndClose(
+        revisionService.keys(query(RevisionsByCheckpoint.of(true)), checkpointer),
+        checkpoints::add);
+
+    if (checkpointInterval > 0) {
+      scheduler.scheduleWithFixedDelay(this::checkpointIfDueAndLogErrors,
+          CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  @Subscribe
+  @Synchronous
+  public void stopOn(ApplicationShutdownEvent e) {
+    // interrupts waiting for earlier writes, unfinished checkpoint is not written
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Returns the latest checkpoint less or equal to given revision.
+   */
+  public Optional<Long> checkpointAtOrBefore(Long revision) {
+    return Optional.ofNullable(checkpoints.floor(revision));
+  }
+
+  private void checkpointIfDueAndLogErrors() {
+    try {
+      Long latestRevision = findFirstAndClose(
+          revisionService.keys(Queries.matchAll(), checkpointer)).orElse(0L);
+      Long latestCheckpoint = checkpoints.isEmpty() ? 0L : checkpoints.last();
+
+      if (latestRevision - latestCheckpoint >= checkpointInterval) {
+        createCheckpoint();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      log.error("Failed to write revision checkpoint", e);
+    }
+  }
+
+  /**
+   * Writes a checkpoint in a new revision. Waits first for node writes in earlier revisions to
+   * finish. Node writes in later revisions are not blocked.
+   *
+   * @return checkpoint revision
+   */
+  public synchronized Long createCheckpoint() throws InterruptedException {
+    Long revision = revisionsInProgress.start(
+        () -> revisionSeqService.getAndAdvance(checkpointer));
+
+    try {
+      revisionsInProgress.awaitFinishedBefore(revision);
+
+      // rows older than the previous checkpoint are already included in it
+      Long previousCheckpoint = checkpoints.isEmpty() ? 0L : checkpoints.last();
+
+      log.info("Writing revision checkpoint {}", revision);
+
+      runInTransaction(transactionManager, () -> {
+        revisionService.save(
+            Revision.of(revision, checkpointer.getUsername(), LocalDateTime.now(), true),
+            INSERT, defaultOpts(), checkpointer);
+        jdbcTemplate.update(NODE_SNAPSHOT_SQL,
+            revision, previousCheckpoint, revision);
+        jdbcTemplate.update(TEXT_ATTRIBUTE_VALUE_SNAPSHOT_SQL,
+            revision, previousCheckpoint, revision);
+        jdbcTemplate.update(REFERENCE_ATTRIBUTE_VALUE_SNAPSHOT_SQL,
+            revision, previousCheckpoint, revision);
+        return null;
+      });
+
+      checkpoints.add(revision);
+
+      log.info("Done");
+
+      return revision;
+    } finally {
+      revisionsInProgress.finish(revision);
+    }
+  }
+
+}
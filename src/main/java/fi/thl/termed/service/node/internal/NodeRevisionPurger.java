@@ -0,0 +1,219 @@
+package fi.thl.termed.service.node.internal;
+
+import static fi.thl.termed.util.spring.transaction.TransactionUtils.runInTransaction;
+
+import com.google.common.eventbus.Subscribe;
+import fi.thl.termed.domain.event.ApplicationReadyEvent;
+import fi.thl.termed.domain.event.ApplicationShutdownEvent;
+import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.eventbus.Synchronous;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Purges old revisions in the background. Revisions are deleted one by one from the oldest, each
+ * in short transactions of at most {@code CHUNK_SIZE} nodes, so reads and writes are served while
+ * purging. Only revisions before a checkpoint are purged, so that nodes can still be read as of
+ * any remaining revision. Revisions not yet delivered to webhooks are kept.
+ *
+ * <p>Revisions are purged before the latest checkpoint older than given retention period, and
+ * before revisions given in purge requests. Requests are stored in the database, so purging
+ * continues after restart.
+ */
+public class NodeRevisionPurger {
+
+  public static final String PENDING_REVISIONS_METRIC = "termed.revision.purge.pending";
+
+  private static final long PURGE_INTERVAL_SECONDS = 3600;
+  private static final int CHUNK_SIZE = 1000;
+  private static final long PROGRESS_LOG_INTERVAL_MILLIS = 10_000;
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+
+  private JdbcTemplate jdbcTemplate;
+  private PlatformTransactionManager transactionManager;
+  private int retentionDays;
+
+  private AtomicLong pendingRevisions = new AtomicLong();
+  private volatile boolean stopped = false;
+  private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * @param retentionDays days to keep revisions for, zero or less keeps all revisions unless purge
+   * is requested
+   */
+  public NodeRevisionPurger(
+      DataSource dataSource,
+      PlatformTransactionManager transactionManager,
+      MeterRegistry meterRegistry,
+      int retentionDays) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionManager = transactionManager;
+    this.retentionDays = retentionDays;
+
+    Gauge.builder(PENDING_REVISIONS_METRIC, pendingRevisions, AtomicLong::get)
+        .register(meterRegistry);
+  }
+
+  @Subscribe
+  @Synchronous
+  public void startOn(ApplicationReadyEvent e) {
+    // continues purging requested before restart
+    scheduler.scheduleWithFixedDelay(this::purgeAndLogErrors,
+        0, PURGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Subscribe
+  @Synchronous
+  public void stopOn(ApplicationShutdownEvent e) {
+    // purging stops after current chunk and continues on next start up
+    stopped = true;
+    scheduler.shutdown();
+  }
+
+  /**
+   * Requests purging all revisions before given revision. Purging is done in the background.
+   */
+  public void requestPurgeBefore(Long revision) {
+    if (jdbcTemplate.queryForObject(
+        "select count(*) from revision_purge_request where revision = ?",
+        Long.class, revision) == 0) {
+      jdbcTemplate.update("insert into revision_purge_request (revision) values (?)", revision);
+    }
+    scheduler.execute(this::purgeAndLogErrors);
+  }
+
+  private void purgeAndLogErrors() {
+    try {
+      purge();
+    } catch (RuntimeException e) {
+      log.error("Failed to purge revisions", e);
+    }
+  }
+
+  /**
+   * Purges revisions before requested and retention period revisions. Returns when done.
+   */
+  public synchronized void purge() {
+    Optional<Long> target = purgeTarget();
+
+    if (!target.isPresent()) {
+      return;
+    }
+
+    List<Long> revisions = jdbcTemplate.queryForList(
+        "select number from revision where number < ? order by number",
+        Long.class, target.get());
+
+    if (!revisions.isEmpty()) {
+      log.info("Purging {} revisions before revision {}", revisions.size(), target.get());
+      purge(revisions);
+    }
+
+    if (!stopped) {
+      jdbcTemplate.update("delete from revision_purge_request where revision <= ?", target.get());
+    }
+  }
+
+  private void purge(List<Long> revisions) {
+    pendingRevisions.set(revisions.size());
+    long purgedRows = 0;
+    long lastLogged = System.currentTimeMillis();
+
+    for (Long revision : revisions) {
+      int purgedChunkRows;
+      do {
+        if (stopped) {
+          log.info("Purging stopped, {} revisions left", pendingRevisions.get());
+          return;
+        }
+        purgedChunkRows = runInTransaction(transactionManager, () -> purgeChunk(revision));
+        purgedRows += purgedChunkRows;
+      } while (purgedChunkRows > 0);
+
+      // also cascades to remaining value revisions
+      jdbcTemplate.update("delete from revision where number = ?", revision);
+      pendingRevisions.decrementAndGet();
+
+      if (System.currentTimeMillis() - lastLogged > PROGRESS_LOG_INTERVAL_MILLIS) {
+        log.info("Purged {} node revision rows, {} revisions left", purgedRows,
+            pendingRevisions.get());
+        lastLogged = System.currentTimeMillis();
+      }
+    }
+
+    log.info("Done, purged {} node revision rows", purgedRows);
+  }
+
+  // deletes revisions of at most CHUNK_SIZE nodes with all their values, returns number of nodes
+  private int purgeChunk(Long revision) {
+    List<Object[]> keys = jdbcTemplate.query(
+        "select graph_id, type_id, id from node_aud where revision = ? limit ?",
+        (rs, rowNum) -> new Object[]{
+            UUIDs.fromString(rs.getString("graph_id")),
+            rs.getString("type_id"),
+            UUIDs.fromString(rs.getString("id")),
+            revision},
+        revision, CHUNK_SIZE);
+
+    if (keys.isEmpty()) {
+      return 0;
+    }
+
+    jdbcTemplate.batchUpdate("delete from node_text_attribute_value_aud "
+        + "where node_graph_id = ? and node_type_id = ? and node_id = ? and revision = ?", keys);
+    jdbcTemplate.batchUpdate("delete from node_reference_attribute_value_aud "
+        + "where node_graph_id = ? and node_type_id = ? and node_id = ? and revision = ?", keys);
+    jdbcTemplate.batchUpdate("delete from node_aud "
+        + "where graph_id = ? and type_id = ? and id = ? and revision = ?", keys);
+
+    return keys.size();
+  }
+
+  // revisions before the target are purged, target is the latest checkpoint at or before the
+  // requested or retention revision and the first revision still to be delivered to webhooks
+  private Optional<Long> purgeTarget() {
+    Optional<Long> requested = queryForLong("select max(revision) from revision_purge_request");
+
+    Optional<Long> retention = retentionDays > 0
+        ? queryForLong("select max(number) from revision where checkpoint = ? and date <= ?",
+        true, Timestamp.valueOf(LocalDateTime.now().minusDays(retentionDays)))
+        : Optional.empty();
+
+    Optional<Long> target = Stream.of(requested, retention)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .max(Long::compare);
+
+    Optional<Long> undelivered = Stream.of(
+        queryForLong("select min(revision) from node_event_outbox"),
+        queryForLong("select min(revision) from webhook_queue_item"))
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .min(Long::compare);
+
+    return target
+        .map(t -> undelivered.map(u -> Math.min(t, u)).orElse(t))
+        .flatMap(t -> queryForLong(
+            "select max(number) from revision where checkpoint = ? and number <= ?", true, t));
+  }
+
+  private Optional<Long> queryForLong(String sql, Object... args) {
+    return Optional.ofNullable(jdbcTemplate.queryForObject(sql, Long.class, args));
+  }
+
+}
@@ -2,29 +2,39 @@ package fi.thl.termed.service.node.internal;
 
 import static fi.thl.termed.service.node.util.NodeTransformations.nodePropertiesToRows;
 import static fi.thl.termed.service.node.util.NodeTransformations.nodeReferencesToRows;
+import static fi.thl.termed.util.collect.StreamUtils.forEachAndClose;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
 import static fi.thl.termed.util.service.SaveMode.INSERT;
 import static fi.thl.termed.util.service.WriteOptions.defaultOpts;
+import static fi.thl.termed.util.query.AndSpecification.and;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.mapping;
 import static java.util.stream.Collectors.toList;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterators;
-import com.google.common.collect.Multimap;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeAttributeValueId;
 import fi.thl.termed.domain.NodeId;
-import fi.thl.termed.service.node.util.NodeTransformations;
 import fi.thl.termed.domain.Revision;
 import fi.thl.termed.domain.RevisionId;
 import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.StrictLangValue;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.specification.NodeRevisionReferenceAttributeValuesAsOfRevision;
+import fi.thl.termed.service.node.specification.NodeRevisionReferenceAttributeValuesBetweenRevisions;
+import fi.thl.termed.service.node.specification.NodeRevisionTextAttributeValuesAsOfRevision;
+import fi.thl.termed.service.node.specification.NodeRevisionTextAttributeValuesBetweenRevisions;
+import fi.thl.termed.service.node.specification.NodeRevisionsAsOfRevision;
+import fi.thl.termed.service.node.specification.NodeRevisionsGreaterOrEqualToRevisionNumber;
+import fi.thl.termed.service.node.util.NodeTransformations;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.dao.Dao;
+import fi.thl.termed.util.query.AndSpecification;
 import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
@@ -33,10 +43,11 @@ import fi.thl.termed.util.service.SequenceService;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
 import java.time.LocalDateTime;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
@@ -48,6 +59,7 @@ public class NodeRevisionRepository implements
     Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> {
 
   private static final int BATCH_SIZE = 5000;
+  private static final int LOAD_BATCH_SIZE = 1000;
 
   private Dao<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionDao;
   private Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>> textAttributeValueRevDao;
@@ -55,17 +67,23 @@ public class NodeRevisionRepository implements
 
   private Service<Long, Revision> revisionService;
   private SequenceService revisionSeqService;
+  private NodeRevisionsInProgress revisionsInProgress;
+  private Function<Long, Optional<Long>> checkpointAtOrBefore;
 
   public NodeRevisionRepository(
       Dao<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionDao,
       Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>> textAttributeValueRevDao,
       Dao<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, NodeId>> referenceAttributeValueRevDao,
-      Service<Long, Revision> revisionService, SequenceService revisionSeqService) {
+      Service<Long, Revision> revisionService, SequenceService revisionSeqService,
+      NodeRevisionsInProgress revisionsInProgress,
+      Function<Long, Optional<Long>> checkpointAtOrBefore) {
     this.nodeRevisionDao = nodeRevisionDao;
     this.textAttributeValueRevDao = textAttributeValueRevDao;
     this.referenceAttributeValueRevDao = referenceAttributeValueRevDao;
     this.revisionService = revisionService;
     this.revisionSeqService = revisionSeqService;
+    this.revisionsInProgress = revisionsInProgress;
+    this.checkpointAtOrBefore = checkpointAtOrBefore;
   }
 
   private <K, V> Tuple2<RevisionId<K>, Tuple2<RevisionType, V>> toRev(
@@ -79,8 +97,14 @@ public class NodeRevisionRepository implements
 
     Preconditions.checkArgument(mode == INSERT);
 
-    Long revision = opts.getRevision().orElseGet(() -> newRevision(user));
+    inRevision(opts, user, revision -> {
+      saveInRevision(entries, revision, user);
+      return null;
+    });
+  }
 
+  private void saveInRevision(Stream<Tuple2<RevisionType, Node>> entries, Long revision,
+      User user) {
     try (Stream<Tuple2<RevisionType, Node>> closeable = entries) {
       Iterators.partition(closeable.iterator(), BATCH_SIZE).forEachRemaining(batch -> {
         nodeRevisionDao.insert(batch.stream()
@@ -103,7 +127,11 @@ public class NodeRevisionRepository implements
 
     Preconditions.checkArgument(mode == INSERT);
 
-    Long revision = opts.getRevision().orElseGet(() -> newRevision(user));
+    return inRevision(opts, user, revision -> saveInRevision(revisionTypeAndNode, revision, user));
+  }
+
+  private RevisionId<NodeId> saveInRevision(Tuple2<RevisionType, Node> revisionTypeAndNode,
+      Long revision, User user) {
     RevisionType type = revisionTypeAndNode._1;
     Node node = revisionTypeAndNode._2;
     NodeId id = node.identifier();
@@ -121,12 +149,21 @@ public class NodeRevisionRepository implements
     return RevisionId.of(id, revision);
   }
 
-  private Long newRevision(User user) {
+  // writes in given revision or in a new revision marked as in progress until the write is
+  // finished (or committed if in transaction) so that checkpoints wait for it
+  private <T> T inRevision(WriteOptions opts, User user, Function<Long, T> write) {
+    if (opts.getRevision().isPresent()) {
+      return write.apply(opts.getRevision().get());
+    }
+
+    return revisionsInProgress.inNewRevision(
+        () -> revisionSeqService.getAndAdvance(user),
+        revision -> write.apply(newRevision(revision, user)));
+  }
+
+  private Long newRevision(Long revision, User user) {
     return revisionService.save(
-        Revision.of(
-            revisionSeqService.getAndAdvance(user),
-            user.getUsername(),
-            LocalDateTime.now()),
+        Revision.of(revision, user.getUsername(), LocalDateTime.now()),
         INSERT, defaultOpts(), user);
   }
 
@@ -151,11 +188,18 @@ public class NodeRevisionRepository implements
     return nodeRevisionDao.exists(nodeId, user);
   }
 
+  /**
+   * Values are populated in batches, each batch loads node properties and references in one query
+   * per table. If query contains {@link NodeRevisionsAsOfRevision}, all values of a batch are
+   * loaded as of that revision. Rows before the nearest checkpoint are not read.
+   */
   @Override
   public Stream<Tuple2<RevisionType, Node>> values(
       Query<RevisionId<NodeId>, Tuple2<RevisionType, Node>> query, User user) {
-    return nodeRevisionDao.entries(query.getWhere(), user)
-        .map(e -> populate(e._1, e._2, user));
+    Optional<Long> asOfRevision = findAsOfRevision(query.getWhere());
+    return partitionedMap(
+        nodeRevisionDao.entries(sinceCheckpoint(query.getWhere(), asOfRevision), user),
+        LOAD_BATCH_SIZE, batch -> populate(batch, asOfRevision, user).stream());
   }
 
   @Override
@@ -165,77 +209,180 @@ public class NodeRevisionRepository implements
     }
   }
 
+  @Override
+  public Map<String, Long> countBy(
+      Specification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> spec, String field,
+      User user) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public Stream<RevisionId<NodeId>> keys(
       Query<RevisionId<NodeId>, Tuple2<RevisionType, Node>> query, User user) {
-    return nodeRevisionDao.keys(query.getWhere(), user);
+    Optional<Long> asOfRevision = findAsOfRevision(query.getWhere());
+    return nodeRevisionDao.keys(sinceCheckpoint(query.getWhere(), asOfRevision), user);
   }
 
   @Override
   public Optional<Tuple2<RevisionType, Node>> get(RevisionId<NodeId> id, User user,
       Select... selects) {
-    return nodeRevisionDao.get(id, user).map(revision -> populate(id, revision, user));
+    return nodeRevisionDao.get(id, user)
+        .map(revision -> populate(singletonList(Tuple.of(id, revision)), Optional.empty(), user)
+            .get(0));
   }
 
-  private Tuple2<RevisionType, Node> populate(RevisionId<NodeId> id, Tuple2<RevisionType, Node> rev,
-      User user) {
-    if (rev._2 == null) {
-      return rev;
+  private Optional<Long> findAsOfRevision(
+      Specification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> spec) {
+    if (spec instanceof NodeRevisionsAsOfRevision) {
+      return Optional.of(((NodeRevisionsAsOfRevision) spec).getRevision());
     }
+    if (spec instanceof AndSpecification) {
+      return ((AndSpecification<RevisionId<NodeId>, Tuple2<RevisionType, Node>>) spec)
+          .getSpecifications().stream()
+          .map(this::findAsOfRevision)
+          .filter(Optional::isPresent)
+          .map(Optional::get)
+          .findFirst();
+    }
+    return Optional.empty();
+  }
 
-    Node.Builder nodeBuilder = Node.builderFromCopyOf(rev._2)
-        .properties(findPropertiesFor(id, user))
-        .references(findReferencesFor(id, user));
-
-    return Tuple.of(rev._1, nodeBuilder.build());
+  // checkpoint has a row for each node that exists as of the checkpoint, so older rows are not
+  // needed when reading as of a later revision (nodes deleted before the checkpoint are left out)
+  private Specification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> sinceCheckpoint(
+      Specification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> spec,
+      Optional<Long> asOfRevision) {
+    return asOfRevision.flatMap(checkpointAtOrBefore)
+        .<Specification<RevisionId<NodeId>, Tuple2<RevisionType, Node>>>map(checkpoint ->
+            and(spec, NodeRevisionsGreaterOrEqualToRevisionNumber.of(checkpoint)))
+        .orElse(spec);
   }
 
-  private Multimap<String, StrictLangValue> findPropertiesFor(RevisionId<NodeId> revId, User user) {
-    try (Stream<Tuple2<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>>>
-        textAttributeValueRevisions = textAttributeValueRevDao.entries(
-        new NodeRevisionTextAttributeValuesLessOrEqualToRevision(revId), user)) {
+  // populates properties and references of node revisions, each node is populated as of given
+  // revision or as of its own revision if not given
+  private List<Tuple2<RevisionType, Node>> populate(
+      List<Tuple2<RevisionId<NodeId>, Tuple2<RevisionType, Node>>> revisions,
+      Optional<Long> asOfRevision, User user) {
+
+    // node ids with revisions that values are read as of
+    List<RevisionId<NodeId>> keys = revisions.stream()
+        .filter(r -> hasValues(r._2))
+        .map(r -> RevisionId.of(r._1.getId(), asOfRevision.orElse(r._1.getRevision())))
+        .distinct()
+        .collect(toList());
+
+    Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, StrictLangValue>> properties =
+        new HashMap<>();
+    Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, NodeId>> references =
+        new HashMap<>();
+
+    if (asOfRevision.isPresent()) {
+      populateAsOf(asOfRevision.get(), keys, properties, references, user);
+    } else if (!keys.isEmpty()) {
+      populateAsOfEach(keys, properties, references, user);
+    }
 
-      Map<NodeAttributeValueId, List<Tuple2<Long, StrictLangValue>>> idMappedValueRevisions =
-          textAttributeValueRevisions
-              .collect(groupingBy(e -> e._1.getId(), LinkedHashMap::new,
-                  mapping(e -> Tuple.of(e._1.getRevision(), e._2._2), toList())));
+    return revisions.stream().map(r -> {
+      if (!hasValues(r._2)) {
+        return r._2;
+      }
 
-      ImmutableMultimap.Builder<String, StrictLangValue> properties = ImmutableMultimap.builder();
+      RevisionId<NodeId> key = RevisionId.of(r._1.getId(),
+          asOfRevision.orElse(r._1.getRevision()));
 
-      idMappedValueRevisions.forEach((attrId, valueRevs) -> {
-        Optional<StrictLangValue> lastRevValue = valueRevs.stream()
-            .max(comparing(t -> t._1))
-            .map(t -> t._2);
+      Node node = Node.builderFromCopyOf(r._2._2)
+          .properties(properties.getOrDefault(key, ImmutableMultimap.builder()).build())
+          .references(references.getOrDefault(key, ImmutableMultimap.builder()).build())
+          .build();
 
-        lastRevValue.ifPresent(value -> properties.put(attrId.getAttributeId(), value));
-      });
+      return Tuple.of(r._2._1, node);
+    }).collect(toList());
+  }
 
-      return properties.build();
+  // all nodes are read as of the same revision, latest value rows are selected in SQL
+  private void populateAsOf(Long revision, List<RevisionId<NodeId>> keys,
+      Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, StrictLangValue>> properties,
+      Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, NodeId>> references,
+      User user) {
+    if (keys.isEmpty()) {
+      return;
     }
+
+    List<NodeId> nodeIds = keys.stream().map(RevisionId::getId).collect(toList());
+    Long checkpoint = checkpointAtOrBefore.apply(revision).orElse(0L);
+
+    forEachAndClose(textAttributeValueRevDao.entries(
+        NodeRevisionTextAttributeValuesAsOfRevision.of(nodeIds, checkpoint, revision), user),
+        e -> properties.computeIfAbsent(
+            RevisionId.of(e._1.getId().getNodeId(), revision), k -> ImmutableMultimap.builder())
+            .put(e._1.getId().getAttributeId(), e._2._2));
+
+    forEachAndClose(referenceAttributeValueRevDao.entries(
+        NodeRevisionReferenceAttributeValuesAsOfRevision.of(nodeIds, checkpoint, revision), user),
+        e -> references.computeIfAbsent(
+            RevisionId.of(e._1.getId().getNodeId(), revision), k -> ImmutableMultimap.builder())
+            .put(e._1.getId().getAttributeId(), e._2._2));
   }
 
-  private Multimap<String, NodeId> findReferencesFor(RevisionId<NodeId> revId, User user) {
-    try (Stream<Tuple2<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, NodeId>>>
-        referenceAttributeValueRevisions = referenceAttributeValueRevDao.entries(
-        new NodeRevisionReferenceAttributeValuesLessOrEqualToRevision(revId), user)) {
+  // nodes are read as of different revisions (e.g. history of a node), value rows of all given
+  // revisions are read with one query per table and the latest rows are selected in memory
+  private void populateAsOfEach(List<RevisionId<NodeId>> keys,
+      Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, StrictLangValue>> properties,
+      Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, NodeId>> references,
+      User user) {
+    List<NodeId> nodeIds = keys.stream().map(RevisionId::getId).distinct().collect(toList());
+    Long since = keys.stream()
+        .map(key -> checkpointAtOrBefore.apply(key.getRevision()).orElse(0L))
+        .min(Long::compare)
+        .orElse(0L);
+    Long until = keys.stream()
+        .map(RevisionId::getRevision)
+        .max(Long::compare)
+        .orElse(0L);
+
+    putLatestValues(keys, textAttributeValueRevDao.entries(
+        NodeRevisionTextAttributeValuesBetweenRevisions.of(nodeIds, since, until), user),
+        properties);
+    putLatestValues(keys, referenceAttributeValueRevDao.entries(
+        NodeRevisionReferenceAttributeValuesBetweenRevisions.of(nodeIds, since, until), user),
+        references);
+  }
 
-      Map<NodeAttributeValueId, List<Tuple2<Long, NodeId>>> idMappedValueRevisions =
-          referenceAttributeValueRevisions
-              .collect(groupingBy(e -> e._1.getId(), LinkedHashMap::new,
-                  mapping(e -> Tuple.of(e._1.getRevision(), e._2._2), toList())));
+  // for each key, puts the latest non-deleted row of each value that is at or before the key
+  // revision and at or after its nearest checkpoint, as selected in SQL for a single revision
+  private <V> void putLatestValues(List<RevisionId<NodeId>> keys,
+      Stream<Tuple2<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, V>>> rows,
+      Map<RevisionId<NodeId>, ImmutableMultimap.Builder<String, V>> values) {
+
+    Map<NodeId, List<Tuple2<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, V>>>>
+        rowsByNodeId;
+    try (Stream<Tuple2<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, V>>> closeable =
+        rows) {
+      rowsByNodeId = closeable.collect(groupingBy(r -> r._1.getId().getNodeId()));
+    }
 
-      ImmutableMultimap.Builder<String, NodeId> references = ImmutableMultimap.builder();
+    for (RevisionId<NodeId> key : keys) {
+      Long revision = key.getRevision();
+      Long checkpoint = checkpointAtOrBefore.apply(revision).orElse(0L);
 
-      idMappedValueRevisions.forEach((attrId, valueRevs) -> {
-        Optional<NodeId> lastRevValue = valueRevs.stream()
-            .max(comparing(t -> t._1))
-            .map(t -> t._2);
+      Map<NodeAttributeValueId, Tuple2<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, V>>>
+          latest = new HashMap<>();
 
-        lastRevValue.ifPresent(value -> references.put(attrId.getAttributeId(), value));
-      });
+      rowsByNodeId.getOrDefault(key.getId(), emptyList()).stream()
+          .filter(r -> r._1.getRevision() >= checkpoint && r._1.getRevision() <= revision)
+          .forEach(r -> latest.merge(r._1.getId(), r,
+              (r1, r2) -> r1._1.getRevision() >= r2._1.getRevision() ? r1 : r2));
 
-      return references.build();
+      latest.values().stream()
+          .filter(r -> r._2._1 != RevisionType.DELETE)
+          .sorted(comparing(r -> r._1.getId().getIndex()))
+          .forEach(r -> values.computeIfAbsent(key, k -> ImmutableMultimap.builder())
+              .put(r._1.getId().getAttributeId(), r._2._2));
     }
   }
 
+  private boolean hasValues(Tuple2<RevisionType, Node> revision) {
+    return revision._2 != null && revision._1 != RevisionType.DELETE;
+  }
+
 }
@@ -0,0 +1,68 @@
+package fi.thl.termed.service.node.internal;
+
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps track of revisions with node writes that have not finished yet. Used to wait for earlier
+ * writes before writing a revision checkpoint.
+ */
+public class NodeRevisionsInProgress {
+
+  private final NavigableSet<Long> revisions = new TreeSet<>();
+
+  /**
+   * Creates a new revision with given supplier and marks it as in progress. Creating and marking
+   * is atomic so that no revision less than a returned one can be created without being seen.
+   */
+  public synchronized Long start(Supplier<Long> newRevision) {
+    Long revision = newRevision.get();
+    revisions.add(revision);
+    return revision;
+  }
+
+  /**
+   * Runs given write in a new revision marked as in progress until the write is finished. If called
+   * in a transaction, the revision stays in progress until the transaction completes, so that a
+   * checkpoint does not miss rows written but not yet committed in the revision.
+   */
+  public <T> T inNewRevision(Supplier<Long> newRevision, Function<Long, T> write) {
+    Long revision = start(newRevision);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+              finish(revision);
+            }
+          });
+      return write.apply(revision);
+    }
+
+    try {
+      return write.apply(revision);
+    } finally {
+      finish(revision);
+    }
+  }
+
+  public synchronized void finish(Long revision) {
+    revisions.remove(revision);
+    notifyAll();
+  }
+
+  /**
+   * Waits until all revisions less than given revision are finished.
+   */
+  public synchronized void awaitFinishedBefore(Long revision) throws InterruptedException {
+    while (!revisions.headSet(revision, false).isEmpty()) {
+      wait();
+    }
+  }
+
+}
@@ -29,6 +29,18 @@ import org.apache.lucene.util.BytesRef;
 
 public class NodeToDocument implements Function<Node, Document> {
 
+  /**
+   * Doc values field for counting by type, indexes written before the field was added are
+   * reindexed on start up.
+   */
+  public static final String TYPE_ID_DOC_VALUES_FIELD = "type.id";
+
+  /**
+   * Doc values field for counting by graph, indexes written before the field was added are
+   * reindexed on start up.
+   */
+  public static final String TYPE_GRAPH_ID_DOC_VALUES_FIELD = "type.graph.id";
+
   private static final Gson gson = new Gson();
 
   @Override
@@ -41,6 +53,10 @@ public class NodeToDocument implements Function<Node, Document> {
     doc.add(storedStringField("type.id", n.getTypeId()));
     doc.add(storedStringField("id", n.getId()));
 
+    // columnar copies of type id and graph id for counting by type or graph
+    doc.add(docValuesField(TYPE_ID_DOC_VALUES_FIELD, n.getTypeId()));
+    doc.add(docValuesField(TYPE_GRAPH_ID_DOC_VALUES_FIELD, UUIDs.toString(n.getTypeGraphId())));
+
     doc.add(storedStringField("code", n.getCode().orElse("")));
     doc.add(storedStringField("uri", n.getUri().orElse("")));
     doc.add(longField("number", n.getNumber()));
@@ -162,6 +178,10 @@ public class NodeToDocument implements Function<Node, Document> {
     return new StringField(name, DateUtils.formatLuceneDateString(value), Store.YES);
   }
 
+  private Field docValuesField(String name, String value) {
+    return new SortedDocValuesField(name, new BytesRef(value));
+  }
+
   private Field sortableField(String name, String value) {
     return new SortedDocValuesField(name,
         new BytesRef(
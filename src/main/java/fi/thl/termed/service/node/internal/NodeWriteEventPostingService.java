@@ -1,25 +1,19 @@
 package fi.thl.termed.service.node.internal;
 
-import static fi.thl.termed.domain.RevisionType.DELETE;
-import static fi.thl.termed.domain.RevisionType.INSERT;
-import static fi.thl.termed.domain.RevisionType.UPDATE;
-import static fi.thl.termed.util.query.AndSpecification.and;
-import static fi.thl.termed.util.query.OrSpecification.or;
-import static fi.thl.termed.util.query.Queries.query;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
 
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.eventbus.EventBus;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
-import fi.thl.termed.domain.RevisionId;
-import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.User;
 import fi.thl.termed.domain.event.NodeDeletedEvent;
 import fi.thl.termed.domain.event.NodeSavedEvent;
-import fi.thl.termed.service.node.specification.NodeRevisionsByRevisionNumber;
-import fi.thl.termed.service.node.specification.NodeRevisionsByRevisionType;
-import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.service.node.internal.NodeChangeCollector.ChangeType;
 import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
@@ -27,118 +21,133 @@ import fi.thl.termed.util.service.SaveMode;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
- * Posts events to event bus for each node save and delete request.
+ * Posts events to event bus for each node save and delete request. Changed node ids are collected
+ * by the repository while writing, so posting events does not read anything from the database.
+ * Nodes saved without changes are not included in events. Events of a request are split by graph.
  */
 public class NodeWriteEventPostingService implements Service<NodeId, Node> {
 
+  private static final int MAX_NODES_PER_EVENT = 1000;
+
   private Service<NodeId, Node> delegate;
-  private Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService;
+  private NodeChangeCollector changeCollector;
   private EventBus eventBus;
 
   public NodeWriteEventPostingService(
       Service<NodeId, Node> delegate,
-      Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService,
+      NodeChangeCollector changeCollector,
       EventBus eventBus) {
     this.delegate = delegate;
-    this.nodeRevisionService = nodeRevisionService;
+    this.changeCollector = changeCollector;
     this.eventBus = eventBus;
   }
 
-  private void fireSaveEvents(List<NodeId> ids, String user, boolean sync) {
-    eventBus.post(new NodeSavedEvent(user, LocalDateTime.now(), sync, ids));
-  }
-
-  private void fireSaveEvent(NodeId id, String user, boolean sync) {
-    eventBus.post(new NodeSavedEvent(user, LocalDateTime.now(), sync, singletonList(id)));
-  }
-
-  private void fireDeleteEvents(List<NodeId> ids, String user, boolean sync) {
-    eventBus.post(new NodeDeletedEvent(user, LocalDateTime.now(), sync, ids));
-  }
-
-  private void fireDeleteEvent(NodeId id, String user, boolean sync) {
-    eventBus.post(new NodeDeletedEvent(user, LocalDateTime.now(), sync, singletonList(id)));
-  }
-
   @Override
   public void save(Stream<Node> values, SaveMode mode, WriteOptions opts, User user) {
-    delegate.save(values, mode, opts, user);
-
-    Long revisionNumber = opts.getRevision()
-        .orElseThrow(() -> new IllegalStateException("Revision not initialized"));
-
-    try (Stream<NodeId> idsInRevision = nodeRevisionService
-        .keys(query(NodeRevisionsByRevisionNumber.of(revisionNumber)), user)
-        .map(RevisionId::getId)) {
-
-      Iterators.partition(idsInRevision.iterator(), 1000).forEachRemaining(
-          ids -> fireSaveEvents(ids, user.getUsername(), opts.isSync()));
-    }
+    Long revision = requireRevision(opts);
+    ImmutableListMultimap<ChangeType, NodeId> changes =
+        collectChanges(revision, () -> delegate.save(values, mode, opts, user));
+    fireEvents(changes, user.getUsername(), opts.isSync());
   }
 
   @Override
   public NodeId save(Node value, SaveMode mode, WriteOptions opts, User user) {
-    NodeId id = delegate.save(value, mode, opts, user);
-    fireSaveEvent(id, user.getUsername(), opts.isSync());
-    return id;
+    if (!opts.getRevision().isPresent()) {
+      NodeId id = delegate.save(value, mode, opts, user);
+      fireSaveEvents(singletonList(id), user.getUsername(), opts.isSync());
+      return id;
+    }
+
+    NodeId[] id = new NodeId[1];
+    ImmutableListMultimap<ChangeType, NodeId> changes = collectChanges(opts.getRevision().get(),
+        () -> id[0] = delegate.save(value, mode, opts, user));
+    fireEvents(changes, user.getUsername(), opts.isSync());
+    return id[0];
   }
 
   @Override
   public void delete(Stream<NodeId> ids, WriteOptions opts, User user) {
-    delegate.delete(ids, opts, user);
-
-    Long revisionNumber = opts.getRevision()
-        .orElseThrow(() -> new IllegalStateException("Revision not initialized"));
-
-    try (Stream<NodeId> idsInRevision = nodeRevisionService
-        .keys(query(NodeRevisionsByRevisionNumber.of(revisionNumber)), user)
-        .map(RevisionId::getId)) {
-
-      Iterators.partition(idsInRevision.iterator(), 1000).forEachRemaining(
-          batch -> fireDeleteEvents(batch, user.getUsername(), opts.isSync()));
-    }
+    Long revision = requireRevision(opts);
+    ImmutableListMultimap<ChangeType, NodeId> changes =
+        collectChanges(revision, () -> delegate.delete(ids, opts, user));
+    fireEvents(changes, user.getUsername(), opts.isSync());
   }
 
   @Override
   public void delete(NodeId id, WriteOptions opts, User user) {
-    delegate.delete(id, opts, user);
-    fireDeleteEvent(id, user.getUsername(), opts.isSync());
+    if (!opts.getRevision().isPresent()) {
+      delegate.delete(id, opts, user);
+      fireDeleteEvents(singletonList(id), user.getUsername(), opts.isSync());
+      return;
+    }
+
+    ImmutableListMultimap<ChangeType, NodeId> changes = collectChanges(opts.getRevision().get(),
+        () -> delegate.delete(id, opts, user));
+    fireEvents(changes, user.getUsername(), opts.isSync());
   }
 
   @Override
   public void saveAndDelete(Stream<Node> saves, Stream<NodeId> deletes, SaveMode mode,
       WriteOptions opts, User user) {
-    delegate.saveAndDelete(saves, deletes, mode, opts, user);
+    Long revision = requireRevision(opts);
+    ImmutableListMultimap<ChangeType, NodeId> changes =
+        collectChanges(revision, () -> delegate.saveAndDelete(saves, deletes, mode, opts, user));
+    fireEvents(changes, user.getUsername(), opts.isSync());
+  }
 
-    Long revisionNumber = opts.getRevision()
+  private Long requireRevision(WriteOptions opts) {
+    return opts.getRevision()
         .orElseThrow(() -> new IllegalStateException("Revision not initialized"));
+  }
 
-    try (Stream<NodeId> savedIdsInRevision = nodeRevisionService
-        .keys(query(and(
-            NodeRevisionsByRevisionNumber.of(revisionNumber),
-            or(
-                NodeRevisionsByRevisionType.of(INSERT),
-                NodeRevisionsByRevisionType.of(UPDATE)))), user)
-        .map(RevisionId::getId)) {
-
-      Iterators.partition(savedIdsInRevision.iterator(), 1000).forEachRemaining(
-          batch -> fireSaveEvents(batch, user.getUsername(), opts.isSync()));
+  // runs given write and returns ids collected for the revision, collected ids are discarded
+  // also if the write fails
+  private ImmutableListMultimap<ChangeType, NodeId> collectChanges(Long revision,
+      Runnable write) {
+    try {
+      write.run();
+    } catch (RuntimeException | Error e) {
+      changeCollector.remove(revision);
+      throw e;
     }
+    return changeCollector.remove(revision);
+  }
+
+  private void fireEvents(ImmutableListMultimap<ChangeType, NodeId> changes, String user,
+      boolean sync) {
+    Iterators.partition(Iterables.concat(
+        changes.get(ChangeType.INSERT),
+        changes.get(ChangeType.UPDATE)).iterator(), MAX_NODES_PER_EVENT)
+        .forEachRemaining(ids -> fireSaveEvents(ids, user, sync));
+    Iterators.partition(changes.get(ChangeType.DELETE).iterator(), MAX_NODES_PER_EVENT)
+        .forEachRemaining(ids -> fireDeleteEvents(ids, user, sync));
+  }
 
-    try (Stream<NodeId> deletedIdsInRevision = nodeRevisionService
-        .keys(query(and(
-            NodeRevisionsByRevisionNumber.of(revisionNumber),
-            NodeRevisionsByRevisionType.of(DELETE))), user)
-        .map(RevisionId::getId)) {
+  private void fireSaveEvents(List<NodeId> ids, String user, boolean sync) {
+    LocalDateTime now = LocalDateTime.now();
+    groupByGraph(ids).forEach(graphIds ->
+        eventBus.post(new NodeSavedEvent(user, now, sync, graphIds)));
+  }
 
-      Iterators.partition(deletedIdsInRevision.iterator(), 1000).forEachRemaining(
-          batch -> fireDeleteEvents(batch, user.getUsername(), opts.isSync()));
-    }
+  private void fireDeleteEvents(List<NodeId> ids, String user, boolean sync) {
+    LocalDateTime now = LocalDateTime.now();
+    groupByGraph(ids).forEach(graphIds ->
+        eventBus.post(new NodeDeletedEvent(user, now, sync, graphIds)));
+  }
+
+  // each event has nodes of one graph, event bus orders events per graph
+  private Collection<List<NodeId>> groupByGraph(List<NodeId> ids) {
+    return ids.stream()
+        .collect(groupingBy(NodeId::getTypeGraphId, LinkedHashMap::new, toList()))
+        .values();
   }
 
   @Override
@@ -156,6 +165,11 @@ public class NodeWriteEventPostingService implements Service<NodeId, Node> {
     return delegate.count(spec, user);
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<NodeId, Node> spec, String field, User user) {
+    return delegate.countBy(spec, field, user);
+  }
+
   @Override
   public boolean exists(NodeId key, User user) {
     return delegate.exists(key, user);
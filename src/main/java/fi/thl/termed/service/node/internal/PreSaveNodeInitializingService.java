@@ -1,24 +1,20 @@
 package fi.thl.termed.service.node.internal;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static fi.thl.termed.util.query.AndSpecification.and;
-import static fi.thl.termed.util.query.OrSpecification.or;
+import static fi.thl.termed.util.query.Specifications.asSql;
 import static java.util.stream.Collectors.toMap;
 
 import com.google.common.collect.ImmutableList;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.User;
-import fi.thl.termed.service.node.specification.NodesByGraphId;
-import fi.thl.termed.service.node.specification.NodesById;
-import fi.thl.termed.service.node.specification.NodesByTypeId;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
 import fi.thl.termed.util.collect.StreamUtils;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Selects;
-import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.service.ForwardingService;
 import fi.thl.termed.util.service.SaveMode;
 import fi.thl.termed.util.service.Service;
@@ -108,14 +104,9 @@ public abstract class PreSaveNodeInitializingService extends ForwardingService<N
               Selects.field("lastModifiedBy"),
               Selects.field("lastModifiedDate"));
 
-          Specification<NodeId, Node> anyNodeSpec = or(nodeList.stream()
-              .map(n -> and(
-                  NodesByGraphId.of(n.getTypeGraphId()),
-                  NodesByTypeId.of(n.getTypeId()),
-                  NodesById.of(n.getId())
-              )).collect(toImmutableList()));
-
-          Query<NodeId, Node> query = new Query<>(selectBaseFields, anyNodeSpec);
+          // read from the database as the index may not yet reflect recent writes
+          Query<NodeId, Node> query = new Query<>(selectBaseFields, asSql(NodesByNodeIds.of(
+              nodeList.stream().map(Node::identifier).collect(toImmutableList()))));
 
           Map<NodeId, Node> oldNodes;
           try (Stream<Node> values = values(query, user)) {
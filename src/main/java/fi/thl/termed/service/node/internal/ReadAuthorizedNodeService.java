@@ -18,7 +18,7 @@ import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
 import java.util.Map;
 import java.util.Optional;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 /**
@@ -28,6 +28,7 @@ public class ReadAuthorizedNodeService implements Service<NodeId, Node> {
 
   private Service<NodeId, Node> delegate;
 
+  private PermissionEvaluator<TypeId> typeEvaluator;
   private PermissionEvaluator<NodeId> nodeEvaluator;
   private PermissionEvaluator<TextAttributeId> textAttrEvaluator;
   private PermissionEvaluator<ReferenceAttributeId> refAttrEvaluator;
@@ -38,6 +39,7 @@ public class ReadAuthorizedNodeService implements Service<NodeId, Node> {
       PermissionEvaluator<TextAttributeId> textAttrEvaluator,
       PermissionEvaluator<ReferenceAttributeId> refAttrEvaluator) {
     this.delegate = delegate;
+    this.typeEvaluator = typeEvaluator;
     this.nodeEvaluator = (u, r, p) -> typeEvaluator.hasPermission(u, r.getType(), p);
     this.textAttrEvaluator = textAttrEvaluator;
     this.refAttrEvaluator = refAttrEvaluator;
@@ -84,6 +86,11 @@ public class ReadAuthorizedNodeService implements Service<NodeId, Node> {
     return delegate.count(spec, user);
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<NodeId, Node> spec, String field, User user) {
+    return delegate.countBy(spec, field, user);
+  }
+
   @Override
   public boolean exists(NodeId id, User user) {
     return nodeEvaluator.hasPermission(user, id, Permission.READ) && delegate.exists(id, user);
@@ -91,105 +98,116 @@ public class ReadAuthorizedNodeService implements Service<NodeId, Node> {
 
   @Override
   public Optional<Node> get(NodeId id, User user, Select... selects) {
-    if (!nodeEvaluator.hasPermission(user, id, Permission.READ)) {
+    ReadPermissions permissions = new ReadPermissions(user);
+
+    if (!permissions.canRead(id)) {
       return Optional.empty();
     }
 
     return delegate.get(id, user, selects)
-        .filter(r -> nodeEvaluator.hasPermission(user, new NodeId(r), Permission.READ))
-        .map(new AttributePermissionFilter(user, Permission.READ));
+        .filter(r -> permissions.canRead(r.getType()))
+        .map(permissions::filterAttributes);
   }
 
   private Stream<NodeId> filterKeys(Stream<NodeId> keys, User user) {
-    return keys.filter(id -> nodeEvaluator.hasPermission(user, id, Permission.READ));
+    ReadPermissions permissions = new ReadPermissions(user);
+    return keys.filter(permissions::canRead);
   }
 
   private Stream<Node> filterValues(Stream<Node> values, User user) {
-    return values.filter(r -> nodeEvaluator.hasPermission(user, new NodeId(r), Permission.READ))
-        .map(new AttributePermissionFilter(user, Permission.READ));
+    ReadPermissions permissions = new ReadPermissions(user);
+    return values.filter(r -> permissions.canRead(r.getType()))
+        .map(permissions::filterAttributes);
   }
 
-  private class AttributePermissionFilter implements Function<Node, Node> {
+  /**
+   * Read permission decisions of one user. Each type and attribute is evaluated once and the
+   * decision is then reused for all nodes of a query.
+   */
+  private class ReadPermissions {
 
-    private User user;
-    private Permission permission;
+    private final User user;
+    private final Map<TypeId, TypePermissions> typePermissions = new ConcurrentHashMap<>();
 
-    AttributePermissionFilter(User user, Permission permission) {
+    ReadPermissions(User user) {
       this.user = user;
-      this.permission = permission;
     }
 
-    @Override
-    public Node apply(Node node) {
-      TypeId typeId = node.getType();
-      return Node.builderFromCopyOf(node)
-          .properties(Multimaps.filterKeys(
-              node.getProperties(), new AcceptPropertyPredicate(typeId)))
-          .references(Multimaps.filterEntries(
-              node.getReferences(), new AcceptReferenceEntryPredicate(typeId)))
-          .referrers(Multimaps.filterEntries(
-              node.getReferrers(), new AcceptReferrerEntryPredicate()))
-          .build();
+    boolean canRead(NodeId nodeId) {
+      return canRead(nodeId.getType());
     }
 
-    /**
-     * Accept a node text attribute value if attribute is permitted
-     */
-    private class AcceptPropertyPredicate implements Predicate<String> {
-
-      private TypeId typeId;
-
-      AcceptPropertyPredicate(TypeId typeId) {
-        this.typeId = typeId;
-      }
+    boolean canRead(TypeId typeId) {
+      return typePermissions(typeId).readable;
+    }
 
-      @Override
-      public boolean apply(String attributeId) {
-        TextAttributeId textAttrId = new TextAttributeId(typeId, attributeId);
-        return textAttrEvaluator.hasPermission(user, textAttrId, permission);
-      }
+    private TypePermissions typePermissions(TypeId typeId) {
+      return typePermissions.computeIfAbsent(typeId, TypePermissions::new);
     }
 
     /**
-     * Accepts a node reference entry in the reference multimap if 1) reference attribute is
-     * permitted and 2) value is permitted
+     * Filters out values of attributes that are not permitted and references to nodes that are not
+     * permitted. If all values are permitted, returns the node as is.
      */
-    private class AcceptReferenceEntryPredicate implements Predicate<Map.Entry<String, NodeId>> {
+    Node filterAttributes(Node node) {
+      TypePermissions permissions = typePermissions(node.getType());
+
+      Predicate<String> acceptProperty = permissions::canReadTextAttribute;
+      Predicate<Map.Entry<String, NodeId>> acceptReference = e ->
+          permissions.canReadReferenceAttribute(e.getKey()) && canRead(e.getValue());
+      Predicate<Map.Entry<String, NodeId>> acceptReferrer = e ->
+          typePermissions(e.getValue().getType()).canReadReferenceAttribute(e.getKey()) &&
+              canRead(e.getValue());
+
+      boolean acceptAllProperties =
+          node.getProperties().keySet().stream().allMatch(acceptProperty::apply);
+      boolean acceptAllReferences =
+          node.getReferences().entries().stream().allMatch(acceptReference::apply);
+      boolean acceptAllReferrers =
+          node.getReferrers().entries().stream().allMatch(acceptReferrer::apply);
+
+      if (acceptAllProperties && acceptAllReferences && acceptAllReferrers) {
+        return node;
+      }
 
-      private TypeId typeId;
+      Node.Builder builder = Node.builderFromCopyOf(node);
 
-      AcceptReferenceEntryPredicate(TypeId typeId) {
-        this.typeId = typeId;
+      if (!acceptAllProperties) {
+        builder.properties(Multimaps.filterKeys(node.getProperties(), acceptProperty));
+      }
+      if (!acceptAllReferences) {
+        builder.references(Multimaps.filterEntries(node.getReferences(), acceptReference));
+      }
+      if (!acceptAllReferrers) {
+        builder.referrers(Multimaps.filterEntries(node.getReferrers(), acceptReferrer));
       }
 
-      @Override
-      public boolean apply(Map.Entry<String, NodeId> entry) {
-        String attributeId = entry.getKey();
-        NodeId reference = entry.getValue();
+      return builder.build();
+    }
 
-        ReferenceAttributeId refAttrId = new ReferenceAttributeId(typeId, attributeId);
+    private class TypePermissions {
 
-        return refAttrEvaluator.hasPermission(user, refAttrId, permission) &&
-            nodeEvaluator.hasPermission(user, reference, permission);
-      }
-    }
+      private final TypeId typeId;
+      private final boolean readable;
 
-    /**
-     * Accepts a node referrer entry in the referrers multimap if 1) reference attribute is
-     * permitted and 2) value is permitted
-     */
-    private class AcceptReferrerEntryPredicate implements Predicate<Map.Entry<String, NodeId>> {
+      private final Map<String, Boolean> textAttributes = new ConcurrentHashMap<>();
+      private final Map<String, Boolean> referenceAttributes = new ConcurrentHashMap<>();
 
-      @Override
-      public boolean apply(Map.Entry<String, NodeId> entry) {
-        String attributeId = entry.getKey();
-        NodeId referrer = entry.getValue();
+      TypePermissions(TypeId typeId) {
+        this.typeId = typeId;
+        this.readable = typeEvaluator.hasPermission(user, typeId, Permission.READ);
+      }
 
-        ReferenceAttributeId refAttrId = new ReferenceAttributeId(referrer.getType(), attributeId);
+      boolean canReadTextAttribute(String attributeId) {
+        return textAttributes.computeIfAbsent(attributeId, id -> textAttrEvaluator
+            .hasPermission(user, new TextAttributeId(typeId, id), Permission.READ));
+      }
 
-        return refAttrEvaluator.hasPermission(user, refAttrId, permission) &&
-            nodeEvaluator.hasPermission(user, referrer, permission);
+      boolean canReadReferenceAttribute(String attributeId) {
+        return referenceAttributes.computeIfAbsent(attributeId, id -> refAttrEvaluator
+            .hasPermission(user, new ReferenceAttributeId(typeId, id), Permission.READ));
       }
+
     }
 
   }
@@ -14,65 +14,80 @@ import fi.thl.termed.util.service.SequenceService;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
 import java.time.LocalDateTime;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
+/**
+ * Creates a new revision for each write. Revisions are marked in progress until the write is
+ * finished, or until the transaction the write joined completes.
+ */
 public class RevisionInitializingNodeService extends ForwardingService<NodeId, Node> {
 
   private SequenceService revisionSequenceService;
   private Service<Long, Revision> revisionService;
+  private NodeRevisionsInProgress revisionsInProgress;
 
   public RevisionInitializingNodeService(
       Service<NodeId, Node> delegate,
       SequenceService revisionSequenceService,
-      Service<Long, Revision> revisionService) {
+      Service<Long, Revision> revisionService,
+      NodeRevisionsInProgress revisionsInProgress) {
     super(delegate);
     this.revisionSequenceService = revisionSequenceService;
     this.revisionService = revisionService;
+    this.revisionsInProgress = revisionsInProgress;
   }
 
   @Override
   public void save(Stream<Node> nodes, SaveMode mode, WriteOptions opts, User user) {
-    super.save(nodes, mode,
-        opts(opts.isSync(), newRevision(user), opts.isGenerateCodes(), opts.isGenerateUris()),
-        user);
+    inNewRevision(opts, user, revisionOpts -> {
+      super.save(nodes, mode, revisionOpts, user);
+      return null;
+    });
   }
 
   @Override
   public NodeId save(Node node, SaveMode mode, WriteOptions opts, User user) {
-    return super.save(node, mode,
-        opts(opts.isSync(), newRevision(user), opts.isGenerateCodes(), opts.isGenerateUris()),
-        user);
+    return inNewRevision(opts, user, revisionOpts -> super.save(node, mode, revisionOpts, user));
   }
 
   @Override
   public void delete(NodeId id, WriteOptions opts, User user) {
-    super.delete(id,
-        opts(opts.isSync(), newRevision(user), opts.isGenerateCodes(), opts.isGenerateUris()),
-        user);
+    inNewRevision(opts, user, revisionOpts -> {
+      super.delete(id, revisionOpts, user);
+      return null;
+    });
   }
 
   @Override
   public void delete(Stream<NodeId> ids, WriteOptions opts, User user) {
-    super.delete(ids,
-        opts(opts.isSync(), newRevision(user), opts.isGenerateCodes(), opts.isGenerateUris()),
-        user);
+    inNewRevision(opts, user, revisionOpts -> {
+      super.delete(ids, revisionOpts, user);
+      return null;
+    });
   }
 
   @Override
   public void saveAndDelete(Stream<Node> saves, Stream<NodeId> deletes, SaveMode mode,
       WriteOptions opts, User user) {
-    super.saveAndDelete(saves, deletes, mode,
-        opts(opts.isSync(), newRevision(user), opts.isGenerateCodes(), opts.isGenerateUris()),
-        user);
+    inNewRevision(opts, user, revisionOpts -> {
+      super.saveAndDelete(saves, deletes, mode, revisionOpts, user);
+      return null;
+    });
   }
 
-  private Long newRevision(User user) {
-    return revisionService.save(
-        Revision.of(
-            revisionSequenceService.getAndAdvance(user),
-            user.getUsername(),
-            LocalDateTime.now()),
-        INSERT, defaultOpts(), user);
+  private <T> T inNewRevision(WriteOptions opts, User user, Function<WriteOptions, T> write) {
+    return revisionsInProgress.inNewRevision(
+        () -> revisionSequenceService.getAndAdvance(user),
+        revision -> {
+          revisionService.save(
+              Revision.of(revision, user.getUsername(), LocalDateTime.now()),
+              INSERT, defaultOpts(), user);
+
+          return write.apply(
+              opts(opts.isSync(), revision, opts.getUriNamespace().orElse(null),
+                  opts.isGenerateCodes(), opts.isGenerateUris()));
+        });
   }
 
 }
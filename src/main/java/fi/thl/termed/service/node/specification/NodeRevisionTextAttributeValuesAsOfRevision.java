@@ -0,0 +1,74 @@
+package fi.thl.termed.service.node.specification;
+
+import static fi.thl.termed.service.node.specification.NodesByNodeIds.sqlNodeIdsIn;
+import static java.util.Arrays.asList;
+
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.domain.NodeAttributeValueId;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
+import fi.thl.termed.domain.StrictLangValue;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Accepts the latest non-deleted revision of each value of given nodes that is less or equal to
+ * given revision. Rows before given lower bound are not considered, lower bound can be e.g. the
+ * nearest checkpoint revision. Selecting the latest revision is done in SQL, row wise test can
+ * check only the bounds.
+ */
+public class NodeRevisionTextAttributeValuesAsOfRevision extends
+    AbstractSqlSpecification<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>> {
+
+  private ImmutableSet<NodeId> nodeIds;
+  private Long since;
+  private Long revision;
+
+  public NodeRevisionTextAttributeValuesAsOfRevision(Collection<NodeId> nodeIds, Long since,
+      Long revision) {
+    this.nodeIds = ImmutableSet.copyOf(nodeIds);
+    this.since = since;
+    this.revision = revision;
+  }
+
+  public static NodeRevisionTextAttributeValuesAsOfRevision of(Collection<NodeId> nodeIds,
+      Long since, Long revision) {
+    return new NodeRevisionTextAttributeValuesAsOfRevision(nodeIds, since, revision);
+  }
+
+  @Override
+  public boolean test(RevisionId<NodeAttributeValueId> key,
+      Tuple2<RevisionType, StrictLangValue> value) {
+    return nodeIds.contains(key.getId().getNodeId())
+        && key.getRevision() >= since
+        && key.getRevision() <= revision
+        && value._1 != RevisionType.DELETE;
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    ParametrizedSqlQuery nodeIdsIn =
+        sqlNodeIdsIn("node_graph_id", "node_type_id", "node_id", nodeIds);
+
+    List<Object> parameters = new ArrayList<>(asList(nodeIdsIn.getQueryParameters()));
+    parameters.add(since);
+    parameters.add(revision);
+
+    return ParametrizedSqlQuery.of("(" + nodeIdsIn.getQueryTemplate() + ") "
+            + "and revision >= ? and revision_type <> 'DELETE' "
+            + "and revision = (select max(r.revision) from node_text_attribute_value_aud r "
+            + "where r.node_graph_id = node_text_attribute_value_aud.node_graph_id "
+            + "and r.node_type_id = node_text_attribute_value_aud.node_type_id "
+            + "and r.node_id = node_text_attribute_value_aud.node_id "
+            + "and r.attribute_id = node_text_attribute_value_aud.attribute_id "
+            + "and r.index = node_text_attribute_value_aud.index "
+            + "and r.revision <= ?)",
+        parameters.toArray());
+  }
+
+}
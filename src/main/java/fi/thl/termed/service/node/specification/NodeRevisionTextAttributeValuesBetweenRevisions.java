@@ -0,0 +1,63 @@
+package fi.thl.termed.service.node.specification;
+
+import static fi.thl.termed.service.node.specification.NodesByNodeIds.sqlNodeIdsIn;
+import static java.util.Arrays.asList;
+
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.domain.NodeAttributeValueId;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
+import fi.thl.termed.domain.StrictLangValue;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Accepts all revisions (deleted too) of each value of given nodes between given revisions
+ * inclusive. Useful for reading values of several revisions of the same nodes at once.
+ */
+public class NodeRevisionTextAttributeValuesBetweenRevisions extends
+    AbstractSqlSpecification<RevisionId<NodeAttributeValueId>, Tuple2<RevisionType, StrictLangValue>> {
+
+  private ImmutableSet<NodeId> nodeIds;
+  private Long since;
+  private Long until;
+
+  public NodeRevisionTextAttributeValuesBetweenRevisions(Collection<NodeId> nodeIds, Long since,
+      Long until) {
+    this.nodeIds = ImmutableSet.copyOf(nodeIds);
+    this.since = since;
+    this.until = until;
+  }
+
+  public static NodeRevisionTextAttributeValuesBetweenRevisions of(
+      Collection<NodeId> nodeIds, Long since, Long until) {
+    return new NodeRevisionTextAttributeValuesBetweenRevisions(nodeIds, since, until);
+  }
+
+  @Override
+  public boolean test(RevisionId<NodeAttributeValueId> key,
+      Tuple2<RevisionType, StrictLangValue> value) {
+    return nodeIds.contains(key.getId().getNodeId())
+        && key.getRevision() >= since
+        && key.getRevision() <= until;
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    ParametrizedSqlQuery nodeIdsIn =
+        sqlNodeIdsIn("node_graph_id", "node_type_id", "node_id", nodeIds);
+
+    List<Object> parameters = new ArrayList<>(asList(nodeIdsIn.getQueryParameters()));
+    parameters.add(since);
+    parameters.add(until);
+
+    return ParametrizedSqlQuery.of("(" + nodeIdsIn.getQueryTemplate() + ") "
+        + "and revision >= ? and revision <= ?", parameters.toArray());
+  }
+
+}
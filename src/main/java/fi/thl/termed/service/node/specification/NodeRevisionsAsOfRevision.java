@@ -0,0 +1,48 @@
+package fi.thl.termed.service.node.specification;
+
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+
+/**
+ * Accepts the latest revision of each node that is less or equal to given revision i.e. the state
+ * of nodes as of given revision. Deleted nodes are accepted too, use together with e.g. {@link
+ * NodeRevisionsByRevisionType} to skip them. Node revision service reads only rows since the
+ * nearest checkpoint, so nodes deleted before the checkpoint are not accepted there. Selecting the
+ * latest revision is done in SQL, row wise test can check only the upper bound.
+ */
+public class NodeRevisionsAsOfRevision extends
+    AbstractSqlSpecification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> {
+
+  private Long revision;
+
+  public NodeRevisionsAsOfRevision(Long revision) {
+    this.revision = revision;
+  }
+
+  public static NodeRevisionsAsOfRevision of(Long revision) {
+    return new NodeRevisionsAsOfRevision(revision);
+  }
+
+  public Long getRevision() {
+    return revision;
+  }
+
+  @Override
+  public boolean test(RevisionId<NodeId> key, Tuple2<RevisionType, Node> value) {
+    return key.getRevision() <= revision;
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return ParametrizedSqlQuery.of("revision = (select max(r.revision) from node_aud r "
+            + "where r.graph_id = node_aud.graph_id and r.type_id = node_aud.type_id "
+            + "and r.id = node_aud.id and r.revision <= ?)",
+        revision);
+  }
+
+}
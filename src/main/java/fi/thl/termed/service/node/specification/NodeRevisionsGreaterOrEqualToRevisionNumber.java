@@ -0,0 +1,34 @@
+package fi.thl.termed.service.node.specification;
+
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+
+public class NodeRevisionsGreaterOrEqualToRevisionNumber extends
+    AbstractSqlSpecification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> {
+
+  private Long revision;
+
+  public NodeRevisionsGreaterOrEqualToRevisionNumber(Long revision) {
+    this.revision = revision;
+  }
+
+  public static NodeRevisionsGreaterOrEqualToRevisionNumber of(Long revision) {
+    return new NodeRevisionsGreaterOrEqualToRevisionNumber(revision);
+  }
+
+  @Override
+  public boolean test(RevisionId<NodeId> key, Tuple2<RevisionType, Node> value) {
+    return key.getRevision() >= revision;
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return ParametrizedSqlQuery.of("revision >= ?", revision);
+  }
+
+}
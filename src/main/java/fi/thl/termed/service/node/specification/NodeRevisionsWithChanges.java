@@ -0,0 +1,43 @@
+package fi.thl.termed.service.node.specification;
+
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+
+/**
+ * Accepts node revision rows that change the node. Update rows are written for each save, an
+ * update is a change only if it has attribute value revisions or if code or uri differs from the
+ * previous revision of the node. This matches nodes collected as updated when the write is done.
+ * Row wise test can't see other revisions and accepts all.
+ */
+public class NodeRevisionsWithChanges extends
+    AbstractSqlSpecification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> {
+
+  @Override
+  public boolean test(RevisionId<NodeId> revisionId, Tuple2<RevisionType, Node> revision) {
+    return true;
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return ParametrizedSqlQuery.of("(revision_type <> 'UPDATE' "
+        + "or exists (select 1 from node_text_attribute_value_aud t "
+        + "where t.node_graph_id = node_aud.graph_id and t.node_type_id = node_aud.type_id "
+        + "and t.node_id = node_aud.id and t.revision = node_aud.revision) "
+        + "or exists (select 1 from node_reference_attribute_value_aud v "
+        + "where v.node_graph_id = node_aud.graph_id and v.node_type_id = node_aud.type_id "
+        + "and v.node_id = node_aud.id and v.revision = node_aud.revision) "
+        + "or not exists (select 1 from node_aud p "
+        + "where p.graph_id = node_aud.graph_id and p.type_id = node_aud.type_id "
+        + "and p.id = node_aud.id and p.revision = (select max(r.revision) from node_aud r "
+        + "where r.graph_id = node_aud.graph_id and r.type_id = node_aud.type_id "
+        + "and r.id = node_aud.id and r.revision < node_aud.revision) "
+        + "and coalesce(p.code, '') = coalesce(node_aud.code, '') "
+        + "and coalesce(p.uri, '') = coalesce(node_aud.uri, '')))");
+  }
+
+}
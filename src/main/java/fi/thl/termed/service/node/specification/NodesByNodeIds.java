@@ -0,0 +1,117 @@
+package fi.thl.termed.service.node.specification;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static fi.thl.termed.util.index.lucene.LuceneConstants.DOCUMENT_ID;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.util.query.LuceneSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+import fi.thl.termed.util.query.SqlSpecification;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Accepts nodes with any of the given ids. Used to load a batch of nodes with one query.
+ */
+public class NodesByNodeIds
+    implements LuceneSpecification<NodeId, Node>, SqlSpecification<NodeId, Node> {
+
+  private final ImmutableSet<NodeId> nodeIds;
+
+  public NodesByNodeIds(Collection<NodeId> nodeIds) {
+    this.nodeIds = ImmutableSet.copyOf(nodeIds);
+  }
+
+  public static NodesByNodeIds of(Collection<NodeId> nodeIds) {
+    return new NodesByNodeIds(nodeIds);
+  }
+
+  public ImmutableSet<NodeId> getNodeIds() {
+    return nodeIds;
+  }
+
+  @Override
+  public boolean test(NodeId nodeId, Node node) {
+    Preconditions.checkArgument(Objects.equals(nodeId, new NodeId(node)));
+    return nodeIds.contains(nodeId);
+  }
+
+  @Override
+  public Query luceneQuery() {
+    return new TermInSetQuery(DOCUMENT_ID, nodeIds.stream()
+        .map(id -> new BytesRef(id.toString()))
+        .collect(toImmutableSet()));
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return sqlNodeIdsIn("graph_id", "type_id", "id", nodeIds);
+  }
+
+  /**
+   * Builds an SQL condition matching given node ids in given columns. Ids are grouped by type so
+   * that each type is matched with one IN-clause, e.g. "(graph_id = ? and type_id = ? and id in
+   * (?, ?))".
+   */
+  public static ParametrizedSqlQuery sqlNodeIdsIn(String graphIdColumn, String typeIdColumn,
+      String idColumn, Collection<NodeId> nodeIds) {
+    if (nodeIds.isEmpty()) {
+      return ParametrizedSqlQuery.of("1 = 0");
+    }
+
+    Map<TypeId, List<NodeId>> nodeIdsByType = nodeIds.stream()
+        .collect(groupingBy(NodeId::getType, LinkedHashMap::new, toList()));
+
+    StringJoiner template = new StringJoiner(" or ");
+    List<Object> parameters = new ArrayList<>();
+
+    nodeIdsByType.forEach((type, ids) -> {
+      template.add(String.format("(%s = ? and %s = ? and %s in (%s))",
+          graphIdColumn, typeIdColumn, idColumn,
+          ids.stream().map(id -> "?").collect(joining(", "))));
+      parameters.add(type.getGraphId());
+      parameters.add(type.getId());
+      ids.forEach(id -> parameters.add(id.getId()));
+    });
+
+    return ParametrizedSqlQuery.of(template.toString(), parameters.toArray());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    NodesByNodeIds that = (NodesByNodeIds) o;
+    return Objects.equals(nodeIds, that.nodeIds);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(nodeIds);
+  }
+
+  @Override
+  public String toString() {
+    return "nodeId in " + nodeIds;
+  }
+
+}
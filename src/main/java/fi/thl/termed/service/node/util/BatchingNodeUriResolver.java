@@ -0,0 +1,93 @@
+package fi.thl.termed.service.node.util;
+
+import static com.google.common.collect.Iterables.partition;
+import static java.util.Collections.singletonList;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.query.Selects;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Resolves node URIs. URIs of nodes referenced from a list of nodes can be preloaded with one query
+ * per batch instead of loading each referenced node separately when its URI is needed. Only ids
+ * and URIs of nodes are loaded.
+ */
+public class BatchingNodeUriResolver implements Function<NodeId, Optional<String>> {
+
+  private static final int BATCH_SIZE = 1000;
+  private static final int CACHE_SIZE = 100_000;
+
+  private static final List<Select> ID_AND_URI_SELECTS = ImmutableList.of(
+      Selects.field("id"),
+      Selects.field("type.id"),
+      Selects.field("type.graph.id"),
+      Selects.field("uri"));
+
+  private final Function<Query<NodeId, Node>, Stream<Node>> nodeProvider;
+  private final Cache<NodeId, Optional<String>> uris =
+      CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+  public BatchingNodeUriResolver(Function<Query<NodeId, Node>, Stream<Node>> nodeProvider) {
+    this.nodeProvider = nodeProvider;
+  }
+
+  /**
+   * Caches URIs of given nodes. Given nodes are expected to be loaded with their URIs.
+   */
+  public void addAll(List<Node> nodes) {
+    nodes.forEach(node -> uris.put(node.identifier(), node.getUri()));
+  }
+
+  /**
+   * Loads URIs of given nodes and nodes they refer to, if not already cached.
+   */
+  public void preload(List<Node> nodes) {
+    Set<NodeId> missingIds = new LinkedHashSet<>();
+
+    nodes.forEach(node -> {
+      missingIds.add(node.identifier());
+      missingIds.addAll(node.getReferences().values());
+    });
+    missingIds.removeIf(id -> uris.getIfPresent(id) != null);
+
+    for (List<NodeId> batch : partition(missingIds, BATCH_SIZE)) {
+      load(batch);
+    }
+  }
+
+  @Override
+  public Optional<String> apply(NodeId nodeId) {
+    Optional<String> uri = uris.getIfPresent(nodeId);
+    return uri != null ? uri : load(singletonList(nodeId));
+  }
+
+  // returns uri of the first given id
+  private Optional<String> load(List<NodeId> ids) {
+    try (Stream<Node> nodes = nodeProvider.apply(
+        new Query<>(ID_AND_URI_SELECTS, NodesByNodeIds.of(ids)))) {
+      nodes.forEach(node -> uris.put(node.identifier(), node.getUri()));
+    }
+
+    // ids of nodes not found are cached too, they are given default uris
+    ids.forEach(id -> {
+      if (uris.getIfPresent(id) == null) {
+        uris.put(id, Optional.empty());
+      }
+    });
+
+    return Optional.ofNullable(uris.getIfPresent(ids.get(0))).orElse(Optional.empty());
+  }
+
+}
@@ -2,18 +2,24 @@ package fi.thl.termed.service.node.util;
 
 import static com.google.common.base.Strings.emptyToNull;
 import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.collect.Iterables.partition;
 import static fi.thl.termed.util.RegularExpressions.CODE;
 import static fi.thl.termed.util.RegularExpressions.IETF_LANGUAGE_TAG;
 import static fi.thl.termed.util.UUIDs.fromString;
 import static fi.thl.termed.util.UUIDs.nilUuid;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
 import static fi.thl.termed.util.query.AndSpecification.and;
+import static fi.thl.termed.util.query.OrSpecification.or;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Streams;
 import com.opencsv.CSVParserBuilder;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVReaderBuilder;
@@ -22,23 +28,36 @@ import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.ReferenceAttribute;
 import fi.thl.termed.domain.StrictLangValue;
+import fi.thl.termed.domain.TextAttributeId;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.service.node.select.SelectId;
+import fi.thl.termed.service.node.select.SelectType;
+import fi.thl.termed.service.node.select.SelectTypeQualifiedProperty;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.service.node.specification.NodesByPropertyString;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
-import fi.thl.termed.util.TableUtils;
 import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.csv.CsvOptions;
 import fi.thl.termed.util.csv.CsvUtils;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -47,7 +66,9 @@ import java.util.stream.Stream;
 import org.apache.jena.atlas.RuntimeIOException;
 
 /**
- * Import nodes from CSV
+ * Import nodes from CSV. CSV header is compiled once into a column plan that is then applied to
+ * each row. References given by property values (e.g. r.knows.p.name) are resolved in batches of
+ * rows with one query per referenced type and property.
  */
 public final class CsvToNodes {
 
@@ -61,114 +82,175 @@ public final class CsvToNodes {
 
   private static final TypeId unknownTypeId = TypeId.of("", nilUuid());
 
+  private static final int BATCH_SIZE = 500;
+  private static final int MAX_VALUES_PER_QUERY = 500;
+
   private Map<TypeId, Map<String, TypeId>> typeReferenceAttributeRangeIndex;
-  private Function<Specification<NodeId, Node>, Optional<NodeId>> referenceIdResolver;
+  private Function<Query<NodeId, Node>, Stream<Node>> referenceResolver;
 
   public CsvToNodes() {
-    this(emptyList(), (s) -> Optional.empty());
+    this(emptyList(), (q) -> Stream.empty());
   }
 
+  /**
+   * @param referenceResolver returns nodes matching given query, used to resolve references given
+   * by property values
+   */
   public CsvToNodes(
       List<Type> types,
-      Function<Specification<NodeId, Node>, Optional<NodeId>> referenceIdResolver) {
+      Function<Query<NodeId, Node>, Stream<Node>> referenceResolver) {
     this.typeReferenceAttributeRangeIndex = types.stream()
         .flatMap(t -> t.getReferenceAttributes().stream())
         .collect(
             groupingBy(ReferenceAttribute::getDomain,
                 toMap(ReferenceAttribute::getId, ReferenceAttribute::getRange)));
-    this.referenceIdResolver = referenceIdResolver;
+    this.referenceResolver = referenceResolver;
   }
 
   public Stream<Node> parseNodesFromCsv(GraphId graphId, CsvOptions csvOpts, InputStream in) {
-    return TableUtils.toMapped(CsvUtils.readCsv(csvOpts, in)).map(row -> mapToNode(graphId, row));
+    return parseNodesFromCsv(csvOpts, in, row -> NodeId.of(
+        MoreObjects.firstNonNull(UUIDs.fromString(row.get("id")), UUID.randomUUID()),
+        requireNonNull(row.get("type.id")),
+        graphId.getId()));
   }
 
   public Stream<Node> parseNodesFromCsv(TypeId typeId, CsvOptions csvOpts, InputStream in) {
-    return TableUtils.toMapped(CsvUtils.readCsv(csvOpts, in)).map(row -> mapToNode(typeId, row));
+    return parseNodesFromCsv(csvOpts, in, row -> NodeId.of(
+        MoreObjects.firstNonNull(UUIDs.fromString(row.get("id")), UUID.randomUUID()),
+        typeId));
   }
 
   public Stream<Node> parseNodesFromCsv(CsvOptions csvOpts, InputStream in) {
-    return TableUtils.toMapped(CsvUtils.readCsv(csvOpts, in)).map(this::mapToNode);
-  }
-
-  private Node mapToNode(GraphId graphId, Map<String, String> row) {
-    NodeId nodeId = NodeId.of(
+    return parseNodesFromCsv(csvOpts, in, row -> NodeId.of(
         MoreObjects.firstNonNull(UUIDs.fromString(row.get("id")), UUID.randomUUID()),
         requireNonNull(row.get("type.id")),
-        graphId.getId());
-    return mapToNode(nodeId, row);
+        requireNonNull(UUIDs.fromString(row.get("type.graph.id")))));
   }
 
-  private Node mapToNode(TypeId typeId, Map<String, String> row) {
-    NodeId nodeId = NodeId.of(
-        MoreObjects.firstNonNull(UUIDs.fromString(row.get("id")), UUID.randomUUID()),
-        typeId);
-    return mapToNode(nodeId, row);
+  private Stream<Node> parseNodesFromCsv(CsvOptions csvOpts, InputStream in,
+      Function<Row, NodeId> nodeIdFn) {
+    Stream<String[]> rows = CsvUtils.readCsv(csvOpts, in);
+
+    try {
+      Iterator<String[]> rowIterator = rows.iterator();
+
+      if (!rowIterator.hasNext()) {
+        rows.close();
+        return Stream.empty();
+      }
+
+      ColumnPlan plan = new ColumnPlan(rowIterator.next());
+
+      Stream<Row> planned = Streams.stream(rowIterator)
+          .map(row -> new Row(plan, row))
+          .onClose(rows::close);
+
+      return partitionedMap(planned, BATCH_SIZE, batch -> mapToNodes(batch, nodeIdFn));
+    } catch (RuntimeException | Error e) {
+      rows.close();
+      throw e;
+    }
   }
 
-  private Node mapToNode(Map<String, String> row) {
-    NodeId nodeId = NodeId.of(
-        MoreObjects.firstNonNull(UUIDs.fromString(row.get("id")), UUID.randomUUID()),
-        requireNonNull(row.get("type.id")),
-        requireNonNull(UUIDs.fromString(row.get("type.graph.id"))));
-    return mapToNode(nodeId, row);
+  private Stream<Node> mapToNodes(List<Row> rows, Function<Row, NodeId> nodeIdFn) {
+    List<Tuple2<Node.Builder, List<ReferenceByProperty>>> builders = new ArrayList<>();
+    Map<PropertyOfType, Set<String>> lookups = new LinkedHashMap<>();
+
+    for (Row row : rows) {
+      NodeId nodeId = nodeIdFn.apply(row);
+      Node.Builder builder = mapToNodeWithoutResolvedReferences(nodeId, row);
+      List<ReferenceByProperty> references = new ArrayList<>();
+
+      row.plan.referencePropertyColumns.forEach(column -> {
+        TypeId attributeRangeId = typeReferenceAttributeRangeIndex
+            .getOrDefault(nodeId.getType(), emptyMap())
+            .get(column.referenceAttributeId);
+
+        String value = row.get(column);
+
+        if (attributeRangeId != null && value != null) {
+          PropertyOfType property =
+              new PropertyOfType(attributeRangeId, column.textAttributeId, column.lang);
+          List<String> values = fromInlineCsv(value);
+          lookups.computeIfAbsent(property, k -> new LinkedHashSet<>()).addAll(values);
+          references.add(new ReferenceByProperty(column.referenceAttributeId, property, values));
+        }
+      });
+
+      builders.add(Tuple.of(builder, references));
+    }
+
+    Map<PropertyOfType, Map<String, NodeId>> resolved = new HashMap<>();
+    lookups.forEach((property, values) -> resolved.put(property, resolve(property, values)));
+
+    return builders.stream().map(t -> {
+      Node.Builder builder = t._1;
+      t._2.forEach(ref -> {
+        Map<String, NodeId> resolvedValues = resolved.get(ref.property);
+        ref.values.forEach(v -> {
+          NodeId refId = resolvedValues.get(v);
+          if (refId != null) {
+            builder.addReference(ref.referenceAttributeId, refId);
+          }
+        });
+      });
+      return builder.build();
+    });
+  }
+
+  // resolves values to ids of first nodes having the value, one query per MAX_VALUES_PER_QUERY
+  private Map<String, NodeId> resolve(PropertyOfType property, Set<String> values) {
+    Map<String, NodeId> results = new HashMap<>();
+
+    for (List<String> valuesBatch : partition(values, MAX_VALUES_PER_QUERY)) {
+      Specification<NodeId, Node> spec = and(
+          new NodesByGraphId(property.typeId.getGraphId()),
+          new NodesByTypeId(property.typeId.getId()),
+          or(valuesBatch.stream()
+              .map(v -> (Specification<NodeId, Node>)
+                  new NodesByPropertyString(property.attributeId, property.lang, v))
+              .collect(toList())));
+
+      List<Select> selects = ImmutableList.of(new SelectId(), new SelectType(),
+          new SelectTypeQualifiedProperty(
+              new TextAttributeId(property.typeId, property.attributeId)));
+
+      try (Stream<Node> nodes = referenceResolver.apply(new Query<>(selects, spec))) {
+        nodes.forEach(node -> node.getProperties().get(property.attributeId).stream()
+            .filter(v -> property.lang.isEmpty() || v.getLang().equals(property.lang))
+            .map(StrictLangValue::getValue)
+            .filter(valuesBatch::contains)
+            .forEach(v -> results.putIfAbsent(v, node.identifier())));
+      }
+    }
+
+    return results;
   }
 
-  private Node mapToNode(NodeId nodeId, Map<String, String> row) {
+  private Node.Builder mapToNodeWithoutResolvedReferences(NodeId nodeId, Row row) {
     Node.Builder builder = Node.builder()
         .id(nodeId)
         .code(emptyToNull(row.get("code")))
         .uri(emptyToNull(row.get("uri")))
         .number(emptyToNull(row.get("number")) != null ? Long.valueOf(row.get("number")) : null);
 
-    row.forEach((k, vs) -> {
-      Matcher m = PROPERTY_KEY.matcher(k);
-      if (m.matches()) {
-        String attrId = m.group(2);
-        String lang = nullToEmpty(m.group(4));
-        fromInlineCsv(vs)
-            .forEach(v -> builder.addProperty(attrId, new StrictLangValue(lang, v)));
-      }
-    });
-
-    row.forEach((k, vs) -> {
-      Matcher m = REFERENCE_KEY.matcher(k);
-      if (m.matches()) {
-        String attrId = m.group(2);
-        fromInlineCsv(vs)
-            .forEach(v -> builder.addReference(attrId, NodeId.of(fromString(v), unknownTypeId)));
+    row.plan.propertyColumns.forEach(column -> {
+      String value = row.get(column);
+      if (value != null) {
+        fromInlineCsv(value).forEach(v ->
+            builder.addProperty(column.textAttributeId, new StrictLangValue(column.lang, v)));
       }
     });
 
-    // if there are cols matching REFERENCE_PROPERTY_KEY, try to resolve them to ref IDs.
-    row.forEach((k, vs) -> {
-      Matcher m = REFERENCE_PROPERTY_KEY.matcher(k);
-      if (m.matches()) {
-        String refAttrId = m.group(2);
-        String textAttrId = m.group(4);
-        String lang = nullToEmpty(m.group(6));
-
-        TypeId attributeRangeId =
-            typeReferenceAttributeRangeIndex
-                .getOrDefault(nodeId.getType(), emptyMap())
-                .get(refAttrId);
-
-        if (attributeRangeId != null) {
-          fromInlineCsv(vs).forEach(v -> {
-            Specification<NodeId, Node> refValueSpec = and(
-                new NodesByGraphId(attributeRangeId.getGraphId()),
-                new NodesByTypeId(attributeRangeId.getId()),
-                new NodesByPropertyString(textAttrId, lang, v));
-
-            Optional<NodeId> resolvedReferenceId = referenceIdResolver.apply(refValueSpec);
-
-            resolvedReferenceId.ifPresent(refId -> builder.addReference(refAttrId, refId));
-          });
-        }
+    row.plan.referenceColumns.forEach(column -> {
+      String value = row.get(column);
+      if (value != null) {
+        fromInlineCsv(value).forEach(v -> builder.addReference(
+            column.referenceAttributeId, NodeId.of(fromString(v), unknownTypeId)));
       }
     });
 
-    return builder.build();
+    return builder;
   }
 
   private List<String> fromInlineCsv(String csvRow) {
@@ -190,4 +272,141 @@ public final class CsvToNodes {
     }
   }
 
+  /**
+   * Compiled CSV header. Header keys are matched against key patterns once, rows are then read by
+   * column index.
+   */
+  private static class ColumnPlan {
+
+    private final Map<String, Column> columnsByKey = new LinkedHashMap<>();
+
+    private final List<Column> propertyColumns = new ArrayList<>();
+    private final List<Column> referenceColumns = new ArrayList<>();
+    private final List<Column> referencePropertyColumns = new ArrayList<>();
+
+    ColumnPlan(String[] headers) {
+      // as in a row map, a repeated key keeps its first position and the value of a later column
+      for (int i = 0; i < headers.length; i++) {
+        columnsByKey.computeIfAbsent(headers[i], Column::new).indexes.add(i);
+      }
+
+      columnsByKey.values().forEach(column -> {
+        Matcher m = PROPERTY_KEY.matcher(column.key);
+        if (m.matches()) {
+          column.textAttributeId = m.group(2);
+          column.lang = nullToEmpty(m.group(4));
+          propertyColumns.add(column);
+        }
+      });
+      columnsByKey.values().forEach(column -> {
+        Matcher m = REFERENCE_KEY.matcher(column.key);
+        if (m.matches()) {
+          column.referenceAttributeId = m.group(2);
+          referenceColumns.add(column);
+        }
+      });
+      columnsByKey.values().forEach(column -> {
+        Matcher m = REFERENCE_PROPERTY_KEY.matcher(column.key);
+        if (m.matches()) {
+          column.referenceAttributeId = m.group(2);
+          column.textAttributeId = m.group(4);
+          column.lang = nullToEmpty(m.group(6));
+          referencePropertyColumns.add(column);
+        }
+      });
+    }
+
+  }
+
+  private static class Column {
+
+    private final String key;
+    private final List<Integer> indexes = new ArrayList<>();
+
+    private String referenceAttributeId;
+    private String textAttributeId;
+    private String lang;
+
+    Column(String key) {
+      this.key = key;
+    }
+
+  }
+
+  private static class Row {
+
+    private final ColumnPlan plan;
+    private final String[] values;
+
+    Row(ColumnPlan plan, String[] values) {
+      this.plan = plan;
+      this.values = values;
+    }
+
+    String get(String key) {
+      Column column = plan.columnsByKey.get(key);
+      return column != null ? get(column) : null;
+    }
+
+    // value of the last column with the key that is present in this row
+    String get(Column column) {
+      for (int i = column.indexes.size() - 1; i >= 0; i--) {
+        int index = column.indexes.get(i);
+        if (index < values.length) {
+          return values[index];
+        }
+      }
+      return null;
+    }
+
+  }
+
+  private static class PropertyOfType {
+
+    private final TypeId typeId;
+    private final String attributeId;
+    private final String lang;
+
+    PropertyOfType(TypeId typeId, String attributeId, String lang) {
+      this.typeId = typeId;
+      this.attributeId = attributeId;
+      this.lang = lang;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      PropertyOfType that = (PropertyOfType) o;
+      return Objects.equals(typeId, that.typeId) &&
+          Objects.equals(attributeId, that.attributeId) &&
+          Objects.equals(lang, that.lang);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(typeId, attributeId, lang);
+    }
+
+  }
+
+  private static class ReferenceByProperty {
+
+    private final String referenceAttributeId;
+    private final PropertyOfType property;
+    private final List<String> values;
+
+    ReferenceByProperty(String referenceAttributeId, PropertyOfType property,
+        List<String> values) {
+      this.referenceAttributeId = referenceAttributeId;
+      this.property = property;
+      this.values = values;
+    }
+
+  }
+
 }
@@ -0,0 +1,72 @@
+package fi.thl.termed.service.node.util;
+
+import static fi.thl.termed.util.query.Queries.query;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+import com.google.common.collect.ImmutableList;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
+import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.query.SelectAll;
+import fi.thl.termed.util.service.Service;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+import org.dataloader.BatchLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a batch of nodes from index with one query. Nodes are returned in the order of given ids,
+ * missing nodes are returned as nulls.
+ */
+public class IndexedNodeBatchLoader implements BatchLoader<NodeId, Node> {
+
+  private static final Logger log = LoggerFactory.getLogger(IndexedNodeBatchLoader.class);
+
+  private final Service<NodeId, Node> nodeService;
+  private final User user;
+  private final List<Select> selects;
+
+  public IndexedNodeBatchLoader(Service<NodeId, Node> nodeService, User user) {
+    this(nodeService, user, ImmutableList.of(new SelectAll()));
+  }
+
+  public IndexedNodeBatchLoader(Service<NodeId, Node> nodeService, User user,
+      List<Select> selects) {
+    this.nodeService = nodeService;
+    this.user = user;
+    this.selects = selects;
+  }
+
+  @Override
+  public CompletionStage<List<Node>> load(List<NodeId> nodeIds) {
+    if (nodeIds.isEmpty()) {
+      return completedFuture(Collections.emptyList());
+    }
+
+    Map<NodeId, Node> nodes;
+
+    try (Stream<Node> results = nodeService.values(
+        query(selects, NodesByNodeIds.of(nodeIds), Collections.emptyList(), -1), user)) {
+      nodes = results.collect(toMap(Node::identifier, n -> n, (a, b) -> a));
+    }
+
+    return completedFuture(nodeIds.stream()
+        .map(id -> {
+          Node node = nodes.get(id);
+          if (node == null) {
+            log.warn("Index may be corrupted or outdated. Node {} is missing from the index.", id);
+          }
+          return node;
+        })
+        .collect(toList()));
+  }
+
+}
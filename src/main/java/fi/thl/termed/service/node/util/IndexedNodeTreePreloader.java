@@ -0,0 +1,120 @@
+package fi.thl.termed.service.node.util;
+
+import static com.google.common.collect.Iterables.partition;
+import static fi.thl.termed.util.query.Queries.query;
+import static java.util.Collections.emptyList;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableMap;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.select.NodeSelects;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.service.Service;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Loads references and referrers of node trees breadth first. All ids on one depth of a page of
+ * trees are loaded with one query and put to the cache shared with {@link IndexedReferenceLoader}
+ * and {@link IndexedReferrerLoader}, so that lazy loading trees later find their values from the
+ * cache. Expands the same attributes to the same depths as {@code DepthLimitedNodeTree}.
+ */
+public class IndexedNodeTreePreloader {
+
+  private static final int BATCH_SIZE = 1000;
+
+  private final Service<NodeId, Node> nodeService;
+  private final User user;
+  private final List<Select> selects;
+  private final Cache<NodeId, Node> cache;
+
+  private final ImmutableMap<Tuple2<TypeId, String>, Integer> maxReferenceDepths;
+  private final ImmutableMap<Tuple2<TypeId, String>, Integer> maxReferrerDepths;
+  private final boolean loadReferences;
+  private final boolean loadReferrers;
+
+  public IndexedNodeTreePreloader(Service<NodeId, Node> nodeService, User user,
+      List<Select> selects, Cache<NodeId, Node> cache) {
+    this(nodeService, user, selects, cache, true, true);
+  }
+
+  public IndexedNodeTreePreloader(Service<NodeId, Node> nodeService, User user,
+      List<Select> selects, Cache<NodeId, Node> cache,
+      boolean loadReferences, boolean loadReferrers) {
+    this.nodeService = nodeService;
+    this.user = user;
+    this.selects = selects;
+    this.cache = cache;
+    this.maxReferenceDepths = NodeSelects.toReferenceSelectsWithDepths(selects);
+    this.maxReferrerDepths = NodeSelects.toReferrerSelectsWithDepths(selects);
+    this.loadReferences = loadReferences;
+    this.loadReferrers = loadReferrers;
+  }
+
+  public void preload(List<Node> roots) {
+    Collection<Node> level = roots;
+
+    for (int depth = 0; !level.isEmpty(); depth++) {
+      Set<NodeId> ids = new LinkedHashSet<>();
+
+      for (Node node : level) {
+        if (loadReferences) {
+          collectIds(node, node.getReferences().asMap(), maxReferenceDepths, depth, ids);
+        }
+        if (loadReferrers) {
+          collectIds(node, node.getReferrers().asMap(), maxReferrerDepths, depth, ids);
+        }
+      }
+
+      level = load(ids);
+    }
+  }
+
+  private void collectIds(Node node, Map<String, Collection<NodeId>> values,
+      Map<Tuple2<TypeId, String>, Integer> maxDepths, int depth, Set<NodeId> results) {
+    values.forEach((attrId, ids) -> {
+      if (depth < maxDepths.getOrDefault(Tuple.of(node.getType(), attrId), 1)) {
+        results.addAll(ids);
+      }
+    });
+  }
+
+  private Collection<Node> load(Set<NodeId> ids) {
+    Map<NodeId, Node> nodes = new LinkedHashMap<>();
+    List<NodeId> missingIds = new ArrayList<>();
+
+    ids.forEach(id -> {
+      Node cached = cache.getIfPresent(id);
+      if (cached != null) {
+        nodes.put(id, cached);
+      } else {
+        missingIds.add(id);
+      }
+    });
+
+    for (List<NodeId> batch : partition(missingIds, BATCH_SIZE)) {
+      try (Stream<Node> results = nodeService.values(
+          query(selects, NodesByNodeIds.of(batch), emptyList(), -1), user)) {
+        results.forEach(node -> {
+          nodes.put(node.identifier(), node);
+          cache.put(node.identifier(), node);
+        });
+      }
+    }
+
+    return nodes.values();
+  }
+
+}
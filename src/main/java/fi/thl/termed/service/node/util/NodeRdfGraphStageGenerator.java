@@ -0,0 +1,119 @@
+package fi.thl.termed.service.node.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIter1;
+import org.apache.jena.sparql.engine.iterator.QueryIterTriplePattern;
+import org.apache.jena.sparql.engine.main.StageGenerator;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderLib;
+
+/**
+ * Evaluates basic graph patterns over {@link NodeRdfGraphWrapper} so that subjects bound by
+ * previous triple patterns are loaded in batches. Bindings are read in chunks and nodes for all
+ * subject URIs of a chunk are prefetched with a few queries before the pattern is matched for each
+ * binding. Patterns over other graphs are passed to the given generator.
+ */
+public class NodeRdfGraphStageGenerator implements StageGenerator {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private final StageGenerator other;
+
+  public NodeRdfGraphStageGenerator(StageGenerator other) {
+    this.other = other;
+  }
+
+  @Override
+  public QueryIterator execute(BasicPattern pattern, QueryIterator input,
+      ExecutionContext execCxt) {
+    Graph graph = execCxt.getActiveGraph();
+
+    if (!(graph instanceof NodeRdfGraphWrapper)) {
+      return other.execute(pattern, input, execCxt);
+    }
+
+    NodeRdfGraphWrapper nodeGraph = (NodeRdfGraphWrapper) graph;
+    QueryIterator chain = input;
+
+    for (Triple triple : ReorderLib.fixed().reorder(pattern)) {
+      if (triple.getSubject().isVariable()) {
+        chain = new SubjectPrefetchingIterator(chain, Var.alloc(triple.getSubject()),
+            nodeGraph, execCxt);
+      }
+      chain = new QueryIterTriplePattern(chain, triple, execCxt);
+    }
+
+    return chain;
+  }
+
+  private static class SubjectPrefetchingIterator extends QueryIter1 {
+
+    private final Var subject;
+    private final NodeRdfGraphWrapper graph;
+
+    private Iterator<Binding> chunk = Collections.emptyIterator();
+
+    SubjectPrefetchingIterator(QueryIterator input, Var subject, NodeRdfGraphWrapper graph,
+        ExecutionContext execCxt) {
+      super(input, execCxt);
+      this.subject = subject;
+      this.graph = graph;
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+      if (!chunk.hasNext() && getInput().hasNext()) {
+        readChunk();
+      }
+      return chunk.hasNext();
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+      if (!hasNextBinding()) {
+        throw new NoSuchElementException();
+      }
+      return chunk.next();
+    }
+
+    private void readChunk() {
+      List<Binding> bindings = new ArrayList<>();
+      Set<String> subjectUris = new LinkedHashSet<>();
+
+      while (bindings.size() < CHUNK_SIZE && getInput().hasNext()) {
+        Binding binding = getInput().nextBinding();
+        Node value = binding.get(subject);
+        if (value != null && value.isURI()) {
+          subjectUris.add(value.getURI());
+        }
+        bindings.add(binding);
+      }
+
+      graph.prefetchSubjects(subjectUris);
+      chunk = bindings.iterator();
+    }
+
+    @Override
+    protected void requestSubCancel() {
+    }
+
+    @Override
+    protected void closeSubIterator() {
+    }
+
+  }
+
+}
@@ -1,15 +1,24 @@
 package fi.thl.termed.service.node.util;
 
-import static fi.thl.termed.service.node.util.UriResolvers.nodeUriResolver;
+import static com.google.common.collect.Iterables.partition;
 import static fi.thl.termed.service.node.util.UriResolvers.refAttrUriResolver;
 import static fi.thl.termed.service.node.util.UriResolvers.textAttrUriResolver;
 import static fi.thl.termed.service.node.util.UriResolvers.typeUriResolver;
-import static fi.thl.termed.util.collect.StreamUtils.findFirstAndClose;
+import static fi.thl.termed.util.RegularExpressions.CODE;
+import static fi.thl.termed.util.RegularExpressions.IETF_LANGUAGE_TAG;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
+import static fi.thl.termed.util.collect.StreamUtils.toListAndClose;
 import static fi.thl.termed.util.query.AndSpecification.and;
 import static fi.thl.termed.util.query.OrSpecification.or;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toCollection;
 import static java.util.stream.Collectors.toList;
 import static org.apache.jena.graph.Node.ANY;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.domain.DefaultUris;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.ReferenceAttribute;
@@ -18,21 +27,30 @@ import fi.thl.termed.domain.TextAttribute;
 import fi.thl.termed.domain.TextAttributeId;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.service.node.specification.NodesByCode;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.service.node.specification.NodesById;
 import fi.thl.termed.service.node.specification.NodesByPropertyString;
 import fi.thl.termed.service.node.specification.NodesByReference;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
 import fi.thl.termed.service.node.specification.NodesByUri;
+import fi.thl.termed.service.node.specification.NodesWithProperty;
+import fi.thl.termed.service.node.specification.NodesWithReferences;
 import fi.thl.termed.util.RegularExpressions;
 import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Specification;
+import fi.thl.termed.util.rdf.RdfStatementSink;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import org.apache.jena.graph.Triple;
@@ -46,21 +64,42 @@ import org.slf4j.LoggerFactory;
 
 public class NodeRdfGraphWrapper extends GraphBase {
 
+  private static final int BATCH_SIZE = 1000;
+  private static final int MAX_VALUES_PER_QUERY = 500;
+  private static final int SUBJECT_CACHE_SIZE = 10_000;
+
+  // termed properties written for each node by NodeToTriples
+  private static final ImmutableSet<String> TERMED_PROPERTIES = ImmutableSet.of(
+      "id", "type", "graph", "uri", "code", "number",
+      "createdBy", "createdDate", "lastModifiedBy", "lastModifiedDate");
+
+  // termed properties that can be searched by value from the index
+  private static final ImmutableSet<String> INDEXED_TERMED_PROPERTIES =
+      ImmutableSet.of("id", "uri", "code");
+
   private Logger log = LoggerFactory.getLogger(getClass());
 
-  private Function<Specification<NodeId, Node>, Stream<Node>> nodeProvider;
+  private String defaultNamespace;
+  private Function<Query<NodeId, Node>, Stream<Node>> nodeProvider;
+
+  // termed property ids by property uri
+  private Map<String, String> termedProperties = new HashMap<>();
 
   // caches
   private Map<TypeId, Type> types = new HashMap<>();
   private Map<TextAttributeId, TextAttribute> textAttributes = new HashMap<>();
   private Map<ReferenceAttributeId, ReferenceAttribute> referenceAttributes = new HashMap<>();
 
-  private Function<Node, List<Triple>> toTriples;
+  private Cache<String, List<Node>> subjects =
+      CacheBuilder.newBuilder().maximumSize(SUBJECT_CACHE_SIZE).build();
+
+  private BatchingNodeUriResolver nodeUriResolver;
+  private NodeToTriples toTriples;
 
   public NodeRdfGraphWrapper(
       String defaultNamespace,
       List<Type> typeList,
-      Function<Specification<NodeId, Node>, Stream<Node>> nodeProvider) {
+      Function<Query<NodeId, Node>, Stream<Node>> nodeProvider) {
 
     typeList.forEach(type -> {
       types.put(type.identifier(), type);
@@ -68,22 +107,54 @@ public class NodeRdfGraphWrapper extends GraphBase {
       type.getReferenceAttributes().forEach(a -> referenceAttributes.put(a.identifier(), a));
     });
 
+    TERMED_PROPERTIES.forEach(propertyId ->
+        termedProperties.put(DefaultUris.propertyUri(defaultNamespace, propertyId), propertyId));
+
+    this.defaultNamespace = defaultNamespace;
     this.nodeProvider = nodeProvider;
 
     Function<TypeId, Optional<Type>> getType = id -> typeList.stream()
         .filter(t -> t.identifier().equals(id)).findFirst();
-    Function<NodeId, Optional<Node>> getNode = nodeId ->
-        findFirstAndClose(nodeProvider.apply(and(
-            new NodesByGraphId(nodeId.getTypeGraphId()),
-            new NodesByTypeId(nodeId.getTypeId()),
-            new NodesById(nodeId.getId()))));
 
+    this.nodeUriResolver = new BatchingNodeUriResolver(nodeProvider);
     this.toTriples = new NodeToTriples(
         defaultNamespace,
         typeUriResolver(getType),
         textAttrUriResolver(getType),
         refAttrUriResolver(getType),
-        nodeUriResolver(getNode));
+        nodeUriResolver);
+  }
+
+  /**
+   * Writes all nodes of the graph as statements to given sink. Nodes are converted in batches so
+   * that URIs of referenced nodes are loaded with one query per batch.
+   */
+  public void writeAll(RdfStatementSink sink) {
+    try (Stream<Node> nodes = findAllNodes()) {
+      partitionedMap(nodes, BATCH_SIZE, this::preloadUris)
+          .forEach(node -> toTriples.apply(node, sink));
+    }
+  }
+
+  private Stream<Node> preloadUris(List<Node> nodes) {
+    nodeUriResolver.addAll(nodes);
+    nodeUriResolver.preload(nodes);
+    return nodes.stream();
+  }
+
+  /**
+   * Loads nodes for given subject URIs with one query per batch. Loaded nodes are cached so that
+   * subsequent finds with these subjects (e.g. for each binding of a basic graph pattern) do not
+   * query nodes again.
+   */
+  public void prefetchSubjects(Collection<String> subjectUris) {
+    Set<String> missingUris = subjectUris.stream()
+        .filter(uri -> subjects.getIfPresent(uri) == null)
+        .collect(toCollection(LinkedHashSet::new));
+
+    for (List<String> batch : partition(missingUris, MAX_VALUES_PER_QUERY)) {
+      loadSubjects(batch);
+    }
   }
 
   @Override
@@ -99,23 +170,38 @@ public class NodeRdfGraphWrapper extends GraphBase {
     if (!subject.isURI() && !subject.equals(ANY)) {
       return WrappedIterator.emptyIterator();
     }
+    if (!predicate.isURI() && !predicate.equals(ANY)) {
+      return WrappedIterator.emptyIterator();
+    }
 
     if (subject.isURI()) {
       return findBySubject(subject.getURI()).filterKeep(match::matches);
     }
 
-    if (predicate.equals(RDF.type.asNode()) && object.isURI()) {
-      return findByType(object.getURI()).filterKeep(match::matches);
+    String predicateUri = predicate.isURI() ? predicate.getURI() : null;
+
+    if (RDF.type.getURI().equals(predicateUri)) {
+      return object.isURI()
+          ? findByType(object.getURI()).filterKeep(match::matches)
+          : findAll().filterKeep(match::matches);
     }
 
     if (object.isURI()) {
-      String predicateUri = predicate.isURI() ? predicate.getURI() : null;
-      return findByObject(predicateUri, object.getURI()).filterKeep(match::matches);
+      ExtendedIterator<Triple> triples = findByObject(predicateUri, object.getURI());
+      if (predicateUri == null) {
+        triples = triples.andThen(findByType(object.getURI()));
+      }
+      return triples.filterKeep(match::matches);
     }
 
     if (object.isLiteral()) {
-      String predicateUri = predicate.isURI() ? predicate.getURI() : null;
-      return findByLiteral(predicateUri, object.getLiteralLexicalForm()).filterKeep(match::matches);
+      return findByLiteral(predicateUri,
+          object.getLiteralLanguage(),
+          object.getLiteralLexicalForm()).filterKeep(match::matches);
+    }
+
+    if (predicateUri != null) {
+      return findByPredicate(predicateUri).filterKeep(match::matches);
     }
 
     if (log.isTraceEnabled()) {
@@ -130,14 +216,43 @@ public class NodeRdfGraphWrapper extends GraphBase {
   }
 
   private ExtendedIterator<Triple> findBySubject(String subjectUri) {
-    Specification<NodeId, Node> nodeSpec = or(types.values().stream()
-        .map(type -> and(
-            new NodesByGraphId(type.getGraphId()),
-            new NodesByTypeId(type.getId()),
-            byUriOrId(subjectUri)))
+    List<Node> nodes = subjects.getIfPresent(subjectUri);
+
+    if (nodes == null) {
+      nodes = loadSubjects(singletonList(subjectUri)).get(subjectUri);
+    }
+
+    return nodeStreamToTriples(nodes.stream());
+  }
+
+  private Map<String, List<Node>> loadSubjects(List<String> subjectUris) {
+    Specification<NodeId, Node> byUris = or(subjectUris.stream()
+        .map(this::byUriOrId)
         .collect(toList()));
 
-    return nodeStreamToTriples(nodeProvider.apply(nodeSpec));
+    Map<String, List<Node>> results = new HashMap<>();
+    subjectUris.forEach(uri -> results.put(uri, new ArrayList<>()));
+
+    try (Stream<Node> nodes = nodeProvider.apply(new Query<>(byTypes(types.values(), byUris)))) {
+      nodes.forEach(node -> Stream.of(node.getUri().orElse(null), "urn:uuid:" + node.getId())
+          .distinct()
+          .map(results::get)
+          .filter(Objects::nonNull)
+          .forEach(list -> list.add(node)));
+    }
+
+    List<Node> loaded = results.values().stream()
+        .flatMap(List::stream)
+        .distinct()
+        .collect(toList());
+
+    // preload uris of referenced nodes here as found subjects are converted one by one later
+    nodeUriResolver.addAll(loaded);
+    nodeUriResolver.preload(loaded);
+
+    subjects.putAll(results);
+
+    return results;
   }
 
   private Specification<NodeId, fi.thl.termed.domain.Node> byUriOrId(String nodeUri) {
@@ -147,68 +262,163 @@ public class NodeRdfGraphWrapper extends GraphBase {
   }
 
   private ExtendedIterator<Triple> findByType(String typeUri) {
-    Optional<TypeId> typeOptional = types.values().stream()
-        .filter(type -> Objects.equals(type.getUri().orElse(null), typeUri))
-        .map(Type::identifier).findFirst();
+    List<Type> matchingTypes = types.values().stream()
+        .filter(type -> Objects.equals(typeUri(type), typeUri))
+        .collect(toList());
 
-    if (!typeOptional.isPresent()) {
+    if (matchingTypes.isEmpty()) {
       return WrappedIterator.emptyIterator();
     }
 
-    Specification<NodeId, Node> nodeSpec = and(
-        new NodesByGraphId(typeOptional.get().getGraphId()),
-        new NodesByTypeId(typeOptional.get().getId()));
-
-    return nodeStreamToTriples(nodeProvider.apply(nodeSpec));
+    return nodeStreamToTriples(nodeProvider.apply(new Query<>(byTypes(matchingTypes))));
   }
 
   // predicateUri can be null
   private ExtendedIterator<Triple> findByObject(String predicateUri, String valueUri) {
-    Optional<NodeId> valueOptional = findFirstAndClose(nodeProvider.apply(byUriOrId(valueUri)))
-        .map(NodeId::new);
+    List<ReferenceAttribute> matchingAttributes = referenceAttributes.values().stream()
+        .filter(refAttr -> predicateUri == null || refAttrUri(refAttr).equals(predicateUri))
+        .collect(toList());
 
-    if (!valueOptional.isPresent()) {
+    if (matchingAttributes.isEmpty()) {
       return WrappedIterator.emptyIterator();
     }
 
-    Specification<NodeId, Node> nodeSpec = or(referenceAttributes.values().stream()
-        .filter(refAttr -> predicateUri == null ||
-            Objects.equals(refAttr.getUri().orElse(null), predicateUri))
-        .map(refAttr -> and(
+    List<NodeId> values = toListAndClose(
+        nodeProvider.apply(new Query<>(byUriOrId(valueUri))).map(NodeId::new));
+
+    List<Specification<NodeId, Node>> specs = new ArrayList<>();
+
+    matchingAttributes.forEach(refAttr -> values.stream()
+        .filter(value -> value.getType().equals(refAttr.getRange()))
+        .forEach(value -> specs.add(and(
             new NodesByGraphId(refAttr.getDomainGraphId()),
             new NodesByTypeId(refAttr.getDomainId()),
-            new NodesByReference(refAttr.getId(), valueOptional.get().getId())))
-        .collect(toList()));
+            new NodesByReference(refAttr.getId(), value.getId())))));
 
-    return nodeStreamToTriples(nodeProvider.apply(nodeSpec));
+    return findBySpecifications(specs);
   }
 
   // predicateUri can be null
-  private ExtendedIterator<Triple> findByLiteral(String predicateUri, String value) {
-    Specification<NodeId, Node> nodeSpec = or(textAttributes.values().stream()
-        .filter(textAttr -> predicateUri == null ||
-            Objects.equals(textAttr.getUri().orElse(null), predicateUri))
-        .map(textAttr -> and(
+  private ExtendedIterator<Triple> findByLiteral(String predicateUri, String lang, String value) {
+    String termedPropertyId = predicateUri != null ? termedProperties.get(predicateUri) : null;
+
+    if (termedPropertyId != null && !INDEXED_TERMED_PROPERTIES.contains(termedPropertyId)) {
+      return findAll();
+    }
+
+    // lang that is not valid for nodes matches nothing, such values are filtered out afterwards
+    String propertyLang = lang.matches(IETF_LANGUAGE_TAG) ? lang : "";
+
+    List<Specification<NodeId, Node>> specs = new ArrayList<>();
+
+    textAttributes.values().stream()
+        .filter(textAttr -> predicateUri == null || textAttrUri(textAttr).equals(predicateUri))
+        .forEach(textAttr -> specs.add(and(
             new NodesByGraphId(textAttr.getDomainGraphId()),
             new NodesByTypeId(textAttr.getDomainId()),
-            new NodesByPropertyString(textAttr.getId(), value)))
-        .collect(toList()));
+            new NodesByPropertyString(textAttr.getId(), propertyLang, value))));
+
+    if (lang.isEmpty() && (predicateUri == null || termedPropertyId != null)) {
+      List<Specification<NodeId, Node>> termedSpecs = new ArrayList<>();
+
+      if (matchesTermedProperty(termedPropertyId, "id") && value.matches(RegularExpressions.UUID)) {
+        termedSpecs.add(new NodesById(UUIDs.fromString(value)));
+      }
+      if (matchesTermedProperty(termedPropertyId, "uri")) {
+        termedSpecs.add(new NodesByUri(value));
+      }
+      if (matchesTermedProperty(termedPropertyId, "code") && value.matches(CODE)) {
+        termedSpecs.add(new NodesByCode(value));
+      }
 
-    return nodeStreamToTriples(nodeProvider.apply(nodeSpec));
+      if (!termedSpecs.isEmpty()) {
+        specs.add(byTypes(types.values(), or(termedSpecs)));
+      }
+    }
+
+    return findBySpecifications(specs);
   }
 
-  private ExtendedIterator<Triple> findAll() {
-    Specification<NodeId, Node> nodeSpec = or(types.values().stream()
+  // termedPropertyId is null if predicate is not bound
+  private boolean matchesTermedProperty(String termedPropertyId, String propertyId) {
+    return termedPropertyId == null || termedPropertyId.equals(propertyId);
+  }
+
+  private ExtendedIterator<Triple> findByPredicate(String predicateUri) {
+    if (termedProperties.containsKey(predicateUri)) {
+      return findAll();
+    }
+
+    List<Specification<NodeId, Node>> specs = new ArrayList<>();
+
+    textAttributes.values().stream()
+        .filter(textAttr -> textAttrUri(textAttr).equals(predicateUri))
+        .forEach(textAttr -> specs.add(and(
+            new NodesByGraphId(textAttr.getDomainGraphId()),
+            new NodesByTypeId(textAttr.getDomainId()),
+            new NodesWithProperty(textAttr.getId()))));
+
+    referenceAttributes.values().stream()
+        .filter(refAttr -> refAttrUri(refAttr).equals(predicateUri))
+        .forEach(refAttr -> specs.add(and(
+            new NodesByGraphId(refAttr.getDomainGraphId()),
+            new NodesByTypeId(refAttr.getDomainId()),
+            new NodesWithReferences(refAttr.getId()))));
+
+    return findBySpecifications(specs);
+  }
+
+  private ExtendedIterator<Triple> findBySpecifications(
+      List<Specification<NodeId, Node>> specs) {
+    return specs.isEmpty()
+        ? WrappedIterator.emptyIterator()
+        : nodeStreamToTriples(nodeProvider.apply(new Query<>(or(specs))));
+  }
+
+  private Specification<NodeId, Node> byTypes(Collection<Type> types) {
+    return or(types.stream()
         .map(type -> and(
             new NodesByGraphId(type.getGraphId()),
             new NodesByTypeId(type.getId())))
         .collect(toList()));
+  }
+
+  private Specification<NodeId, Node> byTypes(Collection<Type> types,
+      Specification<NodeId, Node> spec) {
+    return or(types.stream()
+        .map(type -> and(
+            new NodesByGraphId(type.getGraphId()),
+            new NodesByTypeId(type.getId()),
+            spec))
+        .collect(toList()));
+  }
+
+  // uris as given to triples by NodeToTriples
+
+  private String typeUri(Type type) {
+    return type.getUri().orElse(DefaultUris.uri(defaultNamespace, type.identifier()));
+  }
+
+  private String textAttrUri(TextAttribute textAttr) {
+    return textAttr.getUri().orElse(DefaultUris.uri(defaultNamespace, textAttr.identifier()));
+  }
+
+  private String refAttrUri(ReferenceAttribute refAttr) {
+    return refAttr.getUri().orElse(DefaultUris.uri(defaultNamespace, refAttr.identifier()));
+  }
+
+  private ExtendedIterator<Triple> findAll() {
+    return nodeStreamToTriples(findAllNodes());
+  }
 
-    return nodeStreamToTriples(nodeProvider.apply(nodeSpec));
+  private Stream<Node> findAllNodes() {
+    return nodeProvider.apply(new Query<>(byTypes(types.values())));
   }
 
-  private ExtendedIterator<Triple> nodeStreamToTriples(Stream<Node> stream) {
-    Iterator<Triple> streamIterator = stream.flatMap(n -> toTriples.apply(n).stream()).iterator();
+  private ExtendedIterator<Triple> nodeStreamToTriples(Stream<Node> nodes) {
+    Stream<Triple> stream = partitionedMap(nodes, BATCH_SIZE, this::preloadUris)
+        .flatMap(n -> toTriples.apply(n).stream());
+    Iterator<Triple> streamIterator = stream.iterator();
 
     ClosableIterator<Triple> closableStreamIterator = new ClosableIterator<Triple>() {
       @Override
@@ -14,6 +14,7 @@ import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.ReferenceAttributeId;
 import fi.thl.termed.domain.TextAttributeId;
 import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.util.rdf.RdfStatementSink;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -28,7 +29,7 @@ public class NodeToTriples implements Function<Node, List<Triple>> {
   private Function<TextAttributeId, String> textAttrResolver;
   private Function<ReferenceAttributeId, String> refAttrResolver;
   private Function<NodeId, String> nodeResolver;
-  private Function<String, org.apache.jena.graph.Node> createProperty;
+  private Function<String, String> termedProperty;
 
   public NodeToTriples(
       String ns,
@@ -42,52 +43,71 @@ public class NodeToTriples implements Function<Node, List<Triple>> {
     this.textAttrResolver = memoize(id -> textAttrUris.apply(id).orElse(uri(ns, id)));
     this.refAttrResolver = memoize(id -> refAttrUris.apply(id).orElse(uri(ns, id)));
     this.nodeResolver = memoizeSoft(id -> nodeUris.apply(id).orElse(uri(ns, id)));
-    this.createProperty = memoize(
-        (propertyId) -> createURI(propertyUri(defaultNamespace, propertyId)));
+    this.termedProperty = memoize(propertyId -> propertyUri(defaultNamespace, propertyId));
   }
 
   @Override
   public List<Triple> apply(Node node) {
     List<Triple> triples = new ArrayList<>();
 
-    org.apache.jena.graph.Node subject = createURI(nodeResolver.apply(node.identifier()));
+    apply(node, new RdfStatementSink() {
+      @Override
+      public void resource(String subjectUri, String predicateUri, String objectUri) {
+        triples.add(create(createURI(subjectUri), createURI(predicateUri), createURI(objectUri)));
+      }
 
-    triples.add(create(subject, RDF.type.asNode(), createURI(typeResolver.apply(node.getType()))));
+      @Override
+      public void literal(String subjectUri, String predicateUri, String lexicalForm,
+          String lang) {
+        triples.add(create(createURI(subjectUri), createURI(predicateUri),
+            createLiteral(lexicalForm, lang)));
+      }
+    });
 
-    triples.add(createTermedLiteral(subject, "id", node.getId().toString()));
-    triples.add(createTermedLiteral(subject, "type", node.getTypeId()));
-    triples.add(createTermedLiteral(subject, "graph", node.getTypeGraphId().toString()));
-    node.getUri().ifPresent(s -> triples.add(createTermedLiteral(subject, "uri", s)));
-    node.getCode().ifPresent(s -> triples.add(createTermedLiteral(subject, "code", s)));
+    return triples;
+  }
+
+  /**
+   * Passes statements describing given node to given sink without creating intermediate triples.
+   */
+  public void apply(Node node, RdfStatementSink sink) {
+    String subject = nodeResolver.apply(node.identifier());
+
+    sink.resource(subject, RDF.type.getURI(), typeResolver.apply(node.getType()));
+
+    termedLiteral(sink, subject, "id", node.getId().toString());
+    termedLiteral(sink, subject, "type", node.getTypeId());
+    termedLiteral(sink, subject, "graph", node.getTypeGraphId().toString());
+    node.getUri().ifPresent(s -> termedLiteral(sink, subject, "uri", s));
+    node.getCode().ifPresent(s -> termedLiteral(sink, subject, "code", s));
     ofNullable(node.getNumber()).ifPresent(l ->
-        triples.add(createTermedLiteral(subject, "number", l.toString())));
+        termedLiteral(sink, subject, "number", l.toString()));
     ofNullable(node.getCreatedBy()).ifPresent(s ->
-        triples.add(createTermedLiteral(subject, "createdBy", s)));
+        termedLiteral(sink, subject, "createdBy", s));
     ofNullable(node.getCreatedDate()).ifPresent(d ->
-        triples.add(createTermedLiteral(subject, "createdDate", d.toString())));
+        termedLiteral(sink, subject, "createdDate", d.toString()));
     ofNullable(node.getLastModifiedBy()).ifPresent(s ->
-        triples.add(createTermedLiteral(subject, "lastModifiedBy", s)));
+        termedLiteral(sink, subject, "lastModifiedBy", s));
     ofNullable(node.getLastModifiedDate()).ifPresent(d ->
-        triples.add(createTermedLiteral(subject, "lastModifiedDate", d.toString())));
+        termedLiteral(sink, subject, "lastModifiedDate", d.toString()));
 
     node.getProperties().forEach((k, v) ->
-        triples.add(create(
+        sink.literal(
             subject,
-            createURI(textAttrResolver.apply(new TextAttributeId(node.getType(), k))),
-            createLiteral(v.getValue(), v.getLang()))));
+            textAttrResolver.apply(new TextAttributeId(node.getType(), k)),
+            v.getValue(),
+            v.getLang()));
 
     node.getReferences().forEach((k, v) ->
-        triples.add(create(
+        sink.resource(
             subject,
-            createURI(refAttrResolver.apply(new ReferenceAttributeId(node.getType(), k))),
-            createURI(nodeResolver.apply(v)))));
-
-    return triples;
+            refAttrResolver.apply(new ReferenceAttributeId(node.getType(), k)),
+            nodeResolver.apply(v)));
   }
 
-  private Triple createTermedLiteral(org.apache.jena.graph.Node subject, String propertyId,
+  private void termedLiteral(RdfStatementSink sink, String subject, String propertyId,
       String literal) {
-    return create(subject, createProperty.apply(propertyId), createLiteral(literal));
+    sink.literal(subject, termedProperty.apply(propertyId), literal, "");
   }
 
 }
@@ -2,11 +2,15 @@ package fi.thl.termed.service.node.util;
 
 import static com.google.common.collect.Multimaps.filterKeys;
 import static fi.thl.termed.util.TableUtils.toTable;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
 import static fi.thl.termed.util.csv.CsvUtils.writeCsv;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.mapping;
 import static java.util.stream.Collectors.toList;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.opencsv.CSVWriter;
@@ -27,47 +31,176 @@ import fi.thl.termed.util.query.SelectAll;
 import fi.thl.termed.util.query.Selects;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
- * Write stream of nodes to OutputStream or Writer as CSV. This operation is not actually streaming
- * as all nodes are first transformed to maps and then to table and finally written in one
- * operation.
+ * Write stream of nodes to OutputStream or Writer as CSV. CSV header is the union of columns of all
+ * nodes. Identifier and audit columns are known from selects, property and reference columns are
+ * collected by reading selected properties and references of nodes before writing the rows.
  */
 public final class NodesToCsv {
 
+  private static final int LABEL_BATCH_SIZE = 1000;
+  private static final int LABEL_CACHE_SIZE = 10_000;
+  private static final String LABEL_MISSING = "<WARNING: LABEL MISSING>";
+
   private boolean useLabeledReferences;
   private String labelProperty;
   private String labelPropertyLang;
-  private Function<NodeId, Optional<Node>> nodeLoader;
+  private Function<List<NodeId>, Stream<Node>> nodeLoader;
+
+  private Cache<NodeId, String> labelCache =
+      CacheBuilder.newBuilder().maximumSize(LABEL_CACHE_SIZE).build();
 
   public NodesToCsv() {
-    this(false, "prefLabel", "", (nodeId) -> Optional.empty());
+    this(false, "prefLabel", "", (nodeIds) -> Stream.empty());
   }
 
+  /**
+   * @param nodeLoader loads nodes (at least with label property) for a batch of referenced node
+   * ids, used if labeled references are requested
+   */
   public NodesToCsv(
       boolean useLabeledReferences,
       String labelProperty,
       String labelPropertyLang,
-      Function<NodeId, Optional<Node>> nodeLoader) {
+      Function<List<NodeId>, Stream<Node>> nodeLoader) {
     this.useLabeledReferences = useLabeledReferences;
     this.labelProperty = labelProperty;
     this.labelPropertyLang = labelPropertyLang;
     this.nodeLoader = nodeLoader;
   }
 
+  /**
+   * Writes given nodes as CSV. Nodes are held in memory, prefer the query function variant for
+   * large results.
+   */
   public void writeAsCsv(Stream<Node> nodes, List<Select> selects, CsvOptions csvOpts,
       OutputStream out) {
+    List<Node> nodeList;
+    try (Stream<Node> closeable = nodes) {
+      nodeList = closeable.collect(toList());
+    }
+    writeAsCsv(s -> nodeList.stream(), selects, csvOpts, out);
+  }
+
+  /**
+   * Writes nodes as CSV without holding them in memory. Nodes are queried with given function
+   * using given selects. If properties or references are selected, nodes are first queried with
+   * only those selected to collect the header. Rows of nodes changed between the queries are
+   * written with columns of the header, values of columns not in the header are left out.
+   */
+  public void writeAsCsv(Function<List<Select>, Stream<Node>> nodes, List<Select> selects,
+      CsvOptions csvOpts, OutputStream out) {
     Set<Select> selectsSet = ImmutableSet.copyOf(selects);
-    writeCsv(out, csvOpts,
-        toTable(nodes.map(n -> nodeToRowMap(n, selectsSet)).collect(toList())).stream());
+
+    Set<String> columns = new LinkedHashSet<>(baseColumns(selectsSet));
+    List<Select> columnSelects = columnSelects(selectsSet);
+    if (!columnSelects.isEmpty()) {
+      try (Stream<Node> closeable = nodes.apply(columnSelects)) {
+        closeable.forEach(n -> columns.addAll(nodeToColumns(n, selectsSet)));
+      }
+    }
+
+    Stream<Map<String, String>> rows;
+    if (useLabeledReferences) {
+      rows = partitionedMap(nodes.apply(selects), LABEL_BATCH_SIZE, batch -> {
+        loadLabels(batch, selectsSet);
+        return batch.stream().map(n -> nodeToRowMap(n, selectsSet));
+      });
+    } else {
+      rows = nodes.apply(selects).map(n -> nodeToRowMap(n, selectsSet));
+    }
+
+    writeCsv(out, csvOpts, toTable(ImmutableList.copyOf(columns), rows));
+  }
+
+  // selects needed to collect property and reference columns, empty if none are selected
+  private List<Select> columnSelects(Set<Select> s) {
+    if (s.contains(new SelectAll())) {
+      return ImmutableList.of(new SelectId(), new SelectType(),
+          new SelectAllProperties(), new SelectAllReferences());
+    }
+
+    List<Select> attributeSelects = s.stream()
+        .filter(select -> select instanceof SelectAllProperties
+            || select instanceof SelectProperty
+            || select instanceof SelectAllReferences
+            || select instanceof SelectReference)
+        // reference values are written as ids or labels, referenced nodes are not needed
+        .map(select -> select instanceof SelectReference ? new SelectReference(
+            ((SelectReference) select).getQualifier(), ((SelectReference) select).getField())
+            : select)
+        .collect(toList());
+
+    return attributeSelects.isEmpty() ? ImmutableList.of() : ImmutableList.<Select>builder()
+        .add(new SelectId(), new SelectType())
+        .addAll(attributeSelects)
+        .build();
+  }
+
+  // loads labels of all selected references in given batch of nodes with one query
+  private void loadLabels(List<Node> nodes, Set<Select> s) {
+    List<NodeId> missingIds = nodes.stream()
+        .flatMap(n -> selectedReferences(n.getReferences(), s).values().stream())
+        .distinct()
+        .filter(id -> labelCache.getIfPresent(id) == null)
+        .collect(toList());
+
+    if (missingIds.isEmpty()) {
+      return;
+    }
+
+    try (Stream<Node> loaded = nodeLoader.apply(missingIds)) {
+      loaded.forEach(node -> labelCache.put(node.identifier(), toLabel(node)));
+    }
+
+    missingIds.stream()
+        .filter(id -> labelCache.getIfPresent(id) == null)
+        .forEach(id -> labelCache.put(id, LABEL_MISSING));
+  }
+
+  // identifier and audit columns in the order they are written
+  private List<String> baseColumns(Set<Select> s) {
+    List<String> columns = new ArrayList<>();
+
+    if (s.contains(new SelectAll()) || s.contains(new SelectId())) {
+      columns.add("id");
+    }
+    if (s.contains(new SelectAll()) || s.contains(new SelectType())) {
+      columns.add("type.id");
+      columns.add("type.graph.id");
+    }
+    Stream.of("code", "uri", "number",
+        "createdBy", "createdDate", "lastModifiedBy", "lastModifiedDate")
+        .filter(field -> s.contains(new SelectAll()) || s.contains(Selects.field(field)))
+        .forEach(columns::add);
+
+    return columns;
+  }
+
+  private List<String> nodeToColumns(Node node, Set<Select> s) {
+    List<String> columns = new ArrayList<>();
+
+    selectedProperties(node.getProperties(), s).asMap().forEach((attrId, langValues) ->
+        langValues.stream()
+            .map(StrictLangValue::getLang)
+            .distinct()
+            .forEach(lang -> columns.add(propertyColumn(attrId, lang))));
+
+    selectedReferences(node.getReferences(), s).keySet().forEach(attrId ->
+        columns.add(useLabeledReferences ? labeledReferenceColumn(attrId)
+            : referenceColumn(attrId)));
+
+    return columns;
   }
 
   private Map<String, String> nodeToRowMap(Node node, Set<Select> s) {
@@ -134,12 +267,7 @@ public final class NodesToCsv {
       Multimap<String, StrictLangValue> properties,
       Set<Select> s) {
 
-    Multimap<String, StrictLangValue> selectedProperties =
-        filterKeys(properties, key -> s.contains(new SelectAll())
-            || s.contains(new SelectAllProperties())
-            || s.contains(new SelectProperty(key)));
-
-    return selectedProperties.asMap().entrySet().stream()
+    return selectedProperties(properties, s).asMap().entrySet().stream()
         .flatMap(entry -> {
           String attrId = entry.getKey();
           Collection<StrictLangValue> langValues = entry.getValue();
@@ -152,7 +280,7 @@ public final class NodesToCsv {
               .entrySet().stream()
               .map(e -> {
                 String lang = e.getKey();
-                String key = "properties." + attrId + (lang.isEmpty() ? "" : "." + lang);
+                String key = propertyColumn(attrId, lang);
                 String value = toInlineCsv(e.getValue());
                 return MapUtils.entry(key, value);
               });
@@ -164,17 +292,12 @@ public final class NodesToCsv {
       Multimap<String, NodeId> references,
       Set<Select> s) {
 
-    Multimap<String, NodeId> selectedReferences =
-        filterKeys(references, key -> s.contains(new SelectAll())
-            || s.contains(new SelectAllReferences())
-            || s.contains(new SelectReference(key)));
-
-    return selectedReferences.asMap().entrySet().stream()
+    return selectedReferences(references, s).asMap().entrySet().stream()
         .map(entry -> {
           String attrId = entry.getKey();
           Collection<NodeId> referenceIds = entry.getValue();
 
-          String key = "references." + attrId + ".id";
+          String key = referenceColumn(attrId);
           String value = toInlineCsv(referenceIds.stream()
               .map(NodeId::getId)
               .map(UUIDs::toString)
@@ -189,18 +312,12 @@ public final class NodesToCsv {
       Multimap<String, NodeId> references,
       Set<Select> s) {
 
-    Multimap<String, NodeId> selectedReferences =
-        filterKeys(references, key -> s.contains(new SelectAll())
-            || s.contains(new SelectAllReferences())
-            || s.contains(new SelectReference(key)));
-
-    return selectedReferences.asMap().entrySet().stream()
+    return selectedReferences(references, s).asMap().entrySet().stream()
         .map(entry -> {
           String attrId = entry.getKey();
           Collection<NodeId> referenceIds = entry.getValue();
 
-          String key = "r." + attrId + ".p." + labelProperty +
-              (labelPropertyLang.isEmpty() ? "" : "." + labelPropertyLang);
+          String key = labeledReferenceColumn(attrId);
           String value = toInlineCsv(referenceIds.stream()
               .map(this::mapNodeIdToLabel)
               .collect(toList()));
@@ -210,14 +327,54 @@ public final class NodesToCsv {
         .collect(MapUtils.toImmutableMap());
   }
 
+  private Multimap<String, StrictLangValue> selectedProperties(
+      Multimap<String, StrictLangValue> properties, Set<Select> s) {
+    return filterKeys(properties, key -> s.contains(new SelectAll())
+        || s.contains(new SelectAllProperties())
+        || s.contains(new SelectProperty(key)));
+  }
+
+  private Multimap<String, NodeId> selectedReferences(
+      Multimap<String, NodeId> references, Set<Select> s) {
+    return filterKeys(references, key -> s.contains(new SelectAll())
+        || s.contains(new SelectAllReferences())
+        || s.contains(new SelectReference(key)));
+  }
+
+  private String propertyColumn(String attrId, String lang) {
+    return "properties." + attrId + (lang.isEmpty() ? "" : "." + lang);
+  }
+
+  private String referenceColumn(String attrId) {
+    return "references." + attrId + ".id";
+  }
+
+  private String labeledReferenceColumn(String attrId) {
+    return "r." + attrId + ".p." + labelProperty +
+        (labelPropertyLang.isEmpty() ? "" : "." + labelPropertyLang);
+  }
+
   private String mapNodeIdToLabel(NodeId nodeId) {
-    return nodeLoader.apply(nodeId)
-        .flatMap(node -> node.getProperties()
-            .get(labelProperty).stream()
-            .filter(v -> labelPropertyLang.isEmpty() || v.getLang().equals(labelPropertyLang))
-            .map(StrictLangValue::getValue)
-            .findFirst())
-        .orElse("<WARNING: LABEL MISSING>");
+    String label = labelCache.getIfPresent(nodeId);
+    if (label != null) {
+      return label;
+    }
+
+    // not preloaded or already evicted from the cache
+    try (Stream<Node> loaded = nodeLoader.apply(ImmutableList.of(nodeId))) {
+      label = loaded.findFirst().map(this::toLabel).orElse(LABEL_MISSING);
+    }
+    labelCache.put(nodeId, label);
+    return label;
+  }
+
+  private String toLabel(Node node) {
+    return node.getProperties()
+        .get(labelProperty).stream()
+        .filter(v -> labelPropertyLang.isEmpty() || v.getLang().equals(labelPropertyLang))
+        .map(StrictLangValue::getValue)
+        .findFirst()
+        .orElse(LABEL_MISSING);
   }
 
   private String toInlineCsv(List<String> row) {
@@ -1,12 +1,17 @@
 package fi.thl.termed.service.node.util;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.Iterables.partition;
 import static fi.thl.termed.util.RegularExpressions.URN_UUID;
 import static fi.thl.termed.util.UUIDs.nameUUIDFromString;
-import static java.util.Collections.emptyList;
+import static fi.thl.termed.util.query.AndSpecification.and;
+import static fi.thl.termed.util.query.OrSpecification.or;
+import static fi.thl.termed.util.query.Specifications.asSql;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import fi.thl.termed.domain.LangValue;
 import fi.thl.termed.domain.Node;
@@ -18,72 +23,131 @@ import fi.thl.termed.domain.TextAttribute;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
-import fi.thl.termed.service.node.specification.NodesById;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
 import fi.thl.termed.service.node.specification.NodesByUri;
 import fi.thl.termed.util.StringUtils;
 import fi.thl.termed.util.URIs;
 import fi.thl.termed.util.UUIDs;
-import fi.thl.termed.util.collect.OptionalUtils;
-import fi.thl.termed.util.collect.StreamUtils;
-import fi.thl.termed.util.query.AndSpecification;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.query.Query;
-import fi.thl.termed.util.query.Specification;
+import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.query.Selects;
 import fi.thl.termed.util.rdf.RdfModel;
 import fi.thl.termed.util.rdf.RdfResource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import org.apache.jena.vocabulary.RDF;
 
 /**
- * Function to transform rdf model into list of nodes conforming to provided graph.
+ * Function to transform rdf model into list of nodes conforming to provided graph. Ids of existing
+ * nodes are resolved for all resources at once with a few queries per type.
+ *
+ * <p>Large inputs can be converted in chunks with {@link #applyChunk(List)}. References between
+ * chunks are resolved to nodes converted in earlier chunks or to existing nodes.
  */
 public class RdfModelToNodes implements Function<RdfModel, List<Node>> {
 
+  private static final int MAX_VALUES_PER_QUERY = 500;
+
+  private static final List<Select> ID_AND_URI_SELECTS = ImmutableList.of(
+      Selects.field("id"),
+      Selects.field("type.id"),
+      Selects.field("type.graph.id"),
+      Selects.field("uri"));
+
   private List<Type> types;
-  private Function<Specification<NodeId, Node>, Optional<NodeId>> nodeIdProvider;
+  private Function<Query<NodeId, Node>, Stream<Node>> nodeProvider;
   private boolean importCodes;
 
+  // ids of nodes converted in previous chunks by uri
+  private Map<String, NodeId> convertedIds = new HashMap<>();
+
+  /**
+   * @param nodeProvider returns nodes matching given query, used to find ids of existing nodes.
+   * Queries are SQL only, so ids are read from the database even if the index lags behind writes.
+   */
   public RdfModelToNodes(List<Type> types,
-      Function<Query<NodeId, Node>, Stream<NodeId>> nodeIdProvider,
+      Function<Query<NodeId, Node>, Stream<Node>> nodeProvider,
       boolean importCodes) {
     this.types = types.stream().filter(t -> t.getUri().isPresent()).collect(toList());
-    this.nodeIdProvider = (specification) -> StreamUtils
-        .findFirstAndClose(nodeIdProvider.apply(new Query<>(specification, emptyList(), -1)));
+    this.nodeProvider = nodeProvider;
     this.importCodes = importCodes;
   }
 
   @Override
   public List<Node> apply(RdfModel rdfModel) {
-    Map<String, Node.Builder> nodes = Maps.newLinkedHashMap();
+    List<Tuple2<Type, RdfResource>> typedResources = new ArrayList<>();
 
-    // init nodes
     for (Type type : types) {
       for (RdfResource r : rdfModel.find(RDF.type.getURI(), type.getUri().orElse(null))) {
-        String uri = r.getUri();
+        typedResources.add(Tuple.of(type, r));
+      }
+    }
 
-        Node.Builder nodeBuilder = Node.builder()
-            .id(findExistingIdForUriOrCreateNew(type.identifier(), uri))
-            .uri(uri)
-            .code(importCodes ? StringUtils.normalize(URIs.localName(uri)) : null);
+    return toNodes(typedResources);
+  }
+
+  /**
+   * Transforms next chunk of resources e.g. from a stream of triples grouped by subject. Ids of
+   * nodes in this chunk are remembered to resolve references from subsequent chunks.
+   */
+  public List<Node> applyChunk(List<RdfResource> resources) {
+    List<Tuple2<Type, RdfResource>> typedResources = new ArrayList<>();
 
-        nodes.put(r.getUri(), nodeBuilder);
+    for (RdfResource r : resources) {
+      Set<String> typeUris = r.getObjects(RDF.type.getURI());
+      for (Type type : types) {
+        if (typeUris.contains(type.getUri().orElse(null))) {
+          typedResources.add(Tuple.of(type, r));
+        }
       }
     }
 
+    List<Node> nodes = toNodes(typedResources);
+    nodes.forEach(n -> n.getUri().ifPresent(uri -> convertedIds.put(uri, n.identifier())));
+    return nodes;
+  }
+
+  private List<Node> toNodes(List<Tuple2<Type, RdfResource>> typedResources) {
+    Map<Tuple2<TypeId, String>, NodeId> existingIds = resolveExistingIds(typedResources);
+
+    Map<String, Node.Builder> nodes = Maps.newLinkedHashMap();
+    Map<String, NodeId> nodeIds = Maps.newHashMap();
+
+    // init nodes
+    typedResources.forEach(typedResource -> {
+      TypeId type = typedResource._1.identifier();
+      String uri = typedResource._2.getUri();
+
+      NodeId nodeId = Optional.ofNullable(existingIds.get(Tuple.of(type, uri)))
+          .orElseGet(() -> newId(type, uri));
+
+      nodes.put(uri, Node.builder()
+          .id(nodeId)
+          .uri(uri)
+          .code(importCodes ? StringUtils.normalize(URIs.localName(uri)) : null));
+      nodeIds.put(uri, nodeId);
+    });
+
     // populate attributes
-    for (Type type : types) {
-      for (RdfResource rdfResource : rdfModel.find(RDF.type.getURI(), type.getUri().orElse(null))) {
-        Node.Builder nodeBuilder = nodes.get(rdfResource.getUri());
+    typedResources.forEach(typedResource -> {
+      Type type = typedResource._1;
+      RdfResource rdfResource = typedResource._2;
+      Node.Builder nodeBuilder = nodes.get(rdfResource.getUri());
 
-        setTextAttrValues(type, nodeBuilder, rdfResource);
-        setRefAttrValues(type, nodeBuilder, rdfResource, nodes);
-      }
-    }
+      setTextAttrValues(type, nodeBuilder, rdfResource);
+      setRefAttrValues(type, nodeBuilder, rdfResource, nodeIds, existingIds);
+    });
 
     return nodes.values().stream()
         .map(Builder::build)
@@ -103,49 +167,120 @@ public class RdfModelToNodes implements Function<RdfModel, List<Node>> {
   }
 
   private void setRefAttrValues(Type type, Node.Builder node, RdfResource rdfResource,
-      Map<String, Node.Builder> nodes) {
+      Map<String, NodeId> nodeIds, Map<Tuple2<TypeId, String>, NodeId> existingIds) {
     for (ReferenceAttribute refAttribute : type.getReferenceAttributes()) {
       for (String objectUri : rdfResource.getObjects(refAttribute.getUri().orElse(null))) {
-        if (nodes.containsKey(objectUri)) {
-          Node object = nodes.get(objectUri).build();
-          if (object.getType().equals(refAttribute.getRange())) {
-            node.addReference(refAttribute.getId(), object.identifier());
+        NodeId objectId = nodeIds.containsKey(objectUri)
+            ? nodeIds.get(objectUri)
+            : convertedIds.get(objectUri);
+
+        if (objectId != null) {
+          if (objectId.getType().equals(refAttribute.getRange())) {
+            node.addReference(refAttribute.getId(), objectId);
           }
         } else {
-          Optional<NodeId> objectId = findExistingIdForUri(type.identifier(), objectUri);
-          objectId.ifPresent(o -> node.addReference(refAttribute.getId(), o));
+          Optional.ofNullable(existingIds.get(Tuple.of(refAttribute.getRange(), objectUri)))
+              .ifPresent(o -> node.addReference(refAttribute.getId(), o));
         }
       }
     }
   }
 
-  private NodeId findExistingIdForUriOrCreateNew(TypeId type, String uri) {
-    return OptionalUtils.lazyFindFirst(
-        () -> findExistingIdForUri(type, uri),
-        () -> extractUrnUuid(uri).map(uuid -> NodeId.of(uuid, type)))
-        .orElseGet(() -> NodeId.of(nameUUIDFromString(uri), type));
-  }
+  // resolves ids for subjects and for referenced objects that are not subjects in given resources
+  private Map<Tuple2<TypeId, String>, NodeId> resolveExistingIds(
+      List<Tuple2<Type, RdfResource>> typedResources) {
+    Set<String> subjectUris = typedResources.stream()
+        .map(t -> t._2.getUri())
+        .collect(toSet());
+
+    Map<TypeId, Set<String>> urisByType = new HashMap<>();
+
+    typedResources.forEach(typedResource -> {
+      Type type = typedResource._1;
+      RdfResource rdfResource = typedResource._2;
 
-  private Optional<NodeId> findExistingIdForUri(TypeId type, String uri) {
-    return OptionalUtils.lazyFindFirst(
-        () -> resolveByUri(type, uri),
-        () -> resolveByUrnUuid(type, uri),
-        () -> resolveByNameUuid(type, uri));
+      urisByType.computeIfAbsent(type.identifier(), t -> new LinkedHashSet<>())
+          .add(rdfResource.getUri());
+
+      for (ReferenceAttribute refAttribute : type.getReferenceAttributes()) {
+        for (String objectUri : rdfResource.getObjects(refAttribute.getUri().orElse(null))) {
+          if (!subjectUris.contains(objectUri) && !convertedIds.containsKey(objectUri)) {
+            urisByType.computeIfAbsent(refAttribute.getRange(), t -> new LinkedHashSet<>())
+                .add(objectUri);
+          }
+        }
+      }
+    });
+
+    Map<Tuple2<TypeId, String>, NodeId> existingIds = new HashMap<>();
+
+    urisByType.forEach((type, uris) -> {
+      for (List<String> batch : partition(uris, MAX_VALUES_PER_QUERY)) {
+        resolveExistingIds(type, batch)
+            .forEach((uri, id) -> existingIds.put(Tuple.of(type, uri), id));
+      }
+    });
+
+    return existingIds;
   }
 
-  private Optional<NodeId> resolveByUri(TypeId type, String uri) {
-    return nodeIdProvider.apply(AndSpecification.and(
+  /**
+   * Resolves node ids for given uris of given type. Node is first searched by uri, then by id
+   * given as urn:uuid and then by id derived from uri.
+   */
+  private Map<String, NodeId> resolveExistingIds(TypeId type, List<String> uris) {
+    Map<String, NodeId> byUri = new HashMap<>();
+
+    try (Stream<Node> nodes = nodeProvider.apply(new Query<>(ID_AND_URI_SELECTS, asSql(and(
         NodesByGraphId.of(type.getGraphId()),
         NodesByTypeId.of(type.getId()),
-        NodesByUri.of(uri)));
+        or(uris.stream().map(NodesByUri::of).collect(toImmutableList()))))))) {
+      nodes.forEach(n -> n.getUri().ifPresent(uri -> byUri.putIfAbsent(uri, n.identifier())));
+    }
+
+    List<String> unresolvedUris = uris.stream()
+        .filter(uri -> !byUri.containsKey(uri))
+        .collect(toList());
+
+    if (unresolvedUris.isEmpty()) {
+      return byUri;
+    }
+
+    Set<NodeId> candidateIds = new LinkedHashSet<>();
+    unresolvedUris.forEach(uri -> {
+      extractUrnUuid(uri).ifPresent(uuid -> candidateIds.add(NodeId.of(uuid, type)));
+      candidateIds.add(NodeId.of(nameUUIDFromString(uri), type));
+    });
+
+    Set<NodeId> existingIds = new LinkedHashSet<>();
+
+    try (Stream<Node> nodes = nodeProvider.apply(
+        new Query<>(ID_AND_URI_SELECTS, asSql(NodesByNodeIds.of(candidateIds))))) {
+      nodes.forEach(n -> existingIds.add(n.identifier()));
+    }
+
+    Map<String, NodeId> results = new HashMap<>(byUri);
+
+    unresolvedUris.forEach(uri -> {
+      Optional<NodeId> byUrnUuid = extractUrnUuid(uri)
+          .map(uuid -> NodeId.of(uuid, type))
+          .filter(existingIds::contains);
+      NodeId byNameUuid = NodeId.of(nameUUIDFromString(uri), type);
+
+      if (byUrnUuid.isPresent()) {
+        results.put(uri, byUrnUuid.get());
+      } else if (existingIds.contains(byNameUuid)) {
+        results.put(uri, byNameUuid);
+      }
+    });
+
+    return results;
   }
 
-  private Optional<NodeId> resolveByUrnUuid(TypeId type, String uri) {
-    return extractUrnUuid(uri).flatMap(uuid ->
-        nodeIdProvider.apply(AndSpecification.and(
-            NodesByGraphId.of(type.getGraphId()),
-            NodesByTypeId.of(type.getId()),
-            NodesById.of(uuid))));
+  private NodeId newId(TypeId type, String uri) {
+    return extractUrnUuid(uri)
+        .map(uuid -> NodeId.of(uuid, type))
+        .orElseGet(() -> NodeId.of(nameUUIDFromString(uri), type));
   }
 
   private Optional<UUID> extractUrnUuid(String uri) {
@@ -154,11 +289,4 @@ public class RdfModelToNodes implements Function<RdfModel, List<Node>> {
         : Optional.empty();
   }
 
-  private Optional<NodeId> resolveByNameUuid(TypeId type, String uri) {
-    return nodeIdProvider.apply(AndSpecification.and(
-        NodesByGraphId.of(type.getGraphId()),
-        NodesByTypeId.of(type.getId()),
-        NodesById.of(UUIDs.nameUUIDFromString(uri))));
-  }
-
 }
@@ -15,6 +15,7 @@ import static java.util.stream.Collectors.groupingBy;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.ReferenceAttribute;
 import fi.thl.termed.domain.StrictLangValue;
 import fi.thl.termed.domain.TextAttribute;
@@ -24,26 +25,26 @@ import graphql.schema.DataFetchingEnvironment;
 import graphql.schema.GraphQLFieldDefinition;
 import graphql.schema.GraphQLType;
 import graphql.schema.GraphQLTypeReference;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiFunction;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
+import org.dataloader.DataLoader;
 
 /**
- * Converts simple type definition to data loading GraphQL type.
+ * Converts simple type definition to data loading GraphQL type. References and referrers are
+ * loaded with a data loader registered as {@link #NODE_LOADER}. Loads requested on same depth of a
+ * query are batched, and as type does not capture any request state, it can be cached and reused.
  */
 public class TypeToGraphQLType implements Function<Type, GraphQLType> {
 
-  private final BiFunction<Node, String, ImmutableList<Node>> referenceProvider;
-  private final BiFunction<Node, String, ImmutableList<Node>> referrerProvider;
+  public static final String NODE_LOADER = "nodeLoader";
+
   private final Map<TypeId, List<ReferenceAttribute>> referenceAttributesByRange;
 
-  public TypeToGraphQLType(
-      List<Type> allTypes,
-      BiFunction<Node, String, ImmutableList<Node>> referenceProvider,
-      BiFunction<Node, String, ImmutableList<Node>> referrerProvider) {
-    this.referenceProvider = referenceProvider;
-    this.referrerProvider = referrerProvider;
+  public TypeToGraphQLType(List<Type> allTypes) {
     this.referenceAttributesByRange = allTypes.stream()
         .flatMap(t -> t.getReferenceAttributes().stream())
         .collect(groupingBy(ReferenceAttribute::getRange));
@@ -108,7 +109,8 @@ public class TypeToGraphQLType implements Function<Type, GraphQLType> {
         .type(list(GraphQLTypeReference.typeRef(toGraphQlTypeName(attr.getRange()))))
         // here env.getSource returns the full Node, not just 'references' multimap
         // (see dataFetcher defined for references field)
-        .dataFetcher(env -> referenceProvider.apply(env.getSource(), attr.getId()))
+        .dataFetcher(env ->
+            loadNodes(env, env.<Node>getSource().getReferences().get(attr.getId())))
         .build();
   }
 
@@ -134,8 +136,18 @@ public class TypeToGraphQLType implements Function<Type, GraphQLType> {
         .type(list(GraphQLTypeReference.typeRef(toGraphQlTypeName(attr.getDomain()))))
         // here env.getSource returns the full Node, not just 'referrers' multimap
         // (see dataFetcher defined for referrers field)
-        .dataFetcher(env -> referrerProvider.apply(env.getSource(), attr.getId()))
+        .dataFetcher(env ->
+            loadNodes(env, env.<Node>getSource().getReferrers().get(attr.getId())))
         .build();
   }
 
+  private CompletableFuture<ImmutableList<Node>> loadNodes(DataFetchingEnvironment env,
+      Collection<NodeId> nodeIds) {
+    DataLoader<NodeId, Node> loader = env.getDataLoader(NODE_LOADER);
+    // missing nodes are loaded as nulls, leave them out
+    return loader.loadMany(ImmutableList.copyOf(nodeIds)).thenApply(nodes -> nodes.stream()
+        .filter(Objects::nonNull)
+        .collect(toImmutableList()));
+  }
+
 }
@@ -16,8 +16,9 @@ public class JdbcRevisionDao extends AbstractJdbcDao<Long, Revision> {
 
   @Override
   public void insert(Long id, Revision value) {
-    jdbcTemplate.update("insert into revision (number, author, date) values (?, ?, ?)",
-        id, value.getAuthor(), value.getDate());
+    jdbcTemplate.update(
+        "insert into revision (number, author, date, checkpoint) values (?, ?, ?, ?)",
+        id, value.getAuthor(), value.getDate(), value.isCheckpoint());
   }
 
   @Override
@@ -61,7 +62,8 @@ public class JdbcRevisionDao extends AbstractJdbcDao<Long, Revision> {
     return (rs, rowNum) -> Revision
         .of(rs.getLong("number"),
             rs.getString("author"),
-            rs.getTimestamp("date").toLocalDateTime());
+            rs.getTimestamp("date").toLocalDateTime(),
+            rs.getBoolean("checkpoint"));
   }
 
 }
@@ -0,0 +1,29 @@
+package fi.thl.termed.service.revision.specification;
+
+import fi.thl.termed.domain.Revision;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+
+public class RevisionsByCheckpoint extends AbstractSqlSpecification<Long, Revision> {
+
+  private boolean checkpoint;
+
+  public RevisionsByCheckpoint(boolean checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  public static RevisionsByCheckpoint of(boolean checkpoint) {
+    return new RevisionsByCheckpoint(checkpoint);
+  }
+
+  @Override
+  public boolean test(Long key, Revision value) {
+    return value.isCheckpoint() == checkpoint;
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return ParametrizedSqlQuery.of("checkpoint = ?", checkpoint);
+  }
+
+}
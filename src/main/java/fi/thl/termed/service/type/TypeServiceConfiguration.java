@@ -36,8 +36,8 @@ import fi.thl.termed.util.permission.DaoPermissionEvaluator;
 import fi.thl.termed.util.permission.DisjunctionPermissionEvaluator;
 import fi.thl.termed.util.permission.PermissionEvaluator;
 import fi.thl.termed.util.service.ProfilingService;
-import fi.thl.termed.util.service.ReadWriteSynchronizedService;
 import fi.thl.termed.util.service.Service;
+import fi.thl.termed.util.service.SnapshotService;
 import fi.thl.termed.util.service.TransactionalService;
 import fi.thl.termed.util.service.WriteLoggingService;
 import javax.sql.DataSource;
@@ -76,7 +76,7 @@ public class TypeServiceConfiguration {
     service = new ProfilingService<>(service,
         getClass().getPackage().getName() + ".ProfilingService", 500);
     service = new InitializingTypeService(service);
-    service = new ReadWriteSynchronizedService<>(service);
+    service = register(eventBus, new SnapshotService<>(service));
 
     return service;
   }
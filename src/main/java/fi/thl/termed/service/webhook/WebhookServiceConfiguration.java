@@ -6,11 +6,20 @@ import static fi.thl.termed.util.dao.CachedSystemDao.cache;
 import com.google.common.eventbus.EventBus;
 import com.google.gson.Gson;
 import fi.thl.termed.domain.AppRole;
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.Revision;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.Webhook;
 import fi.thl.termed.service.webhook.internal.JdbcWebhookDao;
-import fi.thl.termed.service.webhook.internal.NodeEventPostingService;
+import fi.thl.termed.service.webhook.internal.JdbcWebhookQueueItemDao;
+import fi.thl.termed.service.webhook.internal.WebhookEventDispatcher;
+import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.dao.AuthorizedDao;
 import fi.thl.termed.util.dao.SystemDao;
+import fi.thl.termed.util.dao.TransactionalSystemDao;
 import fi.thl.termed.util.permission.PermissionEvaluator;
 import fi.thl.termed.util.service.DaoForwardingRepository;
 import fi.thl.termed.util.service.ReadWriteSynchronizedService;
@@ -58,10 +67,18 @@ public class WebhookServiceConfiguration {
   }
 
   @Bean
-  public NodeEventPostingService eventPostingService(Service<UUID, Webhook> webhookService) {
-    NodeEventPostingService service = new NodeEventPostingService(webhookService(), gson);
-    eventBus.register(service);
-    return service;
+  public WebhookEventDispatcher webhookEventDispatcher(
+      SystemDao<Long, Empty> nodeEventOutboxDao,
+      Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService,
+      Service<Long, Revision> revisionService) {
+    SystemDao<RevisionId<UUID>, Empty> queueItemDao = new TransactionalSystemDao<>(
+        new JdbcWebhookQueueItemDao(dataSource), transactionManager);
+
+    WebhookEventDispatcher dispatcher = new WebhookEventDispatcher(
+        webhookService(), nodeEventOutboxDao, queueItemDao,
+        nodeRevisionService, revisionService, transactionManager, gson);
+    eventBus.register(dispatcher);
+    return dispatcher;
   }
 
 }
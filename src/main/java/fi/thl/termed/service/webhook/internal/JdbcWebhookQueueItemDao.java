@@ -0,0 +1,94 @@
+package fi.thl.termed.service.webhook.internal;
+
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.util.UUIDs;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.dao.AbstractJdbcDao;
+import fi.thl.termed.util.query.SqlSpecification;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Revisions waiting to be delivered to a webhook. Keys are webhook ids with revision numbers.
+ */
+public class JdbcWebhookQueueItemDao extends AbstractJdbcDao<RevisionId<UUID>, Empty> {
+
+  private static final String INSERT =
+      "insert into webhook_queue_item (webhook_id, revision) values (?, ?)";
+  private static final String DELETE =
+      "delete from webhook_queue_item where webhook_id = ? and revision = ?";
+
+  public JdbcWebhookQueueItemDao(DataSource dataSource) {
+    super(dataSource);
+  }
+
+  @Override
+  public void insert(Stream<Tuple2<RevisionId<UUID>, Empty>> entries) {
+    batchUpdate(INSERT, entries, e -> new Object[]{e._1.getId(), e._1.getRevision()});
+  }
+
+  @Override
+  public void insert(RevisionId<UUID> id, Empty empty) {
+    jdbcTemplate.update(INSERT, id.getId(), id.getRevision());
+  }
+
+  @Override
+  public void update(RevisionId<UUID> id, Empty empty) {
+    // NOP
+  }
+
+  @Override
+  public void delete(Stream<RevisionId<UUID>> ids) {
+    batchUpdate(DELETE, ids, id -> new Object[]{id.getId(), id.getRevision()});
+  }
+
+  @Override
+  public void delete(RevisionId<UUID> id) {
+    jdbcTemplate.update(DELETE, id.getId(), id.getRevision());
+  }
+
+  @Override
+  protected <E> Stream<E> get(SqlSpecification<RevisionId<UUID>, Empty> specification,
+      RowMapper<E> mapper) {
+    return jdbcTemplate.queryForStream(
+        String.format("select * from webhook_queue_item where %s order by revision",
+            specification.sqlQueryTemplate()),
+        specification.sqlQueryParameters(), mapper);
+  }
+
+  @Override
+  public boolean exists(RevisionId<UUID> id) {
+    return jdbcTemplate.queryForOptional(
+        "select count(*) from webhook_queue_item where webhook_id = ? and revision = ?",
+        Long.class,
+        id.getId(),
+        id.getRevision())
+        .orElseThrow(IllegalStateException::new) > 0;
+  }
+
+  @Override
+  protected <E> Optional<E> get(RevisionId<UUID> id, RowMapper<E> mapper) {
+    return jdbcTemplate.queryForFirst(
+        "select * from webhook_queue_item where webhook_id = ? and revision = ?",
+        mapper,
+        id.getId(),
+        id.getRevision());
+  }
+
+  @Override
+  protected RowMapper<RevisionId<UUID>> buildKeyMapper() {
+    return (rs, rowNum) -> RevisionId.of(
+        UUIDs.fromString(rs.getString("webhook_id")),
+        rs.getLong("revision"));
+  }
+
+  @Override
+  protected RowMapper<Empty> buildValueMapper() {
+    return (rs, rowNum) -> Empty.INSTANCE;
+  }
+
+}
@@ -0,0 +1,413 @@
+package fi.thl.termed.service.webhook.internal;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static fi.thl.termed.domain.RevisionType.DELETE;
+import static fi.thl.termed.domain.RevisionType.INSERT;
+import static fi.thl.termed.domain.RevisionType.UPDATE;
+import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
+import static fi.thl.termed.util.query.AndSpecification.and;
+import static fi.thl.termed.util.query.OrSpecification.or;
+import static fi.thl.termed.util.query.Queries.query;
+import static fi.thl.termed.util.spring.transaction.TransactionUtils.runInTransaction;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.gson.Gson;
+import fi.thl.termed.domain.AppRole;
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.Revision;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.domain.RevisionType;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.Webhook;
+import fi.thl.termed.domain.event.ApplicationReadyEvent;
+import fi.thl.termed.domain.event.ApplicationShutdownEvent;
+import fi.thl.termed.domain.event.NodeDeletedEvent;
+import fi.thl.termed.domain.event.NodeEvent;
+import fi.thl.termed.domain.event.NodeSavedEvent;
+import fi.thl.termed.domain.event.WebEvent;
+import fi.thl.termed.service.node.specification.NodeRevisionsByRevisionNumber;
+import fi.thl.termed.service.node.specification.NodeRevisionsByRevisionType;
+import fi.thl.termed.service.node.specification.NodeRevisionsWithChanges;
+import fi.thl.termed.service.webhook.specification.WebhookQueueItemsByWebhookId;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.concurrent.FutureUtils;
+import fi.thl.termed.util.dao.SystemDao;
+import fi.thl.termed.util.eventbus.Synchronous;
+import fi.thl.termed.util.query.Specification;
+import fi.thl.termed.util.query.Specifications;
+import fi.thl.termed.util.service.Service;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Delivers node events to webhooks. Revisions recorded to node event outbox are copied to a queue
+ * of each webhook and removed from the outbox in one transaction. Queues are delivered in the
+ * background, a limited number of webhooks at a time. Node changes of consecutive revisions are
+ * coalesced to events of at most {@value #MAX_NODES_PER_EVENT} nodes.
+ *
+ * <p>Queue items are removed only after the webhook has accepted all events of a batch. Failed
+ * batches are retried with exponential backoff, so events may be delivered more than once but are
+ * not lost if a webhook or the application is down.
+ */
+public class WebhookEventDispatcher {
+
+  private static final int CONCURRENCY = 4;
+  private static final long DISPATCH_INTERVAL_MILLIS = 1000;
+  private static final int MAX_OUTBOX_ITEMS_PER_DISPATCH = 10_000;
+  private static final int MAX_REVISIONS_PER_BATCH = 100;
+  private static final int MAX_NODES_PER_EVENT = 1000;
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final long REQUEST_TIMEOUT_MINUTES = 1;
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+  private User eventBroadcaster = new User("httpEventBroadcaster", "", AppRole.SUPERUSER);
+
+  private Service<UUID, Webhook> webhookService;
+  private SystemDao<Long, Empty> nodeEventOutboxDao;
+  private SystemDao<RevisionId<UUID>, Empty> webhookQueueItemDao;
+  private Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService;
+  private Service<Long, Revision> revisionService;
+  private PlatformTransactionManager transactionManager;
+  private Gson gson;
+
+  private CloseableHttpAsyncClient httpClient;
+  private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService deliveryExecutor = Executors.newFixedThreadPool(CONCURRENCY);
+
+  // deliveries in progress and failure counts with next attempt times by webhook id
+  private Map<UUID, CompletableFuture<Void>> deliveries = new ConcurrentHashMap<>();
+  private Map<UUID, Tuple2<Integer, Long>> backoffs = new ConcurrentHashMap<>();
+
+  public WebhookEventDispatcher(
+      Service<UUID, Webhook> webhookService,
+      SystemDao<Long, Empty> nodeEventOutboxDao,
+      SystemDao<RevisionId<UUID>, Empty> webhookQueueItemDao,
+      Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService,
+      Service<Long, Revision> revisionService,
+      PlatformTransactionManager transactionManager,
+      Gson gson) {
+    this.webhookService = webhookService;
+    this.nodeEventOutboxDao = nodeEventOutboxDao;
+    this.webhookQueueItemDao = webhookQueueItemDao;
+    this.nodeRevisionService = nodeRevisionService;
+    this.revisionService = revisionService;
+    this.transactionManager = transactionManager;
+    this.gson = gson;
+    this.httpClient = HttpAsyncClients.createMinimal();
+    httpClient.start();
+  }
+
+  @Subscribe
+  @Synchronous
+  public void startOn(ApplicationReadyEvent e) {
+    // outbox and queues left from previous run are delivered too
+    scheduler.scheduleWithFixedDelay(this::dispatchAndLogErrors,
+        0, DISPATCH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @Subscribe
+  @Synchronous
+  public void stopOn(ApplicationShutdownEvent e) {
+    // undelivered revisions are left in the database and delivered on next start up
+    scheduler.shutdown();
+    deliveryExecutor.shutdown();
+    try {
+      deliveryExecutor.awaitTermination(1, TimeUnit.MINUTES);
+      httpClient.close();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ex) {
+      log.warn(ex.getMessage());
+    }
+  }
+
+  /**
+   * Dispatches immediately on node events instead of waiting for the next scheduled dispatch.
+   * Waits for deliveries if event is synchronous. Called in the posting thread, so that a write in
+   * an outer transaction is dispatched after commit when its outbox rows are visible.
+   */
+  @Subscribe
+  @Synchronous
+  @AllowConcurrentEvents
+  public void dispatchOn(NodeEvent nodeEvent) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+              dispatchCommitted(nodeEvent);
+            }
+          });
+    } else {
+      dispatchCommitted(nodeEvent);
+    }
+  }
+
+  // dispatches in scheduler thread, never in the transaction of the poster
+  private void dispatchCommitted(NodeEvent nodeEvent) {
+    if (scheduler.isShutdown()) {
+      return;
+    }
+
+    try {
+      if (nodeEvent.isSync()) {
+        CompletableFuture<Void> delivered = CompletableFuture
+            .supplyAsync(this::dispatch, scheduler)
+            .thenCompose(started -> CompletableFuture.allOf(
+                started.toArray(new CompletableFuture[0])));
+        FutureUtils.waitFor(delivered, REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES,
+            e -> log.warn(e.getMessage()));
+      } else {
+        scheduler.execute(this::dispatchAndLogErrors);
+      }
+    } catch (RejectedExecutionException e) {
+      // stopped meanwhile, outbox is delivered on next start up
+      log.debug("Dispatcher is stopped, events are delivered on next start up");
+    }
+  }
+
+  private void dispatchAndLogErrors() {
+    try {
+      dispatch();
+    } catch (RuntimeException e) {
+      log.error("Failed to dispatch webhook events", e);
+    }
+  }
+
+  /**
+   * Moves outbox items to webhook queues and starts delivery for each webhook that is not already
+   * being delivered or waiting for a retry.
+   */
+  synchronized List<CompletableFuture<Void>> dispatch() {
+    List<Webhook> hooks = toImmutableListAndClose(
+        webhookService.values(query(Specifications.matchAll()), eventBroadcaster));
+
+    enqueue(hooks);
+
+    List<CompletableFuture<Void>> started = new ArrayList<>();
+    long now = System.currentTimeMillis();
+
+    for (Webhook hook : hooks) {
+      Tuple2<Integer, Long> backoff = backoffs.get(hook.getId());
+      if (backoff == null || backoff._2 <= now) {
+        started.add(deliver(hook));
+      }
+    }
+
+    return started;
+  }
+
+  private void enqueue(List<Webhook> hooks) {
+    runInTransaction(transactionManager, () -> {
+      List<Long> revisions = toImmutableListAndClose(
+          nodeEventOutboxDao.keys(Specifications.matchAll()).limit(MAX_OUTBOX_ITEMS_PER_DISPATCH));
+
+      if (!revisions.isEmpty()) {
+        webhookQueueItemDao.insert(hooks.stream().flatMap(hook -> revisions.stream()
+            .map(revision -> Tuple.of(RevisionId.of(hook.getId(), revision), Empty.INSTANCE))));
+        nodeEventOutboxDao.delete(revisions.stream());
+      }
+
+      return null;
+    });
+  }
+
+  private CompletableFuture<Void> deliver(Webhook hook) {
+    CompletableFuture<Void> delivery;
+    try {
+      delivery = deliveries.computeIfAbsent(hook.getId(),
+          id -> CompletableFuture.runAsync(() -> deliverQueue(hook), deliveryExecutor));
+    } catch (RejectedExecutionException e) {
+      // stopped, queue is left in the database and delivered on next start up
+      log.debug("Dispatcher is stopped, events to {} are delivered on next start up",
+          hook.getUrl());
+      return CompletableFuture.completedFuture(null);
+    }
+    delivery.whenComplete((r, e) -> deliveries.remove(hook.getId(), delivery));
+    return delivery;
+  }
+
+  private void deliverQueue(Webhook hook) {
+    try {
+      List<RevisionId<UUID>> batch = nextBatch(hook);
+
+      while (!batch.isEmpty()) {
+        if (!deliverBatch(hook, batch)) {
+          backOff(hook);
+          return;
+        }
+
+        backoffs.remove(hook.getId());
+        webhookQueueItemDao.delete(batch.stream());
+        batch = nextBatch(hook);
+      }
+    } catch (RuntimeException e) {
+      log.error("Failed to deliver events to " + hook.getUrl(), e);
+      backOff(hook);
+    }
+  }
+
+  private void backOff(Webhook hook) {
+    backoffs.compute(hook.getId(), (id, backoff) -> {
+      int failures = backoff == null ? 1 : backoff._1 + 1;
+      long delay = Math.min(MIN_BACKOFF_MILLIS << Math.min(failures - 1, 20), MAX_BACKOFF_MILLIS);
+      log.warn("Failed to deliver events to {}, retrying in {} ms", hook.getUrl(), delay);
+      return Tuple.of(failures, System.currentTimeMillis() + delay);
+    });
+  }
+
+  private List<RevisionId<UUID>> nextBatch(Webhook hook) {
+    return toImmutableListAndClose(webhookQueueItemDao
+        .keys(WebhookQueueItemsByWebhookId.of(hook.getId()))
+        .limit(MAX_REVISIONS_PER_BATCH));
+  }
+
+  // returns true if all events of given revisions were accepted by the webhook
+  private boolean deliverBatch(Webhook hook, List<RevisionId<UUID>> batch) {
+    EventCoalescer events = new EventCoalescer(event -> post(hook, event));
+
+    for (RevisionId<UUID> queueItem : batch) {
+      Long number = queueItem.getRevision();
+      Optional<Revision> optionalRevision = revisionService.get(number, eventBroadcaster);
+
+      // revision may have been purged, then there are no changes left to deliver either
+      if (!optionalRevision.isPresent()) {
+        continue;
+      }
+
+      Revision revision = optionalRevision.get();
+
+      // saves without changes are left out as in events posted on write
+      try (Stream<NodeId> saved = revisionNodeIds(number, and(
+          or(NodeRevisionsByRevisionType.of(INSERT), NodeRevisionsByRevisionType.of(UPDATE)),
+          new NodeRevisionsWithChanges()))) {
+        if (!saved.allMatch(id -> events.add(false, revision, id))) {
+          return false;
+        }
+      }
+
+      try (Stream<NodeId> deleted = revisionNodeIds(number,
+          NodeRevisionsByRevisionType.of(DELETE))) {
+        if (!deleted.allMatch(id -> events.add(true, revision, id))) {
+          return false;
+        }
+      }
+    }
+
+    return events.flush();
+  }
+
+  private Stream<NodeId> revisionNodeIds(Long revision,
+      Specification<RevisionId<NodeId>, Tuple2<RevisionType, Node>> revisionTypeSpec) {
+    return nodeRevisionService.keys(query(and(
+        NodeRevisionsByRevisionNumber.of(revision),
+        revisionTypeSpec)), eventBroadcaster)
+        .map(RevisionId::getId);
+  }
+
+  private boolean post(Webhook hook, WebEvent event) {
+    HttpPost request = new HttpPost(hook.getUrl());
+    request.addHeader("Content-Type", "application/json");
+    request.setEntity(new StringEntity(gson.toJson(event), UTF_8));
+
+    try {
+      HttpResponse response = httpClient.execute(request, null)
+          .get(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+      int status = response.getStatusLine().getStatusCode();
+      if (status < 200 || status >= 300) {
+        log.warn("{} responded with status {}", hook.getUrl(), status);
+        return false;
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      log.warn("{} {}", hook.getUrl(), e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Collects node ids of consecutive revisions to events. A new event is started when event type
+   * or author changes or when the event is full.
+   */
+  private static class EventCoalescer {
+
+    private final Predicate<WebEvent> poster;
+
+    private boolean deleted;
+    private String author;
+    private LocalDateTime date;
+    private List<NodeId> ids = new ArrayList<>();
+
+    EventCoalescer(Predicate<WebEvent> poster) {
+      this.poster = poster;
+    }
+
+    // returns false if posting a full event failed
+    boolean add(boolean deleted, Revision revision, NodeId id) {
+      boolean posted = true;
+
+      if (!ids.isEmpty() && (this.deleted != deleted
+          || !Objects.equals(author, revision.getAuthor())
+          || ids.size() >= MAX_NODES_PER_EVENT)) {
+        posted = flush();
+      }
+
+      this.deleted = deleted;
+      this.author = revision.getAuthor();
+      this.date = revision.getDate();
+      this.ids.add(id);
+
+      return posted;
+    }
+
+    boolean flush() {
+      if (ids.isEmpty()) {
+        return true;
+      }
+
+      List<NodeId> eventIds = ids;
+      ids = new ArrayList<>();
+
+      return poster.test(new WebEvent(deleted
+          ? new NodeDeletedEvent(author, date, false, eventIds)
+          : new NodeSavedEvent(author, date, false, eventIds)));
+    }
+
+  }
+
+}
@@ -0,0 +1,33 @@
+package fi.thl.termed.service.webhook.specification;
+
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.domain.RevisionId;
+import fi.thl.termed.util.query.AbstractSqlSpecification;
+import fi.thl.termed.util.query.ParametrizedSqlQuery;
+import java.util.Objects;
+import java.util.UUID;
+
+public class WebhookQueueItemsByWebhookId extends
+    AbstractSqlSpecification<RevisionId<UUID>, Empty> {
+
+  private final UUID webhookId;
+
+  private WebhookQueueItemsByWebhookId(UUID webhookId) {
+    this.webhookId = webhookId;
+  }
+
+  public static WebhookQueueItemsByWebhookId of(UUID webhookId) {
+    return new WebhookQueueItemsByWebhookId(webhookId);
+  }
+
+  @Override
+  public boolean test(RevisionId<UUID> queueItemId, Empty empty) {
+    return Objects.equals(webhookId, queueItemId.getId());
+  }
+
+  @Override
+  public ParametrizedSqlQuery sql() {
+    return ParametrizedSqlQuery.of("webhook_id = ?", webhookId);
+  }
+
+}
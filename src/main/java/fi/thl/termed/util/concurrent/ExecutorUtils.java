@@ -1,7 +1,12 @@
 package fi.thl.termed.util.concurrent;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.TimeUnit;
 
 public final class ExecutorUtils {
 
@@ -17,4 +22,13 @@ public final class ExecutorUtils {
     return executor;
   }
 
+  /**
+   * Creates fixed size {@link ExecutorService} with bounded work queue. When the queue is full,
+   * submitted tasks are run in the submitting thread which slows down producers (backpressure).
+   */
+  public static ExecutorService newBoundedThreadPool(int poolSize, int queueCapacity) {
+    return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), new CallerRunsPolicy());
+  }
+
 }
@@ -1,7 +1,9 @@
 package fi.thl.termed.util.dao;
 
 import static fi.thl.termed.util.collect.StreamUtils.forEachAndClose;
+import static java.util.stream.Collectors.toList;
 
+import com.google.common.collect.Iterators;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.query.MatchAll;
@@ -10,6 +12,7 @@ import fi.thl.termed.util.query.SqlSpecification;
 import fi.thl.termed.util.spring.jdbc.StreamingJdbcTemplate;
 import java.io.Serializable;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
@@ -21,6 +24,8 @@ import org.springframework.jdbc.core.RowMapper;
  */
 public abstract class AbstractJdbcDao<K extends Serializable, V> implements SystemDao<K, V> {
 
+  private static final int BATCH_SIZE = 1000;
+
   protected final Logger log = LoggerFactory.getLogger(getClass());
 
   protected StreamingJdbcTemplate jdbcTemplate;
@@ -90,6 +95,17 @@ public abstract class AbstractJdbcDao<K extends Serializable, V> implements Syst
     return get(key, valueMapper);
   }
 
+  /**
+   * Executes given statement for each value using JDBC batches. Subclasses may use this to
+   * implement bulk update and delete.
+   */
+  protected <T> void batchUpdate(String sql, Stream<T> values, Function<T, Object[]> toArgs) {
+    try (Stream<T> closeable = values) {
+      Iterators.partition(closeable.iterator(), BATCH_SIZE).forEachRemaining(batch ->
+          jdbcTemplate.batchUpdate(sql, batch.stream().map(toArgs).collect(toList())));
+    }
+  }
+
   protected abstract <E> Stream<E> get(SqlSpecification<K, V> specification, RowMapper<E> mapper);
 
   protected abstract <E> Optional<E> get(K key, RowMapper<E> mapper);
@@ -3,9 +3,12 @@ package fi.thl.termed.util.dao;
 import static com.google.common.base.Preconditions.checkArgument;
 import static fi.thl.termed.util.postgresql.CopyManagerUtils.copyInAsCsv;
 import static java.lang.String.format;
+import static java.util.Collections.emptyList;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import fi.thl.termed.util.collect.Tuple2;
 import java.io.Serializable;
@@ -22,19 +25,26 @@ import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.datasource.DataSourceUtils;
 
 /**
- * Implements faster bulk insert for Postgres. If backed database is not Postgres, forwards insert
- * to delegate.
+ * Implements faster bulk insert for Postgres. If key and value columns are given, implements also
+ * bulk update and delete by copying rows into a temporary staging table and applying them with one
+ * statement per batch. Batches smaller than staging limit are forwarded to delegate as setting up
+ * the staging table costs more than it saves. If backed database is not Postgres, forwards
+ * operations to delegate.
  */
 public abstract class AbstractJdbcPostgresDao<K extends Serializable, V> extends
     ForwardingSystemDao<K, V> {
 
   private static final int DEFAULT_BATCH_SIZE = 10_000;
   private static final int ANALYZE_LIMIT = 1000;
+  static final int STAGING_LIMIT = 100;
 
   private final Logger log = LoggerFactory.getLogger(getClass());
 
   private final DataSource dataSource;
   private final String table;
+  private final String stagingTable;
+  private final List<String> keyColumns;
+  private final List<String> valueColumns;
   private final int batchSize;
 
   private final boolean analyze;
@@ -50,15 +60,35 @@ public abstract class AbstractJdbcPostgresDao<K extends Serializable, V> extends
 
   public AbstractJdbcPostgresDao(SystemDao<K, V> delegate, DataSource dataSource, String table,
       int batchSize, boolean analyze) {
+    this(delegate, dataSource, table, emptyList(), emptyList(), batchSize, analyze);
+  }
+
+  /**
+   * @param keyColumns primary key columns of the table, followed in rows by value columns
+   * @param valueColumns rest of the columns in the table, enables bulk update and delete if given
+   */
+  public AbstractJdbcPostgresDao(SystemDao<K, V> delegate, DataSource dataSource, String table,
+      List<String> keyColumns, List<String> valueColumns, boolean analyze) {
+    this(delegate, dataSource, table, keyColumns, valueColumns, DEFAULT_BATCH_SIZE, analyze);
+  }
+
+  public AbstractJdbcPostgresDao(SystemDao<K, V> delegate, DataSource dataSource, String table,
+      List<String> keyColumns, List<String> valueColumns, int batchSize, boolean analyze) {
     super(delegate);
 
     requireNonNull(dataSource);
     requireNonNull(table);
     checkArgument(table.matches("[a-zA-Z_]+"));
+    checkArgument(Stream.concat(keyColumns.stream(), valueColumns.stream())
+        .allMatch(column -> column.matches("[a-zA-Z_]+")));
+    checkArgument(keyColumns.isEmpty() == valueColumns.isEmpty());
     checkArgument(batchSize > 0);
 
     this.dataSource = dataSource;
     this.table = table;
+    this.stagingTable = table + "_staging";
+    this.keyColumns = ImmutableList.copyOf(keyColumns);
+    this.valueColumns = ImmutableList.copyOf(valueColumns);
     this.batchSize = batchSize;
     this.analyze = analyze;
   }
@@ -87,7 +117,7 @@ public abstract class AbstractJdbcPostgresDao<K extends Serializable, V> extends
     try (Stream<Tuple2<K, V>> closeable = entries) {
       Iterators.partition(closeable.iterator(), batchSize).forEachRemaining(batch -> {
         log.trace("Copying {} rows into {}", batch.size(), table);
-        copyInAsCsv(connection, format("COPY %s FROM STDIN CSV", table), toRows(batch));
+        copyIn(connection, format("COPY %s FROM STDIN CSV", table), toRows(batch));
         insertCount.getAndAdd(batch.size());
       });
     }
@@ -97,16 +127,130 @@ public abstract class AbstractJdbcPostgresDao<K extends Serializable, V> extends
     }
   }
 
+  @Override
+  public void update(Stream<Tuple2<K, V>> entries) {
+    if (!keyColumns.isEmpty()) {
+      Connection c = DataSourceUtils.getConnection(dataSource);
+
+      try {
+        if (c.isWrapperFor(BaseConnection.class)) {
+          copyUpdate(c.unwrap(BaseConnection.class), entries);
+          return;
+        }
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      } finally {
+        DataSourceUtils.releaseConnection(c, dataSource);
+      }
+    }
+
+    super.update(entries);
+  }
+
+  private void copyUpdate(BaseConnection connection, Stream<Tuple2<K, V>> entries) {
+    String updateSql = format("UPDATE %s t SET %s FROM %s s WHERE %s", table,
+        valueColumns.stream().map(c -> format("%s = s.%s", c, c)).collect(joining(", ")),
+        stagingTable, keyColumnsMatch());
+    String allColumns = Stream.concat(keyColumns.stream(), valueColumns.stream())
+        .collect(joining(", "));
+
+    try (Stream<Tuple2<K, V>> closeable = entries) {
+      Iterators.partition(closeable.iterator(), batchSize).forEachRemaining(batch -> {
+        if (batch.size() < STAGING_LIMIT) {
+          super.update(batch.stream());
+        } else {
+          log.trace("Updating {} rows in {}", batch.size(), table);
+          copyIntoStagingTable(connection, allColumns, toRows(batch));
+          execute(connection, updateSql);
+        }
+      });
+    }
+  }
+
+  @Override
+  public void delete(Stream<K> keys) {
+    if (!keyColumns.isEmpty()) {
+      Connection c = DataSourceUtils.getConnection(dataSource);
+
+      try {
+        if (c.isWrapperFor(BaseConnection.class)) {
+          copyDelete(c.unwrap(BaseConnection.class), keys);
+          return;
+        }
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      } finally {
+        DataSourceUtils.releaseConnection(c, dataSource);
+      }
+    }
+
+    super.delete(keys);
+  }
+
+  private void copyDelete(BaseConnection connection, Stream<K> keys) {
+    String deleteSql = format("DELETE FROM %s t USING %s s WHERE %s",
+        table, stagingTable, keyColumnsMatch());
+
+    try (Stream<K> closeable = keys) {
+      Iterators.partition(closeable.iterator(), batchSize).forEachRemaining(batch -> {
+        if (batch.size() < STAGING_LIMIT) {
+          super.delete(batch.stream());
+        } else {
+          log.trace("Deleting {} rows from {}", batch.size(), table);
+          copyIntoStagingTable(connection, String.join(", ", keyColumns),
+              batch.stream().map(this::toKeyRow).collect(toList()));
+          execute(connection, deleteSql);
+        }
+      });
+    }
+  }
+
+  private String keyColumnsMatch() {
+    return keyColumns.stream().map(c -> format("t.%s = s.%s", c, c)).collect(joining(" AND "));
+  }
+
+  // staging table is a session scoped temporary table without constraints, created on first use,
+  // statistics are collected only for large batches, default estimates do for smaller ones
+  private void copyIntoStagingTable(BaseConnection connection, String columns,
+      List<String[]> rows) {
+    execute(connection, format(
+        "CREATE TEMPORARY TABLE IF NOT EXISTS %s AS SELECT * FROM %s WITH NO DATA",
+        stagingTable, table));
+    execute(connection, format("TRUNCATE %s", stagingTable));
+    copyIn(connection, format("COPY %s (%s) FROM STDIN CSV", stagingTable, columns), rows);
+    if (rows.size() > ANALYZE_LIMIT) {
+      execute(connection, format("ANALYZE %s", stagingTable));
+    }
+  }
+
+  // package private for tests that can't run COPY without a Postgres connection
+  void copyIn(BaseConnection connection, String sql, List<String[]> rows) {
+    copyInAsCsv(connection, sql, rows);
+  }
+
   private List<String[]> toRows(List<Tuple2<K, V>> tuples) {
     return tuples.stream().map(t -> toRow(t._1, t._2)).collect(toList());
   }
 
+  /**
+   * Converts entry to a CSV row with values for key columns first, followed by value columns, in
+   * the order of columns in the table.
+   */
   protected abstract String[] toRow(K key, V value);
 
+  /**
+   * Converts key to a CSV row of key columns. Used only if key and value columns are given.
+   */
+  protected abstract String[] toKeyRow(K key);
+
   private void analyzeTable(BaseConnection c) {
+    log.trace("Analyzing {}", table);
+    execute(c, format("ANALYZE %s", table));
+  }
+
+  private void execute(BaseConnection c, String sql) {
     try (Statement s = c.createStatement()) {
-      log.trace("Analyzing {}", table);
-      s.executeUpdate(format("ANALYZE %s", table));
+      s.executeUpdate(sql);
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
@@ -10,6 +10,7 @@ import com.google.common.eventbus.Subscribe;
 import fi.thl.termed.domain.event.InvalidateCachesEvent;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.eventbus.Synchronous;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
 import java.util.Optional;
@@ -44,6 +45,7 @@ public class CachedSystemDao<K extends Serializable, V> implements SystemDao<K,
   }
 
   @Subscribe
+  @Synchronous
   public void clearCachesOn(InvalidateCachesEvent e) {
     specificationCache.invalidateAll();
     keyValueCache.invalidateAll();
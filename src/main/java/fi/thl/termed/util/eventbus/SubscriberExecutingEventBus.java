@@ -0,0 +1,309 @@
+package fi.thl.termed.util.eventbus;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event bus that calls subscribers asynchronously, each registered subscriber with its own
+ * executor. A slow subscriber delays only its own events, not the poster or other subscribers.
+ *
+ * <p>Each subscriber has a few single threaded lanes with bounded queues. Events are assigned to
+ * lanes by given ordering key (e.g. graph id), so events with the same key are handled in the order
+ * they were posted. Events without a key are handled in order in the first lane. When a lane is
+ * full, poster waits for space (backpressure). Queue sizes are published as gauge {@value
+ * #QUEUE_SIZE_METRIC} tagged by subscriber class.
+ *
+ * <p>Subscriber methods annotated with {@link Synchronous} are called in the posting thread like
+ * in plain {@link EventBus}. Poster waits for asynchronous subscribers too if given predicate
+ * matches the event. As with {@link EventBus}, subscriber methods not annotated with {@link
+ * AllowConcurrentEvents} are not called concurrently.
+ */
+public class SubscriberExecutingEventBus extends EventBus implements AutoCloseable {
+
+  public static final String QUEUE_SIZE_METRIC = "termed.eventbus.queue.size";
+
+  private static final int LANES_PER_SUBSCRIBER = 4;
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+
+  private final int queueCapacity;
+  private final Function<Object, Object> orderingKey;
+  private final Predicate<Object> awaitHandling;
+  private final MeterRegistry meterRegistry;
+
+  private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+  private final Set<String> gaugedSubscriberClasses = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param queueCapacity max number of events waiting in each lane of a subscriber
+   * @param orderingKey returns key for event, events with equal keys are handled in order, may
+   * return null
+   * @param awaitHandling returns true if poster should wait until all subscribers have handled
+   * given event
+   */
+  public SubscriberExecutingEventBus(int queueCapacity,
+      Function<Object, Object> orderingKey,
+      Predicate<Object> awaitHandling,
+      MeterRegistry meterRegistry) {
+    this.queueCapacity = queueCapacity;
+    this.orderingKey = orderingKey;
+    this.awaitHandling = awaitHandling;
+    this.meterRegistry = meterRegistry;
+  }
+
+  @Override
+  public void register(Object subscriber) {
+    Registration registration = new Registration(subscriber);
+    registrations.add(registration);
+
+    String subscriberClass = subscriber.getClass().getName();
+    if (registration.lanes.length > 0 && gaugedSubscriberClasses.add(subscriberClass)) {
+      Gauge.builder(QUEUE_SIZE_METRIC, this, bus -> bus.queueSize(subscriberClass))
+          .tag("subscriber", subscriberClass)
+          .register(meterRegistry);
+    }
+  }
+
+  @Override
+  public void unregister(Object subscriber) {
+    registrations.stream()
+        .filter(r -> r.subscriber == subscriber)
+        .forEach(r -> {
+          registrations.remove(r);
+          r.shutdown();
+        });
+  }
+
+  @Override
+  public void post(Object event) {
+    Object key = orderingKey.apply(event);
+
+    List<Future<?>> pending = new ArrayList<>();
+    registrations.forEach(r -> pending.addAll(r.dispatch(event, key)));
+
+    if (awaitHandling.test(event)) {
+      for (Future<?> future : pending) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (ExecutionException e) {
+          log.error("Failed to handle " + event, e.getCause());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns number of events waiting to be handled by subscribers of given class.
+   */
+  public int queueSize(String subscriberClass) {
+    return registrations.stream()
+        .filter(r -> r.subscriber.getClass().getName().equals(subscriberClass))
+        .mapToInt(Registration::queueSize)
+        .sum();
+  }
+
+  /**
+   * Stops accepting asynchronous events and waits for queued events to be handled.
+   */
+  @Override
+  public void close() {
+    registrations.forEach(Registration::shutdown);
+    for (Registration registration : registrations) {
+      for (ThreadPoolExecutor lane : registration.lanes) {
+        try {
+          lane.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private class Registration {
+
+    private final Object subscriber;
+    private final List<Handler> handlers;
+    private final ThreadPoolExecutor[] lanes;
+
+    Registration(Object subscriber) {
+      this.subscriber = subscriber;
+      this.handlers = findHandlers(subscriber.getClass());
+      this.lanes = handlers.stream().allMatch(h -> h.sync)
+          ? new ThreadPoolExecutor[0]
+          : newLanes(subscriber.getClass());
+    }
+
+    List<Future<?>> dispatch(Object event, Object key) {
+      List<Future<?>> pending = new ArrayList<>();
+
+      for (Handler handler : handlers) {
+        if (!handler.eventType.isInstance(event)) {
+          continue;
+        }
+
+        if (handler.sync) {
+          handler.invoke(subscriber, event);
+          continue;
+        }
+
+        FutureTask<Void> task = new FutureTask<>(() -> handler.invoke(subscriber, event), null);
+        try {
+          lane(key).execute(task);
+          pending.add(task);
+        } catch (RejectedExecutionException e) {
+          log.warn("Event bus is closed, dropped {} for {}", event, subscriber.getClass());
+        }
+      }
+
+      return pending;
+    }
+
+    private ThreadPoolExecutor lane(Object key) {
+      return key == null ? lanes[0] : lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    int queueSize() {
+      return Arrays.stream(lanes).mapToInt(lane -> lane.getQueue().size()).sum();
+    }
+
+    void shutdown() {
+      Arrays.stream(lanes).forEach(ThreadPoolExecutor::shutdown);
+    }
+
+  }
+
+  private ThreadPoolExecutor[] newLanes(Class<?> subscriberClass) {
+    ThreadPoolExecutor[] lanes = new ThreadPoolExecutor[LANES_PER_SUBSCRIBER];
+
+    for (int i = 0; i < lanes.length; i++) {
+      ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<>(queueCapacity),
+          new ThreadFactoryBuilder()
+              .setNameFormat("eventbus-" + subscriberClass.getSimpleName() + "-" + i)
+              .setDaemon(true)
+              .build(),
+          new WaitForSpacePolicy());
+      lane.allowCoreThreadTimeOut(true);
+      lanes[i] = lane;
+    }
+
+    return lanes;
+  }
+
+  // finds subscribe methods from given class and its super types like EventBus does
+  private List<Handler> findHandlers(Class<?> subscriberClass) {
+    Map<String, Handler> handlers = new LinkedHashMap<>();
+
+    for (Class<?> type : TypeToken.of(subscriberClass).getTypes().rawTypes()) {
+      for (Method method : type.getDeclaredMethods()) {
+        if (method.isAnnotationPresent(Subscribe.class) && !method.isSynthetic()) {
+          Class<?>[] params = method.getParameterTypes();
+          if (params.length != 1) {
+            throw new IllegalArgumentException(
+                "Subscriber method " + method + " must have exactly one parameter");
+          }
+          method.setAccessible(true);
+          handlers.putIfAbsent(method.getName() + Arrays.toString(params), new Handler(method));
+        }
+      }
+    }
+
+    return new ArrayList<>(handlers.values());
+  }
+
+  private class Handler {
+
+    private final Method method;
+    private final Class<?> eventType;
+    private final boolean sync;
+    private final boolean concurrent;
+
+    Handler(Method method) {
+      this.method = method;
+      this.eventType = method.getParameterTypes()[0];
+      this.sync = method.isAnnotationPresent(Synchronous.class);
+      this.concurrent = method.isAnnotationPresent(AllowConcurrentEvents.class);
+    }
+
+    void invoke(Object subscriber, Object event) {
+      try {
+        if (concurrent) {
+          method.invoke(subscriber, event);
+        } else {
+          synchronized (this) {
+            method.invoke(subscriber, event);
+          }
+        }
+      } catch (InvocationTargetException e) {
+        log.error("Could not dispatch event " + event + " to " + method, e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+  }
+
+  /**
+   * Blocks the posting thread until there is space in the lane. Keeps events in order unlike
+   * running the task in the caller. Shutdown is checked while waiting, so that a poster is not left
+   * waiting on a lane that no longer takes tasks, and a task queued to a lane shut down meanwhile
+   * is taken back and rejected. Rejected tasks are not awaited by the poster.
+   */
+  private static class WaitForSpacePolicy implements RejectedExecutionHandler {
+
+    private static final long SHUTDOWN_CHECK_INTERVAL_MILLIS = 100;
+
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      try {
+        do {
+          if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+          }
+        } while (!executor.getQueue()
+            .offer(task, SHUTDOWN_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException(e);
+      }
+
+      // lane may have been shut down and drained after last check, task would never run
+      if (executor.isShutdown() && executor.getQueue().remove(task)) {
+        throw new RejectedExecutionException("Executor is shut down");
+      }
+    }
+
+  }
+
+}
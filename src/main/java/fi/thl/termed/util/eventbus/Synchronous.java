@@ -0,0 +1,17 @@
+package fi.thl.termed.util.eventbus;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link com.google.common.eventbus.Subscribe} method to be called in the posting thread
+ * by {@link SubscriberExecutingEventBus}. Used when the poster expects the event to be handled
+ * before it continues, e.g. when caches are invalidated.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Synchronous {
+
+}
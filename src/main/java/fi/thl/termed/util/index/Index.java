@@ -4,7 +4,10 @@ import fi.thl.termed.util.query.Sort;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 public interface Index<K extends Serializable, V> {
@@ -13,14 +16,38 @@ public interface Index<K extends Serializable, V> {
 
   void delete(K key);
 
+  /**
+   * Asynchronously indexes a batch of keys. Values are loaded with given loader in an indexing
+   * worker, keys without a loaded value are deleted from the index. Returned future completes with
+   * loaded values when they have been written to the index.
+   */
+  CompletableFuture<Map<K, V>> index(List<K> keys, Function<List<K>, Map<K, V>> valueLoader);
+
+  /**
+   * Blocks until all writes done so far are visible to searches.
+   */
+  void refreshBlocking();
+
   boolean isEmpty();
 
+  /**
+   * Returns true if some indexed value has no doc values in given field, e.g. because it was
+   * indexed before the field was added. Such values are not counted by {@link #countBy}.
+   */
+  boolean isMissingDocValues(String field);
+
   Stream<V> get(Specification<K, V> specification, List<Sort> sort, int max);
 
   Stream<K> getKeys(Specification<K, V> specification, List<Sort> sort, int max);
 
   long count(Specification<K, V> spec);
 
+  /**
+   * Counts values matching given specification grouped by values of given field. Values without
+   * the field are not counted, values with many values in the field are counted in each group.
+   */
+  Map<String, Long> countBy(Specification<K, V> spec, String field);
+
   Optional<V> get(K id);
 
   void close();
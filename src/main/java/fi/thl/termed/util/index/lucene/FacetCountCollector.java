@@ -0,0 +1,68 @@
+package fi.thl.termed.util.index.lucene;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+
+/**
+ * Counts matching docs for each value of a sorted or sorted set doc values field. Counts are
+ * collected by ordinal per leaf and resolved to values when leaf is done.
+ */
+public class FacetCountCollector extends SimpleCollector {
+
+  private final String field;
+  private final Map<String, Long> counts = new HashMap<>();
+
+  private SortedSetDocValues values;
+  private long[] ordCounts;
+
+  public FacetCountCollector(String field) {
+    this.field = field;
+  }
+
+  @Override
+  protected void doSetNextReader(LeafReaderContext context) throws IOException {
+    flush();
+    values = DocValues.getSortedSet(context.reader(), field);
+    ordCounts = new long[(int) values.getValueCount()];
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    if (values.advanceExact(doc)) {
+      for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS;
+          ord = values.nextOrd()) {
+        ordCounts[(int) ord]++;
+      }
+    }
+  }
+
+  private void flush() throws IOException {
+    if (values == null) {
+      return;
+    }
+    for (int ord = 0; ord < ordCounts.length; ord++) {
+      if (ordCounts[ord] > 0) {
+        counts.merge(values.lookupOrd(ord).utf8ToString(), ordCounts[ord], Long::sum);
+      }
+    }
+    values = null;
+    ordCounts = null;
+  }
+
+  @Override
+  public ScoreMode scoreMode() {
+    return ScoreMode.COMPLETE_NO_SCORES;
+  }
+
+  public Map<String, Long> getCounts() throws IOException {
+    flush();
+    return counts;
+  }
+
+}
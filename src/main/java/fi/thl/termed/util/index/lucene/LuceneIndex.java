@@ -12,8 +12,6 @@ import static org.apache.lucene.index.IndexWriterConfig.OpenMode.CREATE_OR_APPEN
 
 import fi.thl.termed.util.Converter;
 import fi.thl.termed.util.collect.ListUtils;
-import fi.thl.termed.util.collect.StreamUtils;
-import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.concurrent.ExecutorUtils;
 import fi.thl.termed.util.index.Index;
 import fi.thl.termed.util.query.LuceneSortField;
@@ -24,23 +22,34 @@ import java.io.Serializable;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
-import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocValuesFieldExistsQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
@@ -54,11 +63,15 @@ import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
 
+  private static final int INDEXING_THREADS = 4;
+  private static final int INDEXING_QUEUE_CAPACITY = 16;
+
   private final Logger log = LoggerFactory.getLogger(getClass());
 
   private Converter<V, Document> documentConverter;
@@ -88,7 +101,8 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
       throw new LuceneException(e);
     }
 
-    this.indexingExecutor = ExecutorUtils.newScheduledThreadPool(1);
+    this.indexingExecutor = ExecutorUtils.newBoundedThreadPool(
+        INDEXING_THREADS, INDEXING_QUEUE_CAPACITY);
     this.scheduledExecutorService = ExecutorUtils.newScheduledThreadPool(5);
 
     this.scheduledExecutorService.scheduleAtFixedRate(this::refresh, 0, 1, TimeUnit.SECONDS);
@@ -109,6 +123,8 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
 
     Document document = requireNonNull(documentConverter.apply(value));
     document.add(new StringField(documentIdTerm.field(), documentIdTerm.text(), Field.Store.YES));
+    document.add(new BinaryDocValuesField(documentIdTerm.field(),
+        new BytesRef(documentIdTerm.text())));
 
     try {
       writer.updateDocument(documentIdTerm, document);
@@ -117,6 +133,25 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
     }
   }
 
+  @Override
+  public CompletableFuture<Map<K, V>> index(List<K> keys,
+      Function<List<K>, Map<K, V>> valueLoader) {
+    return CompletableFuture.supplyAsync(() -> {
+      Map<K, V> values = valueLoader.apply(keys);
+
+      for (K key : keys) {
+        V value = values.get(key);
+        if (value != null) {
+          index(key, value);
+        } else {
+          delete(key);
+        }
+      }
+
+      return values;
+    }, indexingExecutor);
+  }
+
   @Override
   public Stream<V> get(Specification<K, V> specification,
       List<fi.thl.termed.util.query.Sort> sort, int max) {
@@ -146,8 +181,7 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
     try {
       searcher = tryAcquire();
       Query query = ((LuceneSpecification<K, V>) specification).luceneQuery();
-      return query(searcher, query, max, sort, singleton(DOCUMENT_ID),
-          d -> keyConverter.applyInverse(d.get(DOCUMENT_ID)));
+      return queryKeys(searcher, query, max, sort);
     } catch (IOException e) {
       tryRelease(searcher);
       throw new LuceneException(e);
@@ -170,6 +204,22 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
     }
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> specification, String field) {
+    IndexSearcher searcher = null;
+    try {
+      searcher = tryAcquire();
+      FacetCountCollector facetCountCollector = new FacetCountCollector(field);
+      Query query = ((LuceneSpecification<K, V>) specification).luceneQuery();
+      searcher.search(query, facetCountCollector);
+      return facetCountCollector.getCounts();
+    } catch (IOException e) {
+      throw new LuceneException(e);
+    } finally {
+      tryRelease(searcher);
+    }
+  }
+
   @Override
   public boolean isEmpty() {
     IndexSearcher searcher = null;
@@ -185,6 +235,20 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
     }
   }
 
+  @Override
+  public boolean isMissingDocValues(String field) {
+    IndexSearcher searcher = null;
+    try {
+      searcher = tryAcquire();
+      return searcher.count(new MatchAllDocsQuery()) >
+          searcher.count(new DocValuesFieldExistsQuery(field));
+    } catch (IOException e) {
+      throw new LuceneException(e);
+    } finally {
+      tryRelease(searcher);
+    }
+  }
+
   @Override
   public Optional<V> get(K id) {
     IndexSearcher searcher = null;
@@ -211,20 +275,133 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
 
     long start = System.currentTimeMillis();
 
-    Stream<Integer> docs;
+    Stream<Document> documents;
 
-    if (ListUtils.isNullOrEmpty(sort) && (max < 0 || max == Integer.MAX_VALUE)) {
+    if (isUnsortedAll(sort, max)) {
       SimpleAllCollector c = new SimpleAllCollector();
       searcher.search(query, c);
-      docs = c.getDocs().stream();
+      documents = c.getLeafDocs().stream()
+          .flatMap(leafDocs -> loadDocuments(leafDocs, fieldsToLoad));
     } else {
       TopFieldDocs topDocs = searcher.search(query, max > 0 ? max : Integer.MAX_VALUE, sort(sort));
-      docs = Arrays.stream(topDocs.scoreDocs).map(sd -> sd.doc);
+      documents = Arrays.stream(topDocs.scoreDocs)
+          .map(toUnchecked(sd -> searcher.doc(sd.doc, fieldsToLoad)));
     }
 
-    return toStreamWithTimeout(docs
-            .map(toUnchecked(doc -> searcher.doc(doc, fieldsToLoad)))
-            .map(documentDeserializer)
+    return withRelease(documents.map(documentDeserializer), searcher, query, start);
+  }
+
+  // reads keys from document id doc values
+  private Stream<K> queryKeys(IndexSearcher searcher, Query query, int max,
+      List<fi.thl.termed.util.query.Sort> sort) throws IOException {
+
+    long start = System.currentTimeMillis();
+
+    Stream<String> documentIds;
+
+    if (isUnsortedAll(sort, max)) {
+      SimpleAllCollector c = new SimpleAllCollector();
+      searcher.search(query, c);
+      documentIds = c.getLeafDocs().stream().flatMap(toUnchecked(leafDocs ->
+          readDocumentIds(leafDocs.getContext(), leafDocs.getDocs())));
+    } else {
+      TopFieldDocs topDocs = searcher.search(query, max > 0 ? max : Integer.MAX_VALUE, sort(sort));
+      documentIds = readDocumentIds(searcher, Arrays.stream(topDocs.scoreDocs)
+          .mapToInt(sd -> sd.doc)
+          .toArray());
+    }
+
+    return withRelease(documentIds.map(keyConverter::applyInverse), searcher, query, start);
+  }
+
+  // reads ids of given global docs, doc values are read in doc id order and results are returned
+  // in the original order. Hits are sorted as doc id and position packed in a primitive long to
+  // avoid boxing per hit.
+  private Stream<String> readDocumentIds(IndexSearcher searcher, int[] docs) throws IOException {
+    long[] sortedHits = new long[docs.length];
+    for (int i = 0; i < docs.length; i++) {
+      sortedHits[i] = (long) docs[i] << 32 | i;
+    }
+    Arrays.sort(sortedHits);
+
+    String[] documentIds = new String[docs.length];
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+    int i = 0;
+    while (i < sortedHits.length) {
+      LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(hitDoc(sortedHits[i]), leaves));
+      LeafReader reader = leaf.reader();
+      BinaryDocValues values = DocValues.getBinary(reader, DOCUMENT_ID);
+      int leafEnd = leaf.docBase + reader.maxDoc();
+
+      for (; i < sortedHits.length && hitDoc(sortedHits[i]) < leafEnd; i++) {
+        documentIds[(int) sortedHits[i]] =
+            readDocumentId(reader, values, hitDoc(sortedHits[i]) - leaf.docBase);
+      }
+    }
+
+    return Arrays.stream(documentIds);
+  }
+
+  private static int hitDoc(long hit) {
+    return (int) (hit >>> 32);
+  }
+
+  // reads ids of given leaf local docs (in increasing order)
+  private Stream<String> readDocumentIds(LeafReaderContext leaf, IntStream docs)
+      throws IOException {
+    LeafReader reader = leaf.reader();
+    BinaryDocValues values = DocValues.getBinary(reader, DOCUMENT_ID);
+    return docs.mapToObj(doc -> {
+      try {
+        return readDocumentId(reader, values, doc);
+      } catch (IOException e) {
+        throw new LuceneException(e);
+      }
+    });
+  }
+
+  // reads id of a leaf local doc from doc values if available, falls back to stored id for
+  // documents indexed without doc values
+  private String readDocumentId(LeafReader reader, BinaryDocValues values, int doc)
+      throws IOException {
+    return values.advanceExact(doc)
+        ? values.binaryValue().utf8ToString()
+        : reader.document(doc, singleton(DOCUMENT_ID)).get(DOCUMENT_ID);
+  }
+
+  private boolean isUnsortedAll(List<fi.thl.termed.util.query.Sort> sort, int max) {
+    return ListUtils.isNullOrEmpty(sort) && (max < 0 || max == Integer.MAX_VALUE);
+  }
+
+  // loads documents of a leaf in doc id order, reading stored fields sequentially if possible
+  private Stream<Document> loadDocuments(SimpleAllCollector.LeafDocs leafDocs,
+      Set<String> fieldsToLoad) {
+    LeafReader reader = leafDocs.getContext().reader();
+    StoredFieldsReader fieldsReader = reader instanceof CodecReader
+        ? ((CodecReader) reader).getFieldsReader().getMergeInstance()
+        : null;
+
+    return leafDocs.getDocs().mapToObj(doc -> {
+      DocumentStoredFieldVisitor visitor = fieldsToLoad == null
+          ? new DocumentStoredFieldVisitor()
+          : new DocumentStoredFieldVisitor(fieldsToLoad);
+      try {
+        if (fieldsReader != null) {
+          fieldsReader.visitDocument(doc, visitor);
+        } else {
+          reader.document(doc, visitor);
+        }
+      } catch (IOException e) {
+        throw new LuceneException(e);
+      }
+      return visitor.getDocument();
+    });
+  }
+
+  private <E> Stream<E> withRelease(Stream<E> results, IndexSearcher searcher, Query query,
+      long start) {
+    return toStreamWithTimeout(results
             .onClose(() -> tryRelease(searcher))
             .onClose(() -> {
               if (log.isTraceEnabled()) {
@@ -275,6 +452,7 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
     }
   }
 
+  @Override
   public void refreshBlocking() {
     try {
       searcherManager.maybeRefreshBlocking();
@@ -291,59 +469,23 @@ public class LuceneIndex<K extends Serializable, V> implements Index<K, V> {
     }
   }
 
+  @Override
   public void close() {
     log.debug("Closing {}", getClass().getSimpleName());
 
     try {
+      // let running indexing tasks finish before closing the writer
       indexingExecutor.shutdown();
+      indexingExecutor.awaitTermination(1, TimeUnit.MINUTES);
       scheduledExecutorService.shutdown();
       searcherManager.close();
       writer.close();
     } catch (IOException e) {
       throw new LuceneException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LuceneException(e);
     }
   }
 
-  private class IndexingTask implements Callable<Void> {
-
-    private Supplier<Stream<K>> keyStreamProvider;
-    private Function<K, Optional<V>> valueProvider;
-
-    IndexingTask(Supplier<Stream<K>> keyStreamProvider, Function<K, Optional<V>> valueProvider) {
-      this.keyStreamProvider = keyStreamProvider;
-      this.valueProvider = valueProvider;
-    }
-
-    @Override
-    public Void call() {
-      log.info("Indexing");
-
-      try (Stream<K> keyStream = keyStreamProvider.get()) {
-        StreamUtils.zipIndex(keyStream, Tuple::of).forEach(t -> {
-
-          try {
-            Optional<V> value = valueProvider.apply(t._1);
-
-            if (value.isPresent()) {
-              index(t._1, value.get());
-            } else {
-              delete(t._1);
-            }
-          } catch (Throwable ex) {
-            log.error("", ex);
-            throw ex;
-          }
-
-          if (t._2 % 1000 == 0) {
-            log.debug("Indexed {} values", t._2);
-          }
-        });
-      }
-
-      log.info("Done");
-      return null;
-    }
-
-  }
-
 }
@@ -1,24 +1,32 @@
 package fi.thl.termed.util.index.lucene;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.ArrayUtil;
 
+/**
+ * Collects all matching docs unsorted. Docs are collected into primitive arrays, one per leaf, so
+ * that results can be loaded segment by segment in doc id order.
+ */
 public class SimpleAllCollector extends SimpleCollector {
 
-  private int docBase = 0;
-  private List<Integer> docs = new ArrayList<>();
+  private List<LeafDocs> leafDocs = new ArrayList<>();
+  private LeafDocs current;
 
   @Override
   protected void doSetNextReader(LeafReaderContext context) {
-    docBase = context.docBase;
+    current = new LeafDocs(context);
+    leafDocs.add(current);
   }
 
   @Override
   public void collect(int doc) {
-    docs.add(docBase + doc);
+    current.add(doc);
   }
 
   @Override
@@ -26,8 +34,42 @@ public class SimpleAllCollector extends SimpleCollector {
     return ScoreMode.COMPLETE_NO_SCORES;
   }
 
-  public List<Integer> getDocs() {
-    return docs;
+  /**
+   * @return collected docs for each leaf, leaves without matches are left out
+   */
+  public List<LeafDocs> getLeafDocs() {
+    leafDocs.removeIf(l -> l.size == 0);
+    return leafDocs;
+  }
+
+  public static class LeafDocs {
+
+    private final LeafReaderContext context;
+    private int[] docs = new int[16];
+    private int size = 0;
+
+    LeafDocs(LeafReaderContext context) {
+      this.context = context;
+    }
+
+    private void add(int doc) {
+      if (size == docs.length) {
+        docs = ArrayUtil.grow(docs, size + 1);
+      }
+      docs[size++] = doc;
+    }
+
+    public LeafReaderContext getContext() {
+      return context;
+    }
+
+    /**
+     * @return leaf local doc ids in increasing order
+     */
+    public IntStream getDocs() {
+      return Arrays.stream(docs, 0, size);
+    }
+
   }
 
 }
@@ -4,7 +4,6 @@ import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
-import org.apache.jena.graph.impl.LiteralLabel;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 
@@ -67,25 +66,10 @@ public class JenaRdfModel implements RdfModel {
     RdfResource resource = new RdfResource(
         subject.isURI() ? subject.getURI() : subject.getBlankNodeLabel());
 
-    for (Node predicate : predicates(subject)) {
-      for (LiteralLabel literal : literals(objects(subject, predicate))) {
-        resource.addLiteral(predicate.getURI(), literal.language(), literal.getLexicalForm());
-      }
-      for (String uri : uris(objects(subject, predicate))) {
-        resource.addObject(predicate.getURI(), uri);
-      }
-    }
-    return resource;
-  }
-
-  private List<LiteralLabel> literals(List<Node> nodes) {
-    return nodes.stream().filter(Node::isLiteral).map(Node::getLiteral)
-        .collect(Collectors.toList());
-  }
+    graph.find(subject, Node.ANY, Node.ANY)
+        .forEachRemaining(triple -> SubjectGroupingStreamRDF.addTriple(resource, triple));
 
-  private List<String> uris(List<Node> nodes) {
-    return nodes.stream().filter(Node::isURI).map(Node::getURI)
-        .collect(Collectors.toList());
+    return resource;
   }
 
   private List<Node> subjects() {
@@ -107,22 +91,6 @@ public class JenaRdfModel implements RdfModel {
     return triples.stream().map(Triple::getSubject).collect(Collectors.toList());
   }
 
-  private List<Node> predicates(Node subject) {
-    return predicates(graph.find(subject, Node.ANY, Node.ANY).toList());
-  }
-
-  private List<Node> predicates(List<Triple> triples) {
-    return triples.stream().map(Triple::getPredicate).collect(Collectors.toList());
-  }
-
-  private List<Node> objects(Node subject, Node predicate) {
-    return objects(graph.find(subject, predicate, Node.ANY).toList());
-  }
-
-  private List<Node> objects(List<Triple> triples) {
-    return triples.stream().map(Triple::getObject).collect(Collectors.toList());
-  }
-
   @Override
   public JenaRdfModel save(List<RdfResource> resources) {
     for (RdfResource resource : resources) {
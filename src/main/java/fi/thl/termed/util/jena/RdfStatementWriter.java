@@ -0,0 +1,103 @@
+package fi.thl.termed.util.jena;
+
+import fi.thl.termed.util.rdf.RdfStatementSink;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Objects;
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+import org.apache.jena.riot.out.NodeFormatterTTL;
+import org.apache.jena.riot.system.PrefixMapFactory;
+
+/**
+ * Writes statements directly as N-Triples or Turtle without creating Jena nodes or triples. Turtle
+ * output groups consecutive statements of the same subject.
+ */
+public class RdfStatementWriter implements RdfStatementSink, AutoCloseable {
+
+  private final AWriter out;
+  private final NodeFormatter formatter;
+  private final boolean turtle;
+
+  private String currentSubject;
+
+  public RdfStatementWriter(OutputStream out, Map<String, String> namespacePrefixes, Lang lang) {
+    if (!Lang.NTRIPLES.equals(lang) && !Lang.TURTLE.equals(lang)) {
+      throw new IllegalArgumentException("Unsupported RDF language: " + lang);
+    }
+
+    this.out = IO.wrapUTF8(out);
+    this.turtle = Lang.TURTLE.equals(lang);
+
+    if (turtle) {
+      NodeFormatter prefixFormatter = new NodeFormatterNT();
+      namespacePrefixes.forEach((prefix, uri) -> {
+        this.out.print("@prefix " + prefix + ": ");
+        prefixFormatter.formatURI(this.out, uri);
+        this.out.print(" .\n");
+      });
+      this.formatter = new NodeFormatterTTL(null, PrefixMapFactory.create(namespacePrefixes));
+    } else {
+      this.formatter = new NodeFormatterNT();
+    }
+  }
+
+  @Override
+  public void resource(String subjectUri, String predicateUri, String objectUri) {
+    writeSubjectAndPredicate(subjectUri, predicateUri);
+    formatter.formatURI(out, objectUri);
+    endStatement();
+  }
+
+  @Override
+  public void literal(String subjectUri, String predicateUri, String lexicalForm, String lang) {
+    writeSubjectAndPredicate(subjectUri, predicateUri);
+    if (lang == null || lang.isEmpty()) {
+      formatter.formatLitString(out, lexicalForm);
+    } else {
+      formatter.formatLitLang(out, lexicalForm, lang);
+    }
+    endStatement();
+  }
+
+  private void writeSubjectAndPredicate(String subjectUri, String predicateUri) {
+    if (!turtle) {
+      formatter.formatURI(out, subjectUri);
+      out.print(' ');
+    } else if (Objects.equals(currentSubject, subjectUri)) {
+      out.print(" ;\n    ");
+    } else {
+      if (currentSubject != null) {
+        out.print(" .\n");
+      }
+      out.print('\n');
+      formatter.formatURI(out, subjectUri);
+      out.print("\n    ");
+      currentSubject = subjectUri;
+    }
+
+    formatter.formatURI(out, predicateUri);
+    out.print(' ');
+  }
+
+  private void endStatement() {
+    if (!turtle) {
+      out.print(" .\n");
+    }
+  }
+
+  /**
+   * Ends last statement and flushes written output. Underlying output stream is not closed.
+   */
+  @Override
+  public void close() {
+    if (turtle && currentSubject != null) {
+      out.print(" .\n");
+    }
+    out.flush();
+  }
+
+}
@@ -0,0 +1,89 @@
+package fi.thl.termed.util.jena;
+
+import com.google.common.base.Preconditions;
+import fi.thl.termed.util.rdf.RdfResource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+/**
+ * StreamRDF that collects triples into resources and passes them to given consumer in chunks.
+ * Triples are expected to be grouped by subject (e.g. sorted N-Triples) as a chunk is passed on
+ * only when the subject changes. Triples of a subject may repeat later in the input as long as the
+ * subject's chunk is not yet passed on. A subject repeating after that is rejected with {@link
+ * RiotException} and the chunk being read is dropped, chunks passed on before are not undone.
+ * Subjects of passed chunks are remembered to detect this.
+ */
+public class SubjectGroupingStreamRDF extends StreamRDFBase {
+
+  private final int chunkSize;
+  private final Consumer<List<RdfResource>> consumer;
+
+  private Map<Node, RdfResource> chunk = new LinkedHashMap<>();
+  private Node currentSubject;
+
+  private Set<Node> passedSubjects = new HashSet<>();
+
+  public SubjectGroupingStreamRDF(int chunkSize, Consumer<List<RdfResource>> consumer) {
+    Preconditions.checkArgument(chunkSize > 0, "Illegal chunk size: " + chunkSize);
+    this.chunkSize = chunkSize;
+    this.consumer = consumer;
+  }
+
+  @Override
+  public void triple(Triple triple) {
+    Node subject = triple.getSubject();
+
+    if (!subject.equals(currentSubject) && !chunk.containsKey(subject)) {
+      if (passedSubjects.contains(subject)) {
+        // drop the chunk being read, parser calls finish also on error
+        chunk.clear();
+        throw new RiotException("Triples are not grouped by subject, " + subject
+            + " appears again after its triples were passed on");
+      }
+      if (chunk.size() >= chunkSize) {
+        flush();
+      }
+    }
+
+    currentSubject = subject;
+
+    addTriple(chunk.computeIfAbsent(subject, s ->
+        new RdfResource(s.isURI() ? s.getURI() : s.getBlankNodeLabel())), triple);
+  }
+
+  @Override
+  public void finish() {
+    flush();
+  }
+
+  private void flush() {
+    if (!chunk.isEmpty()) {
+      List<RdfResource> resources = new ArrayList<>(chunk.values());
+      passedSubjects.addAll(chunk.keySet());
+      chunk = new LinkedHashMap<>();
+      consumer.accept(resources);
+    }
+  }
+
+  static void addTriple(RdfResource resource, Triple triple) {
+    Node predicate = triple.getPredicate();
+    Node object = triple.getObject();
+
+    if (object.isLiteral()) {
+      resource.addLiteral(predicate.getURI(),
+          object.getLiteralLanguage(), object.getLiteralLexicalForm());
+    } else if (object.isURI()) {
+      resource.addObject(predicate.getURI(), object.getURI());
+    }
+  }
+
+}
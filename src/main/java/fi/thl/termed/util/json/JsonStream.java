@@ -22,7 +22,20 @@ public final class JsonStream {
 
   public static <T> Stream<T> readArray(Gson gson, Class<T> valueType, InputStream in) {
     JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+    return readArray(gson, valueType, reader).onClose(() -> {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        throw new JsonIOException(e);
+      }
+    });
+  }
 
+  /**
+   * Lazily reads an array starting at the current position of given reader. Values are read as the
+   * stream is consumed. Closing the stream reads the end of the array but leaves the reader open.
+   */
+  public static <T> Stream<T> readArray(Gson gson, Class<T> valueType, JsonReader reader) {
     try {
       reader.beginArray();
     } catch (IOException e) {
@@ -46,7 +59,6 @@ public final class JsonStream {
     }).onClose(() -> {
       try {
         reader.endArray();
-        reader.close();
       } catch (IOException e) {
         throw new JsonIOException(e);
       }
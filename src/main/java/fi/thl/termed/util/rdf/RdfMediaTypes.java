@@ -9,12 +9,18 @@ public final class RdfMediaTypes {
   public static final String LD_JSON_VALUE = "application/ld+json;charset=UTF-8";
   public static final String TURTLE_VALUE = "text/turtle;charset=UTF-8";
   public static final String N3_VALUE = "text/n3;charset=UTF-8";
+  public static final String SPARQL_RESULTS_JSON_VALUE =
+      "application/sparql-results+json;charset=UTF-8";
+  public static final String SPARQL_RESULTS_XML_VALUE =
+      "application/sparql-results+xml;charset=UTF-8";
 
   public static final MediaType N_TRIPLES = MediaType.valueOf(N_TRIPLES_VALUE);
   public static final MediaType RDF_XML = MediaType.valueOf(RDF_XML_VALUE);
   public static final MediaType LD_JSON = MediaType.valueOf(LD_JSON_VALUE);
   public static final MediaType TURTLE = MediaType.valueOf(TURTLE_VALUE);
   public static final MediaType N3 = MediaType.valueOf(N3_VALUE);
+  public static final MediaType SPARQL_RESULTS_JSON = MediaType.valueOf(SPARQL_RESULTS_JSON_VALUE);
+  public static final MediaType SPARQL_RESULTS_XML = MediaType.valueOf(SPARQL_RESULTS_XML_VALUE);
 
   private RdfMediaTypes() {
   }
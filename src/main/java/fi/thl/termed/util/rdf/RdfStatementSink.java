@@ -0,0 +1,15 @@
+package fi.thl.termed.util.rdf;
+
+/**
+ * Receives RDF statements as plain strings. Subjects, predicates and object resources are URIs.
+ */
+public interface RdfStatementSink {
+
+  void resource(String subjectUri, String predicateUri, String objectUri);
+
+  /**
+   * @param lang language tag of the literal, empty for a plain literal
+   */
+  void literal(String subjectUri, String predicateUri, String lexicalForm, String lang);
+
+}
@@ -14,6 +14,7 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -241,4 +242,13 @@ public abstract class AbstractRepository<K extends Serializable, V extends Ident
     }
   }
 
+  /**
+   * Values of this repository have no generic field accessors, subclasses that know their fields
+   * may override to group values by field.
+   */
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> spec, String field, User user) {
+    throw new UnsupportedOperationException("Counting by field " + field + " is not supported");
+  }
+
 }
@@ -1,31 +1,47 @@
 package fi.thl.termed.util.service;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.util.concurrent.Striped;
 import fi.thl.termed.domain.User;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * Block allocating (hi/lo) sequence service. Reserves ranges of values from delegate and hands out
+ * values from memory until the range is used. Values in a range are advanced without locking,
+ * allocation of new ranges is synchronized per sequence. Delegate is expected to be thread safe
+ * on its own, e.g. transactional.
+ */
 public class CachedNamedSequenceService<K extends Serializable> implements NamedSequenceService<K> {
 
   private static final long DEFAULT_MIN_INCREMENT = 1000L;
+  private static final int LOCK_STRIPES = 64;
+
+  private final NamedSequenceService<K> delegate;
+  private final long minIncrement;
 
-  private NamedSequenceService<K> delegate;
-  private long minIncrement;
-  private Map<K, Long> cache = new HashMap<>();
+  private final ConcurrentMap<K, Range> ranges = new ConcurrentHashMap<>();
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
 
   public CachedNamedSequenceService(NamedSequenceService<K> delegate) {
     this(delegate, DEFAULT_MIN_INCREMENT);
   }
 
   public CachedNamedSequenceService(NamedSequenceService<K> delegate, long minIncrement) {
+    checkArgument(minIncrement > 0);
     this.delegate = delegate;
     this.minIncrement = minIncrement;
   }
 
   @Override
   public Long get(K sequenceId, User user) {
-    Long actual = delegate.get(sequenceId, user);
-    return cache.computeIfAbsent(sequenceId, (seq) -> actual);
+    Range range = ranges.get(sequenceId);
+    return range != null ? range.next.get() : delegate.get(sequenceId, user);
   }
 
   @Override
@@ -35,30 +51,113 @@ public class CachedNamedSequenceService<K extends Serializable> implements Named
 
   @Override
   public Long getAndAdvance(K sequenceId, Long increment, User user) {
-    long actual = delegate.get(sequenceId, user);
-    long cached = cache.computeIfAbsent(sequenceId, (seq) -> actual);
+    checkArgument(increment > 0);
+
+    Range range = ranges.get(sequenceId);
+    long value = range != null ? range.advance(increment) : -1;
+
+    return value >= 0 ? value
+        : runLocked(sequenceId, () -> allocateAndAdvance(sequenceId, increment, user));
+  }
 
-    long next = cached + increment;
+  // called with sequence lock held
+  private long allocateAndAdvance(K sequenceId, long increment, User user) {
+    Range previous = ranges.get(sequenceId);
 
-    if (next > actual) {
-      delegate.getAndAdvance(sequenceId, Math.max(increment, minIncrement), user);
+    // range may have been replaced while waiting for the lock
+    long value = previous != null ? previous.advance(increment) : -1;
+    if (value >= 0) {
+      return value;
     }
 
-    cache.put(sequenceId, next);
+    long size = Math.max(increment, minIncrement);
+    long start = delegate.getAndAdvance(sequenceId, size, user);
 
-    return cached;
+    // delegate may be behind previous range e.g. if allocating transaction was rolled back
+    if (previous != null && start < previous.end) {
+      start = previous.end;
+      delegate.set(sequenceId, start + size, user);
+    }
+
+    ranges.put(sequenceId, new Range(start + increment, start + size));
+
+    return start;
   }
 
   @Override
   public void set(K sequenceId, Long value, User user) {
-    cache.remove(sequenceId);
-    delegate.set(sequenceId, value, user);
+    runLocked(sequenceId, () -> {
+      Range range = ranges.remove(sequenceId);
+      if (range != null) {
+        range.release();
+      }
+      delegate.set(sequenceId, value, user);
+      return null;
+    });
   }
 
+  /**
+   * Returns unused values of each range to delegate if delegate has not been advanced by others
+   * after the range was reserved.
+   */
+  @Override
   public void close() {
     User cacheDestructor = User.newAdmin("cache-destructor");
-    // backtrack delegate to actual latest value
-    cache.forEach((key, value) -> delegate.set(key, value, cacheDestructor));
+
+    ranges.keySet().forEach(sequenceId -> runLocked(sequenceId, () -> {
+      Range range = ranges.remove(sequenceId);
+      if (range != null) {
+        long unused = range.release();
+        if (delegate.get(sequenceId, cacheDestructor) == range.end) {
+          delegate.set(sequenceId, unused, cacheDestructor);
+        }
+      }
+      return null;
+    }));
+  }
+
+  private <E> E runLocked(K sequenceId, Supplier<E> supplier) {
+    Lock lock = locks.get(sequenceId);
+    lock.lock();
+    try {
+      return supplier.get();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static class Range {
+
+    private final AtomicLong next;
+    private final long end;
+
+    Range(long next, long end) {
+      this.next = new AtomicLong(next);
+      this.end = end;
+    }
+
+    /**
+     * @return current value and advances by increment, or -1 if range has not enough values
+     */
+    long advance(long increment) {
+      while (true) {
+        long current = next.get();
+        if (current + increment > end) {
+          return -1;
+        }
+        if (next.compareAndSet(current, current + increment)) {
+          return current;
+        }
+      }
+    }
+
+    /**
+     * Marks all values used and returns the first unused value.
+     */
+    long release() {
+      return next.getAndSet(end);
+    }
+
   }
 
 }
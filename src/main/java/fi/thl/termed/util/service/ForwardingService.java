@@ -5,6 +5,7 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -60,6 +61,11 @@ public abstract class ForwardingService<K extends Serializable, V> implements Se
     return delegate.count(spec, user);
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> spec, String field, User user) {
+    return delegate.countBy(spec, field, user);
+  }
+
   @Override
   public boolean exists(K key, User user) {
     return delegate.exists(key, user);
@@ -9,6 +9,7 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
@@ -95,6 +96,12 @@ public class ProfilingService<K extends Serializable, V extends Identifiable<K>>
         "Counted with %s (user: %s)", spec, user.getUsername());
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> spec, String field, User user) {
+    return profile(() -> delegate.countBy(spec, field, user),
+        "Counted by %s with %s (user: %s)", field, spec, user.getUsername());
+  }
+
   @Override
   public boolean exists(K key, User user) {
     return profile(() -> delegate.exists(key, user),
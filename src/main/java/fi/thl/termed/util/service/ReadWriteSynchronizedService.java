@@ -5,6 +5,7 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -80,6 +81,11 @@ public class ReadWriteSynchronizedService<K extends Serializable, V> implements
     return readLock(() -> delegate.count(spec, user));
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> spec, String field, User user) {
+    return readLock(() -> delegate.countBy(spec, field, user));
+  }
+
   @Override
   public boolean exists(K key, User user) {
     return readLock(() -> delegate.exists(key, user));
@@ -5,6 +5,7 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -27,6 +28,11 @@ public interface Service<K extends Serializable, V> {
 
   long count(Specification<K, V> spec, User user);
 
+  /**
+   * Counts values grouped by values of given field. Values without the field are not counted.
+   */
+  Map<String, Long> countBy(Specification<K, V> spec, String field, User user);
+
   boolean exists(K key, User user);
 
   Optional<V> get(K key, User user, Select... selects);
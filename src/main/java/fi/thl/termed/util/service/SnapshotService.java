@@ -0,0 +1,261 @@
+package fi.thl.termed.util.service;
+
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import fi.thl.termed.domain.AppRole;
+import fi.thl.termed.domain.GraphRole;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.event.InvalidateCachesEvent;
+import fi.thl.termed.util.collect.Identifiable;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.eventbus.Synchronous;
+import fi.thl.termed.util.query.MatchAll;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.query.Specification;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Serves reads from an immutable, versioned snapshot of all values. Each write publishes a new
+ * snapshot version once the write is committed. Readers take the current snapshot without locking,
+ * values visible to a user are loaded from delegate once per snapshot version and shared by all
+ * users with the same roles.
+ *
+ * <p>Reads in a transaction that has written through this service go to delegate so that the
+ * transaction sees its own uncommitted changes. Specifications are evaluated in memory, selects
+ * are ignored as values are always loaded fully.
+ */
+public class SnapshotService<K extends Serializable, V extends Identifiable<K>>
+    implements Service<K, V> {
+
+  private static final int MAX_VIEWS_PER_SNAPSHOT = 1000;
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final Service<K, V> delegate;
+
+  private final AtomicReference<Snapshot<K, V>> snapshot =
+      new AtomicReference<>(new Snapshot<>(0));
+
+  // loading views and writing are mutually exclusive, so views are never loaded from
+  // partially written values, reading a loaded view never waits for the lock
+  private final Lock loadLock;
+  private final Lock writeLock;
+
+  public SnapshotService(Service<K, V> delegate) {
+    this.delegate = delegate;
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    this.loadLock = lock.readLock();
+    this.writeLock = lock.writeLock();
+  }
+
+  /**
+   * Returns version of the current snapshot. Version changes when a write is committed, so it can
+   * be used to key values derived from the snapshot.
+   */
+  public long getVersion() {
+    return snapshot.get().version;
+  }
+
+  @Subscribe
+  @Synchronous
+  public void clearSnapshotOn(InvalidateCachesEvent e) {
+    publishAfterCommit();
+  }
+
+  @Override
+  public void save(Stream<V> values, SaveMode mode, WriteOptions opts, User user) {
+    write(() -> delegate.save(values, mode, opts, user));
+  }
+
+  @Override
+  public K save(V value, SaveMode mode, WriteOptions opts, User user) {
+    return write(() -> delegate.save(value, mode, opts, user));
+  }
+
+  @Override
+  public void delete(Stream<K> keys, WriteOptions opts, User user) {
+    write(() -> delegate.delete(keys, opts, user));
+  }
+
+  @Override
+  public void delete(K key, WriteOptions opts, User user) {
+    write(() -> delegate.delete(key, opts, user));
+  }
+
+  @Override
+  public void saveAndDelete(Stream<V> saves, Stream<K> deletes, SaveMode mode, WriteOptions opts,
+      User user) {
+    write(() -> delegate.saveAndDelete(saves, deletes, mode, opts, user));
+  }
+
+  private void write(Runnable runnable) {
+    write(() -> {
+      runnable.run();
+      return null;
+    });
+  }
+
+  private <E> E write(Supplier<E> supplier) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()
+        && !TransactionSynchronizationManager.hasResource(this)) {
+      // mark transaction as written so that its reads bypass the snapshot
+      TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+    }
+
+    writeLock.lock();
+    try {
+      return supplier.get();
+    } finally {
+      writeLock.unlock();
+      publishAfterCommit();
+    }
+  }
+
+  private void publishAfterCommit() {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+              TransactionSynchronizationManager.unbindResourceIfPossible(SnapshotService.this);
+              publish();
+            }
+          });
+    } else {
+      publish();
+    }
+  }
+
+  private void publish() {
+    Snapshot<K, V> published = snapshot.updateAndGet(s -> new Snapshot<>(s.version + 1));
+    log.trace("Published snapshot version {}", published.version);
+  }
+
+  @Override
+  public Stream<K> keys(Query<K, V> query, User user) {
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      return delegate.keys(query, user);
+    }
+    return view(user).values.stream()
+        .filter(v -> query.getWhere().test(v.identifier(), v))
+        .map(Identifiable::identifier);
+  }
+
+  @Override
+  public Stream<V> values(Query<K, V> query, User user) {
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      return delegate.values(query, user);
+    }
+    return view(user).values.stream()
+        .filter(v -> query.getWhere().test(v.identifier(), v));
+  }
+
+  @Override
+  public long count(Specification<K, V> spec, User user) {
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      return delegate.count(spec, user);
+    }
+    return view(user).values.stream()
+        .filter(v -> spec.test(v.identifier(), v))
+        .count();
+  }
+
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> spec, String field, User user) {
+    return delegate.countBy(spec, field, user);
+  }
+
+  @Override
+  public boolean exists(K key, User user) {
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      return delegate.exists(key, user);
+    }
+    return view(user).valuesByKey.containsKey(key);
+  }
+
+  @Override
+  public Optional<V> get(K key, User user, Select... selects) {
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      return delegate.get(key, user, selects);
+    }
+    return Optional.ofNullable(view(user).valuesByKey.get(key));
+  }
+
+  private View<K, V> view(User user) {
+    Snapshot<K, V> current = snapshot.get();
+    try {
+      return current.views.get(View.key(user), () -> loadView(current.version, user));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private View<K, V> loadView(long version, User user) {
+    loadLock.lock();
+    try {
+      log.trace("Load snapshot version {} view for {}", version, user.getUsername());
+      return new View<>(toImmutableListAndClose(
+          delegate.values(new Query<>(new MatchAll<>()), user)));
+    } finally {
+      loadLock.unlock();
+    }
+  }
+
+  private static class Snapshot<K extends Serializable, V extends Identifiable<K>> {
+
+    private final long version;
+
+    // views are keyed by user roles as values visible to a user depend only on roles
+    private final Cache<Tuple2<AppRole, ImmutableSet<GraphRole>>, View<K, V>> views =
+        CacheBuilder.newBuilder().maximumSize(MAX_VIEWS_PER_SNAPSHOT).build();
+
+    Snapshot(long version) {
+      this.version = version;
+    }
+
+  }
+
+  private static class View<K extends Serializable, V extends Identifiable<K>> {
+
+    private final ImmutableList<V> values;
+    private final ImmutableMap<K, V> valuesByKey;
+
+    View(ImmutableList<V> values) {
+      this.values = values;
+      this.valuesByKey = values.stream()
+          .collect(toImmutableMap(Identifiable::identifier, Function.identity()));
+    }
+
+    static Tuple2<AppRole, ImmutableSet<GraphRole>> key(User user) {
+      return Tuple.of(user.getAppRole(), ImmutableSet.copyOf(user.getGraphRoles()));
+    }
+
+  }
+
+}
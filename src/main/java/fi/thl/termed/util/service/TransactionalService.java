@@ -5,6 +5,7 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
@@ -88,6 +89,11 @@ public class TransactionalService<K extends Serializable, V> implements Service<
     return runInTransaction(() -> delegate.count(spec, user));
   }
 
+  @Override
+  public Map<String, Long> countBy(Specification<K, V> spec, String field, User user) {
+    return runInTransaction(() -> delegate.countBy(spec, field, user));
+  }
+
   @Override
   public boolean exists(K id, User user) {
     return runInTransaction(() -> delegate.exists(id, user));
@@ -28,6 +28,11 @@ public final class WriteOptions {
     return new WriteOptions(sync, null, uriNamespace, generateCodes, generateUris);
   }
 
+  public static WriteOptions opts(Boolean sync, Long revision,
+      String uriNamespace, Boolean generateCodes, Boolean generateUris) {
+    return new WriteOptions(sync, revision, uriNamespace, generateCodes, generateUris);
+  }
+
   public static WriteOptions opts(Boolean sync, Long revision,
       Boolean generateCodes, Boolean generateUris) {
     return new WriteOptions(sync, revision, null, generateCodes, generateUris);
@@ -13,6 +13,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.stream.Stream;
@@ -44,6 +45,10 @@ public class StreamingJdbcTemplate {
     jdbcTemplate.update(sql, args);
   }
 
+  public void batchUpdate(String sql, List<Object[]> batchArgs) {
+    jdbcTemplate.batchUpdate(sql, batchArgs);
+  }
+
   public <T> Stream<T> queryForStream(String sql, RowMapper<T> rowMapper, Object... args)
       throws DataAccessException {
     return queryForStream(sql, args, rowMapper);
@@ -2,9 +2,6 @@ package fi.thl.termed.web.admin;
 
 import static fi.thl.termed.util.query.AndSpecification.and;
 import static fi.thl.termed.util.query.OrSpecification.or;
-import static fi.thl.termed.util.service.WriteOptions.defaultOpts;
-import static fi.thl.termed.util.service.WriteOptions.opts;
-import static java.util.stream.Collectors.toMap;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
 
 import fi.thl.termed.domain.AppRole;
@@ -16,23 +13,20 @@ import fi.thl.termed.domain.Revision;
 import fi.thl.termed.domain.RevisionId;
 import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.internal.NodeRevisionCheckpointer;
+import fi.thl.termed.service.node.internal.NodeRevisionPurger;
+import fi.thl.termed.service.node.specification.NodeRevisionsAsOfRevision;
 import fi.thl.termed.service.node.specification.NodeRevisionsByGraphId;
 import fi.thl.termed.service.node.specification.NodeRevisionsByRevisionType;
-import fi.thl.termed.service.node.specification.NodeRevisionsLessOrEqualToRevisionNumber;
-import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.query.Queries;
 import fi.thl.termed.util.query.Specifications;
 import fi.thl.termed.util.service.SaveMode;
-import fi.thl.termed.util.service.SequenceService;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
 import fi.thl.termed.util.spring.annotation.GetJsonMapping;
 import fi.thl.termed.util.spring.annotation.PostJsonMapping;
 import fi.thl.termed.util.spring.exception.NotFoundException;
-import fi.thl.termed.util.spring.transaction.TransactionUtils;
-import java.time.LocalDateTime;
-import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
@@ -40,7 +34,6 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
-import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -57,15 +50,15 @@ public class RevisionController {
   @Autowired
   private Service<Long, Revision> revisionService;
   @Autowired
-  private SequenceService revisionSeq;
-  @Autowired
   private Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService;
   @Autowired
   private Service<NodeId, Node> nodeService;
   @Autowired
   private Service<GraphId, Graph> graphService;
   @Autowired
-  private PlatformTransactionManager manager;
+  private NodeRevisionCheckpointer nodeRevisionCheckpointer;
+  @Autowired
+  private NodeRevisionPurger nodeRevisionPurger;
 
   @GetJsonMapping("/revisions")
   public Stream<Revision> getRevisions(
@@ -105,65 +98,34 @@ public class RevisionController {
     log.warn("Reverting graph {} to revision {} (user: {})", graphId, targetRevision,
         user.getUsername());
 
-    Map<NodeId, Long> nodeRevisionsLessOrEqualToTargetRevision;
-
-    try (Stream<RevisionId<NodeId>> revisionIds = nodeRevisionService
-        .keys(Queries.query(and(
+    try (Stream<Node> nodes = nodeRevisionService
+        .values(Queries.query(and(
             NodeRevisionsByGraphId.of(graphId),
-            NodeRevisionsLessOrEqualToRevisionNumber.of(targetRevision),
+            NodeRevisionsAsOfRevision.of(targetRevision),
             or(
                 NodeRevisionsByRevisionType.of(RevisionType.INSERT),
-                NodeRevisionsByRevisionType.of(RevisionType.UPDATE)))), user)) {
-      nodeRevisionsLessOrEqualToTargetRevision = revisionIds
-          .collect(toMap(RevisionId::getId, RevisionId::getRevision, Long::max));
+                NodeRevisionsByRevisionType.of(RevisionType.UPDATE)))), user)
+        .map(t -> t._2)) {
+      nodeService.save(nodes, SaveMode.UPSERT, WriteOptions.opts(sync), user);
     }
 
-    nodeService.save(
-        nodeRevisionsLessOrEqualToTargetRevision.entrySet().stream()
-            .map(idAndRevision -> nodeRevisionService
-                .get(RevisionId.of(idAndRevision.getKey(), idAndRevision.getValue()), user)
-                .map(t -> t._2)
-                .<IllegalStateException>orElseThrow(IllegalStateException::new)),
-        SaveMode.UPSERT, WriteOptions.opts(sync), user);
-
     log.info("Done");
   }
 
   /**
-   * Deletes each revision with all included data, then initializes a new revision with the current
-   * state of the database.
+   * Writes a checkpoint with the current state of nodes, then purges all revisions before it in the
+   * background.
    */
   @DeleteMapping("/revisions")
   @ResponseStatus(NO_CONTENT)
-  public void purgeRevisions(@AuthenticationPrincipal User user) {
+  public void purgeRevisions(@AuthenticationPrincipal User user) throws InterruptedException {
     if (user.getAppRole() != AppRole.SUPERUSER) {
       throw new AccessDeniedException("");
     }
 
     log.warn("Deleting revision history (user: {})", user.getUsername());
 
-    TransactionUtils.runInTransaction(manager, () -> {
-      // node revisions are cascaded when revisions are deleted
-      revisionService.delete(revisionService.keys(Queries.matchAll(), user), defaultOpts(), user);
-
-      Long revision = revisionSeq.getAndAdvance(user);
-
-      revisionService.save(
-          Revision.of(revision, user.getUsername(), LocalDateTime.now()),
-          SaveMode.INSERT, defaultOpts(), user);
-
-      try (Stream<Node> nodes = nodeService.values(Queries.matchAll(), user)) {
-        WriteOptions revisionOpts = opts(revision);
-        nodeRevisionService.save(
-            nodes.map(node -> Tuple.of(RevisionType.INSERT, node)),
-            SaveMode.INSERT,
-            revisionOpts,
-            user);
-      }
-      return null;
-    });
-
-    log.info("Done");
+    nodeRevisionPurger.requestPurgeBefore(nodeRevisionCheckpointer.createCheckpoint());
   }
 
 }
@@ -0,0 +1,96 @@
+package fi.thl.termed.web.dump;
+
+import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import fi.thl.termed.domain.Dump;
+import fi.thl.termed.domain.Graph;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.Type;
+import fi.thl.termed.util.json.JsonStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.stream.Stream;
+
+/**
+ * Reads a dump incrementally. Graphs and types are read eagerly, nodes are read lazily as the node
+ * stream of returned dump is consumed. Requires that graphs and types precede nodes in the JSON
+ * object, as they do in dumps written by this application. Nodes before graphs or types are
+ * rejected before any node is read.
+ */
+final class DumpJsonReader {
+
+  private DumpJsonReader() {
+  }
+
+  static Dump read(Gson gson, Reader in) {
+    JsonReader reader = new JsonReader(in);
+
+    try {
+      ImmutableList<Graph> graphs = ImmutableList.of();
+      ImmutableList<Type> types = ImmutableList.of();
+      boolean graphsRead = false;
+      boolean typesRead = false;
+
+      reader.beginObject();
+
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+
+        graphsRead |= name.equals("graphs");
+        typesRead |= name.equals("types");
+
+        if (name.equals("nodes") && !(graphsRead && typesRead)) {
+          throw new JsonParseException("Expected dump graphs and types before nodes");
+        }
+
+        if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+          continue;
+        }
+
+        switch (name) {
+          case "graphs":
+            graphs = toImmutableListAndClose(JsonStream.readArray(gson, Graph.class, reader));
+            break;
+          case "types":
+            types = toImmutableListAndClose(JsonStream.readArray(gson, Type.class, reader));
+            break;
+          case "nodes":
+            Stream<Node> nodes = JsonStream.readArray(gson, Node.class, reader)
+                .onClose(() -> readRemaining(reader));
+            return new Dump(graphs.stream(), types.stream(), nodes);
+          default:
+            reader.skipValue();
+        }
+      }
+
+      reader.endObject();
+
+      return new Dump(graphs.stream(), types.stream(), Stream.empty());
+    } catch (IOException e) {
+      throw new JsonIOException(e);
+    }
+  }
+
+  private static void readRemaining(JsonReader reader) {
+    try {
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals("graphs") || name.equals("types")) {
+          throw new JsonParseException("Expected dump graphs and types before nodes");
+        }
+        reader.skipValue();
+      }
+      reader.endObject();
+    } catch (IOException e) {
+      throw new JsonIOException(e);
+    }
+  }
+
+}
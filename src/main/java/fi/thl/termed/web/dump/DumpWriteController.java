@@ -2,16 +2,23 @@ package fi.thl.termed.web.dump;
 
 import static fi.thl.termed.util.service.SaveMode.saveMode;
 import static fi.thl.termed.util.service.WriteOptions.opts;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import fi.thl.termed.domain.Dump;
 import fi.thl.termed.domain.DumpId;
 import fi.thl.termed.domain.User;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.spring.annotation.PostJsonMapping;
+import fi.thl.termed.util.spring.exception.BadRequestException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import javax.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
@@ -21,18 +28,27 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping({"/api/dump", "/api/restore"})
 public class DumpWriteController {
 
+  @Autowired
+  private Gson gson;
+
   @Autowired
   private Service<DumpId, Dump> dumpService;
 
   @PostJsonMapping(produces = {})
   @ResponseStatus(NO_CONTENT)
-  public void restore(@RequestBody Dump dump,
+  public void restore(
       @RequestParam(name = "mode", defaultValue = "upsert") String mode,
       @RequestParam(name = "sync", defaultValue = "false") boolean sync,
       @RequestParam(name = "generateCodes", defaultValue = "false") boolean generateCodes,
       @RequestParam(name = "generateUris", defaultValue = "false") boolean generateUris,
-      @AuthenticationPrincipal User user) {
-    dumpService.save(dump, saveMode(mode), opts(sync, generateCodes, generateUris), user);
+      @AuthenticationPrincipal User user,
+      HttpServletRequest request) throws IOException {
+    try (InputStream input = request.getInputStream();
+        Dump dump = DumpJsonReader.read(gson, new InputStreamReader(input, UTF_8))) {
+      dumpService.save(dump, saveMode(mode), opts(sync, generateCodes, generateUris), user);
+    } catch (JsonParseException e) {
+      throw new BadRequestException(e.getMessage());
+    }
   }
 
 }
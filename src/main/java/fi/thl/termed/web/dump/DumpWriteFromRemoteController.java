@@ -64,9 +64,9 @@ public class DumpWriteFromRemoteController {
 
       log.info("Downloading {} as {}", remote.getUrl(), remote.getUsername());
 
-      try (CloseableHttpResponse response = httpClient.execute(request)) {
-        Dump dump = gson.fromJson(
-            new InputStreamReader(response.getEntity().getContent(), UTF_8), Dump.class);
+      try (CloseableHttpResponse response = httpClient.execute(request);
+          Dump dump = DumpJsonReader.read(gson,
+              new InputStreamReader(response.getEntity().getContent(), UTF_8))) {
 
         log.info("Restoring");
 
@@ -17,7 +17,9 @@ import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.spring.annotation.GetJsonMapping;
 import fi.thl.termed.util.spring.exception.NotFoundException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -66,6 +68,30 @@ public class NodeCountController {
     return nodeService.count(specifyByQuery(graphs, types, anyDomain, where), user);
   }
 
+  @GetJsonMapping(path = "/graphs/{graphId}/node-count", params = "groupBy=type")
+  public Map<String, Long> getGroupedByType(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "where", defaultValue = EMPTY_LIST) List<String> where,
+      @AuthenticationPrincipal User user) {
+
+    if (!graphService.exists(new GraphId(graphId), user)) {
+      throw new NotFoundException();
+    }
+
+    List<Graph> graphs = toListAndClose(graphService.values(new Query<>(new MatchAll<>()), user));
+    List<Type> types = toListAndClose(typeService.values(new Query<>(new MatchAll<>()), user));
+    List<Type> anyDomain = toListAndClose(
+        typeService.values(new Query<>(new TypesByGraphId(graphId)), user));
+
+    Map<String, Long> counts = nodeService.countBy(
+        specifyByQuery(graphs, types, anyDomain, where), "type.id", user);
+
+    Map<String, Long> countsByType = new LinkedHashMap<>();
+    anyDomain.forEach(type ->
+        countsByType.put(type.getId(), counts.getOrDefault(type.getId(), 0L)));
+    return countsByType;
+  }
+
   @GetJsonMapping("/graphs/{graphId}/types/{typeId}/node-count")
   public long get(
       @PathVariable("graphId") UUID graphId,
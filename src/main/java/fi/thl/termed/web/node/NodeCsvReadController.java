@@ -17,8 +17,12 @@ import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.domain.User;
 import fi.thl.termed.service.node.select.NodeSelects;
+import fi.thl.termed.service.node.select.SelectId;
+import fi.thl.termed.service.node.select.SelectProperty;
+import fi.thl.termed.service.node.select.SelectType;
 import fi.thl.termed.service.node.sort.NodeSorts;
 import fi.thl.termed.service.node.specification.NodeSpecifications;
+import fi.thl.termed.service.node.specification.NodesByNodeIds;
 import fi.thl.termed.service.node.util.NodesToCsv;
 import fi.thl.termed.service.type.specification.TypesByGraphId;
 import fi.thl.termed.util.csv.CsvDelimiter;
@@ -39,6 +43,7 @@ import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -94,12 +99,12 @@ public class NodeCsvReadController {
     Specification<NodeId, Node> spec = NodeSpecifications
         .specifyByQuery(graphs, types, types, where);
     List<Select> selects = NodeSelects.parse(select);
-    List<Select> qSelects = NodeSelects.qualify(types, types, selects);
     List<Sort> sorts = NodeSorts.parse(sort);
 
-    try (Stream<Node> nodes = nodeService
-        .values(new Query<>(qSelects, spec, sorts, max), user);
-        OutputStream out = response.getOutputStream()) {
+    Function<List<Select>, Stream<Node>> nodes = s -> nodeService.values(
+        new Query<>(NodeSelects.qualify(types, types, s), spec, sorts, max), user);
+
+    try (OutputStream out = response.getOutputStream()) {
       CsvOptions csvOptions = CsvOptions.builder()
           .delimiter(delimiter)
           .quoteChar(quoteChar)
@@ -109,7 +114,7 @@ public class NodeCsvReadController {
           .charset(charset).build();
 
       new NodesToCsv(useLabeledReferences, labelAttribute, labelLang,
-          (id) -> nodeService.get(id, user))
+          labelLoader(types, labelAttribute, user))
           .writeAsCsv(nodes, selects, csvOptions, out);
     }
   }
@@ -155,12 +160,12 @@ public class NodeCsvReadController {
     Specification<NodeId, Node> spec = NodeSpecifications
         .specifyByQuery(graphs, types, domains, where);
     List<Select> selects = NodeSelects.parse(select);
-    List<Select> qSelects = NodeSelects.qualify(types, domains, selects);
     List<Sort> sorts = NodeSorts.parse(sort);
 
-    try (Stream<Node> nodes = nodeService
-        .values(new Query<>(qSelects, spec, sorts, max), user);
-        OutputStream out = response.getOutputStream()) {
+    Function<List<Select>, Stream<Node>> nodes = s -> nodeService.values(
+        new Query<>(NodeSelects.qualify(types, domains, s), spec, sorts, max), user);
+
+    try (OutputStream out = response.getOutputStream()) {
       CsvOptions csvOptions = CsvOptions.builder()
           .delimiter(delimiter)
           .quoteChar(quoteChar)
@@ -170,7 +175,7 @@ public class NodeCsvReadController {
           .charset(charset).build();
 
       new NodesToCsv(useLabeledReferences, labelAttribute, labelLang,
-          (id) -> nodeService.get(id, user))
+          labelLoader(types, labelAttribute, user))
           .writeAsCsv(nodes, selects, csvOptions, out);
     }
   }
@@ -217,12 +222,12 @@ public class NodeCsvReadController {
     Specification<NodeId, Node> spec = NodeSpecifications
         .specifyByQuery(graphs, types, domain, where);
     List<Select> selects = NodeSelects.parse(select);
-    List<Select> qSelects = NodeSelects.qualify(types, of(domain), selects);
     List<Sort> sorts = NodeSorts.parse(sort);
 
-    try (Stream<Node> nodes = nodeService
-        .values(new Query<>(qSelects, spec, sorts, max), user);
-        OutputStream out = response.getOutputStream()) {
+    Function<List<Select>, Stream<Node>> nodes = s -> nodeService.values(
+        new Query<>(NodeSelects.qualify(types, of(domain), s), spec, sorts, max), user);
+
+    try (OutputStream out = response.getOutputStream()) {
       CsvOptions csvOptions = CsvOptions.builder()
           .delimiter(delimiter)
           .quoteChar(quoteChar)
@@ -232,9 +237,17 @@ public class NodeCsvReadController {
           .charset(charset).build();
 
       new NodesToCsv(useLabeledReferences, labelAttribute, labelLang,
-          (id) -> nodeService.get(id, user))
+          labelLoader(types, labelAttribute, user))
           .writeAsCsv(nodes, selects, csvOptions, out);
     }
   }
 
+  // loads only ids and label properties of referenced nodes
+  private Function<List<NodeId>, Stream<Node>> labelLoader(List<Type> types,
+      String labelAttribute, User user) {
+    List<Select> labelSelects = NodeSelects.qualify(types, types,
+        of(new SelectId(), new SelectType(), new SelectProperty(labelAttribute)));
+    return ids -> nodeService.values(new Query<>(labelSelects, NodesByNodeIds.of(ids)), user);
+  }
+
 }
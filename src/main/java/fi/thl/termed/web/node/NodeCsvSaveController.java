@@ -1,6 +1,5 @@
 package fi.thl.termed.web.node;
 
-import static fi.thl.termed.util.collect.StreamUtils.findFirstAndClose;
 import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
 
 import fi.thl.termed.domain.Graph;
@@ -16,7 +15,7 @@ import fi.thl.termed.util.csv.CsvLineBreak;
 import fi.thl.termed.util.csv.CsvOptions;
 import fi.thl.termed.util.csv.CsvQuoteChar;
 import fi.thl.termed.util.query.Queries;
-import fi.thl.termed.util.query.Specification;
+import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.service.SaveMode;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.service.WriteOptions;
@@ -26,7 +25,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.List;
-import java.util.Optional;
 import java.util.UUID;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -68,11 +66,11 @@ public class NodeCsvSaveController {
       HttpServletRequest request) throws IOException {
 
     List<Type> types = toImmutableListAndClose(typeService.values(Queries.matchAll(), user));
-    Function<Specification<NodeId, Node>, Optional<NodeId>> referenceIdResolver =
-        specification -> findFirstAndClose(nodeService.keys(Queries.query(specification), user));
+    Function<Query<NodeId, Node>, Stream<Node>> referenceResolver =
+        query -> nodeService.values(query, user);
 
     try (InputStream input = request.getInputStream()) {
-      Stream<Node> nodes = new CsvToNodes(types, referenceIdResolver).parseNodesFromCsv(
+      Stream<Node> nodes = new CsvToNodes(types, referenceResolver).parseNodesFromCsv(
           CsvOptions.builder()
               .delimiter(delimiter)
               .quoteChar(quoteChar)
@@ -112,11 +110,11 @@ public class NodeCsvSaveController {
     }
 
     List<Type> types = toImmutableListAndClose(typeService.values(Queries.matchAll(), user));
-    Function<Specification<NodeId, Node>, Optional<NodeId>> referenceIdResolver =
-        specification -> findFirstAndClose(nodeService.keys(Queries.query(specification), user));
+    Function<Query<NodeId, Node>, Stream<Node>> referenceResolver =
+        query -> nodeService.values(query, user);
 
     try (InputStream input = request.getInputStream()) {
-      Stream<Node> nodes = new CsvToNodes(types, referenceIdResolver).parseNodesFromCsv(
+      Stream<Node> nodes = new CsvToNodes(types, referenceResolver).parseNodesFromCsv(
           GraphId.of(graphId),
           CsvOptions.builder()
               .delimiter(delimiter)
@@ -165,11 +163,11 @@ public class NodeCsvSaveController {
     }
 
     List<Type> types = toImmutableListAndClose(typeService.values(Queries.matchAll(), user));
-    Function<Specification<NodeId, Node>, Optional<NodeId>> referenceIdResolver =
-        specification -> findFirstAndClose(nodeService.keys(Queries.query(specification), user));
+    Function<Query<NodeId, Node>, Stream<Node>> referenceResolver =
+        query -> nodeService.values(query, user);
 
     try (InputStream input = request.getInputStream()) {
-      Stream<Node> nodes = new CsvToNodes(types, referenceIdResolver).parseNodesFromCsv(
+      Stream<Node> nodes = new CsvToNodes(types, referenceResolver).parseNodesFromCsv(
           type,
           CsvOptions.builder()
               .delimiter(delimiter)
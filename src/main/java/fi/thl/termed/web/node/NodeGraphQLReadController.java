@@ -3,6 +3,7 @@ package fi.thl.termed.web.node;
 import static com.google.common.collect.ImmutableList.of;
 import static fi.thl.termed.service.node.specification.NodeSpecifications.specifyByQuery;
 import static fi.thl.termed.service.node.util.GraphQLUtils.toGraphQlTypeName;
+import static fi.thl.termed.service.node.util.TypeToGraphQLType.NODE_LOADER;
 import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
 import static fi.thl.termed.util.query.AndSpecification.and;
 import static fi.thl.termed.util.query.Queries.matchAll;
@@ -16,29 +17,41 @@ import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toMap;
 import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8_VALUE;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import fi.thl.termed.domain.AppRole;
 import fi.thl.termed.domain.Graph;
 import fi.thl.termed.domain.GraphId;
+import fi.thl.termed.domain.GraphRole;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.event.InvalidateCachesEvent;
 import fi.thl.termed.service.node.sort.NodeSorts;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
-import fi.thl.termed.service.node.util.IndexedReferenceLoader;
-import fi.thl.termed.service.node.util.IndexedReferrerLoader;
+import fi.thl.termed.service.node.util.IndexedNodeBatchLoader;
 import fi.thl.termed.service.node.util.TypeToGraphQLType;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple4;
+import fi.thl.termed.util.eventbus.Synchronous;
 import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.service.Service;
+import fi.thl.termed.util.service.SnapshotService;
 import fi.thl.termed.util.spring.exception.BadRequestException;
 import fi.thl.termed.util.spring.exception.NotFoundException;
+import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
 import graphql.GraphQLError;
+import graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentation;
 import graphql.schema.GraphQLObjectType;
 import graphql.schema.GraphQLSchema;
 import graphql.schema.GraphQLType;
@@ -46,7 +59,14 @@ import graphql.schema.idl.SchemaPrinter;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderOptions;
+import org.dataloader.DataLoaderRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -62,6 +82,9 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api")
 public class NodeGraphQLReadController {
 
+  private static final int SCHEMA_CACHE_SIZE = 100;
+  private static final int MAX_BATCH_SIZE = 1000;
+
   private Logger log = LoggerFactory.getLogger(getClass());
 
   @Autowired
@@ -71,13 +94,40 @@ public class NodeGraphQLReadController {
   @Autowired
   private Service<NodeId, Node> nodeService;
 
+  @Autowired
+  private EventBus eventBus;
+
+  // compiled schemas keyed by domain type, type snapshot version and user roles (types visible to
+  // a user depend on roles), a type write changes the version so stale schemas are left to expire
+  private final Cache<Tuple4<TypeId, Long, AppRole, ImmutableSet<GraphRole>>, GraphQL>
+      graphQLCache = CacheBuilder.newBuilder()
+          .maximumSize(SCHEMA_CACHE_SIZE)
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .build();
+
+  @PostConstruct
+  public void registerToEventBus() {
+    eventBus.register(this);
+  }
+
+  @Subscribe
+  @Synchronous
+  public void clearCachesOn(InvalidateCachesEvent e) {
+    graphQLCache.invalidateAll();
+  }
+
   @PostMapping(value = "/graphs/{graphId}/types/{typeId}/nodes/graphql", produces = APPLICATION_JSON_UTF8_VALUE)
   public Object queryNodesOfType(
       @PathVariable("graphId") UUID graphId,
       @PathVariable("typeId") String typeId,
       @RequestBody String graphQLQueryString,
       @RequestParam(value = "unwrapResults", defaultValue = "true") boolean unwrapResults,
-      @AuthenticationPrincipal User user) {
+      @AuthenticationPrincipal User user) throws ExecutionException {
+
+    // read before types, so that a schema of types written meanwhile is not cached as current
+    Optional<Long> typesVersion = typeService instanceof SnapshotService
+        ? Optional.of(((SnapshotService<TypeId, Type>) typeService).getVersion())
+        : Optional.empty();
 
     TypeId domainId = TypeId.of(typeId, graphId);
     Type domain = typeService.get(domainId, user).orElseThrow(NotFoundException::new);
@@ -85,10 +135,48 @@ public class NodeGraphQLReadController {
     ImmutableList<Graph> allGraphs = toImmutableListAndClose(graphService.values(matchAll(), user));
     ImmutableList<Type> allTypes = toImmutableListAndClose(typeService.values(matchAll(), user));
 
+    GraphQL graphQL = typesVersion.isPresent()
+        ? getGraphQL(domain, allTypes, typesVersion.get(), user)
+        : buildGraphQL(domain, allTypes);
+
+    DataLoaderRegistry dataLoaderRegistry = new DataLoaderRegistry().register(NODE_LOADER,
+        DataLoader.newDataLoader(new IndexedNodeBatchLoader(nodeService, user),
+            DataLoaderOptions.newOptions().setMaxBatchSize(MAX_BATCH_SIZE)));
+
+    ExecutionResult result = graphQL.execute(ExecutionInput.newExecutionInput()
+        .query(graphQLQueryString)
+        .context(new QueryContext(allGraphs, allTypes, user))
+        .dataLoaderRegistry(dataLoaderRegistry)
+        .build());
+
+    if (!result.getErrors().isEmpty()) {
+      throw new BadRequestException(result.getErrors().stream()
+          .map(GraphQLError::getMessage)
+          .collect(joining(", ")));
+    }
+
+    if (unwrapResults) {
+      return ((Map<String, Object>) result.toSpecification()
+          .getOrDefault("data", Collections.emptyMap()))
+          .getOrDefault("nodes", Collections.emptyList());
+    } else {
+      return result.toSpecification();
+    }
+  }
+
+  GraphQL getGraphQL(Type domain, ImmutableList<Type> allTypes, long typesVersion, User user)
+      throws ExecutionException {
+    return graphQLCache.get(
+        Tuple.of(domain.identifier(), typesVersion, user.getAppRole(),
+            ImmutableSet.copyOf(user.getGraphRoles())),
+        () -> buildGraphQL(domain, allTypes));
+  }
+
+  private GraphQL buildGraphQL(Type domain, ImmutableList<Type> allTypes) {
+    TypeId domainId = domain.identifier();
+
     Map<String, GraphQLType> graphQLTypesByName = allTypes.stream()
-        .map(new TypeToGraphQLType(allTypes,
-            new IndexedReferenceLoader(nodeService, user),
-            new IndexedReferrerLoader(nodeService, user)))
+        .map(new TypeToGraphQLType(allTypes))
         .collect(toMap(GraphQLType::getName, t -> t));
 
     GraphQLObjectType queryGraphQLType = GraphQLObjectType.newObject()
@@ -101,16 +189,19 @@ public class NodeGraphQLReadController {
                 newArgument().name("sort").type(list(GraphQLString)).defaultValue(of()).build(),
                 newArgument().name("max").type(GraphQLInt).defaultValue(-1).build()))
             .dataFetcher(env -> {
+              QueryContext context = env.getContext();
+
               String where = env.getArgument("where");
               List<String> sort = env.getArgument("sort");
               Integer max = env.getArgument("max");
 
               Specification<NodeId, Node> nodeSpecification = where.isEmpty() ?
-                  and(NodesByGraphId.of(graphId), NodesByTypeId.of(typeId)) :
-                  specifyByQuery(allGraphs, allTypes, domain, where);
+                  and(NodesByGraphId.of(domainId.getGraphId()),
+                      NodesByTypeId.of(domainId.getId())) :
+                  specifyByQuery(context.graphs, context.types, domain, where);
 
               return toImmutableListAndClose(nodeService.values(
-                  new Query<>(nodeSpecification, NodeSorts.parse(sort), max), user));
+                  new Query<>(nodeSpecification, NodeSorts.parse(sort), max), context.user));
             }))
         .build();
 
@@ -123,21 +214,26 @@ public class NodeGraphQLReadController {
       log.trace("GraphQLSchema: {}", new SchemaPrinter().print(graphQLSchema));
     }
 
-    ExecutionResult result = GraphQL.newGraphQL(graphQLSchema).build().execute(graphQLQueryString);
+    return GraphQL.newGraphQL(graphQLSchema)
+        .instrumentation(new DataLoaderDispatcherInstrumentation())
+        .build();
+  }
 
-    if (!result.getErrors().isEmpty()) {
-      throw new BadRequestException(result.getErrors().stream()
-          .map(GraphQLError::getMessage)
-          .collect(joining(", ")));
-    }
+  /**
+   * Request specific state passed to data fetchers of a cached schema.
+   */
+  private static class QueryContext {
 
-    if (unwrapResults) {
-      return ((Map<String, Object>) result.toSpecification()
-          .getOrDefault("data", Collections.emptyMap()))
-          .getOrDefault("nodes", Collections.emptyList());
-    } else {
-      return result.toSpecification();
+    private final ImmutableList<Graph> graphs;
+    private final ImmutableList<Type> types;
+    private final User user;
+
+    QueryContext(ImmutableList<Graph> graphs, ImmutableList<Type> types, User user) {
+      this.graphs = graphs;
+      this.types = types;
+      this.user = user;
     }
+
   }
 
 }
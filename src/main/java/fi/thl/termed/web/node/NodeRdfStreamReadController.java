@@ -13,9 +13,8 @@ import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.domain.User;
 import fi.thl.termed.service.node.util.NodeRdfGraphWrapper;
 import fi.thl.termed.service.type.specification.TypesByGraphId;
-import fi.thl.termed.util.jena.StreamRDFWriterUtils;
+import fi.thl.termed.util.jena.RdfStatementWriter;
 import fi.thl.termed.util.query.Query;
-import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.rdf.RdfMediaTypes;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.spring.exception.NotFoundException;
@@ -78,13 +77,12 @@ public class NodeRdfStreamReadController {
     try (OutputStream out = response.getOutputStream()) {
       List<Type> types = toListAndClose(
           typeService.values(new Query<>(new TypesByGraphId(graphId)), user));
-      Function<Specification<NodeId, Node>, Stream<Node>> nodes =
-          s -> nodeService.values(new Query<>(s), user);
+      Function<Query<NodeId, Node>, Stream<Node>> nodes = q -> nodeService.values(q, user);
 
-      StreamRDFWriterUtils.writeAndCloseIterator(out,
-          defaultNamespacePrefixes,
-          new NodeRdfGraphWrapper(defaultNamespace, types, nodes).find(null, null, null),
-          Lang.NTRIPLES);
+      try (RdfStatementWriter writer =
+          new RdfStatementWriter(out, defaultNamespacePrefixes, Lang.NTRIPLES)) {
+        new NodeRdfGraphWrapper(defaultNamespace, types, nodes).writeAll(writer);
+      }
     }
   }
 
@@ -109,13 +107,12 @@ public class NodeRdfStreamReadController {
     try (OutputStream out = response.getOutputStream()) {
       List<Type> types = toListAndClose(
           typeService.values(new Query<>(new TypesByGraphId(graphId)), user));
-      Function<Specification<NodeId, Node>, Stream<Node>> nodes =
-          s -> nodeService.values(new Query<>(s), user);
+      Function<Query<NodeId, Node>, Stream<Node>> nodes = q -> nodeService.values(q, user);
 
-      StreamRDFWriterUtils.writeAndCloseIterator(out,
-          defaultNamespacePrefixes,
-          new NodeRdfGraphWrapper(defaultNamespace, types, nodes).find(null, null, null),
-          Lang.TURTLE);
+      try (RdfStatementWriter writer =
+          new RdfStatementWriter(out, defaultNamespacePrefixes, Lang.TURTLE)) {
+        new NodeRdfGraphWrapper(defaultNamespace, types, nodes).writeAll(writer);
+      }
     }
   }
 
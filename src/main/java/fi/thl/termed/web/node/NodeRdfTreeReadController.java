@@ -6,11 +6,11 @@ import static com.google.common.collect.Multimaps.transformValues;
 import static fi.thl.termed.service.node.select.NodeSelects.parse;
 import static fi.thl.termed.service.node.select.NodeSelects.qualify;
 import static fi.thl.termed.service.node.specification.NodeSpecifications.specifyByQuery;
-import static fi.thl.termed.service.node.util.UriResolvers.nodeUriResolver;
 import static fi.thl.termed.service.node.util.UriResolvers.refAttrUriResolver;
 import static fi.thl.termed.service.node.util.UriResolvers.textAttrUriResolver;
 import static fi.thl.termed.service.node.util.UriResolvers.typeUriResolver;
 import static fi.thl.termed.util.GraphUtils.collectNodes;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
 import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
 import static fi.thl.termed.util.query.AndSpecification.and;
 import static fi.thl.termed.util.query.Queries.matchAll;
@@ -34,6 +34,8 @@ import fi.thl.termed.service.node.sort.NodeSorts;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.service.node.specification.NodesById;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
+import fi.thl.termed.service.node.util.BatchingNodeUriResolver;
+import fi.thl.termed.service.node.util.IndexedNodeTreePreloader;
 import fi.thl.termed.service.node.util.IndexedReferenceLoader;
 import fi.thl.termed.service.node.util.IndexedReferrerLoader;
 import fi.thl.termed.service.node.util.NodeToTriples;
@@ -41,6 +43,8 @@ import fi.thl.termed.service.type.specification.TypesByGraphId;
 import fi.thl.termed.util.query.Queries;
 import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.query.SelectAll;
+import fi.thl.termed.util.query.Selects;
 import fi.thl.termed.util.query.Sort;
 import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.service.Service;
@@ -49,9 +53,7 @@ import fi.thl.termed.util.spring.exception.NotFoundException;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.function.Function;
 import java.util.stream.Stream;
-import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -66,6 +68,8 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api")
 public class NodeRdfTreeReadController {
 
+  private static final int PRELOAD_BATCH_SIZE = 100;
+
   @Autowired
   private Service<GraphId, Graph> graphService;
 
@@ -102,10 +106,9 @@ public class NodeRdfTreeReadController {
       Model model = ModelFactory.createDefaultModel();
       model.setNsPrefixes(defaultNamespacePrefixes);
 
-      trees.flatMap(tree -> collectNodes(tree, t -> copyOf(t.getReferences().values())).stream())
-          .map(this::toNode)
-          .flatMap(n -> toTriples(user).apply(n).stream())
-          .forEach(t -> model.getGraph().add(t));
+      addTriples(model, trees
+          .flatMap(tree -> collectNodes(tree, t -> copyOf(t.getReferences().values())).stream())
+          .map(this::toNode), selects, user);
 
       return model;
     }
@@ -139,10 +142,9 @@ public class NodeRdfTreeReadController {
       Model model = ModelFactory.createDefaultModel();
       model.setNsPrefixes(defaultNamespacePrefixes);
 
-      trees.flatMap(tree -> collectNodes(tree, t -> copyOf(t.getReferences().values())).stream())
-          .map(this::toNode)
-          .flatMap(n -> toTriples(user).apply(n).stream())
-          .forEach(t -> model.getGraph().add(t));
+      addTriples(model, trees
+          .flatMap(tree -> collectNodes(tree, t -> copyOf(t.getReferences().values())).stream())
+          .map(this::toNode), selects, user);
 
       return model;
     }
@@ -173,10 +175,9 @@ public class NodeRdfTreeReadController {
       Model model = ModelFactory.createDefaultModel();
       model.setNsPrefixes(defaultNamespacePrefixes);
 
-      trees.flatMap(tree -> collectNodes(tree, t -> copyOf(t.getReferences().values())).stream())
-          .map(this::toNode)
-          .flatMap(n -> toTriples(user).apply(n).stream())
-          .forEach(t -> model.getGraph().add(t));
+      addTriples(model, trees
+          .flatMap(tree -> collectNodes(tree, t -> copyOf(t.getReferences().values())).stream())
+          .map(this::toNode), selects, user);
 
       return model;
     }
@@ -203,15 +204,15 @@ public class NodeRdfTreeReadController {
     try (Stream<Node> nodes = nodeService.values(new Query<>(selects, spec), user)) {
       Node node = nodes.findFirst().orElseThrow(NotFoundException::new);
 
-      NodeTree tree = toTree(node, selects, user, CacheBuilder.newBuilder().softValues().build());
+      Cache<NodeId, Node> cache = CacheBuilder.newBuilder().softValues().build();
+      new IndexedNodeTreePreloader(nodeService, user, selects, cache).preload(of(node));
+      NodeTree tree = toTree(node, selects, user, cache);
 
       Model model = ModelFactory.createDefaultModel();
       model.setNsPrefixes(defaultNamespacePrefixes);
 
-      collectNodes(tree, t -> copyOf(t.getReferences().values())).stream()
-          .map(this::toNode)
-          .flatMap(n -> toTriples(user).apply(n).stream())
-          .forEach(t -> model.getGraph().add(t));
+      addTriples(model, collectNodes(tree, t -> copyOf(t.getReferences().values())).stream()
+          .map(this::toNode), selects, user);
 
       return model;
     }
@@ -219,7 +220,12 @@ public class NodeRdfTreeReadController {
 
   private Stream<SimpleNodeTree> toTrees(Stream<Node> nodes, List<Select> selects, User user) {
     Cache<NodeId, Node> cache = CacheBuilder.newBuilder().softValues().build();
-    return nodes.map(node -> toTree(node, selects, user, cache));
+    IndexedNodeTreePreloader preloader =
+        new IndexedNodeTreePreloader(nodeService, user, selects, cache);
+    return partitionedMap(nodes, PRELOAD_BATCH_SIZE, batch -> {
+      preloader.preload(batch);
+      return batch.stream().map(node -> toTree(node, selects, user, cache));
+    });
   }
 
   private SimpleNodeTree toTree(Node node, List<Select> selects, User user,
@@ -249,12 +255,26 @@ public class NodeRdfTreeReadController {
         .build();
   }
 
-  private Function<Node, List<Triple>> toTriples(User user) {
-    return new NodeToTriples(defaultNamespace,
+  // converts nodes in batches so that node uris are loaded with one query per batch, uris of
+  // nodes in trees are known if selected and only uris of other referenced nodes are loaded
+  private void addTriples(Model model, Stream<Node> nodes, List<Select> selects, User user) {
+    BatchingNodeUriResolver nodeUris =
+        new BatchingNodeUriResolver(query -> nodeService.values(query, user));
+    boolean urisSelected =
+        selects.contains(new SelectAll()) || selects.contains(Selects.field("uri"));
+    NodeToTriples toTriples = new NodeToTriples(defaultNamespace,
         typeUriResolver(id -> typeService.get(id, user)),
         textAttrUriResolver(id -> typeService.get(id, user)),
         refAttrUriResolver(id -> typeService.get(id, user)),
-        nodeUriResolver(id -> nodeService.get(id, user)));
+        nodeUris);
+
+    partitionedMap(nodes, PRELOAD_BATCH_SIZE, batch -> {
+      if (urisSelected) {
+        nodeUris.addAll(batch);
+      }
+      nodeUris.preload(batch);
+      return batch.stream();
+    }).forEach(node -> toTriples.apply(node).forEach(t -> model.getGraph().add(t)));
   }
 
 }
@@ -3,7 +3,9 @@ package fi.thl.termed.web.node;
 import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
 import static fi.thl.termed.util.service.SaveMode.saveMode;
 import static fi.thl.termed.util.service.WriteOptions.opts;
+import static fi.thl.termed.util.rdf.RdfMediaTypes.N_TRIPLES_VALUE;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 import fi.thl.termed.domain.Graph;
 import fi.thl.termed.domain.GraphId;
@@ -16,17 +18,25 @@ import fi.thl.termed.service.node.util.RdfModelToNodes;
 import fi.thl.termed.service.type.specification.TypesByGraphId;
 import fi.thl.termed.util.collect.Tuple;
 import fi.thl.termed.util.jena.JenaRdfModel;
+import fi.thl.termed.util.jena.SubjectGroupingStreamRDF;
 import fi.thl.termed.util.query.Queries;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.spring.annotation.PatchRdfMapping;
 import fi.thl.termed.util.spring.annotation.PostRdfMapping;
+import fi.thl.termed.util.spring.exception.BadRequestException;
 import fi.thl.termed.util.spring.exception.NotFoundException;
 import fi.thl.termed.util.spring.http.HttpPreconditions;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Stream;
+import javax.servlet.http.HttpServletRequest;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RiotException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -42,6 +52,8 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api/graphs/{graphId}/nodes")
 public class NodeRdfWriteController {
 
+  private static final int STREAM_CHUNK_SIZE = 5000;
+
   private Logger log = LoggerFactory.getLogger(getClass());
 
   @Autowired
@@ -73,12 +85,52 @@ public class NodeRdfWriteController {
 
     List<Type> types = toImmutableListAndClose(
         typeService.values(Queries.query(TypesByGraphId.of(graphId)), user));
-    List<Node> nodes = new RdfModelToNodes(types, q -> nodeService.keys(q, user), importCodes)
+    List<Node> nodes = new RdfModelToNodes(types, q -> nodeService.values(q, user), importCodes)
         .apply(new JenaRdfModel(model));
 
     nodeService.save(nodes.stream(), saveMode(mode), opts(sync, generateCodes, generateUris), user);
   }
 
+  /**
+   * Imports N-Triples without loading the whole input into memory. Triples are read in chunks of
+   * subjects and each chunk is saved before reading the next one. Input should be grouped by
+   * subject (e.g. sorted). References to resources appearing only in later chunks are not resolved.
+   * A subject appearing again after its chunk is saved would overwrite the saved node with the
+   * later triples only, so such input is rejected as bad request. Chunks saved before that are kept.
+   */
+  @RequestMapping(method = POST, consumes = N_TRIPLES_VALUE, params = "stream=true", produces = {})
+  @ResponseStatus(NO_CONTENT)
+  public void postStream(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "importCodes", defaultValue = "true") boolean importCodes,
+      @RequestParam(name = "mode", defaultValue = "upsert") String mode,
+      @RequestParam(name = "sync", defaultValue = "false") boolean sync,
+      @RequestParam(name = "generateCodes", defaultValue = "false") boolean generateCodes,
+      @RequestParam(name = "generateUris", defaultValue = "false") boolean generateUris,
+      @AuthenticationPrincipal User user,
+      HttpServletRequest request) throws IOException {
+
+    HttpPreconditions.checkFound(
+        graphService.exists(GraphId.of(graphId), user),
+        "Graph not found.");
+
+    log.info("Importing RDF stream {} (user: {})", graphId, user.getUsername());
+
+    List<Type> types = toImmutableListAndClose(
+        typeService.values(Queries.query(TypesByGraphId.of(graphId)), user));
+    RdfModelToNodes toNodes =
+        new RdfModelToNodes(types, q -> nodeService.values(q, user), importCodes);
+
+    try (InputStream input = request.getInputStream()) {
+      RDFDataMgr.parse(new SubjectGroupingStreamRDF(STREAM_CHUNK_SIZE, resources ->
+              nodeService.save(toNodes.applyChunk(resources).stream(), saveMode(mode),
+                  opts(sync, generateCodes, generateUris), user)),
+          input, Lang.NTRIPLES);
+    } catch (RiotException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+  }
+
   @PatchRdfMapping(produces = {})
   @ResponseStatus(NO_CONTENT)
   private void patch(
@@ -102,7 +154,7 @@ public class NodeRdfWriteController {
 
     List<Type> types = toImmutableListAndClose(
         typeService.values(Queries.query(TypesByGraphId.of(graphId)), user));
-    List<Node> nodes = new RdfModelToNodes(types, q -> nodeService.keys(q, user), false)
+    List<Node> nodes = new RdfModelToNodes(types, q -> nodeService.values(q, user), false)
         .apply(new JenaRdfModel(model));
 
     Stream<Node> patchedNodesStream = nodes.stream()
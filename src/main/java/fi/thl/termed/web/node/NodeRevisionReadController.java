@@ -2,7 +2,7 @@ package fi.thl.termed.web.node;
 
 import static fi.thl.termed.util.collect.StreamUtils.toListAndClose;
 import static fi.thl.termed.util.query.AndSpecification.and;
-import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
 
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
@@ -11,10 +11,11 @@ import fi.thl.termed.domain.Revision;
 import fi.thl.termed.domain.RevisionId;
 import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.specification.NodeRevisionsAsOfRevision;
+import fi.thl.termed.service.node.specification.NodeRevisionsByCheckpoint;
 import fi.thl.termed.service.node.specification.NodeRevisionsByGraphId;
 import fi.thl.termed.service.node.specification.NodeRevisionsById;
 import fi.thl.termed.service.node.specification.NodeRevisionsByTypeId;
-import fi.thl.termed.service.node.specification.NodeRevisionsLessOrEqualToRevisionNumber;
 import fi.thl.termed.util.collect.Tuple2;
 import fi.thl.termed.util.query.Queries;
 import fi.thl.termed.util.service.Service;
@@ -40,6 +41,11 @@ public class NodeRevisionReadController {
   @Autowired
   private Service<Long, Revision> revisionService;
 
+  /**
+   * Lists changes to a node, newest first. Checkpoint rows are copies of earlier rows and are not
+   * listed, except when revisions before a checkpoint have been purged. Then the oldest remaining
+   * checkpoint row is listed last as the base revision of the node.
+   */
   @GetJsonMapping("/graphs/{graphId}/types/{typeId}/nodes/{id}/revisions")
   public List<ObjectRevision<NodeId>> getNodeRevisions(
       @PathVariable("graphId") UUID graphId,
@@ -47,18 +53,36 @@ public class NodeRevisionReadController {
       @PathVariable("id") UUID id,
       @RequestParam(value = "max", defaultValue = "-1") int max,
       @AuthenticationPrincipal User user) {
-    return toListAndClose(nodeRevisionService
-        .keys(Queries.query(and(
-            NodeRevisionsById.of(id),
-            NodeRevisionsByTypeId.of(typeId),
-            NodeRevisionsByGraphId.of(graphId))), user)
+    List<RevisionId<NodeId>> changes =
+        nodeRevisionKeys(graphId, typeId, id, NodeRevisionsByCheckpoint.of(false), user);
+    List<RevisionId<NodeId>> checkpoints =
+        nodeRevisionKeys(graphId, typeId, id, NodeRevisionsByCheckpoint.of(true), user);
+
+    // keys are ordered by revision, newest first
+    Stream<RevisionId<NodeId>> base = checkpoints.stream()
+        .skip(Math.max(checkpoints.size() - 1, 0))
+        .filter(oldest -> changes.isEmpty()
+            || oldest.getRevision() < changes.get(changes.size() - 1).getRevision());
+
+    return Stream.concat(changes.stream(), base)
+        .limit(max > 0 ? max : Integer.MAX_VALUE)
         .map(revisionId -> {
           Revision revision = revisionService
               .get(revisionId.getRevision(), user)
               .orElseThrow(IllegalStateException::new);
           return new ObjectRevision<>(revision, null, revisionId.getId());
         })
-        .limit(max > 0 ? max : Integer.MAX_VALUE));
+        .collect(toList());
+  }
+
+  private List<RevisionId<NodeId>> nodeRevisionKeys(UUID graphId, String typeId, UUID id,
+      NodeRevisionsByCheckpoint byCheckpoint, User user) {
+    return toListAndClose(nodeRevisionService
+        .keys(Queries.query(and(
+            NodeRevisionsById.of(id),
+            NodeRevisionsByTypeId.of(typeId),
+            NodeRevisionsByGraphId.of(graphId),
+            byCheckpoint)), user));
   }
 
   @GetJsonMapping("/graphs/{graphId}/types/{typeId}/nodes/{id}/revisions/{number}")
@@ -69,32 +93,21 @@ public class NodeRevisionReadController {
       @PathVariable("number") Long number,
       @AuthenticationPrincipal User user) {
 
-    RevisionId<NodeId> revisionId = RevisionId.of(new NodeId(id, typeId, graphId), number);
-
-    if (nodeRevisionService.exists(revisionId, user)) {
-      Revision revision = revisionService.get(number, user)
-          .orElseThrow(IllegalStateException::new);
-      Tuple2<RevisionType, Node> nodeRevision = nodeRevisionService.get(revisionId, user)
-          .orElseThrow(IllegalStateException::new);
-      return new ObjectRevision<>(revision, nodeRevision._1, nodeRevision._2);
-    }
-
     try (Stream<RevisionId<NodeId>> revisionIds = nodeRevisionService
         .keys(Queries.query(and(
             NodeRevisionsById.of(id),
             NodeRevisionsByTypeId.of(typeId),
             NodeRevisionsByGraphId.of(graphId),
-            NodeRevisionsLessOrEqualToRevisionNumber.of(number))), user)) {
+            NodeRevisionsAsOfRevision.of(number))), user)) {
 
-      RevisionId<NodeId> maxRevisionLessOrEqualToRequested = revisionIds
-          .max(comparing(RevisionId::getRevision))
+      RevisionId<NodeId> revisionId = revisionIds.findFirst()
           .orElseThrow(NotFoundException::new);
 
       Revision revision = revisionService
-          .get(maxRevisionLessOrEqualToRequested.getRevision(), user)
+          .get(revisionId.getRevision(), user)
           .orElseThrow(IllegalStateException::new);
       Tuple2<RevisionType, Node> nodeRevision = nodeRevisionService
-          .get(maxRevisionLessOrEqualToRequested, user)
+          .get(revisionId, user)
           .orElseThrow(IllegalStateException::new);
       return new ObjectRevision<>(revision, nodeRevision._1, nodeRevision._2);
     }
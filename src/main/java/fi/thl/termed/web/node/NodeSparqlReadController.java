@@ -4,6 +4,7 @@ import static fi.thl.termed.util.collect.StreamUtils.toListAndClose;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
 import static org.apache.jena.rdf.model.ModelFactory.createModelForGraph;
+import static org.apache.jena.riot.Lang.NTRIPLES;
 import static org.apache.jena.riot.Lang.TURTLE;
 
 import fi.thl.termed.domain.Graph;
@@ -13,23 +14,25 @@ import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.util.NodeRdfGraphStageGenerator;
 import fi.thl.termed.service.node.util.NodeRdfGraphWrapper;
 import fi.thl.termed.service.type.specification.TypesByGraphId;
 import fi.thl.termed.util.query.Query;
-import fi.thl.termed.util.query.Specification;
 import fi.thl.termed.util.rdf.RdfMediaTypes;
 import fi.thl.termed.util.service.Service;
 import fi.thl.termed.util.spring.exception.NotFoundException;
 import fi.thl.termed.util.spring.http.MediaTypes;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.QueryCancelledException;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
@@ -38,14 +41,16 @@ import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.system.StreamRDF;
 import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.engine.main.StageBuilder;
 import org.apache.jena.update.UpdateAction;
 import org.apache.jena.update.UpdateFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -77,55 +82,153 @@ public class NodeSparqlReadController {
 
     List<Type> types = toListAndClose(
         typeService.values(new Query<>(new TypesByGraphId(graphId)), user));
-    Function<Specification<NodeId, Node>, Stream<Node>> nodes =
-        s -> nodeService.values(new Query<>(s, emptyList(), -1), user);
+    Function<Query<NodeId, Node>, Stream<Node>> nodes = q -> nodeService.values(
+        new Query<>(q.getSelect(), q.getWhere(), emptyList(), -1), user);
     return createModelForGraph(new NodeRdfGraphWrapper(defaultNamespace, types, nodes));
   }
 
+  private QueryExecution createQueryExecution(String sparqlSelect, Model model, int timeout) {
+    QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(sparqlSelect), model);
+    qe.setTimeout(timeout, TimeUnit.SECONDS);
+    StageBuilder.setGenerator(qe.getContext(), new NodeRdfGraphStageGenerator(
+        StageBuilder.chooseStageGenerator(qe.getContext())));
+    return qe;
+  }
+
   @PostMapping(produces = MediaType.TEXT_PLAIN_VALUE)
-  public ResponseEntity<String> queryText(
+  public void queryText(
       @PathVariable("graphId") UUID graphId,
       @RequestParam(value = "timeout", defaultValue = "10") int timeout,
       @RequestBody String sparqlSelect,
-      @AuthenticationPrincipal User user)
-      throws IOException {
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    // text table is rendered only after all rows are read to compute column widths
+    select(graphId, timeout, sparqlSelect, user, response, MediaType.TEXT_PLAIN_VALUE,
+        ResultSetFormatter::out);
+  }
 
-    Model model = buildModelWrapper(graphId, user);
+  @PostMapping(produces = MediaTypes.TEXT_CSV_VALUE)
+  public void queryCsv(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "timeout", defaultValue = "10") int timeout,
+      @RequestBody String sparqlSelect,
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    select(graphId, timeout, sparqlSelect, user, response, MediaTypes.TEXT_CSV_VALUE,
+        ResultSetFormatter::outputAsCSV);
+  }
 
-    QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(sparqlSelect), model);
-    qe.setTimeout(timeout, TimeUnit.SECONDS);
-    ResultSet results = qe.execSelect();
+  @PostMapping(produces = MediaTypes.TEXT_TSV_VALUE)
+  public void queryTsv(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "timeout", defaultValue = "10") int timeout,
+      @RequestBody String sparqlSelect,
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    select(graphId, timeout, sparqlSelect, user, response, MediaTypes.TEXT_TSV_VALUE,
+        ResultSetFormatter::outputAsTSV);
+  }
 
-    try {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      ResultSetFormatter.out(out, results);
-      return new ResponseEntity<>(out.toString(UTF_8.name()), HttpStatus.OK);
-    } catch (QueryCancelledException e) {
-      return new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT);
-    }
+  @PostMapping(produces = RdfMediaTypes.SPARQL_RESULTS_JSON_VALUE)
+  public void queryJson(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "timeout", defaultValue = "10") int timeout,
+      @RequestBody String sparqlSelect,
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    select(graphId, timeout, sparqlSelect, user, response, RdfMediaTypes.SPARQL_RESULTS_JSON_VALUE,
+        ResultSetFormatter::outputAsJSON);
   }
 
-  @PostMapping(produces = MediaTypes.TEXT_CSV_VALUE)
-  public ResponseEntity<String> queryCsv(
+  @PostMapping(produces = RdfMediaTypes.SPARQL_RESULTS_XML_VALUE)
+  public void queryXml(
       @PathVariable("graphId") UUID graphId,
       @RequestParam(value = "timeout", defaultValue = "10") int timeout,
       @RequestBody String sparqlSelect,
-      @AuthenticationPrincipal User user)
-      throws IOException {
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    select(graphId, timeout, sparqlSelect, user, response, RdfMediaTypes.SPARQL_RESULTS_XML_VALUE,
+        ResultSetFormatter::outputAsXML);
+  }
+
+  @PostMapping(produces = RdfMediaTypes.TURTLE_VALUE)
+  public void constructTurtle(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "timeout", defaultValue = "10") int timeout,
+      @RequestBody String sparqlConstruct,
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    construct(graphId, timeout, sparqlConstruct, user, response, RdfMediaTypes.TURTLE_VALUE,
+        TURTLE);
+  }
+
+  @PostMapping(produces = RdfMediaTypes.N_TRIPLES_VALUE)
+  public void constructNTriples(
+      @PathVariable("graphId") UUID graphId,
+      @RequestParam(value = "timeout", defaultValue = "10") int timeout,
+      @RequestBody String sparqlConstruct,
+      @AuthenticationPrincipal User user,
+      HttpServletResponse response) throws IOException {
+    construct(graphId, timeout, sparqlConstruct, user, response, RdfMediaTypes.N_TRIPLES_VALUE,
+        NTRIPLES);
+  }
+
+  /**
+   * Executes a select query writing results directly to the response. Results are read lazily
+   * from the query execution as they are written. If the client disconnects, writing fails and
+   * the query execution is closed which also closes underlying node streams.
+   */
+  private void select(UUID graphId, int timeout, String sparqlSelect, User user,
+      HttpServletResponse response, String contentType,
+      BiConsumer<OutputStream, ResultSet> resultWriter) throws IOException {
 
     Model model = buildModelWrapper(graphId, user);
 
-    QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(sparqlSelect), model);
-    qe.setTimeout(timeout, TimeUnit.SECONDS);
-    ResultSet results = qe.execSelect();
+    try (QueryExecution qe = createQueryExecution(sparqlSelect, model, timeout)) {
+      ResultSet results = qe.execSelect();
+
+      response.setContentType(contentType);
+      response.setCharacterEncoding(UTF_8.toString());
+
+      OutputStream out = response.getOutputStream();
+      resultWriter.accept(out, results);
+      out.flush();
+    } catch (QueryCancelledException e) {
+      handleTimeout(response, e);
+    }
+  }
+
+  /**
+   * Executes a construct query writing triples directly to the response as they are constructed.
+   */
+  private void construct(UUID graphId, int timeout, String sparqlConstruct, User user,
+      HttpServletResponse response, String contentType, Lang lang) throws IOException {
 
-    try {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      ResultSetFormatter.outputAsCSV(out, results);
-      return new ResponseEntity<>(out.toString(UTF_8.name()), HttpStatus.OK);
+    Model model = buildModelWrapper(graphId, user);
+
+    try (QueryExecution qe = createQueryExecution(sparqlConstruct, model, timeout)) {
+      Iterator<Triple> triples = qe.execConstructTriples();
+
+      response.setContentType(contentType);
+      response.setCharacterEncoding(UTF_8.toString());
+
+      StreamRDF out = StreamRDFWriter.getWriterStream(response.getOutputStream(), lang);
+      out.start();
+      qe.getQuery().getPrefixMapping().getNsPrefixMap().forEach(out::prefix);
+      triples.forEachRemaining(out::triple);
+      out.finish();
     } catch (QueryCancelledException e) {
-      return new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT);
+      handleTimeout(response, e);
+    }
+  }
+
+  // if results are already partially sent, response is aborted by re-throwing the exception
+  private void handleTimeout(HttpServletResponse response, QueryCancelledException e) {
+    if (response.isCommitted()) {
+      throw e;
     }
+    response.reset();
+    response.setStatus(HttpStatus.REQUEST_TIMEOUT.value());
   }
 
   @PostMapping(params = "postProcess=true", produces = RdfMediaTypes.TURTLE_VALUE)
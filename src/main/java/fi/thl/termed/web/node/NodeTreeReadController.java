@@ -4,6 +4,7 @@ import static com.google.common.collect.ImmutableList.of;
 import static fi.thl.termed.service.node.select.NodeSelects.parse;
 import static fi.thl.termed.service.node.select.NodeSelects.qualify;
 import static fi.thl.termed.service.node.specification.NodeSpecifications.specifyByQuery;
+import static fi.thl.termed.util.collect.StreamUtils.partitionedMap;
 import static fi.thl.termed.util.collect.StreamUtils.toImmutableListAndClose;
 import static fi.thl.termed.util.query.AndSpecification.and;
 import static fi.thl.termed.util.query.Queries.matchAll;
@@ -27,10 +28,13 @@ import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.domain.User;
 import fi.thl.termed.service.node.select.NodeSelects;
+import fi.thl.termed.service.node.select.SelectTypeQualifiedReference;
+import fi.thl.termed.service.node.select.SelectTypeQualifiedReferrer;
 import fi.thl.termed.service.node.sort.NodeSorts;
 import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.service.node.specification.NodesById;
 import fi.thl.termed.service.node.specification.NodesByTypeId;
+import fi.thl.termed.service.node.util.IndexedNodeTreePreloader;
 import fi.thl.termed.service.node.util.IndexedReferenceLoader;
 import fi.thl.termed.service.node.util.IndexedReferrerLoader;
 import fi.thl.termed.service.node.util.NodeTreeToJsonStream;
@@ -60,6 +64,8 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api")
 public class NodeTreeReadController {
 
+  private static final int PRELOAD_BATCH_SIZE = 100;
+
   @Autowired
   private Service<GraphId, Graph> graphService;
   @Autowired
@@ -191,14 +197,27 @@ public class NodeTreeReadController {
     try (Stream<Node> nodes = nodeService.values(new Query<>(selects, spec), user);
         JsonWriter writer = JsonWriters.from(resp.getOutputStream(), pretty, htmlSafe)) {
       Node root = nodes.findFirst().orElseThrow(NotFoundException::new);
-      NodeTreeToJsonStream.toJson(toTree(root, selects, user,
-          CacheBuilder.newBuilder().softValues().build()), writer);
+      Cache<NodeId, Node> cache = CacheBuilder.newBuilder().softValues().build();
+      preloader(selects, user, cache).preload(of(root));
+      NodeTreeToJsonStream.toJson(toTree(root, selects, user, cache), writer);
     }
   }
 
   private Stream<NodeTree> toTrees(Stream<Node> nodes, List<Select> selects, User user) {
     Cache<NodeId, Node> cache = CacheBuilder.newBuilder().softValues().build();
-    return nodes.map(node -> toTree(node, selects, user, cache));
+    IndexedNodeTreePreloader preloader = preloader(selects, user, cache);
+    return partitionedMap(nodes, PRELOAD_BATCH_SIZE, batch -> {
+      preloader.preload(batch);
+      return batch.stream().map(node -> toTree(node, selects, user, cache));
+    });
+  }
+
+  // load only what FilteredNodeTree will show
+  private IndexedNodeTreePreloader preloader(List<Select> selects, User user,
+      Cache<NodeId, Node> cache) {
+    return new IndexedNodeTreePreloader(nodeService, user, selects, cache,
+        selects.stream().anyMatch(s -> s instanceof SelectTypeQualifiedReference),
+        selects.stream().anyMatch(s -> s instanceof SelectTypeQualifiedReferrer));
   }
 
   private NodeTree toTree(Node node, List<Select> selects, User user, Cache<NodeId, Node> cache) {
@@ -0,0 +1,21 @@
+--
+-- Revisions with node events not yet passed to webhook queues. Written in the same
+-- transaction as node changes.
+--
+
+CREATE TABLE node_event_outbox (
+  revision bigint,
+  CONSTRAINT node_event_outbox_pkey PRIMARY KEY (revision)
+);
+
+--
+-- Revisions not yet delivered to each webhook
+--
+
+CREATE TABLE webhook_queue_item (
+  webhook_id uuid,
+  revision bigint,
+  CONSTRAINT webhook_queue_item_pkey PRIMARY KEY (webhook_id, revision),
+  CONSTRAINT webhook_queue_item_webhook_fkey
+    FOREIGN KEY (webhook_id) REFERENCES webhook(id) ON DELETE CASCADE
+);
@@ -0,0 +1,5 @@
+--
+-- Checkpoint revisions contain a full snapshot of node state
+--
+
+ALTER TABLE revision ADD COLUMN checkpoint boolean DEFAULT false NOT NULL;
@@ -0,0 +1,19 @@
+--
+-- Indexes for deleting node value revisions by revision
+--
+
+CREATE INDEX node_text_attribute_value_aud_revision_idx
+    ON node_text_attribute_value_aud(revision);
+
+CREATE INDEX node_reference_attribute_value_aud_revision_idx
+    ON node_reference_attribute_value_aud(revision);
+
+--
+-- Requests to purge all revisions before given revision. Kept until done so that purging
+-- continues after restart.
+--
+
+CREATE TABLE revision_purge_request (
+  revision bigint,
+  CONSTRAINT revision_purge_request_pkey PRIMARY KEY (revision)
+);
@@ -0,0 +1,145 @@
+package fi.thl.termed.service.node;
+
+import static fi.thl.termed.util.query.Specifications.asLucene;
+import static fi.thl.termed.util.service.SaveMode.INSERT;
+import static fi.thl.termed.util.service.SaveMode.UPDATE;
+import static fi.thl.termed.util.service.SaveMode.UPSERT;
+import static fi.thl.termed.util.service.WriteOptions.opts;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.google.common.eventbus.EventBus;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.event.ReindexEvent;
+import fi.thl.termed.service.node.specification.NodesByGraphId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Tests that writes and searches see earlier writes when indexing runs in the background. Indexing
+ * is held back with a blocking reindex task so that written nodes are not yet in the index.
+ */
+@TestPropertySource(properties = "fi.thl.termed.index.async=true")
+class NodeAsyncIndexingServiceIntegrationTest extends BaseNodeServiceIntegrationTest {
+
+  @Autowired
+  private EventBus eventBus;
+
+  @Test
+  void shouldKeepNumberWhenSavingNodeAgainBeforeIndexing() {
+    NodeId nodeId = NodeId.random("Person", graphId);
+
+    holdIndexing(() -> {
+      nodeService.save(Node.builder().id(nodeId).build(), INSERT, opts(false, true, true), user);
+      Node inserted = nodeService.get(nodeId, user).orElseThrow(AssertionError::new);
+
+      nodeService.save(Node.builder().id(nodeId).addProperty("name", "John").build(),
+          UPSERT, opts(false, true, true), user);
+      Node upserted = nodeService.get(nodeId, user).orElseThrow(AssertionError::new);
+
+      assertEquals(inserted.getNumber(), upserted.getNumber());
+      assertEquals(inserted.getCreatedDate(), upserted.getCreatedDate());
+    });
+  }
+
+  @Test
+  void shouldUpdateNodeBeforeIndexing() {
+    NodeId nodeId = NodeId.random("Person", graphId);
+
+    holdIndexing(() -> {
+      nodeService.save(Node.builder().id(nodeId).build(), INSERT, opts(false), user);
+      nodeService.save(Node.builder().id(nodeId).addProperty("name", "John").build(),
+          UPDATE, opts(false), user);
+
+      assertEquals("John", nodeService.get(nodeId, user)
+          .map(n -> n.getFirstPropertyValue("name").map(v -> v.getValue()).orElse(null))
+          .orElse(null));
+    });
+  }
+
+  @Test
+  void shouldNotGenerateCodeInUseBeforeIndexing() {
+    NodeId nodeId0 = NodeId.random("Person", graphId);
+    NodeId nodeId1 = NodeId.random("Person", graphId);
+    NodeId nodeId2 = NodeId.random("Person", graphId);
+
+    holdIndexing(() -> {
+      nodeService.save(Node.builder().id(nodeId0).build(), INSERT, opts(false, true, true), user);
+      // give code that would be default for the next node
+      nodeService.save(Node.builder().id(nodeId1).code("person-2").build(),
+          INSERT, opts(false, true, true), user);
+      nodeService.save(Node.builder().id(nodeId2).build(), INSERT, opts(false, true, true), user);
+
+      assertEquals("person-2", nodeService.get(nodeId1, user)
+          .flatMap(Node::getCode).orElse(null));
+      assertNull(nodeService.get(nodeId2, user)
+          .flatMap(Node::getCode).orElse(null));
+    });
+  }
+
+  @Test
+  void shouldFindOwnWritesBeforeIndexing() {
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Void> held = holdIndexingUntil(release);
+
+    nodeService.save(Stream.of(
+        Node.builder().id(NodeId.random("Person", graphId)).build(),
+        Node.builder().id(NodeId.random("Person", graphId)).build()),
+        INSERT, opts(false), user);
+
+    // search waits for indexing of the user's own writes
+    CompletableFuture.runAsync(() -> {
+      sleep(200);
+      release.countDown();
+    });
+    assertEquals(2, nodeService.count(asLucene(new NodesByGraphId(graphId)), user));
+
+    held.join();
+  }
+
+  private void holdIndexing(Runnable runnable) {
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Void> held = holdIndexingUntil(release);
+    try {
+      runnable.run();
+    } finally {
+      release.countDown();
+      held.join();
+    }
+  }
+
+  // indexing tasks run one at a time, so a blocking reindex holds back all later indexing
+  private CompletableFuture<Void> holdIndexingUntil(CountDownLatch release) {
+    CountDownLatch started = new CountDownLatch(1);
+    CompletableFuture<Void> held = CompletableFuture.runAsync(() ->
+        eventBus.post(new ReindexEvent<NodeId>(() -> {
+          started.countDown();
+          await(release);
+          return Stream.empty();
+        })));
+    await(started);
+    return held;
+  }
+
+  private void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
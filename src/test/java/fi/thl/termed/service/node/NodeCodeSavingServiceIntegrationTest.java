@@ -74,6 +74,51 @@ class NodeCodeSavingServiceIntegrationTest extends BaseNodeServiceIntegrationTes
         .flatMap(Node::getCode).orElse(null));
   }
 
+  @Test
+  void shouldNotGenerateCodeGivenToAnotherNodeInSameBatch() {
+    NodeId nodeId0 = NodeId.random("Person", graphId);
+    Node node0 = Node.builder()
+        .id(nodeId0)
+        .build();
+
+    NodeId nodeId1 = NodeId.random("Person", graphId);
+    Node node1 = Node.builder()
+        .id(nodeId1)
+        // give code that would be generated for the previous node in the batch
+        .code("person-0")
+        .build();
+
+    NodeId nodeId2 = NodeId.random("Person", graphId);
+    Node node2 = Node.builder()
+        .id(nodeId2)
+        .build();
+
+    nodeService.save(Stream.of(node0, node1, node2), INSERT, opts(false, true, false), user);
+
+    assertNull(nodeService.get(nodeId0, user).flatMap(Node::getCode).orElse(null));
+    assertEquals("person-0", nodeService.get(nodeId1, user).flatMap(Node::getCode).orElse(null));
+    assertEquals("person-2", nodeService.get(nodeId2, user).flatMap(Node::getCode).orElse(null));
+  }
+
+  @Test
+  void shouldGenerateCodesOfEachTypeIndependentlyInSameBatch() {
+    NodeId personId = NodeId.random("Person", graphId);
+    NodeId groupId = NodeId.random("Group", graphId);
+    NodeId anotherGroupId = NodeId.random("Group", graphId);
+
+    nodeService.save(Stream.of(
+        Node.builder().id(personId).build(),
+        // same code in another type does not conflict
+        Node.builder().id(groupId).code("person-0").build(),
+        Node.builder().id(anotherGroupId).build()),
+        INSERT, opts(false, true, false), user);
+
+    assertEquals("person-0", nodeService.get(personId, user).flatMap(Node::getCode).orElse(null));
+    assertEquals("person-0", nodeService.get(groupId, user).flatMap(Node::getCode).orElse(null));
+    assertEquals("group-1",
+        nodeService.get(anotherGroupId, user).flatMap(Node::getCode).orElse(null));
+  }
+
   @Test
   void shouldGenerateCodesIfRequested() {
     NodeId nodeId0 = NodeId.random("Person", graphId);
@@ -6,26 +6,43 @@ import static fi.thl.termed.util.service.SaveMode.INSERT;
 import static fi.thl.termed.util.service.SaveMode.UPDATE;
 import static fi.thl.termed.util.service.SaveMode.UPSERT;
 import static fi.thl.termed.util.service.WriteOptions.defaultOpts;
+import static fi.thl.termed.util.spring.transaction.TransactionUtils.runInTransaction;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import fi.thl.termed.domain.Empty;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.ObjectRevision;
+import fi.thl.termed.domain.Revision;
 import fi.thl.termed.domain.RevisionId;
 import fi.thl.termed.domain.RevisionType;
 import fi.thl.termed.domain.StrictLangValue;
+import fi.thl.termed.service.node.internal.NodeRevisionCheckpointer;
+import fi.thl.termed.service.node.internal.NodeRevisionPurger;
+import fi.thl.termed.service.node.specification.NodeRevisionsAsOfRevision;
 import fi.thl.termed.service.node.specification.NodeRevisionsByGraphId;
 import fi.thl.termed.service.node.specification.NodeRevisionsById;
 import fi.thl.termed.service.node.specification.NodeRevisionsByTypeId;
 import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.dao.SystemDao;
 import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Specifications;
 import fi.thl.termed.util.service.Service;
+import fi.thl.termed.web.node.NodeRevisionReadController;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
 
 /**
  * Tests that node service generates revisions correctly. Tests also node revision service for
@@ -35,6 +52,18 @@ class NodeRevisionSavingServiceIntegrationTest extends BaseNodeServiceIntegratio
 
   @Autowired
   private Service<RevisionId<NodeId>, Tuple2<RevisionType, Node>> nodeRevisionService;
+  @Autowired
+  private Service<Long, Revision> revisionService;
+  @Autowired
+  private NodeRevisionCheckpointer nodeRevisionCheckpointer;
+  @Autowired
+  private NodeRevisionPurger nodeRevisionPurger;
+  @Autowired
+  private SystemDao<Long, Empty> nodeEventOutboxDao;
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+  @Autowired
+  private NodeRevisionReadController nodeRevisionReadController;
 
   @Test
   void shouldSaveNewRevisionForEachNodeSave() {
@@ -165,4 +194,332 @@ class NodeRevisionSavingServiceIntegrationTest extends BaseNodeServiceIntegratio
         .iterator().next());
   }
 
-}
\ No newline at end of file
+  @Test
+  void shouldReadEachRevisionInHistoryAsReadAsOfThatRevision() throws InterruptedException {
+    NodeId johnId = NodeId.random("Person", graphId);
+    NodeId maryId = NodeId.random("Person", graphId);
+
+    Node john = Node.builder().id(johnId)
+        .addProperty("name", "John")
+        .addProperty("email", "john@example.org")
+        .addProperty("email", "john.doe@example.org")
+        .addReference("knows", maryId)
+        .build();
+    nodeService.save(Stream.of(john, Node.builder().id(maryId).build()),
+        INSERT, defaultOpts(), user);
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .properties(ImmutableMultimap.of(
+            "name", new StrictLangValue("Johnny"),
+            "email", new StrictLangValue("john.doe@example.org")))
+        .build(), UPDATE, defaultOpts(), user);
+
+    nodeRevisionCheckpointer.createCheckpoint();
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .properties(ImmutableMultimap.of(
+            "email", new StrictLangValue("jo@example.org"),
+            "email", new StrictLangValue("john.doe@example.org")))
+        .references(ImmutableMultimap.of())
+        .build(), UPDATE, defaultOpts(), user);
+
+    Query<RevisionId<NodeId>, Tuple2<RevisionType, Node>> historyQuery = new Query<>(
+        and(
+            NodeRevisionsById.of(johnId.getId()),
+            NodeRevisionsByTypeId.of(johnId.getTypeId()),
+            NodeRevisionsByGraphId.of(johnId.getTypeGraphId())));
+
+    // history rows are read in one batch, each as of its own revision
+    List<Long> revisions = toListAndClose(nodeRevisionService.keys(historyQuery, user)).stream()
+        .map(RevisionId::getRevision)
+        .collect(toList());
+    List<Node> history = toListAndClose(nodeRevisionService.values(historyQuery, user)).stream()
+        .map(revision -> revision._2)
+        .collect(toList());
+    assertEquals(4, history.size());
+
+    for (int i = 0; i < history.size(); i++) {
+      Node asOfRevision = toListAndClose(nodeRevisionService.values(new Query<>(
+          and(
+              NodeRevisionsById.of(johnId.getId()),
+              NodeRevisionsByTypeId.of(johnId.getTypeId()),
+              NodeRevisionsByGraphId.of(johnId.getTypeGraphId()),
+              NodeRevisionsAsOfRevision.of(revisions.get(i)))), user)).get(0)._2;
+
+      assertEquals(asOfRevision.getProperties(), history.get(i).getProperties());
+      assertEquals(asOfRevision.getReferences(), history.get(i).getReferences());
+    }
+
+    assertEquals(ImmutableMultimap.of(
+        "email", "jo@example.org",
+        "email", "john.doe@example.org"), propertyValues(history.get(0)));
+    assertTrue(history.get(0).getReferences().isEmpty());
+    assertEquals(propertyValues(john), propertyValues(history.get(3)));
+    assertEquals(john.getReferences(), history.get(3).getReferences());
+  }
+
+  @Test
+  void shouldReadGraphNodesAsOfRevision() {
+    NodeId johnId = NodeId.random("Person", graphId);
+    NodeId maryId = NodeId.random("Person", graphId);
+
+    Node john = Node.builder().id(johnId)
+        .addProperty("name", "John")
+        .build();
+    Node mary = Node.builder().id(maryId)
+        .addProperty("name", "Mary")
+        .addReference("knows", johnId)
+        .build();
+
+    nodeService.save(Stream.of(john, mary), INSERT, defaultOpts(), user);
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .properties(ImmutableMultimap.of("name", new StrictLangValue("John Doe")))
+        .build(), UPDATE, defaultOpts(), user);
+    Long johnUpdatedRevision = latestRevision(johnId);
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .properties(ImmutableMultimap.of("name", new StrictLangValue("Johnny")))
+        .build(), UPDATE, defaultOpts(), user);
+    nodeService.delete(maryId, defaultOpts(), user);
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfUpdate = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(johnUpdatedRevision))), user));
+    assertEquals(2, nodesAsOfUpdate.size());
+
+    Node johnAsOfUpdate = nodesAsOfUpdate.stream()
+        .map(r -> r._2)
+        .filter(n -> n.identifier().equals(johnId))
+        .findFirst()
+        .orElseThrow(AssertionError::new);
+    assertEquals(ImmutableMultimap.of("name", new StrictLangValue("John Doe")),
+        johnAsOfUpdate.getProperties());
+
+    Node maryAsOfUpdate = nodesAsOfUpdate.stream()
+        .map(r -> r._2)
+        .filter(n -> n.identifier().equals(maryId))
+        .findFirst()
+        .orElseThrow(AssertionError::new);
+    assertEquals(ImmutableMultimap.of("name", new StrictLangValue("Mary")),
+        maryAsOfUpdate.getProperties());
+    assertEquals(ImmutableMultimap.of("knows", johnId), maryAsOfUpdate.getReferences());
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfDelete = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(latestRevision(maryId)))), user));
+    assertEquals(2, nodesAsOfDelete.size());
+    assertTrue(nodesAsOfDelete.stream().anyMatch(r ->
+        r._1 == RevisionType.DELETE && r._2.identifier().equals(maryId)));
+    assertTrue(nodesAsOfDelete.stream().anyMatch(r ->
+        r._2.identifier().equals(johnId) &&
+            r._2.getProperties().equals(
+                ImmutableMultimap.of("name", new StrictLangValue("Johnny")))));
+  }
+
+  @Test
+  void shouldReadGraphNodesAsOfRevisionAfterCheckpoint() throws InterruptedException {
+    NodeId johnId = NodeId.random("Person", graphId);
+    NodeId maryId = NodeId.random("Person", graphId);
+
+    Node john = Node.builder().id(johnId)
+        .addProperty("name", "John")
+        .addReference("knows", maryId)
+        .build();
+    Node mary = Node.builder().id(maryId)
+        .addProperty("name", "Mary")
+        .build();
+
+    nodeService.save(Stream.of(john, mary), INSERT, defaultOpts(), user);
+    Long insertRevision = latestRevision(johnId);
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .references(ImmutableMultimap.of())
+        .build(), UPDATE, defaultOpts(), user);
+    nodeService.delete(maryId, defaultOpts(), user);
+
+    Long checkpoint = nodeRevisionCheckpointer.createCheckpoint();
+    assertTrue(revisionService.get(checkpoint, user)
+        .map(Revision::isCheckpoint)
+        .orElseThrow(AssertionError::new));
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .properties(ImmutableMultimap.of("name", new StrictLangValue("Johnny")))
+        .references(ImmutableMultimap.of())
+        .build(), UPDATE, defaultOpts(), user);
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfInsert = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(insertRevision))), user));
+    assertEquals(2, nodesAsOfInsert.size());
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfCheckpoint = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(checkpoint))), user));
+    assertEquals(1, nodesAsOfCheckpoint.size());
+    assertEquals(johnId, nodesAsOfCheckpoint.get(0)._2.identifier());
+    assertEquals(ImmutableMultimap.of("name", new StrictLangValue("John")),
+        nodesAsOfCheckpoint.get(0)._2.getProperties());
+    assertTrue(nodesAsOfCheckpoint.get(0)._2.getReferences().isEmpty());
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfLatest = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(latestRevision(johnId)))), user));
+    assertEquals(1, nodesAsOfLatest.size());
+    assertEquals(ImmutableMultimap.of("name", new StrictLangValue("Johnny")),
+        nodesAsOfLatest.get(0)._2.getProperties());
+  }
+
+  @Test
+  void shouldWaitForOuterTransactionBeforeCheckpoint() throws InterruptedException {
+    NodeId johnId = NodeId.random("Person", graphId);
+    Node john = Node.builder().id(johnId)
+        .addProperty("name", "John")
+        .build();
+
+    CountDownLatch saved = new CountDownLatch(1);
+    CountDownLatch commit = new CountDownLatch(1);
+
+    // node is saved in a transaction that stays open until released
+    CompletableFuture<Void> write = CompletableFuture.runAsync(() ->
+        runInTransaction(transactionManager, () -> {
+          nodeService.save(john, INSERT, defaultOpts(), user);
+          saved.countDown();
+          await(commit);
+          return null;
+        }));
+    saved.await();
+
+    CompletableFuture<Long> checkpoint = CompletableFuture.supplyAsync(() -> {
+      try {
+        return nodeRevisionCheckpointer.createCheckpoint();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    Thread.sleep(500);
+    assertFalse(checkpoint.isDone());
+
+    commit.countDown();
+    write.join();
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfCheckpoint = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(checkpoint.join()))), user));
+    assertEquals(1, nodesAsOfCheckpoint.size());
+    assertEquals(johnId, nodesAsOfCheckpoint.get(0)._2.identifier());
+  }
+
+  @Test
+  void shouldPurgeRevisionsBeforeCheckpoint() throws InterruptedException {
+    NodeId johnId = NodeId.random("Person", graphId);
+    Node john = Node.builder().id(johnId)
+        .addProperty("name", "John")
+        .build();
+
+    nodeService.save(john, INSERT, defaultOpts(), user);
+    Long insertRevision = latestRevision(johnId);
+
+    Long checkpoint = nodeRevisionCheckpointer.createCheckpoint();
+
+    nodeService.save(Node.builderFromCopyOf(john)
+        .properties(ImmutableMultimap.of("name", new StrictLangValue("Johnny")))
+        .build(), UPDATE, defaultOpts(), user);
+    Long updateRevision = latestRevision(johnId);
+
+    awaitEventOutboxDeliveredUpTo(checkpoint);
+
+    assertEquals(asList(updateRevision, insertRevision), history(johnId));
+
+    nodeRevisionPurger.requestPurgeBefore(checkpoint);
+    nodeRevisionPurger.purge();
+
+    // checkpoint row is listed as the base revision in place of the purged insert
+    assertEquals(asList(updateRevision, checkpoint), history(johnId));
+
+    assertFalse(revisionService.exists(insertRevision, user));
+    assertTrue(revisionService.exists(checkpoint, user));
+
+    List<Tuple2<RevisionType, Node>> johnRevisions = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsById.of(johnId.getId()),
+                NodeRevisionsByTypeId.of(johnId.getTypeId()),
+                NodeRevisionsByGraphId.of(johnId.getTypeGraphId()))), user));
+    assertEquals(2, johnRevisions.size());
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfCheckpoint = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(checkpoint))), user));
+    assertEquals(1, nodesAsOfCheckpoint.size());
+    assertEquals(ImmutableMultimap.of("name", new StrictLangValue("John")),
+        nodesAsOfCheckpoint.get(0)._2.getProperties());
+
+    List<Tuple2<RevisionType, Node>> nodesAsOfUpdate = toListAndClose(
+        nodeRevisionService.values(new Query<>(
+            and(
+                NodeRevisionsByGraphId.of(graphId),
+                NodeRevisionsAsOfRevision.of(updateRevision))), user));
+    assertEquals(ImmutableMultimap.of("name", new StrictLangValue("Johnny")),
+        nodesAsOfUpdate.get(0)._2.getProperties());
+  }
+
+  // revisions waiting in event outbox are not purged
+  private void awaitEventOutboxDeliveredUpTo(Long revision) throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      try (Stream<Long> outboxRevisions = nodeEventOutboxDao.keys(Specifications.matchAll())) {
+        if (outboxRevisions.noneMatch(r -> r <= revision)) {
+          return;
+        }
+      }
+      Thread.sleep(100);
+    }
+    throw new AssertionError("Event outbox not delivered");
+  }
+
+  private Multimap<String, String> propertyValues(Node node) {
+    return Multimaps.transformValues(node.getProperties(), StrictLangValue::getValue);
+  }
+
+  private List<Long> history(NodeId nodeId) {
+    return nodeRevisionReadController.getNodeRevisions(
+        nodeId.getTypeGraphId(), nodeId.getTypeId(), nodeId.getId(), -1, user).stream()
+        .map(ObjectRevision::getNumber)
+        .collect(toList());
+  }
+
+  private Long latestRevision(NodeId nodeId) {
+    return toListAndClose(nodeRevisionService.keys(new Query<>(
+        and(
+            NodeRevisionsById.of(nodeId.getId()),
+            NodeRevisionsByTypeId.of(nodeId.getTypeId()),
+            NodeRevisionsByGraphId.of(nodeId.getTypeGraphId()))), user)).stream()
+        .map(RevisionId::getRevision)
+        .max(Long::compare)
+        .orElseThrow(AssertionError::new);
+  }
+
+  private void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -1,20 +1,29 @@
 package fi.thl.termed.service.node;
 
+import static fi.thl.termed.util.collect.StreamUtils.toListAndClose;
+import static fi.thl.termed.util.query.Queries.query;
+import static fi.thl.termed.util.query.Specifications.asLucene;
+import static fi.thl.termed.util.query.Specifications.asSql;
 import static fi.thl.termed.util.service.SaveMode.INSERT;
 import static fi.thl.termed.util.service.SaveMode.UPDATE;
 import static fi.thl.termed.util.service.SaveMode.UPSERT;
 import static fi.thl.termed.util.service.WriteOptions.defaultOpts;
+import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.StrictLangValue;
 import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.service.node.specification.NodesByGraphId;
 import fi.thl.termed.util.query.Specifications;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -379,4 +388,60 @@ class NodeServiceIntegrationTest extends BaseNodeServiceIntegrationTest {
     assertTrue(nodeService.exists(jackId, user));
   }
 
-}
\ No newline at end of file
+  @Test
+  void shouldLoadSameValuesInBatchesAsForEachNode() {
+    // more nodes than loaded in one batch, each referring to the next two persons
+    List<NodeId> personIds = Stream.generate(() -> NodeId.random("Person", graphId))
+        .limit(600)
+        .collect(toList());
+    NodeId groupId = NodeId.random("Group", graphId);
+
+    List<Node> nodes = new ArrayList<>();
+    for (int i = 0; i < personIds.size(); i++) {
+      nodes.add(Node.builder().id(personIds.get(i))
+          .addProperty("name", "fi", "Henkilö " + i)
+          .addProperty("name", "en", "Person " + i)
+          .addProperty("email", "person." + i + "@example.org")
+          .addReference("knows", personIds.get((i + 1) % personIds.size()))
+          .addReference("knows", personIds.get((i + 2) % personIds.size()))
+          .build());
+    }
+    nodes.add(Node.builder().id(groupId)
+        .addProperty("name", "Group")
+        .addReference("member", personIds.get(0))
+        .addReference("member", personIds.get(599))
+        .build());
+
+    nodeService.save(nodes.stream(), INSERT, defaultOpts(), user);
+
+    List<Node> loaded = toListAndClose(
+        nodeService.values(query(asSql(new NodesByGraphId(graphId))), user));
+
+    assertEquals(601, loaded.size());
+
+    loaded.forEach(node -> {
+      Node expected = nodeService.get(node.identifier(), user)
+          .orElseThrow(AssertionError::new);
+      assertEquals(expected, node);
+      assertEquals(expected.getReferrers(), node.getReferrers());
+    });
+  }
+
+  @Test
+  void shouldCountNodesByType() {
+    nodeService.save(Stream.of(
+        Node.builder().id(NodeId.random("Person", graphId)).build(),
+        Node.builder().id(NodeId.random("Person", graphId)).build(),
+        Node.builder().id(NodeId.random("Group", graphId)).build()),
+        INSERT, defaultOpts(), user);
+
+    ImmutableMap<String, Long> expected = ImmutableMap.of("Person", 2L, "Group", 1L);
+
+    // counted from index doc values and by grouping nodes read from the database
+    assertEquals(expected,
+        nodeService.countBy(asLucene(new NodesByGraphId(graphId)), "type.id", user));
+    assertEquals(expected,
+        nodeService.countBy(asSql(new NodesByGraphId(graphId)), "type.id", user));
+  }
+
+}
@@ -4,9 +4,11 @@ import static fi.thl.termed.util.service.SaveMode.INSERT;
 import static fi.thl.termed.util.service.WriteOptions.opts;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.NodeId;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -83,4 +85,42 @@ class NodeUriSavingServiceIntegrationTest extends BaseNodeServiceIntegrationTest
             .orElseThrow(AssertionError::new));
   }
 
+  @Test
+  void shouldNotGenerateUriGivenToAnotherNodeInSameBatch() {
+    NodeId nodeId0 = NodeId.random("Person", graphId);
+    Node node0 = Node.builder()
+        .id(nodeId0)
+        .build();
+
+    NodeId nodeId1 = NodeId.random("Person", graphId);
+    Node node1 = Node.builder()
+        .id(nodeId1)
+        // give uri that would be generated for the previous node in the batch
+        .uri("http://example.org/person-0")
+        .build();
+
+    nodeService.save(Stream.of(node0, node1), INSERT,
+        opts(false, "http://example.org/", false, true), user);
+
+    assertNull(nodeService.get(nodeId0, user).flatMap(Node::getUri).orElse(null));
+    assertEquals("http://example.org/person-0",
+        nodeService.get(nodeId1, user).flatMap(Node::getUri).orElse(null));
+  }
+
+  @Test
+  void shouldNotGenerateSameUriFromCodesOfDifferentTypesInSameBatch() {
+    NodeId personId = NodeId.random("Person", graphId);
+    NodeId groupId = NodeId.random("Group", graphId);
+
+    // codes are unique by type but uris are unique by graph
+    nodeService.save(Stream.of(
+        Node.builder().id(personId).code("example-code").build(),
+        Node.builder().id(groupId).code("example-code").build()),
+        INSERT, opts(false, "http://example.org/", true, true), user);
+
+    assertEquals("http://example.org/example-code",
+        nodeService.get(personId, user).flatMap(Node::getUri).orElse(null));
+    assertNull(nodeService.get(groupId, user).flatMap(Node::getUri).orElse(null));
+  }
+
 }
@@ -1,6 +1,7 @@
 package fi.thl.termed.service.node;
 
 import static fi.thl.termed.util.service.SaveMode.INSERT;
+import static fi.thl.termed.util.service.SaveMode.UPSERT;
 import static fi.thl.termed.util.service.WriteOptions.opts;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -152,6 +153,27 @@ class NodeWriteEventEmittingServiceIntegrationTest extends BaseNodeServiceIntegr
     assertEquals(nodeCount, eventListener.countNodesDeleted());
   }
 
+  @Test
+  void shouldNotProduceEventsForUnchangedNodes() {
+    Node node = Node.builder()
+        .id(NodeId.random("Person", graphId))
+        .code("example-code")
+        .build();
+
+    nodeService.save(node, INSERT, opts(true), user);
+
+    SimpleNodeWriteEventListener eventListener = new SimpleNodeWriteEventListener();
+    eventBus.register(eventListener);
+
+    nodeService.save(node, UPSERT, opts(true), user);
+    nodeService.save(Stream.of(node), UPSERT, opts(true), user);
+    assertEquals(0, eventListener.countNodesSaved());
+
+    nodeService.save(Node.builderFromCopyOf(node).code("changed-code").build(),
+        UPSERT, opts(true), user);
+    assertEquals(1, eventListener.countNodesSaved());
+  }
+
   private class SimpleNodeWriteEventListener {
 
     private List<NodeSavedEvent> savedEvents = new ArrayList<>();
@@ -0,0 +1,112 @@
+package fi.thl.termed.service.node.internal;
+
+import static fi.thl.termed.domain.User.newSuperuser;
+import static fi.thl.termed.util.query.Specifications.matchAll;
+import static fi.thl.termed.util.service.SaveMode.INSERT;
+import static fi.thl.termed.util.service.WriteOptions.opts;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import fi.thl.termed.domain.Empty;
+import fi.thl.termed.domain.IndexingQueueItemId;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.event.ApplicationShutdownEvent;
+import fi.thl.termed.util.dao.MemoryBasedSystemDao;
+import fi.thl.termed.util.dao.SystemDao;
+import fi.thl.termed.util.index.Index;
+import fi.thl.termed.util.service.Service;
+import java.io.Serializable;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class IndexedNodeServiceTest {
+
+  private UUID graphId = UUID.randomUUID();
+  private User user = newSuperuser("test-user");
+
+  private Index<NodeId, Node> index;
+  private SystemDao<Long, Empty> queueDao =
+      new MemoryBasedSystemDao<>(new ConcurrentHashMap<>());
+  private SystemDao<IndexingQueueItemId<NodeId>, Empty> queueItemDao =
+      new MemoryBasedSystemDao<>(new ConcurrentHashMap<>());
+
+  private IndexedNodeService service;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    Service<NodeId, Node> delegate = mock(Service.class);
+    when(delegate.keys(any(), any())).thenAnswer(i -> Stream.empty());
+    when(delegate.values(any(), any())).thenAnswer(i -> Stream.empty());
+
+    index = mock(Index.class);
+    when(index.index(anyList(), any()))
+        .thenAnswer(i -> CompletableFuture.completedFuture(emptyMap()));
+
+    AtomicLong queueSequence = new AtomicLong();
+    service = new IndexedNodeService(delegate, index,
+        queueSequence::incrementAndGet, queueDao, queueItemDao, true);
+  }
+
+  @Test
+  void shouldRetryFailedQueueWithNextQueue() {
+    Node john = Node.builder().id(NodeId.random("Person", graphId)).build();
+    Node jack = Node.builder().id(NodeId.random("Person", graphId)).build();
+    List<NodeId> johnIds = singletonList(john.identifier());
+
+    CompletableFuture<Object> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("Index is not available"));
+    when(index.index(eq(johnIds), any())).thenAnswer(i -> failed);
+
+    assertThrows(IllegalStateException.class,
+        () -> service.save(john, INSERT, opts(true), user));
+    assertEquals(1, count(queueDao));
+
+    when(index.index(eq(johnIds), any()))
+        .thenAnswer(i -> CompletableFuture.completedFuture(emptyMap()));
+
+    service.save(jack, INSERT, opts(true), user);
+
+    verify(index, times(2)).index(eq(johnIds), any());
+    verify(index).index(eq(singletonList(jack.identifier())), any());
+    assertEquals(0, count(queueDao));
+  }
+
+  @Test
+  void shouldLeaveQueueForNextStartUpWhenWrittenAfterClose() {
+    service.closeIndexOn(new ApplicationShutdownEvent());
+
+    service.save(Node.builder().id(NodeId.random("Person", graphId)).build(),
+        INSERT, opts(true), user);
+
+    verify(index, never()).index(anyList(), any());
+    assertEquals(1, count(queueDao));
+    assertTrue(count(queueItemDao) > 0);
+  }
+
+  private <K extends Serializable> long count(SystemDao<K, Empty> dao) {
+    try (Stream<K> keys = dao.keys(matchAll())) {
+      return keys.count();
+    }
+  }
+
+}
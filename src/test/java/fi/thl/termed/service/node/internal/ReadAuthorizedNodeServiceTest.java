@@ -0,0 +1,135 @@
+package fi.thl.termed.service.node.internal;
+
+import static fi.thl.termed.util.query.Queries.matchAll;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.ReferenceAttributeId;
+import fi.thl.termed.domain.TextAttributeId;
+import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.util.service.Service;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ReadAuthorizedNodeServiceTest {
+
+  private TypeId personId = TypeId.of("Person", UUID.randomUUID());
+  private TypeId groupId = TypeId.of("Group", personId.getGraphId());
+
+  private User reader = User.newUser("reader");
+  private User restrictedReader = User.newUser("restricted-reader");
+
+  private List<Node> nodes;
+
+  private List<TypeId> evaluatedTypes = new ArrayList<>();
+  private List<TextAttributeId> evaluatedTextAttrs = new ArrayList<>();
+  private List<ReferenceAttributeId> evaluatedRefAttrs = new ArrayList<>();
+
+  private ReadAuthorizedNodeService service;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    NodeId groupNodeId = NodeId.random(groupId);
+
+    nodes = IntStream.range(0, 100)
+        .mapToObj(i -> Node.builder().id(NodeId.random(personId))
+            .addProperty("name", "Person " + i)
+            .addProperty("email", "person." + i + "@example.org")
+            .addReference("memberOf", groupNodeId)
+            .build())
+        .collect(toList());
+
+    Service<NodeId, Node> delegate = mock(Service.class);
+    when(delegate.values(any(), any())).thenAnswer(i -> nodes.stream());
+    when(delegate.keys(any(), any())).thenAnswer(i -> nodes.stream().map(Node::identifier));
+
+    // restricted reader can't read emails or groups
+    Set<TypeId> restrictedTypes = ImmutableSet.of(groupId);
+    Set<String> restrictedTextAttrs = ImmutableSet.of("email");
+
+    service = new ReadAuthorizedNodeService(delegate,
+        (user, typeId, permission) -> {
+          evaluatedTypes.add(typeId);
+          return user != restrictedReader || !restrictedTypes.contains(typeId);
+        },
+        (user, attrId, permission) -> {
+          evaluatedTextAttrs.add(attrId);
+          return user != restrictedReader || !restrictedTextAttrs.contains(attrId.getId());
+        },
+        (user, attrId, permission) -> {
+          evaluatedRefAttrs.add(attrId);
+          return true;
+        });
+  }
+
+  @Test
+  void shouldEvaluateEachTypeAndAttributeOncePerQuery() {
+    List<Node> results = values(reader);
+
+    assertEquals(nodes, results);
+    assertEquals(ImmutableList.of(personId, groupId), evaluatedTypes);
+    assertEquals(ImmutableList.of(
+        new TextAttributeId(personId, "name"),
+        new TextAttributeId(personId, "email")), evaluatedTextAttrs);
+    assertEquals(ImmutableList.of(
+        new ReferenceAttributeId(personId, "memberOf")), evaluatedRefAttrs);
+  }
+
+  @Test
+  void shouldEvaluateKeysOncePerType() {
+    try (Stream<NodeId> keys = service.keys(matchAll(), reader)) {
+      assertEquals(100, keys.count());
+    }
+
+    assertEquals(ImmutableList.of(personId), evaluatedTypes);
+  }
+
+  @Test
+  void shouldNotReuseDecisionsAcrossQueries() {
+    values(reader);
+    values(reader);
+
+    assertEquals(ImmutableList.of(personId, groupId, personId, groupId), evaluatedTypes);
+  }
+
+  @Test
+  void shouldNotReuseDecisionsAcrossUsers() {
+    List<Node> readerResults = values(reader);
+    List<Node> restrictedResults = values(restrictedReader);
+    List<Node> readerResultsAgain = values(reader);
+
+    assertEquals(nodes, readerResults);
+    assertEquals(nodes, readerResultsAgain);
+
+    assertEquals(100, restrictedResults.size());
+    restrictedResults.forEach(node -> {
+      assertTrue(node.getFirstPropertyValue("name").isPresent());
+      assertFalse(node.getFirstPropertyValue("email").isPresent());
+      assertFalse(node.getFirstReferenceValue("memberOf").isPresent());
+    });
+  }
+
+  private List<Node> values(User user) {
+    try (Stream<Node> values = service.values(matchAll(), user)) {
+      return values.collect(toList());
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+package fi.thl.termed.service.node.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Selects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+class BatchingNodeUriResolverTest {
+
+  private UUID graphId = UUID.randomUUID();
+
+  private Node john = Node.builder().id(NodeId.random("Person", graphId))
+      .uri("http://example.org/john").build();
+  private Node mary = Node.builder().id(NodeId.random("Person", graphId))
+      .uri("http://example.org/mary").addReference("knows", john.identifier()).build();
+
+  private List<Query<NodeId, Node>> queries = new ArrayList<>();
+
+  private BatchingNodeUriResolver resolver = new BatchingNodeUriResolver(query -> {
+    queries.add(query);
+    return Stream.of(john, mary).filter(n -> query.getWhere().test(n.identifier(), n));
+  });
+
+  @Test
+  void shouldPreloadOnlyIdsAndUris() {
+    resolver.preload(ImmutableList.of(mary));
+
+    assertEquals(1, queries.size());
+    assertEquals(ImmutableList.of(
+        Selects.field("id"),
+        Selects.field("type.id"),
+        Selects.field("type.graph.id"),
+        Selects.field("uri")), queries.get(0).getSelect());
+
+    assertEquals(Optional.of("http://example.org/john"), resolver.apply(john.identifier()));
+    assertEquals(Optional.of("http://example.org/mary"), resolver.apply(mary.identifier()));
+    assertEquals(1, queries.size());
+  }
+
+  @Test
+  void shouldNotLoadUrisOfAddedNodes() {
+    resolver.addAll(ImmutableList.of(john, mary));
+    resolver.preload(ImmutableList.of(mary));
+
+    assertEquals(Optional.of("http://example.org/john"), resolver.apply(john.identifier()));
+    assertTrue(queries.isEmpty());
+  }
+
+}
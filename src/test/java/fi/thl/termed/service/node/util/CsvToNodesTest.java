@@ -2,7 +2,6 @@ package fi.thl.termed.service.node.util;
 
 import static com.google.common.collect.ImmutableList.of;
 import static fi.thl.termed.util.UUIDs.nilUuid;
-import static fi.thl.termed.util.query.AndSpecification.and;
 import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -14,20 +13,18 @@ import fi.thl.termed.domain.ReferenceAttribute;
 import fi.thl.termed.domain.StrictLangValue;
 import fi.thl.termed.domain.Type;
 import fi.thl.termed.domain.TypeId;
-import fi.thl.termed.service.node.specification.NodesByGraphId;
-import fi.thl.termed.service.node.specification.NodesByPropertyString;
-import fi.thl.termed.service.node.specification.NodesByTypeId;
 import fi.thl.termed.util.csv.CsvOptions;
+import fi.thl.termed.util.query.Query;
 import fi.thl.termed.util.query.SelectAll;
-import fi.thl.termed.util.query.Specification;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.List;
-import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 
 class CsvToNodesTest {
@@ -146,25 +143,19 @@ class CsvToNodesTest {
                 .build())
         .build();
 
-    Function<Specification<NodeId, Node>, Optional<NodeId>> nodeIdResolver = (specification) -> {
-      if (specification.equals(and(
-          new NodesByGraphId(graphId),
-          new NodesByTypeId(typeId),
-          new NodesByPropertyString("name", "John")
-      ))) {
-        return Optional.of(NodeId.of(node1Id, personTypeId));
-      }
-      if (specification.equals(and(
-          new NodesByGraphId(graphId),
-          new NodesByTypeId(typeId),
-          new NodesByPropertyString("name", "Mary")
-      ))) {
-        return Optional.of(NodeId.of(node2Id, personTypeId));
-      }
-      throw new AssertionError("Can't resolve: " + specification);
+    List<Node> existingNodes = of(
+        Node.builder().id(node1Id, personTypeId)
+            .addProperty("name", new StrictLangValue("John")).build(),
+        Node.builder().id(node2Id, personTypeId)
+            .addProperty("name", new StrictLangValue("Mary")).build());
+
+    AtomicInteger queryCount = new AtomicInteger();
+    Function<Query<NodeId, Node>, Stream<Node>> nodeResolver = (query) -> {
+      queryCount.incrementAndGet();
+      return existingNodes.stream().filter(n -> query.getWhere().test(n.identifier(), n));
     };
 
-    List<Node> nodes = new CsvToNodes(of(personType), nodeIdResolver)
+    List<Node> nodes = new CsvToNodes(of(personType), nodeResolver)
         .parseNodesFromCsv(CsvOptions.builder().build(), csv)
         .collect(toList());
 
@@ -187,6 +178,8 @@ class CsvToNodesTest {
     assertEquals(node1Id, node2.getFirstReferenceValue("knows")
         .map(NodeId::getId)
         .orElse(null));
+
+    assertEquals(1, queryCount.get());
   }
 
   private void assertNodesAreEqualAfterConvertingCsvAndBack(List<Node> nodes) {
@@ -0,0 +1,144 @@
+package fi.thl.termed.service.node.util;
+
+import static fi.thl.termed.domain.User.newSuperuser;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.stream.JsonWriter;
+import fi.thl.termed.domain.DepthLimitedNodeTree;
+import fi.thl.termed.domain.FilteredNodeTree;
+import fi.thl.termed.domain.LazyLoadingNodeTree;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.NodeTree;
+import fi.thl.termed.domain.ReferenceAttribute;
+import fi.thl.termed.domain.TextAttribute;
+import fi.thl.termed.domain.Type;
+import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.service.node.select.NodeSelects;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.query.Select;
+import fi.thl.termed.util.service.Service;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class IndexedNodeTreePreloaderTest {
+
+  private UUID graphId = UUID.randomUUID();
+  private TypeId personId = TypeId.of("Person", graphId);
+
+  private List<Type> types = ImmutableList.of(Type.builder().id(personId)
+      .textAttributes(TextAttribute.builder().id("name", personId).regexAll().build())
+      .referenceAttributes(
+          ReferenceAttribute.builder().id("knows", personId).range(personId).build())
+      .build());
+
+  private User user = newSuperuser("test-user");
+
+  private List<Node> nodes;
+  private List<Query<NodeId, Node>> queries = new ArrayList<>();
+  private Service<NodeId, Node> nodeService;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    List<NodeId> ids = IntStream.range(0, 5)
+        .mapToObj(i -> NodeId.random(personId))
+        .collect(toList());
+
+    // each person knows the next two, last two persons know no one
+    nodes = IntStream.range(0, 5)
+        .mapToObj(i -> {
+          Node.Builder node = Node.builder().id(ids.get(i)).addProperty("name", "Person " + i);
+          if (i < 3) {
+            node.addReference("knows", ids.get(i + 1));
+            node.addReference("knows", ids.get(i + 2));
+          }
+          node.addReferrer("knows", ids.subList(Math.max(0, i - 2), i));
+          return node.build();
+        })
+        .collect(toList());
+
+    nodeService = mock(Service.class);
+    when(nodeService.values(any(), any())).thenAnswer(i -> {
+      Query<NodeId, Node> query = i.getArgument(0);
+      queries.add(query);
+      return nodes.stream().filter(n -> query.getWhere().test(n.identifier(), n));
+    });
+  }
+
+  @Test
+  void shouldPreloadSameTreesAsLoadedLazily() throws IOException {
+    List<Select> selects = NodeSelects.qualify(types, types, NodeSelects.parse(asList(
+        "id", "properties.name", "references.knows:3", "referrers.knows:2")));
+
+    String lazilyLoaded = toJson(toTrees(nodes, selects, cache()));
+    int lazyQueryCount = queries.size();
+    queries.clear();
+
+    Cache<NodeId, Node> cache = cache();
+    new IndexedNodeTreePreloader(nodeService, user, selects, cache).preload(nodes);
+    int preloadQueryCount = queries.size();
+
+    assertEquals(lazilyLoaded, toJson(toTrees(nodes, selects, cache)));
+    // one query per level, nothing is left to be loaded lazily
+    assertTrue(preloadQueryCount <= 3);
+    assertEquals(preloadQueryCount, queries.size());
+    assertTrue(lazyQueryCount > preloadQueryCount);
+  }
+
+  @Test
+  void shouldPreloadSameTreesForPartialPage() throws IOException {
+    List<Select> selects = NodeSelects.qualify(types, types, NodeSelects.parse(asList(
+        "id", "references.knows:2")));
+    List<Node> roots = nodes.subList(0, 2);
+
+    String lazilyLoaded = toJson(toTrees(roots, selects, cache()));
+
+    Cache<NodeId, Node> cache = cache();
+    new IndexedNodeTreePreloader(nodeService, user, selects, cache).preload(roots);
+
+    assertEquals(lazilyLoaded, toJson(toTrees(roots, selects, cache)));
+  }
+
+  private Cache<NodeId, Node> cache() {
+    return CacheBuilder.newBuilder().build();
+  }
+
+  // trees are built as in node tree controllers
+  private List<NodeTree> toTrees(List<Node> roots, List<Select> selects,
+      Cache<NodeId, Node> cache) {
+    return roots.stream().map(root -> {
+      NodeTree tree = new LazyLoadingNodeTree(root,
+          new IndexedReferenceLoader(nodeService, user, selects, cache),
+          new IndexedReferrerLoader(nodeService, user, selects, cache));
+      tree = new DepthLimitedNodeTree(tree,
+          NodeSelects.toReferenceSelectsWithDepths(selects),
+          NodeSelects.toReferrerSelectsWithDepths(selects));
+      return (NodeTree) new FilteredNodeTree(tree, ImmutableSet.copyOf(selects));
+    }).collect(toList());
+  }
+
+  private String toJson(List<NodeTree> trees) throws IOException {
+    StringWriter result = new StringWriter();
+    NodeTreeToJsonStream.toJson(trees.iterator(), new JsonWriter(result));
+    return result.toString();
+  }
+
+}
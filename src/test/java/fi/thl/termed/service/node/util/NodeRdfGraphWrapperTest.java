@@ -19,13 +19,20 @@ import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.util.dao.MemoryBasedSystemDao;
 import fi.thl.termed.util.dao.SystemDao;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.sparql.engine.main.StageBuilder;
 import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.SKOS;
@@ -35,6 +42,7 @@ import org.junit.jupiter.api.Test;
 class NodeRdfGraphWrapperTest {
 
   private Model model;
+  private AtomicInteger queryCount = new AtomicInteger();
 
   @BeforeEach
   void setUp() {
@@ -71,7 +79,10 @@ class NodeRdfGraphWrapperTest {
         .build();
     nodeDao.insert(concept2Id, concept2);
 
-    GraphBase graphBase = new NodeRdfGraphWrapper("http://example.org/", types, nodeDao::values);
+    GraphBase graphBase = new NodeRdfGraphWrapper("http://example.org/", types, query -> {
+      queryCount.incrementAndGet();
+      return nodeDao.values(query.getWhere());
+    });
 
     model = ModelFactory.createModelForGraph(graphBase);
   }
@@ -116,4 +127,36 @@ class NodeRdfGraphWrapperTest {
     assertFalse(iterator.hasNext());
   }
 
-}
\ No newline at end of file
+  @Test
+  void wrappedGraphShouldListTriplesByPredicate() {
+    Statement expected = createStatement(createResource("http://example.org/Concept_2"),
+        SKOS.broader, createResource("http://example.org/Concept_1"));
+
+    assertEquals(ImmutableSet.of(expected),
+        model.listStatements(null, SKOS.broader, (RDFNode) null).toSet());
+  }
+
+  @Test
+  void wrappedGraphShouldMatchLiteralLanguage() {
+    assertTrue(model.listStatements(null, SKOS.prefLabel, "Concept 1", "en").hasNext());
+    assertFalse(model.listStatements(null, SKOS.prefLabel, "Concept 1", "fi").hasNext());
+  }
+
+  @Test
+  void wrappedGraphShouldLoadBoundSubjectsInBatches() {
+    String sparql = "PREFIX skos: <http://www.w3.org/2004/02/skos/core#> "
+        + "SELECT ?label WHERE { ?c a skos:Concept . ?c skos:prefLabel ?label }";
+
+    QueryExecution qe = QueryExecutionFactory.create(QueryFactory.create(sparql), model);
+    StageBuilder.setGenerator(qe.getContext(), new NodeRdfGraphStageGenerator(
+        StageBuilder.chooseStageGenerator(qe.getContext())));
+
+    Set<String> labels = new HashSet<>();
+    qe.execSelect().forEachRemaining(s -> labels.add(s.getLiteral("label").getString()));
+
+    assertEquals(ImmutableSet.of("Concept 1", "Concept 2"), labels);
+    // one query for nodes by type and one for both bound subjects
+    assertEquals(2, queryCount.get());
+  }
+
+}
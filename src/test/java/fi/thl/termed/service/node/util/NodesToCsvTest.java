@@ -4,12 +4,19 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import com.google.common.collect.ImmutableList;
 import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
 import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.service.node.select.SelectId;
 import fi.thl.termed.service.node.select.SelectProperty;
+import fi.thl.termed.service.node.select.SelectReference;
+import fi.thl.termed.service.node.select.SelectType;
 import fi.thl.termed.util.csv.CsvOptions;
+import fi.thl.termed.util.query.Select;
 import fi.thl.termed.util.query.Selects;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
@@ -50,4 +57,161 @@ class NodesToCsvTest {
     assertEquals(expectedCsv, csv);
   }
 
-}
\ No newline at end of file
+  @Test
+  void shouldWriteUnionOfColumnsWhenStreamingNodesToCsv() throws UnsupportedEncodingException {
+    UUID graphId = UUID.randomUUID();
+    TypeId typeId = TypeId.of("Person", graphId);
+
+    Node node1 = Node.builder().random(typeId)
+        .code("example-node-1")
+        .addProperty("firstName", "John")
+        .build();
+    Node node2 = Node.builder().random(typeId)
+        .code("example-node-2")
+        .addProperty("email", "en", "jack@example.org")
+        .build();
+
+    NodesToCsv nodesToCsv = new NodesToCsv();
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+    nodesToCsv.writeAsCsv(selects -> Stream.of(node1, node2),
+        ImmutableList.of(
+            Selects.field("code"),
+            new SelectProperty("firstName"),
+            new SelectProperty("email")),
+        CsvOptions.builder().build(),
+        byteArrayOutputStream);
+
+    String csv = byteArrayOutputStream.toString("UTF-8");
+
+    String expectedCsv =
+        "code,properties.firstName,properties.email.en\n"
+            + "example-node-1,John,\n"
+            + "example-node-2,,jack@example.org\n";
+
+    assertEquals(expectedCsv, csv);
+  }
+
+  @Test
+  void shouldCollectColumnsWithSelectedAttributesOnly() throws UnsupportedEncodingException {
+    UUID graphId = UUID.randomUUID();
+    TypeId typeId = TypeId.of("Person", graphId);
+
+    Node node1 = Node.builder().random(typeId)
+        .code("example-node-1")
+        .addProperty("firstName", "John")
+        .build();
+    Node node2 = Node.builder().random(typeId)
+        .code("example-node-2")
+        .addProperty("firstName", "Jack")
+        .addProperty("email", "en", "jack@example.org")
+        .build();
+
+    List<List<Select>> querySelects = new ArrayList<>();
+
+    NodesToCsv nodesToCsv = new NodesToCsv();
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+    // node2 is added and node1 changed after the header is collected
+    nodesToCsv.writeAsCsv(selects -> {
+          querySelects.add(selects);
+          return querySelects.size() == 1
+              ? Stream.of(node1)
+              : Stream.of(Node.builderFromCopyOf(node1).code("changed-code").build(), node2);
+        },
+        ImmutableList.of(
+            Selects.field("code"),
+            new SelectProperty("firstName"),
+            new SelectProperty("email"),
+            new SelectReference("knows", 2)),
+        CsvOptions.builder().build(),
+        byteArrayOutputStream);
+
+    String csv = byteArrayOutputStream.toString("UTF-8");
+
+    String expectedCsv =
+        "code,properties.firstName\n"
+            + "changed-code,John\n"
+            + "example-node-2,Jack\n";
+
+    assertEquals(expectedCsv, csv);
+    assertEquals(ImmutableList.of(
+        ImmutableList.of(
+            new SelectId(),
+            new SelectType(),
+            new SelectProperty("firstName"),
+            new SelectProperty("email"),
+            new SelectReference("knows")),
+        ImmutableList.of(
+            Selects.field("code"),
+            new SelectProperty("firstName"),
+            new SelectProperty("email"),
+            new SelectReference("knows", 2))), querySelects);
+  }
+
+  @Test
+  void shouldNotQueryColumnsIfNoAttributesAreSelected() throws UnsupportedEncodingException {
+    Node node = Node.builder().random(TypeId.of("Person", UUID.randomUUID()))
+        .code("example-node")
+        .addProperty("firstName", "John")
+        .build();
+
+    List<List<Select>> querySelects = new ArrayList<>();
+
+    NodesToCsv nodesToCsv = new NodesToCsv();
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+    nodesToCsv.writeAsCsv(selects -> {
+          querySelects.add(selects);
+          return Stream.of(node);
+        },
+        ImmutableList.of(Selects.field("code"), Selects.field("uri")),
+        CsvOptions.builder().build(),
+        byteArrayOutputStream);
+
+    assertEquals("code,uri\nexample-node,\n", byteArrayOutputStream.toString("UTF-8"));
+    assertEquals(1, querySelects.size());
+  }
+
+  @Test
+  void shouldLoadReferenceLabelsInBatches() throws UnsupportedEncodingException {
+    UUID graphId = UUID.randomUUID();
+    TypeId typeId = TypeId.of("Concept", graphId);
+
+    Node hub = Node.builder().random(typeId)
+        .addProperty("prefLabel", "en", "Hub")
+        .build();
+    Node node1 = Node.builder().random(typeId)
+        .code("example-node-1")
+        .addReference("broader", hub.identifier())
+        .build();
+    Node node2 = Node.builder().random(typeId)
+        .code("example-node-2")
+        .addReference("broader", hub.identifier())
+        .build();
+
+    List<List<NodeId>> loadedBatches = new ArrayList<>();
+
+    NodesToCsv nodesToCsv = new NodesToCsv(true, "prefLabel", "en", ids -> {
+      loadedBatches.add(ids);
+      return Stream.of(hub).filter(n -> ids.contains(n.identifier()));
+    });
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+    nodesToCsv.writeAsCsv(selects -> Stream.of(node1, node2),
+        ImmutableList.of(Selects.field("code"), new SelectReference("broader")),
+        CsvOptions.builder().build(),
+        byteArrayOutputStream);
+
+    String csv = byteArrayOutputStream.toString("UTF-8");
+
+    String expectedCsv =
+        "code,r.broader.p.prefLabel.en\n"
+            + "example-node-1,Hub\n"
+            + "example-node-2,Hub\n";
+
+    assertEquals(expectedCsv, csv);
+    assertEquals(ImmutableList.of(ImmutableList.of(hub.identifier())), loadedBatches);
+  }
+
+}
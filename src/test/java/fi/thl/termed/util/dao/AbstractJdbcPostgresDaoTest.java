@@ -0,0 +1,161 @@
+package fi.thl.termed.util.dao;
+
+import static fi.thl.termed.util.dao.AbstractJdbcPostgresDao.STAGING_LIMIT;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import fi.thl.termed.util.collect.Tuple;
+import fi.thl.termed.util.collect.Tuple2;
+import fi.thl.termed.util.query.Specifications;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.postgresql.core.BaseConnection;
+
+class AbstractJdbcPostgresDaoTest {
+
+  private List<String> statements = new ArrayList<>();
+  private List<Tuple2<String, List<String[]>>> copies = new ArrayList<>();
+
+  private MemoryBasedSystemDao<Integer, String> delegate = new MemoryBasedSystemDao<>();
+
+  private TestDao dao;
+
+  @BeforeEach
+  void setUp() throws SQLException {
+    DataSource dataSource = mock(DataSource.class);
+    Connection connection = mock(Connection.class);
+    BaseConnection pgConnection = mock(BaseConnection.class);
+    Statement statement = mock(Statement.class);
+
+    when(dataSource.getConnection()).thenReturn(connection);
+    when(connection.isWrapperFor(BaseConnection.class)).thenReturn(true);
+    when(connection.unwrap(BaseConnection.class)).thenReturn(pgConnection);
+    when(pgConnection.createStatement()).thenReturn(statement);
+    when(statement.executeUpdate(anyString())).thenAnswer(invocation -> {
+      statements.add(invocation.getArgument(0));
+      return 0;
+    });
+
+    delegate.insert(entries(2000));
+
+    dao = new TestDao(delegate, dataSource);
+  }
+
+  @Test
+  void shouldUpdateLargeBatchThroughStagingTable() {
+    dao.update(entries(STAGING_LIMIT).map(e -> Tuple.of(e._1, "updated")));
+
+    assertEquals(ImmutableList.of(
+        "CREATE TEMPORARY TABLE IF NOT EXISTS test_staging AS SELECT * FROM test WITH NO DATA",
+        "TRUNCATE test_staging",
+        "UPDATE test t SET value = s.value FROM test_staging s WHERE t.id = s.id"),
+        statements);
+
+    assertEquals(1, copies.size());
+    assertEquals("COPY test_staging (id, value) FROM STDIN CSV", copies.get(0)._1);
+    assertEquals(STAGING_LIMIT, copies.get(0)._2.size());
+    assertArrayEquals(new String[]{"0", "updated"}, copies.get(0)._2.get(0));
+
+    // applied by the update statement, not by delegate
+    assertEquals("value-0", values().get(0));
+  }
+
+  @Test
+  void shouldUpdateSmallBatchWithDelegate() {
+    dao.update(entries(STAGING_LIMIT - 1).map(e -> Tuple.of(e._1, "updated")));
+
+    assertTrue(statements.isEmpty());
+    assertTrue(copies.isEmpty());
+    assertEquals("updated", values().get(0));
+    assertEquals("value-" + STAGING_LIMIT, values().get(STAGING_LIMIT));
+  }
+
+  @Test
+  void shouldAnalyzeOnlyLargeStagingBatches() {
+    dao.update(entries(1001).map(e -> Tuple.of(e._1, "updated")));
+
+    assertEquals(ImmutableList.of(
+        "CREATE TEMPORARY TABLE IF NOT EXISTS test_staging AS SELECT * FROM test WITH NO DATA",
+        "TRUNCATE test_staging",
+        "ANALYZE test_staging",
+        "UPDATE test t SET value = s.value FROM test_staging s WHERE t.id = s.id"),
+        statements);
+  }
+
+  @Test
+  void shouldDeleteLargeBatchThroughStagingTable() {
+    dao.delete(entries(STAGING_LIMIT).map(e -> e._1));
+
+    assertEquals(ImmutableList.of(
+        "CREATE TEMPORARY TABLE IF NOT EXISTS test_staging AS SELECT * FROM test WITH NO DATA",
+        "TRUNCATE test_staging",
+        "DELETE FROM test t USING test_staging s WHERE t.id = s.id"),
+        statements);
+
+    assertEquals(1, copies.size());
+    assertEquals("COPY test_staging (id) FROM STDIN CSV", copies.get(0)._1);
+    assertEquals(STAGING_LIMIT, copies.get(0)._2.size());
+    assertArrayEquals(new String[]{"0"}, copies.get(0)._2.get(0));
+
+    assertEquals(2000, values().size());
+  }
+
+  @Test
+  void shouldDeleteSmallBatchWithDelegate() {
+    dao.delete(entries(STAGING_LIMIT - 1).map(e -> e._1));
+
+    assertTrue(statements.isEmpty());
+    assertTrue(copies.isEmpty());
+    assertEquals(2000 - STAGING_LIMIT + 1, values().size());
+  }
+
+  private Stream<Tuple2<Integer, String>> entries(int count) {
+    return IntStream.range(0, count).mapToObj(i -> Tuple.of(i, "value-" + i));
+  }
+
+  private Map<Integer, String> values() {
+    try (Stream<Tuple2<Integer, String>> entries = delegate.entries(Specifications.matchAll())) {
+      return entries.collect(toMap(e -> e._1, e -> e._2));
+    }
+  }
+
+  private class TestDao extends AbstractJdbcPostgresDao<Integer, String> {
+
+    TestDao(SystemDao<Integer, String> delegate, DataSource dataSource) {
+      super(delegate, dataSource, "test", asList("id"), asList("value"), false);
+    }
+
+    @Override
+    void copyIn(BaseConnection connection, String sql, List<String[]> rows) {
+      copies.add(Tuple.of(sql, rows));
+    }
+
+    @Override
+    protected String[] toRow(Integer key, String value) {
+      return new String[]{key.toString(), value};
+    }
+
+    @Override
+    protected String[] toKeyRow(Integer key) {
+      return new String[]{key.toString()};
+    }
+
+  }
+
+}
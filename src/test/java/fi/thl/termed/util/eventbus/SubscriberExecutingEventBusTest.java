@@ -0,0 +1,176 @@
+package fi.thl.termed.util.eventbus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.eventbus.Subscribe;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SubscriberExecutingEventBusTest {
+
+  private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  // events are ordered by first character, events starting with "sync" are awaited
+  private SubscriberExecutingEventBus eventBus = new SubscriberExecutingEventBus(10,
+      e -> e instanceof String ? ((String) e).charAt(0) : null,
+      e -> e instanceof String && ((String) e).startsWith("sync"),
+      meterRegistry);
+
+  @AfterEach
+  void closeEventBus() {
+    eventBus.close();
+  }
+
+  @Test
+  void shouldNotBlockPosterOnSlowSubscriber() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    eventBus.register(new Object() {
+      @Subscribe
+      public void handle(String event) throws InterruptedException {
+        release.await();
+        received.add(event);
+      }
+    });
+
+    eventBus.post("a1");
+    eventBus.post("a2");
+    eventBus.post("a3");
+
+    assertTrue(received.isEmpty());
+    // first event is being handled, rest are queued
+    assertEquals(2.0, meterRegistry.get(SubscriberExecutingEventBus.QUEUE_SIZE_METRIC)
+        .gauge().value());
+
+    release.countDown();
+    eventBus.close();
+
+    assertEquals(3, received.size());
+  }
+
+  @Test
+  void shouldHandleEventsWithSameKeyInOrder() {
+    List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    eventBus.register(new Object() {
+      @Subscribe
+      public void handle(String event) throws InterruptedException {
+        // earlier events take longer
+        Thread.sleep(10 - Integer.parseInt(event.substring(1)));
+        received.add(event);
+      }
+    });
+
+    for (int i = 0; i < 10; i++) {
+      eventBus.post("x" + i);
+    }
+    eventBus.close();
+
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      expected.add("x" + i);
+    }
+    assertEquals(expected, received);
+  }
+
+  @Test
+  void shouldCallSynchronousSubscriberInPostingThread() {
+    List<Thread> threads = new ArrayList<>();
+
+    eventBus.register(new Object() {
+      @Subscribe
+      @Synchronous
+      public void handle(String event) {
+        threads.add(Thread.currentThread());
+      }
+    });
+
+    eventBus.post("a");
+
+    assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+  }
+
+  @Test
+  void shouldWaitForAsynchronousSubscriberIfRequested() throws InterruptedException {
+    CountDownLatch handled = new CountDownLatch(1);
+
+    eventBus.register(new Object() {
+      @Subscribe
+      public void handle(String event) throws InterruptedException {
+        Thread.sleep(50);
+        handled.countDown();
+      }
+    });
+
+    eventBus.post("sync event");
+
+    assertTrue(handled.await(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void shouldNotLeavePosterWaitingForSpaceWhenClosed() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+
+    Object subscriber = new Object() {
+      @Subscribe
+      public void handle(String event) throws InterruptedException {
+        release.await();
+      }
+    };
+    eventBus.register(subscriber);
+
+    try {
+      // one event is being handled and ten fill the lane of events starting with "s"
+      for (int i = 0; i < 11; i++) {
+        eventBus.post("s" + i);
+      }
+
+      CountDownLatch posted = new CountDownLatch(1);
+      Thread poster = new Thread(() -> {
+        eventBus.post("sync event");
+        posted.countDown();
+      });
+      poster.start();
+
+      // wait until poster is waiting for space
+      while (poster.getState() != Thread.State.WAITING
+          && poster.getState() != Thread.State.TIMED_WAITING) {
+        Thread.sleep(10);
+      }
+
+      // subscriber is still blocked, so the lane never gets space
+      eventBus.unregister(subscriber);
+
+      assertTrue(posted.await(5, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  void shouldDispatchOnlyMatchingEventTypes() {
+    List<Object> received = Collections.synchronizedList(new ArrayList<>());
+
+    eventBus.register(new Object() {
+      @Subscribe
+      @Synchronous
+      public void handle(Integer event) {
+        received.add(event);
+      }
+    });
+
+    eventBus.post("a");
+    eventBus.post(1);
+
+    assertEquals(Collections.singletonList(1), received);
+  }
+
+}
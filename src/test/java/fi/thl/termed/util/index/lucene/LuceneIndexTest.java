@@ -1,14 +1,28 @@
 package fi.thl.termed.util.index.lucene;
 
 import static fi.thl.termed.util.collect.StreamUtils.findFirstAndClose;
+import static fi.thl.termed.util.query.Sorts.sortDesc;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
+import fi.thl.termed.util.Converter;
 import fi.thl.termed.util.query.LuceneSpecification;
 import fi.thl.termed.util.query.Specification;
 import java.io.Serializable;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -64,6 +78,96 @@ class LuceneIndexTest {
     assertEquals(0, index.count(term("body", "horses")));
   }
 
+  @Test
+  void shouldIndexAndDeleteBatch() {
+    Map<Integer, TestObject> loaded = index.index(asList(3, 4), keys -> ImmutableMap.of(
+        4, new TestObject(4, "Fourth", "This is an example body about cows"))).join();
+    index.refreshBlocking();
+
+    assertEquals(1, loaded.size());
+    assertEquals(0, index.count(term("body", "horses")));
+    assertEquals(new Integer(4),
+        findFirstAndClose(index.get(term("body", "cows"), null, -1))
+            .orElseThrow(AssertionError::new)
+            .id);
+  }
+
+  @Test
+  void shouldFindAllValuesAndKeysOverSegments() {
+    index.commit();
+    index.index(4, new TestObject(4, "Fourth", "This is an example body about cows"));
+    index.refreshBlocking();
+
+    assertEquals(ImmutableSet.of(1, 2, 3, 4),
+        index.get(term("body", "example"), null, -1).map(o -> o.id).collect(toSet()));
+    assertEquals(ImmutableSet.of(1, 2, 3, 4),
+        index.getKeys(term("body", "example"), null, -1).collect(toSet()));
+  }
+
+  @Test
+  void shouldFindSortedKeysOverSegments() {
+    JsonDocumentConverter<TestObject> jsonConverter =
+        new JsonDocumentConverter<>(new Gson(), TestObject.class);
+    LuceneIndex<Integer, TestObject> titleSortingIndex = new LuceneIndex<>(
+        "",
+        new JsonStringConverter<>(Integer.class),
+        Converter.newConverter(o -> {
+          Document doc = jsonConverter.apply(o);
+          doc.add(new SortedDocValuesField("title.sortable", new BytesRef(o.title)));
+          return doc;
+        }, jsonConverter::applyInverse));
+
+    titleSortingIndex.index(1, new TestObject(1, "First", "This is an example body about dogs"));
+    titleSortingIndex.index(2, new TestObject(2, "Second", "This is an example body about cats"));
+    titleSortingIndex.index(3, new TestObject(3, "Third", "This is an example body about cows"));
+    titleSortingIndex.commit();
+    titleSortingIndex.index(4, new TestObject(4, "Fourth", "This is an example body about pugs"));
+    titleSortingIndex.refreshBlocking();
+
+    assertEquals(asList(3, 2, 4, 1), titleSortingIndex
+        .getKeys(term("body", "example"), singletonList(sortDesc("title")), 10)
+        .collect(toList()));
+    assertEquals(asList(3, 2), titleSortingIndex
+        .getKeys(term("body", "example"), singletonList(sortDesc("title")), 2)
+        .collect(toList()));
+
+    titleSortingIndex.close();
+  }
+
+  @Test
+  void shouldCountByDocValuesOverSegments() {
+    JsonDocumentConverter<TestObject> jsonConverter =
+        new JsonDocumentConverter<>(new Gson(), TestObject.class);
+    LuceneIndex<Integer, TestObject> titleCountingIndex = new LuceneIndex<>(
+        "",
+        new JsonStringConverter<>(Integer.class),
+        Converter.newConverter(o -> {
+          Document doc = jsonConverter.apply(o);
+          doc.add(new SortedDocValuesField("title.facet", new BytesRef(o.title)));
+          return doc;
+        }, jsonConverter::applyInverse));
+
+    titleCountingIndex.index(1, new TestObject(1, "Dog", "This is an example body about dogs"));
+    titleCountingIndex.index(2, new TestObject(2, "Dog", "This is an example body about pugs"));
+    titleCountingIndex.commit();
+    titleCountingIndex.index(3, new TestObject(3, "Cat", "This is an example body about cats"));
+    titleCountingIndex.refreshBlocking();
+
+    assertEquals(ImmutableMap.of("Dog", 2L, "Cat", 1L),
+        titleCountingIndex.countBy(term("body", "example"), "title.facet"));
+    assertEquals(ImmutableMap.of("Dog", 1L),
+        titleCountingIndex.countBy(term("body", "pugs"), "title.facet"));
+    assertFalse(titleCountingIndex.isMissingDocValues("title.facet"));
+
+    titleCountingIndex.close();
+  }
+
+  @Test
+  void shouldTellIfDocValuesAreMissing() {
+    assertTrue(index.isMissingDocValues("title.facet"));
+    assertEquals(ImmutableMap.of(), index.countBy(term("body", "example"), "title.facet"));
+  }
+
   private <K extends Serializable, V> Specification<K, V> term(String field, String value) {
     return new RawLuceneSpecification<>(new TermQuery(new Term(field, value)));
   }
@@ -0,0 +1,58 @@
+package fi.thl.termed.util.jena;
+
+import static org.apache.jena.rdf.model.ResourceFactory.createLangLiteral;
+import static org.apache.jena.rdf.model.ResourceFactory.createPlainLiteral;
+import static org.apache.jena.rdf.model.ResourceFactory.createResource;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.SKOS;
+import org.junit.jupiter.api.Test;
+
+class RdfStatementWriterTest {
+
+  @Test
+  void shouldWriteParsableNTriples() {
+    assertWrittenStatementsParseBack(Lang.NTRIPLES);
+  }
+
+  @Test
+  void shouldWriteParsableTurtle() {
+    assertWrittenStatementsParseBack(Lang.TURTLE);
+  }
+
+  private void assertWrittenStatementsParseBack(Lang lang) {
+    String cat = "http://example.org/Cat";
+    String animal = "http://example.org/Animal";
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try (RdfStatementWriter writer = new RdfStatementWriter(out,
+        ImmutableMap.of("skos", SKOS.getURI()), lang)) {
+      writer.resource(cat, RDF.type.getURI(), SKOS.Concept.getURI());
+      writer.literal(cat, SKOS.prefLabel.getURI(), "Cat \"Felis\"\n", "en");
+      writer.literal(cat, SKOS.notation.getURI(), "1", "");
+      writer.resource(cat, SKOS.broader.getURI(), animal);
+      writer.literal(animal, SKOS.prefLabel.getURI(), "Animal", "en");
+    }
+
+    Model model = ModelFactory.createDefaultModel();
+    RDFDataMgr.read(model, new ByteArrayInputStream(out.toByteArray()), lang);
+
+    assertTrue(model.contains(createResource(cat), RDF.type, SKOS.Concept));
+    assertTrue(model.contains(createResource(cat), SKOS.prefLabel,
+        createLangLiteral("Cat \"Felis\"\n", "en")));
+    assertTrue(model.contains(createResource(cat), SKOS.notation, createPlainLiteral("1")));
+    assertTrue(model.contains(createResource(cat), SKOS.broader, createResource(animal)));
+    assertTrue(model.contains(createResource(animal), SKOS.prefLabel,
+        createLangLiteral("Animal", "en")));
+  }
+
+}
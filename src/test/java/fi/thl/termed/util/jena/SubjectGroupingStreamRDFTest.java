@@ -0,0 +1,78 @@
+package fi.thl.termed.util.jena;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import fi.thl.termed.util.rdf.RdfResource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RiotException;
+import org.junit.jupiter.api.Test;
+
+class SubjectGroupingStreamRDFTest {
+
+  private static final String KNOWS = "http://example.org/knows";
+
+  private List<List<RdfResource>> chunks = new ArrayList<>();
+
+  @Test
+  void shouldPassResourcesInChunksOfSubjects() {
+    parse(2,
+        "<http://example.org/a> <" + KNOWS + "> <http://example.org/b> .",
+        "<http://example.org/a> <" + KNOWS + "> <http://example.org/c> .",
+        "<http://example.org/b> <" + KNOWS + "> <http://example.org/c> .",
+        "<http://example.org/c> <" + KNOWS + "> <http://example.org/a> .");
+
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("http://example.org/a", "http://example.org/b"),
+        ImmutableList.of("http://example.org/c")), chunkUris());
+    assertEquals(ImmutableSet.of("http://example.org/b", "http://example.org/c"),
+        chunks.get(0).get(0).getObjects(KNOWS));
+  }
+
+  @Test
+  void shouldMergeSubjectRepeatingInSameChunk() {
+    parse(2,
+        "<http://example.org/a> <" + KNOWS + "> <http://example.org/b> .",
+        "<http://example.org/b> <" + KNOWS + "> <http://example.org/c> .",
+        "<http://example.org/a> <" + KNOWS + "> <http://example.org/c> .");
+
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("http://example.org/a", "http://example.org/b")), chunkUris());
+    assertEquals(ImmutableSet.of("http://example.org/b", "http://example.org/c"),
+        chunks.get(0).get(0).getObjects(KNOWS));
+  }
+
+  @Test
+  void shouldRejectSubjectRepeatingAfterItsChunkIsPassed() {
+    assertThrows(RiotException.class, () -> parse(1,
+        "<http://example.org/a> <" + KNOWS + "> <http://example.org/b> .",
+        "<http://example.org/b> <" + KNOWS + "> <http://example.org/c> .",
+        "<http://example.org/a> <" + KNOWS + "> <http://example.org/c> ."));
+
+    // chunk passed before the repeating subject is not undone, chunk being read is dropped
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("http://example.org/a")), chunkUris());
+  }
+
+  private void parse(int chunkSize, String... nTriples) {
+    RDFDataMgr.parse(new SubjectGroupingStreamRDF(chunkSize, chunks::add),
+        new ByteArrayInputStream(
+            String.join("\n", nTriples).getBytes(StandardCharsets.UTF_8)),
+        Lang.NTRIPLES);
+  }
+
+  private List<List<String>> chunkUris() {
+    return chunks.stream()
+        .map(chunk -> chunk.stream().map(RdfResource::getUri).collect(toList()))
+        .collect(toList());
+  }
+
+}
@@ -6,8 +6,11 @@ import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.util.Objects;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
@@ -28,6 +31,24 @@ class JsonStreamTest {
         stream.collect(toList()));
   }
 
+  @Test
+  void shouldParseNestedJsonArrayLazilyAndContinueAfterIt() throws IOException {
+    String exampleJson = "{'values':[{'value':'A'},{'value':'B'}],'next':'C'}"
+        .replace('\'', '"');
+    JsonReader reader = new JsonReader(new StringReader(exampleJson));
+
+    reader.beginObject();
+    assertEquals("values", reader.nextName());
+
+    try (Stream<Example> stream = JsonStream.readArray(gson, Example.class, reader)) {
+      assertEquals(asList(new Example("A"), new Example("B")), stream.collect(toList()));
+    }
+
+    assertEquals("next", reader.nextName());
+    assertEquals("C", reader.nextString());
+    reader.endObject();
+  }
+
   private class Example {
 
     private String value;
@@ -1,8 +1,16 @@
 package fi.thl.termed.util.service;
 
+import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fi.thl.termed.domain.User;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
 import org.junit.jupiter.api.Test;
 
 class CachedNamedSequenceServiceTest {
@@ -37,4 +45,29 @@ class CachedNamedSequenceServiceTest {
     assertEquals((Long) 4L, actualSeq.get(seqName, user));
   }
 
+  @Test
+  void shouldGiveUniqueValuesConcurrently() throws InterruptedException {
+    String seqName = "A";
+    User user = User.newUser("example");
+
+    NamedSequenceService<String> actualSeq =
+        new SynchronizedNamedSequenceService<>(new MemoryBasedNamedSequence<>());
+    CachedNamedSequenceService<String> cachedSeq = new CachedNamedSequenceService<>(actualSeq, 7);
+
+    Set<Long> values = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 1000; i++) {
+      executor.execute(() -> values.add(cachedSeq.getAndAdvance(seqName, user)));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+    assertEquals(1000, values.size());
+    assertEquals(LongStream.range(0, 1000).boxed().collect(toSet()), values);
+
+    cachedSeq.close();
+
+    assertEquals((Long) 1000L, actualSeq.get(seqName, user));
+  }
+
 }
@@ -0,0 +1,128 @@
+package fi.thl.termed.util.service;
+
+import static fi.thl.termed.util.collect.StreamUtils.toListAndClose;
+import static fi.thl.termed.util.service.SaveMode.UPSERT;
+import static fi.thl.termed.util.service.WriteOptions.defaultOpts;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.thl.termed.domain.AppRole;
+import fi.thl.termed.domain.Graph;
+import fi.thl.termed.domain.GraphId;
+import fi.thl.termed.domain.GraphRole;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.service.graph.specification.GraphById;
+import fi.thl.termed.util.dao.AuthorizedDao;
+import fi.thl.termed.util.dao.MemoryBasedSystemDao;
+import fi.thl.termed.util.query.MatchAll;
+import fi.thl.termed.util.query.Query;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+class SnapshotServiceTest {
+
+  private GraphId publicGraphId = GraphId.random();
+  private GraphId privateGraphId = GraphId.random();
+  private GraphRole privateGraphReader = new GraphRole(privateGraphId, "reader");
+
+  private AtomicInteger loadCount = new AtomicInteger();
+
+  // private graph is readable only with reader role
+  private SnapshotService<GraphId, Graph> snapshotService = new SnapshotService<>(
+      new ForwardingService<GraphId, Graph>(new DaoForwardingRepository<>(new AuthorizedDao<>(
+          new MemoryBasedSystemDao<>(),
+          (user, graphId, permission) -> !graphId.equals(privateGraphId)
+              || user.getGraphRoles().contains(privateGraphReader)))) {
+        @Override
+        public Stream<Graph> values(Query<GraphId, Graph> query, User user) {
+          loadCount.incrementAndGet();
+          return super.values(query, user);
+        }
+      });
+
+  private User reader = new User("reader", "", AppRole.USER, singletonList(privateGraphReader));
+  private User anotherReader =
+      new User("another-reader", "", AppRole.USER, singletonList(privateGraphReader));
+  private User guest = new User("guest", "", AppRole.USER);
+
+  @Test
+  void shouldLoadValuesOncePerSnapshotVersion() {
+    snapshotService.save(graph(publicGraphId, "a"), UPSERT, defaultOpts(), reader);
+
+    assertEquals("a", code(publicGraphId, reader));
+    assertEquals(1, count(reader));
+    assertEquals(1, loadCount.get());
+
+    snapshotService.save(graph(publicGraphId, "b"), UPSERT, defaultOpts(), reader);
+
+    assertEquals("b", code(publicGraphId, reader));
+    assertEquals(1, count(reader));
+    assertEquals(2, loadCount.get());
+  }
+
+  @Test
+  void shouldShareViewsBetweenUsersWithSameRoles() {
+    snapshotService.save(Stream.of(
+        graph(publicGraphId, "public"),
+        graph(privateGraphId, "private")), UPSERT, defaultOpts(), reader);
+
+    assertEquals(2, count(reader));
+    assertEquals(2, count(anotherReader));
+    assertEquals(1, loadCount.get());
+
+    assertEquals(1, count(guest));
+    assertFalse(snapshotService.exists(privateGraphId, guest));
+    assertTrue(snapshotService.exists(privateGraphId, reader));
+    assertEquals(2, loadCount.get());
+  }
+
+  @Test
+  void shouldPublishTransactionalWritesAfterCompletion()
+      throws ExecutionException, InterruptedException {
+    snapshotService.save(graph(publicGraphId, "a"), UPSERT, defaultOpts(), reader);
+    assertEquals("a", code(publicGraphId, reader));
+    long version = snapshotService.getVersion();
+
+    TransactionSynchronizationManager.initSynchronization();
+    try {
+      snapshotService.save(graph(publicGraphId, "b"), UPSERT, defaultOpts(), reader);
+      assertEquals(version, snapshotService.getVersion());
+
+      // writing transaction sees its own changes, others see the published snapshot
+      assertEquals("b", code(publicGraphId, reader));
+      assertEquals("a", CompletableFuture.supplyAsync(() -> code(publicGraphId, reader)).get());
+
+      List<TransactionSynchronization> synchronizations =
+          TransactionSynchronizationManager.getSynchronizations();
+      synchronizations.forEach(s -> s.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+    } finally {
+      TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    assertEquals(version + 1, snapshotService.getVersion());
+    assertEquals("b", CompletableFuture.supplyAsync(() -> code(publicGraphId, reader)).get());
+    assertEquals("b", code(publicGraphId, reader));
+  }
+
+  private Graph graph(GraphId id, String code) {
+    return Graph.builder().id(id).code(code).build();
+  }
+
+  private String code(GraphId id, User user) {
+    return toListAndClose(snapshotService.values(new Query<>(new GraphById(id.getId())), user))
+        .get(0).getCode().orElse(null);
+  }
+
+  private long count(User user) {
+    return snapshotService.count(new MatchAll<>(), user);
+  }
+
+}
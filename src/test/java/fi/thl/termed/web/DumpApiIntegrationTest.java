@@ -69,4 +69,42 @@ class DumpApiIntegrationTest extends BaseApiIntegrationTest {
     given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
   }
 
+  @Test
+  void shouldRejectDumpWithNodesBeforeGraphsAndTypes() {
+    String graphId = UUID.randomUUID().toString();
+    String typeId = "Concept";
+    String nodeId = UUID.randomUUID().toString();
+
+    JsonObject graphIdObject = object("id", primitive(graphId));
+    JsonObject typeIdObject = object("id", primitive(typeId), "graph", graphIdObject);
+    JsonObject nodeIdObject = object("id", primitive(nodeId), "type", typeIdObject);
+
+    // graph and type exist so that nodes could be saved
+    given(adminAuthorizedJsonSaveRequest)
+        .body(object(
+            "graphs", array(graphIdObject),
+            "types", array(typeIdObject)).toString())
+        .post("/api/dump?mode=insert")
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    given(adminAuthorizedJsonSaveRequest)
+        .body(object(
+            "nodes", array(nodeIdObject),
+            "graphs", array(graphIdObject),
+            "types", array(typeIdObject)).toString())
+        .post("/api/dump?mode=upsert")
+        .then()
+        .statusCode(HttpStatus.SC_BAD_REQUEST);
+
+    given(adminAuthorizedJsonGetRequest)
+        .get("/api/graphs/" + graphId + "/types/" + typeId + "/nodes/" + nodeId)
+        .then()
+        .statusCode(HttpStatus.SC_NOT_FOUND);
+
+    // clean up
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
+  }
+
 }
@@ -0,0 +1,63 @@
+package fi.thl.termed.web;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+
+import fi.thl.termed.service.node.internal.NodeRevisionCheckpointer;
+import java.util.UUID;
+import org.apache.http.HttpStatus;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+class NodeRevisionApiIntegrationTest extends BaseApiIntegrationTest {
+
+  @Autowired
+  private NodeRevisionCheckpointer nodeRevisionCheckpointer;
+
+  @Test
+  void shouldNotListCheckpointsAsNodeRevisions() throws InterruptedException {
+    String graphId = UUID.randomUUID().toString();
+    String typeId = "Concept";
+    String nodeId = UUID.randomUUID().toString();
+    String nodeUrl = "/api/graphs/" + graphId + "/types/" + typeId + "/nodes/" + nodeId;
+
+    // save graph, type and node
+    given(adminAuthorizedJsonSaveRequest)
+        .body("{'id':'" + graphId + "'}")
+        .post("/api/graphs?mode=insert");
+    given(adminAuthorizedJsonSaveRequest)
+        .body("{'id':'" + typeId + "'}")
+        .post("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedJsonSaveRequest)
+        .body("{'id':'" + nodeId + "'}")
+        .post("/api/graphs/" + graphId + "/types/" + typeId + "/nodes?mode=insert");
+
+    int checkpoint = nodeRevisionCheckpointer.createCheckpoint().intValue();
+
+    given(adminAuthorizedJsonSaveRequest)
+        .body("{'id':'" + nodeId + "'}")
+        .post("/api/graphs/" + graphId + "/types/" + typeId + "/nodes?mode=update");
+
+    // checkpoint has a row for the node, but it is not a change to the node
+    given(adminAuthorizedJsonGetRequest)
+        .get(nodeUrl + "/revisions")
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .body("number", not(hasItem(checkpoint)))
+        .body("size()", equalTo(2));
+
+    // node state is still readable as of the checkpoint
+    given(adminAuthorizedJsonGetRequest)
+        .get(nodeUrl + "/revisions/" + checkpoint)
+        .then()
+        .statusCode(HttpStatus.SC_OK);
+
+    // clean up
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/nodes");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
+  }
+
+}
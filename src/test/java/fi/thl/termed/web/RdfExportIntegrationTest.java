@@ -2,7 +2,10 @@ package fi.thl.termed.web;
 
 import static fi.thl.termed.util.io.ResourceUtils.resourceToString;
 import static io.restassured.RestAssured.given;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fi.thl.termed.domain.DefaultUris;
@@ -10,14 +13,20 @@ import fi.thl.termed.domain.Node;
 import fi.thl.termed.domain.TypeId;
 import fi.thl.termed.util.rdf.JenaUtils;
 import fi.thl.termed.util.rdf.RdfMediaTypes;
+import fi.thl.termed.util.spring.http.MediaTypes;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.IntStream;
 import org.apache.http.HttpStatus;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.vocabulary.SKOS;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 
 class RdfExportIntegrationTest extends BaseApiIntegrationTest {
 
@@ -92,4 +101,137 @@ class RdfExportIntegrationTest extends BaseApiIntegrationTest {
     given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
   }
 
+  @Test
+  void shouldStreamSparqlResults() {
+    UUID graphId = UUID.randomUUID();
+
+    // save graph and types
+    given(adminAuthorizedJsonSaveRequest)
+        .body(resourceToString("examples/termed/animals-graph.json"))
+        .put("/api/graphs/" + graphId + "?mode=insert");
+    given(adminAuthorizedJsonSaveRequest)
+        .body(resourceToString("examples/termed/animals-types.json"))
+        .post("/api/graphs/" + graphId + "/types?batch=true");
+
+    Node animalNode = Node.builder()
+        .random(TypeId.of("Concept", graphId))
+        .uri("http://example.org/animal")
+        .addProperty("prefLabel", "Animal")
+        .build();
+
+    Node dogNode = Node.builder()
+        .random(TypeId.of("Concept", graphId))
+        .uri("http://example.org/dog")
+        .addProperty("prefLabel", "Dog")
+        .addReference("broader", animalNode.identifier())
+        .build();
+
+    given(adminAuthorizedJsonSaveRequest)
+        .body(Arrays.asList(animalNode, dogNode))
+        .post("/api/graphs/" + graphId + "/nodes?batch=true")
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    String prefixes = "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n";
+
+    given(adminAuthorizedRequest)
+        .accept(RdfMediaTypes.SPARQL_RESULTS_JSON_VALUE)
+        .body(prefixes + "SELECT ?label WHERE { ?c skos:broader ?b . ?b skos:prefLabel ?label }")
+        .post("/api/graphs/" + graphId + "/nodes/sparql")
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .body("results.bindings[0].label.value", equalTo("Animal"));
+
+    String constructResponse = given(adminAuthorizedRequest)
+        .accept(RdfMediaTypes.N_TRIPLES_VALUE)
+        .body(prefixes
+            + "CONSTRUCT { ?b skos:narrower ?c } WHERE { ?c skos:broader ?b }")
+        .post("/api/graphs/" + graphId + "/nodes/sparql")
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .extract()
+        .asString();
+
+    assertEquals("<http://example.org/animal> <http://www.w3.org/2004/02/skos/core#narrower> "
+        + "<http://example.org/dog> .", constructResponse.trim());
+
+    // clean up
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/nodes");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
+  }
+
+  @Test
+  void shouldStreamLargeSparqlResults() {
+    UUID graphId = UUID.randomUUID();
+
+    // save graph and types
+    given(adminAuthorizedJsonSaveRequest)
+        .body(resourceToString("examples/termed/animals-graph.json"))
+        .put("/api/graphs/" + graphId + "?mode=insert");
+    given(adminAuthorizedJsonSaveRequest)
+        .body(resourceToString("examples/termed/animals-types.json"))
+        .post("/api/graphs/" + graphId + "/types?batch=true");
+
+    List<Node> nodes = IntStream.range(0, 2000)
+        .mapToObj(i -> Node.builder()
+            .random(TypeId.of("Concept", graphId))
+            .addProperty("prefLabel", "Concept " + i)
+            .build())
+        .collect(toList());
+
+    given(adminAuthorizedJsonSaveRequest)
+        .body(nodes)
+        .post("/api/graphs/" + graphId + "/nodes?batch=true")
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    Set<String> expectedLabels = IntStream.range(0, 2000)
+        .mapToObj(i -> "Concept " + i)
+        .collect(toSet());
+    String select = "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n"
+        + "SELECT ?label WHERE { ?c skos:prefLabel ?label }";
+
+    String csvResponse = given(adminAuthorizedRequest)
+        .accept(MediaTypes.TEXT_CSV_VALUE)
+        .body(select)
+        .post("/api/graphs/" + graphId + "/nodes/sparql")
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .extract()
+        .asString();
+
+    List<String> csvLines = Arrays.asList(csvResponse.trim().split("\r?\n"));
+    assertEquals("label", csvLines.get(0));
+    assertEquals(expectedLabels, new HashSet<>(csvLines.subList(1, csvLines.size())));
+
+    given(adminAuthorizedRequest)
+        .accept(RdfMediaTypes.SPARQL_RESULTS_JSON_VALUE)
+        .body(select)
+        .post("/api/graphs/" + graphId + "/nodes/sparql")
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .body("results.bindings.size()", equalTo(2000));
+
+    // plain text table is buffered to compute column widths, but contains all rows as well
+    String textResponse = given(adminAuthorizedRequest)
+        .accept(MediaType.TEXT_PLAIN_VALUE)
+        .body(select)
+        .post("/api/graphs/" + graphId + "/nodes/sparql")
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .extract()
+        .asString();
+
+    assertEquals(expectedLabels, Arrays.stream(textResponse.split("\r?\n"))
+        .filter(line -> line.startsWith("| \""))
+        .map(line -> line.substring(3, line.lastIndexOf('"')))
+        .collect(toSet()));
+
+    // clean up
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/nodes");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
+  }
+
 }
@@ -10,11 +10,15 @@ import fi.thl.termed.util.io.ResourceUtils;
 import fi.thl.termed.util.json.JsonUtils;
 import fi.thl.termed.util.rdf.JenaUtils;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 import org.apache.http.HttpStatus;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.SKOS;
 import org.junit.jupiter.api.Test;
@@ -46,6 +50,10 @@ class RdfImportIntegrationTest extends BaseApiIntegrationTest {
         .get("/api/graphs/" + graphId + "/node-count")
         .then()
         .body(equalTo("16"));
+    given(adminAuthorizedJsonGetRequest)
+        .get("/api/graphs/" + graphId + "/node-count?groupBy=type")
+        .then()
+        .body("Concept", equalTo(16));
 
     // clean up
     given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/nodes");
@@ -101,4 +109,51 @@ class RdfImportIntegrationTest extends BaseApiIntegrationTest {
     given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
   }
 
+  @Test
+  void shouldSaveRdfStreamWithReferences() throws IOException {
+    String graphId = UUID.randomUUID().toString();
+
+    // save test graph and types
+    given(adminAuthorizedJsonSaveRequest)
+        .body(JsonUtils.getJsonResource("examples/skos/example-skos-graph.json").toString())
+        .put("/api/graphs/" + graphId + "?mode=insert");
+    given(adminAuthorizedJsonSaveRequest)
+        .body(JsonUtils.getJsonResource("examples/skos/example-skos-types.json").toString())
+        .post("/api/graphs/" + graphId + "/types?batch=true");
+
+    String animalId = UUID.randomUUID().toString();
+    String catId = UUID.randomUUID().toString();
+
+    Model model = ModelFactory.createDefaultModel();
+    Resource animal = createResource("urn:uuid:" + animalId);
+    Resource cat = createResource("urn:uuid:" + catId);
+    model.add(createStatement(animal, RDF.type, SKOS.Concept));
+    model.add(createStatement(animal, SKOS.prefLabel, createPlainLiteral("Animal")));
+    model.add(createStatement(cat, RDF.type, SKOS.Concept));
+    model.add(createStatement(cat, SKOS.prefLabel, createPlainLiteral("Cat")));
+    model.add(createStatement(cat, SKOS.broader, animal));
+
+    StringWriter nTriples = new StringWriter();
+    RDFDataMgr.write(nTriples, model, Lang.NTRIPLES);
+
+    given(adminAuthorizedRequest)
+        .contentType("application/n-triples")
+        .body(nTriples.toString().getBytes(StandardCharsets.UTF_8))
+        .post("/api/graphs/" + graphId + "/nodes?stream=true&sync=true")
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    given(adminAuthorizedJsonGetRequest)
+        .get("/api/graphs/" + graphId + "/types/Concept/nodes/" + catId)
+        .then()
+        .statusCode(HttpStatus.SC_OK)
+        .body("properties.prefLabel[0].value", equalTo("Cat"))
+        .body("references.broader[0].id", equalTo(animalId));
+
+    // clean up
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/nodes");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
+  }
+
 }
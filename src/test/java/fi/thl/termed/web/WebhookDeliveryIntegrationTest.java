@@ -0,0 +1,234 @@
+package fi.thl.termed.web;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static fi.thl.termed.util.io.ResourceUtils.resourceToString;
+import static fi.thl.termed.util.service.SaveMode.UPSERT;
+import static fi.thl.termed.util.service.WriteOptions.opts;
+import static fi.thl.termed.util.spring.transaction.TransactionUtils.runInTransaction;
+import static io.restassured.RestAssured.given;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import fi.thl.termed.domain.AppRole;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.Webhook;
+import fi.thl.termed.util.service.Service;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+
+class WebhookDeliveryIntegrationTest extends BaseApiIntegrationTest {
+
+  @Autowired
+  private Service<NodeId, Node> nodeService;
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  // saved by the base class
+  private User writer = new User("test-superuser", "", AppRole.SUPERUSER);
+
+  private HttpServer receiver;
+  private List<JsonObject> receivedEvents = new CopyOnWriteArrayList<>();
+  private AtomicInteger failuresToRespond = new AtomicInteger();
+
+  private Webhook hook;
+  private UUID graphId;
+
+  @BeforeEach
+  void startReceiverAndInsertHook() throws IOException {
+    receivedEvents.clear();
+    failuresToRespond.set(0);
+
+    receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    receiver.createContext("/events", exchange -> {
+      byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+      if (failuresToRespond.getAndDecrement() > 0) {
+        exchange.sendResponseHeaders(HttpStatus.SC_SERVICE_UNAVAILABLE, -1);
+      } else {
+        receivedEvents.add(new JsonParser().parse(new String(body, UTF_8)).getAsJsonObject());
+        exchange.sendResponseHeaders(HttpStatus.SC_OK, -1);
+      }
+      exchange.close();
+    });
+    receiver.start();
+
+    hook = new Webhook("http://localhost:" + receiver.getAddress().getPort() + "/events");
+
+    given(adminAuthorizedJsonSaveRequest)
+        .body(hook)
+        .post("/api/hooks")
+        .then()
+        .statusCode(HttpStatus.SC_OK);
+
+    graphId = UUID.randomUUID();
+
+    given(adminAuthorizedJsonSaveRequest)
+        .body(resourceToString("examples/termed/animals-graph.json"))
+        .put("/api/graphs/" + graphId + "?mode=insert");
+    given(adminAuthorizedJsonSaveRequest)
+        .body(resourceToString("examples/termed/animals-types.json"))
+        .post("/api/graphs/" + graphId + "/types?batch=true");
+  }
+
+  @AfterEach
+  void deleteHookAndStopReceiver() {
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/nodes");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId + "/types");
+    given(adminAuthorizedRequest).delete("/api/graphs/" + graphId);
+
+    given(adminAuthorizedRequest)
+        .delete("/api/hooks/{id}", hook.getId())
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    receiver.stop(0);
+  }
+
+  @Test
+  void shouldDeliverSavedAndDeletedNodes() throws InterruptedException {
+    List<Node> nodes = saveNodes(5);
+
+    given(adminAuthorizedRequest)
+        .delete("/api/graphs/" + graphId + "/types/Concept/nodes/" + nodes.get(0).getId())
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    awaitEvents(nodes.size() + 1);
+
+    assertEquals(nodeIds(nodes), receivedNodeIds("NodeSavedEvent"));
+    assertEquals(nodeIds(nodes.subList(0, 1)), receivedNodeIds("NodeDeletedEvent"));
+  }
+
+  @Test
+  void shouldRetryFailedDelivery() throws InterruptedException {
+    failuresToRespond.set(2);
+
+    List<Node> nodes = saveNodes(3);
+
+    awaitEvents(nodes.size());
+
+    assertTrue(failuresToRespond.get() < 0);
+    assertEquals(nodeIds(nodes), receivedNodeIds("NodeSavedEvent"));
+  }
+
+  @Test
+  void shouldNotDeliverSavesWithoutChanges() throws InterruptedException {
+    List<Node> nodes = saveNodes(3);
+
+    nodes.forEach(this::saveNode);
+    saveNode(Node.builderFromCopyOf(nodes.get(0))
+        .replaceProperty("prefLabel", "Changed concept")
+        .build());
+
+    // delete is delivered last, all saves are delivered before it
+    given(adminAuthorizedRequest)
+        .delete("/api/graphs/" + graphId + "/types/Concept/nodes/" + nodes.get(1).getId())
+        .then()
+        .statusCode(HttpStatus.SC_NO_CONTENT);
+
+    awaitEvents(nodes.size() + 2);
+
+    assertEquals(nodes.size() + 1, receivedNodeChangeCount("NodeSavedEvent"));
+    assertEquals(nodeIds(nodes.subList(1, 2)), receivedNodeIds("NodeDeletedEvent"));
+  }
+
+  @Test
+  void shouldDeliverSyncSaveInOuterTransactionOnCommit() {
+    Node node = Node.builder()
+        .random(TypeId.of("Concept", graphId))
+        .addProperty("prefLabel", "Concept")
+        .build();
+
+    runInTransaction(transactionManager, () ->
+        nodeService.save(node, UPSERT, opts(true), writer));
+
+    // sync write has been delivered when commit returns
+    assertEquals(nodeIds(singletonList(node)), receivedNodeIds("NodeSavedEvent"));
+  }
+
+  private List<Node> saveNodes(int count) {
+    List<Node> nodes = new ArrayList<>();
+
+    for (int i = 0; i < count; i++) {
+      Node node = Node.builder()
+          .random(TypeId.of("Concept", graphId))
+          .code("concept-" + i)
+          .uri("http://example.org/concept-" + i)
+          .addProperty("prefLabel", "Concept " + i)
+          .build();
+
+      saveNode(node);
+      nodes.add(node);
+    }
+
+    return nodes;
+  }
+
+  private void saveNode(Node node) {
+    given(adminAuthorizedJsonSaveRequest)
+        .body(node)
+        .post("/api/graphs/" + graphId + "/types/Concept/nodes")
+        .then()
+        .statusCode(HttpStatus.SC_OK);
+  }
+
+  // waits until events for given number of node changes are received or timeout is reached
+  private void awaitEvents(int nodeChangeCount) throws InterruptedException {
+    for (int i = 0; i < 200 && receivedNodeChangeCount() < nodeChangeCount; i++) {
+      Thread.sleep(100);
+    }
+  }
+
+  private int receivedNodeChangeCount() {
+    return receivedEvents.stream()
+        .mapToInt(e -> e.getAsJsonObject("body").getAsJsonArray("nodes").size())
+        .sum();
+  }
+
+  private int receivedNodeChangeCount(String eventType) {
+    return receivedEvents.stream()
+        .filter(e -> e.get("type").getAsString().equals(eventType))
+        .mapToInt(e -> e.getAsJsonObject("body").getAsJsonArray("nodes").size())
+        .sum();
+  }
+
+  private Set<UUID> receivedNodeIds(String eventType) {
+    Set<UUID> ids = new HashSet<>();
+    receivedEvents.stream()
+        .filter(e -> e.get("type").getAsString().equals(eventType))
+        .forEach(e -> {
+          for (JsonElement node : e.getAsJsonObject("body").getAsJsonArray("nodes")) {
+            ids.add(UUID.fromString(node.getAsJsonObject().get("id").getAsString()));
+          }
+        });
+    return ids;
+  }
+
+  private Set<UUID> nodeIds(List<Node> nodes) {
+    Set<UUID> ids = new HashSet<>();
+    nodes.forEach(n -> ids.add(n.getId()));
+    return ids;
+  }
+
+}
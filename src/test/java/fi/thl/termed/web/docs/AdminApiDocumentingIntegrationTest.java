@@ -79,7 +79,8 @@ class AdminApiDocumentingIntegrationTest extends BaseApiDocumentingIntegrationTe
   void documentDeleteRevisions() {
     given(adminAuthorizedRequest).filter(
         document("delete-revisions",
-            operationIntro("Delete request to revisions purges all revision history entries")))
+            operationIntro("Delete request to revisions purges all revision history entries "
+                + "in the background")))
         .when()
         .delete("/api/revisions")
         .then()
@@ -135,7 +135,8 @@ class DumpApiDocumentingIntegrationTest extends BaseApiDocumentingIntegrationTes
         .filter(document("save-a-dump",
             operationIntro("Restore a dump. Tries to save all graphs, types and nodes in the dump. "
                 + "Graphs, types and nodes are each saved atomically but whole dump is not. I.e. "
-                + "error on saving nodes leaves updated graphs and types."),
+                + "error on saving nodes leaves updated graphs and types. Dump is read and saved "
+                + "while it is being received, so graphs and types are expected before nodes."),
             requestHeaders(
                 headerWithName("Authorization")
                     .description("Basic authentication credentials")),
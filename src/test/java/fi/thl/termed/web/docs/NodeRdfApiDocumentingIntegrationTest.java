@@ -59,11 +59,14 @@ class NodeRdfApiDocumentingIntegrationTest extends BaseNodeApiDocumentingIntegra
     given(adminAuthorizedRequest)
         .filter(document("get-graph-nodes-in-rdf-by-sparql",
             operationIntro(
-                "Returns a CSV table corresponding to given SPARQL query. In background Termed "
-                    + "index is used as a triple store. Performance might not be on par with "
-                    + "native triple stores. Supported output formats are `text/csv` and "
+                "Returns results of given SPARQL query. In background Termed index is used as "
+                    + "a triple store. Performance might not be on par with native triple stores. "
+                    + "Results are streamed as they are evaluated. Supported output formats for "
+                    + "`SELECT` queries are `text/csv`, `text/tab-separated-values`, "
+                    + "`application/sparql-results+json`, `application/sparql-results+xml` and "
                     + "`text/plain`. Plain text should be used only for small result sets as it's "
-                    + "slower to render."),
+                    + "rendered only after all results are read. Supported output formats for "
+                    + "`CONSTRUCT` queries are `text/turtle` and `application/n-triples`."),
             requestParameters(
                 parameterWithName("timeout").optional()
                     .description("Optional integer parameter to specify query timeout in seconds. "
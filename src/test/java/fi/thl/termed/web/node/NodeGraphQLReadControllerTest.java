@@ -0,0 +1,172 @@
+package fi.thl.termed.web.node;
+
+import static fi.thl.termed.domain.User.newSuperuser;
+import static fi.thl.termed.domain.User.newUser;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import fi.thl.termed.domain.Graph;
+import fi.thl.termed.domain.GraphId;
+import fi.thl.termed.domain.Node;
+import fi.thl.termed.domain.NodeId;
+import fi.thl.termed.domain.ReferenceAttribute;
+import fi.thl.termed.domain.TextAttribute;
+import fi.thl.termed.domain.Type;
+import fi.thl.termed.domain.TypeId;
+import fi.thl.termed.domain.User;
+import fi.thl.termed.domain.event.InvalidateCachesEvent;
+import fi.thl.termed.util.query.Query;
+import fi.thl.termed.util.service.Service;
+import fi.thl.termed.util.service.SnapshotService;
+import fi.thl.termed.util.spring.exception.BadRequestException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class NodeGraphQLReadControllerTest {
+
+  private UUID graphId = UUID.randomUUID();
+  private TypeId personId = TypeId.of("Person", graphId);
+
+  private Type person = Type.builder().id(personId)
+      .textAttributes(TextAttribute.builder().id("name", personId).regexAll().build())
+      .referenceAttributes(
+          ReferenceAttribute.builder().id("knows", personId).range(personId).build())
+      .build();
+
+  private Node jack = Node.builder().id(NodeId.random(personId))
+      .addProperty("name", "Jack").build();
+  private Node mary = Node.builder().id(NodeId.random(personId))
+      .addProperty("name", "Mary").addReference("knows", jack.identifier()).build();
+  private Node john = Node.builder().id(NodeId.random(personId))
+      .addProperty("name", "John")
+      .addReference("knows", mary.identifier())
+      .addReference("knows", jack.identifier()).build();
+
+  private User user = newSuperuser("test-user");
+
+  private SnapshotService<TypeId, Type> typeService;
+  private List<Query<NodeId, Node>> nodeQueries = new ArrayList<>();
+
+  private NodeGraphQLReadController controller = new NodeGraphQLReadController();
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    Service<GraphId, Graph> graphService = mock(Service.class);
+    typeService = mock(SnapshotService.class);
+    Service<NodeId, Node> nodeService = mock(Service.class);
+
+    when(graphService.values(any(), any()))
+        .thenAnswer(i -> Stream.of(Graph.builder().id(graphId).build()));
+    when(typeService.getVersion()).thenReturn(1L);
+    when(typeService.get(personId, user)).thenReturn(Optional.of(person));
+    when(typeService.values(any(), any())).thenAnswer(i -> Stream.of(person));
+    when(nodeService.values(any(), any())).thenAnswer(i -> {
+      Query<NodeId, Node> query = i.getArgument(0);
+      nodeQueries.add(query);
+      return Stream.of(john, mary, jack)
+          .filter(n -> query.getWhere().test(n.identifier(), n));
+    });
+
+    ReflectionTestUtils.setField(controller, "graphService", graphService);
+    ReflectionTestUtils.setField(controller, "typeService", typeService);
+    ReflectionTestUtils.setField(controller, "nodeService", nodeService);
+  }
+
+  @Test
+  void shouldReuseCachedGraphQLForSameTypesVersion() throws ExecutionException {
+    // types are read again for each request, schema is looked up by version only
+    Type personCopy = Type.builderFromCopyOf(person).build();
+
+    assertSame(
+        controller.getGraphQL(person, ImmutableList.of(person), 1L, user),
+        controller.getGraphQL(personCopy, ImmutableList.of(personCopy), 1L, user));
+  }
+
+  @Test
+  void shouldBuildNewGraphQLWhenTypesVersionChanges() throws ExecutionException {
+    Type personWithEmail = Type.builderFromCopyOf(person)
+        .textAttributes(
+            TextAttribute.builder().id("name", personId).regexAll().build(),
+            TextAttribute.builder().id("email", personId).regexAll().build())
+        .build();
+
+    assertNotSame(
+        controller.getGraphQL(person, ImmutableList.of(person), 1L, user),
+        controller.getGraphQL(personWithEmail, ImmutableList.of(personWithEmail), 2L, user));
+
+    String emailQuery = "{ nodes { properties { email { value } } } }";
+
+    assertThrows(BadRequestException.class, () -> query(emailQuery));
+
+    when(typeService.getVersion()).thenReturn(2L);
+    when(typeService.get(personId, user)).thenReturn(Optional.of(personWithEmail));
+    when(typeService.values(any(), any())).thenAnswer(i -> Stream.of(personWithEmail));
+
+    assertEquals(3, query(emailQuery).size());
+  }
+
+  @Test
+  void shouldNotShareGraphQLBetweenUsersWithDifferentRoles() throws ExecutionException {
+    User otherUser = newUser("other-user");
+
+    assertNotSame(
+        controller.getGraphQL(person, ImmutableList.of(person), 1L, user),
+        controller.getGraphQL(person, ImmutableList.of(person), 1L, otherUser));
+    assertSame(
+        controller.getGraphQL(person, ImmutableList.of(person), 1L, user),
+        controller.getGraphQL(person, ImmutableList.of(person), 1L, newSuperuser("another")));
+  }
+
+  @Test
+  void shouldBuildNewGraphQLWhenCachesAreInvalidated() throws ExecutionException {
+    Object graphQL = controller.getGraphQL(person, ImmutableList.of(person), 1L, user);
+
+    controller.clearCachesOn(new InvalidateCachesEvent());
+
+    assertNotSame(graphQL, controller.getGraphQL(person, ImmutableList.of(person), 1L, user));
+  }
+
+  @Test
+  void shouldLoadReferencesOfAllNodesWithOneQuery() throws ExecutionException {
+    List<Map<String, Object>> results = query(
+        "{ nodes { id, references { knows { id, properties { name { value } } } } } }");
+
+    assertEquals(3, results.size());
+    // one query for the nodes and one for all referenced nodes
+    assertEquals(2, nodeQueries.size());
+    assertEquals(ImmutableList.of(
+        mary.getId().toString(),
+        jack.getId().toString()), knowsIds(results.get(0)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Map<String, Object>> query(String query) throws ExecutionException {
+    return (List<Map<String, Object>>) controller.queryNodesOfType(
+        graphId, personId.getId(), query, true, user);
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<String> knowsIds(Map<String, Object> result) {
+    Map<String, Object> references = (Map<String, Object>) result.get("references");
+    List<Map<String, Object>> knows = (List<Map<String, Object>>) references.get("knows");
+    List<String> ids = new ArrayList<>();
+    knows.forEach(k -> ids.add((String) k.get("id")));
+    return ids;
+  }
+
+}